@@ -37,6 +37,11 @@ public class AesEncrypter {
 
     private static SecretKeySpec skeySpec;
 
+    // Creating and initializing a Cipher is expensive, so each thread keeps one
+    // per mode.  doFinal() resets the cipher so that it can be reused.
+    private static final ThreadLocal<Cipher> encryptCipher = new ThreadLocal<>();
+    private static final ThreadLocal<Cipher> decryptCipher = new ThreadLocal<>();
+
     static {
         byte[] ivraw = secretKey.getBytes();
         skeySpec = new SecretKeySpec(ivraw, "AES"); //$NON-NLS-1$
@@ -51,25 +56,7 @@ public class AesEncrypter {
         if (plainText == null) {
             return null;
         }
-        byte[] encrypted;
-        Cipher cipher;
-        try {
-            cipher = Cipher.getInstance("AES"); //$NON-NLS-1$
-            cipher.init(Cipher.ENCRYPT_MODE, skeySpec);
-        } catch (NoSuchAlgorithmException e) {
-            throw new RuntimeException(e);
-        } catch (NoSuchPaddingException e) {
-            throw new RuntimeException(e);
-        } catch (InvalidKeyException e) {
-            throw new RuntimeException(e);
-        }
-        try {
-            encrypted = cipher.doFinal(plainText.getBytes());
-        } catch (IllegalBlockSizeException e) {
-            throw new RuntimeException(e);
-        } catch (BadPaddingException e) {
-            throw new RuntimeException(e);
-        }
+        byte[] encrypted = doFinal(encryptCipher, Cipher.ENCRYPT_MODE, plainText.getBytes());
         return "$CRYPT::" + new String(Base64.encodeBase64(encrypted)); //$NON-NLS-1$
     }
 
@@ -84,30 +71,54 @@ public class AesEncrypter {
         }
         if (encryptedText.startsWith("$CRYPT::")) { //$NON-NLS-1$
             byte[] decoded = Base64.decodeBase64(encryptedText.substring(8));
-            Cipher cipher;
-            try {
-                cipher = Cipher.getInstance("AES"); //$NON-NLS-1$
-                cipher.init(Cipher.DECRYPT_MODE, skeySpec);
-            } catch (NoSuchAlgorithmException e) {
-                throw new RuntimeException(e);
-            } catch (NoSuchPaddingException e) {
-                throw new RuntimeException(e);
-            } catch (InvalidKeyException e) {
-                throw new RuntimeException(e);
-            }
-            try {
-                String decryptedString = new String(cipher.doFinal(decoded));
-                return decryptedString;
-            } catch (IllegalBlockSizeException e) {
-                throw new RuntimeException(e);
-            } catch (BadPaddingException e) {
-                throw new RuntimeException(e);
-            }
+            return new String(doFinal(decryptCipher, Cipher.DECRYPT_MODE, decoded));
         } else {
             return encryptedText;
         }
     }
 
+    /**
+     * Runs the given input through the current thread's cipher for the given mode.
+     * @param cipherHolder
+     * @param mode
+     * @param input
+     */
+    private static byte[] doFinal(ThreadLocal<Cipher> cipherHolder, int mode, byte[] input) {
+        Cipher cipher = cipherHolder.get();
+        if (cipher == null) {
+            cipher = createCipher(mode);
+            cipherHolder.set(cipher);
+        }
+        try {
+            return cipher.doFinal(input);
+        } catch (IllegalBlockSizeException e) {
+            // The cipher may be left in an unknown state - don't reuse it
+            cipherHolder.remove();
+            throw new RuntimeException(e);
+        } catch (BadPaddingException e) {
+            cipherHolder.remove();
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Creates a new AES cipher, initialized for the given mode.
+     * @param mode
+     */
+    private static Cipher createCipher(int mode) {
+        try {
+            Cipher cipher = Cipher.getInstance("AES"); //$NON-NLS-1$
+            cipher.init(mode, skeySpec);
+            return cipher;
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        } catch (NoSuchPaddingException e) {
+            throw new RuntimeException(e);
+        } catch (InvalidKeyException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
     /**
      * Main entry point for the encrypter.  Allows encryption and decryption of text
      * from the command line.
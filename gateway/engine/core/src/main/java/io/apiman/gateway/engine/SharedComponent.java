@@ -0,0 +1,40 @@
+/*
+ * Copyright 2015 JBoss Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.apiman.gateway.engine;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Annotation that allows a component to indicate that a single instance of it
+ * may (and should) be shared by all of the engines in a process.  Platforms that
+ * run several engines - e.g. one per event loop - create shared components once,
+ * and every other component once per engine.
+ *
+ * A shared component must be thread-safe, as must any components it depends on
+ * (see {@link DependsOnComponents}).  Components that hold state which only makes
+ * sense process-wide (rate limits, shared state, caches) should be shared;
+ * components tied to a thread or event loop must not be.
+ *
+ * @author eric.wittmann@redhat.com
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target({ElementType.TYPE})
+public @interface SharedComponent {
+
+}
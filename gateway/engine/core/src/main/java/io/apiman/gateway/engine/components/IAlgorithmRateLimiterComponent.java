@@ -0,0 +1,48 @@
+/*
+ * Copyright 2015 JBoss Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.apiman.gateway.engine.components;
+
+import io.apiman.gateway.engine.async.IAsyncResultHandler;
+import io.apiman.gateway.engine.components.rate.RateLimitResponse;
+import io.apiman.gateway.engine.rates.RateBucketAlgorithm;
+import io.apiman.gateway.engine.rates.RateBucketPeriod;
+
+/**
+ * A rate limiter that supports more than one way of counting requests (see
+ * {@link RateBucketAlgorithm}).  This is a separate interface so that rate
+ * limiters written against {@link IRateLimiterComponent} keep working - those
+ * only ever use fixed windows.
+ *
+ * @author eric.wittmann@redhat.com
+ */
+public interface IAlgorithmRateLimiterComponent extends IRateLimiterComponent {
+
+    /**
+     * Adds another request to the given rate bucket, counting requests using the
+     * given algorithm.  Sends a true signal if the request should be accepted or
+     * false if it should be rejected.  The {@link #accept(String, RateBucketPeriod, long, long, IAsyncResultHandler)}
+     * variant is equivalent to using {@link RateBucketAlgorithm#FixedWindow}.
+     * @param bucketId
+     * @param period
+     * @param algorithm
+     * @param limit
+     * @param increment
+     * @param handler
+     */
+    void accept(String bucketId, RateBucketPeriod period, RateBucketAlgorithm algorithm, long limit,
+            long increment, IAsyncResultHandler<RateLimitResponse> handler);
+
+}
@@ -28,6 +28,9 @@ import io.apiman.gateway.engine.rates.RateBucketPeriod;
  * be of varying sizes.  For example, we might allow only 1000 requests
  * per hour.
  *
+ * Rate limiters that can count requests using other algorithms than a fixed
+ * window also implement {@link IAlgorithmRateLimiterComponent}.
+ *
  * @author eric.wittmann@redhat.com
  */
 public interface IRateLimiterComponent extends IComponent {
@@ -0,0 +1,42 @@
+/*
+ * Copyright 2015 JBoss Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.apiman.gateway.engine.impl;
+
+import java.util.Map;
+
+/**
+ * Reads typed values from the (string) configuration maps that components and
+ * other pluggable parts of the engine are created with.
+ *
+ * @author eric.wittmann@redhat.com
+ */
+public final class ConfigValues {
+
+    private ConfigValues() {
+    }
+
+    /**
+     * Gets a numeric config value.
+     * @param config
+     * @param name
+     * @param defaultValue the value to use when there is none configured
+     */
+    public static long getLong(Map<String, String> config, String name, long defaultValue) {
+        String value = config.get(name);
+        return value == null ? defaultValue : new Long(value);
+    }
+
+}
@@ -31,6 +31,7 @@ import io.apiman.gateway.engine.Version;
 import io.apiman.gateway.engine.async.IAsyncResultHandler;
 import io.apiman.gateway.engine.beans.ServiceRequest;
 import io.apiman.gateway.engine.policy.IPolicyFactory;
+import io.apiman.gateway.engine.policy.PolicyChainPlanCache;
 import io.apiman.gateway.engine.policy.PolicyContextImpl;
 
 import java.lang.reflect.InvocationTargetException;
@@ -50,6 +51,7 @@ public class EngineImpl implements IEngine {
     private IConnectorFactory connectorFactory;
     private IPolicyFactory policyFactory;
     private IMetrics metrics;
+    private final PolicyChainPlanCache planCache = new PolicyChainPlanCache();
 
     /**
      * Constructor.
@@ -63,7 +65,7 @@ public class EngineImpl implements IEngine {
     public EngineImpl(final IRegistry registry, final IPluginRegistry pluginRegistry,
             final IComponentRegistry componentRegistry, final IConnectorFactory connectorFactory,
             final IPolicyFactory policyFactory, final IMetrics metrics) {
-        setRegistry(registry);
+        setRegistry(new PolicyChainPlanRegistryWrapper(registry, planCache));
         setPluginRegistry(pluginRegistry);
         setComponentRegistry(componentRegistry);
         setConnectorFactory(connectorFactory);
@@ -94,6 +96,7 @@ public class EngineImpl implements IEngine {
                 registry,
                 new PolicyContextImpl(getComponentRegistry()),
                 policyFactory,
+                planCache,
                 getConnectorFactory(),
                 getMetrics());
     }
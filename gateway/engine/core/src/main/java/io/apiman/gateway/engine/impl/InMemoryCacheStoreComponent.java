@@ -16,6 +16,7 @@
 package io.apiman.gateway.engine.impl;
 
 import io.apiman.gateway.engine.DependsOnComponents;
+import io.apiman.gateway.engine.SharedComponent;
 import io.apiman.gateway.engine.async.AsyncResultImpl;
 import io.apiman.gateway.engine.async.IAsyncHandler;
 import io.apiman.gateway.engine.async.IAsyncResultHandler;
@@ -26,27 +27,55 @@ import io.apiman.gateway.engine.io.ISignalReadStream;
 import io.apiman.gateway.engine.io.ISignalWriteStream;
 
 import java.io.IOException;
-import java.util.HashMap;
+import java.util.Collections;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * An in-memory implementation of the {@link ICacheStoreComponent} interface.
  * This implementation simply stores cached data in memory.
  *
+ * Entries are spread over a number of segments, each of which is an access
+ * ordered map with its own lock, so concurrent requests rarely contend.  The
+ * cache is bounded both by the total size of the cached binary data
+ * (maxCacheSize) and by the number of entries (maxEntries).  When either bound
+ * is exceeded the least recently used entry across all segments is evicted.
+ * Expired entries are never returned, and are removed in the background (see
+ * {@link Sweeper}).
+ *
+ * Response bodies are held in on-heap buffers.  Subclasses can store them
+ * elsewhere by overriding {@link #createBodyBuilder()}.
+ *
  * @author eric.wittmann@redhat.com
  */
+@SharedComponent
 @DependsOnComponents( { IBufferFactoryComponent.class } )
 public class InMemoryCacheStoreComponent implements ICacheStoreComponent {
 
-    private Object mapMutex = new Object();
-    private Object cacheSizeMutex = new Object();
+    private static final int DEFAULT_CONCURRENCY_LEVEL = 16;
+    private static final long DEFAULT_MAX_CACHE_SIZE = 10 * 1024 * 1024; // 10 MB
+    private static final long DEFAULT_MAX_ENTRIES = 10000;
+    private static final long DEFAULT_SWEEP_INTERVAL = 60000L; // 1 minute
+    private static final Sweeper.ISweep<InMemoryCacheStoreComponent> SWEEP = new Sweeper.ISweep<InMemoryCacheStoreComponent>() {
+        @Override
+        public void sweep(InMemoryCacheStoreComponent target, long now) {
+            target.sweep(now);
+        }
+    };
+
+    private final Segment[] segments;
+    private final long maxCacheSize;
+    private final long maxEntries;
 
-    private Map<String, Long> expireOnMap = new HashMap<>();
-    private Map<String, Object> objectCache = new LinkedHashMap<>();
-    private Map<String, IApimanBuffer> dataCache = new HashMap<>();
-    private long cacheSize = 0;
-    private long maxCacheSize = 10 * 1024 * 1024; // 10 MB
+    private final AtomicLong cacheSize = new AtomicLong();
+    private final AtomicLong entryCount = new AtomicLong();
+    private final AtomicLong accessCounter = new AtomicLong();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong expirations = new AtomicLong();
 
     private IBufferFactoryComponent bufferFactory;
 
@@ -54,6 +83,7 @@ public class InMemoryCacheStoreComponent implements ICacheStoreComponent {
      * Constructor.
      */
     public InMemoryCacheStoreComponent() {
+        this(Collections.<String, String>emptyMap());
     }
 
     /**
@@ -61,10 +91,16 @@ public class InMemoryCacheStoreComponent implements ICacheStoreComponent {
      * @param config
      */
     public InMemoryCacheStoreComponent(Map<String, String> config) {
-        String mcs = config.get("maxCacheSize"); //$NON-NLS-1$
-        if (mcs != null) {
-            maxCacheSize = new Long(mcs);
+        maxCacheSize = ConfigValues.getLong(config, "maxCacheSize", DEFAULT_MAX_CACHE_SIZE); //$NON-NLS-1$
+        maxEntries = ConfigValues.getLong(config, "maxEntries", DEFAULT_MAX_ENTRIES); //$NON-NLS-1$
+        int concurrencyLevel = (int) ConfigValues.getLong(config, "concurrencyLevel", DEFAULT_CONCURRENCY_LEVEL); //$NON-NLS-1$
+        long sweepInterval = ConfigValues.getLong(config, "sweepInterval", DEFAULT_SWEEP_INTERVAL); //$NON-NLS-1$
+
+        segments = new Segment[Math.max(1, concurrencyLevel)];
+        for (int i = 0; i < segments.length; i++) {
+            segments[i] = new Segment();
         }
+        Sweeper.schedule(this, SWEEP, sweepInterval);
     }
 
     /**
@@ -72,11 +108,7 @@ public class InMemoryCacheStoreComponent implements ICacheStoreComponent {
      */
     @Override
     public <T> void put(String cacheKey, T jsonObject, long timeToLive) throws IOException {
-        synchronized (mapMutex) {
-            expireOnMap.put(cacheKey, System.currentTimeMillis() + (timeToLive * 1000));
-            objectCache.put(cacheKey, jsonObject);
-            dataCache.put(cacheKey, null);
-        }
+        store(cacheKey, new Entry(jsonObject, null, System.currentTimeMillis() + (timeToLive * 1000)));
     }
 
     /**
@@ -85,17 +117,15 @@ public class InMemoryCacheStoreComponent implements ICacheStoreComponent {
     @Override
     public <T> ISignalWriteStream putBinary(final String cacheKey, final T jsonObject, final long timeToLive)
             throws IOException {
-        final IApimanBuffer buffer = bufferFactory.createBuffer();
-        synchronized (mapMutex) {
-            expireOnMap.put(cacheKey, System.currentTimeMillis() + (timeToLive * 1000));
-            objectCache.put(cacheKey, jsonObject);
-            dataCache.put(cacheKey, buffer);
-        }
+        final ICachedBodyBuilder builder = createBodyBuilder();
         return new ISignalWriteStream() {
             private boolean finished = false;
             @Override
             public void abort() {
-                finished = true;
+                if (!finished) {
+                    finished = true;
+                    builder.discard();
+                }
             }
             @Override
             public boolean isFinished() {
@@ -103,26 +133,15 @@ public class InMemoryCacheStoreComponent implements ICacheStoreComponent {
             }
             @Override
             public void write(IApimanBuffer chunk) {
-                buffer.append(chunk);
+                builder.append(chunk);
             }
             @Override
             public void end() {
                 finished = true;
-                synchronized (cacheSizeMutex) {
-                    cacheSize += buffer.length();
-                    if (cacheSize > maxCacheSize) {
-                        synchronized (mapMutex) {
-                            while (cacheSize > maxCacheSize) {
-                                String cacheKey = objectCache.keySet().iterator().next();
-                                objectCache.remove(cacheKey);
-                                expireOnMap.remove(cacheKey);
-                                IApimanBuffer removedBuffer = dataCache.remove(cacheKey);
-                                if (removedBuffer != null) {
-                                    cacheSize -= removedBuffer.length();
-                                }
-                            }
-                        }
-                    }
+                // Only make the entry visible once all of its data has been written.
+                ICachedBody body = builder.build();
+                if (body != null) {
+                    store(cacheKey, new Entry(jsonObject, body, System.currentTimeMillis() + (timeToLive * 1000)));
                 }
             }
         };
@@ -134,31 +153,9 @@ public class InMemoryCacheStoreComponent implements ICacheStoreComponent {
     @Override
     @SuppressWarnings("unchecked")
     public <T> void get(String cacheKey, Class<T> type, IAsyncResultHandler<T> handler) {
-        boolean expired = false;
-        Object rval = null;
-        synchronized (mapMutex) {
-            rval = objectCache.get(cacheKey);
-            if (rval != null) {
-                Long expiresOn = expireOnMap.get(cacheKey);
-                if (expiresOn > System.currentTimeMillis()) {
-                    expired = true;
-                }
-            }
-        }
-        if (expired) {
-            synchronized (cacheSizeMutex) {
-                synchronized (mapMutex) {
-                    objectCache.remove(cacheKey);
-                    expireOnMap.remove(cacheKey);
-                    IApimanBuffer buffer = dataCache.remove(cacheKey);
-                    if (buffer != null) {
-                        cacheSize -= buffer.length();
-                    }
-                }
-            }
-            rval = null;
-        }
-        handler.handle(AsyncResultImpl.create((T) rval));
+        Entry entry = lookup(cacheKey, false);
+        T rval = entry == null ? null : (T) entry.head;
+        handler.handle(AsyncResultImpl.create(rval));
     }
 
     /**
@@ -167,43 +164,15 @@ public class InMemoryCacheStoreComponent implements ICacheStoreComponent {
     @Override
     public <T> void getBinary(String cacheKey, Class<T> type,
             IAsyncResultHandler<ISignalReadStream<T>> handler) {
-        boolean expired = false;
+        Entry entry = lookup(cacheKey, true);
         ISignalReadStream<T> rval;
-        Object object = null;
-
-        IApimanBuffer buffer = null;
-        synchronized (mapMutex) {
-            object = objectCache.get(cacheKey);
-            if (object != null) {
-                Long expiresOn = expireOnMap.get(cacheKey);
-                if (System.currentTimeMillis() > expiresOn ) {
-                    expired = true;
-                }
-            }
-            buffer = dataCache.get(cacheKey);
-            if (buffer == null) {
-                object = null;
-            }
-        }
 
-        if (object == null) {
-            rval = null;
-        } else if (expired) {
-            synchronized (cacheSizeMutex) {
-                synchronized (mapMutex) {
-                    objectCache.remove(cacheKey);
-                    expireOnMap.remove(cacheKey);
-                    dataCache.remove(cacheKey);
-                    if (buffer != null) {
-                        cacheSize -= buffer.length();
-                    }
-                }
-            }
+        if (entry == null || entry.body == null) {
             rval = null;
         } else {
             @SuppressWarnings("unchecked")
-            final T head = (T) object;
-            final IApimanBuffer data = buffer;
+            final T head = (T) entry.head;
+            final ICachedBody body = entry.body;
             rval = new ISignalReadStream<T>() {
                 IAsyncHandler<IApimanBuffer> bodyHandler;
                 IAsyncHandler<Void> endHandler;
@@ -227,11 +196,19 @@ public class InMemoryCacheStoreComponent implements ICacheStoreComponent {
                 }
                 @Override
                 public void abort() {
-                    finished = true;
+                    if (!finished) {
+                        finished = true;
+                        body.release();
+                    }
                 }
                 @Override
                 public void transmit() {
-                    bodyHandler.handle(data);
+                    try {
+                        body.transmit(bodyHandler);
+                    } finally {
+                        finished = true;
+                        body.release();
+                    }
                     endHandler.handle(null);
                 }
             };
@@ -240,6 +217,220 @@ public class InMemoryCacheStoreComponent implements ICacheStoreComponent {
         handler.handle(AsyncResultImpl.create(rval));
     }
 
+    /**
+     * Stores an entry in the cache (replacing any existing entry with the same key)
+     * and then evicts entries until the cache is within its bounds again.
+     * @param cacheKey
+     * @param entry
+     */
+    private void store(String cacheKey, Entry entry) {
+        Segment segment = segmentFor(cacheKey);
+        Entry old;
+        synchronized (segment) {
+            entry.lastAccess = accessCounter.incrementAndGet();
+            old = segment.entries.put(cacheKey, entry);
+        }
+        cacheSize.addAndGet(entry.size - (old == null ? 0 : old.size));
+        if (old == null) {
+            entryCount.incrementAndGet();
+        } else if (old.body != null) {
+            old.body.discard();
+        }
+        evictIfNecessary();
+    }
+
+    /**
+     * Finds an unexpired entry in the cache, and records the hit or miss.  When
+     * the body is needed it is retained (while the entry is still guaranteed to
+     * be in the cache) and must be released by the caller.
+     * @param cacheKey
+     * @param retainBody
+     */
+    private Entry lookup(String cacheKey, boolean retainBody) {
+        Segment segment = segmentFor(cacheKey);
+        Entry entry;
+        synchronized (segment) {
+            entry = segment.entries.get(cacheKey);
+            if (entry != null) {
+                if (entry.isExpired(System.currentTimeMillis())) {
+                    segment.entries.remove(cacheKey);
+                    removed(entry);
+                    expirations.incrementAndGet();
+                    entry = null;
+                } else {
+                    entry.lastAccess = accessCounter.incrementAndGet();
+                    if (retainBody && entry.body != null) {
+                        entry.body.retain();
+                    }
+                }
+            }
+        }
+        if (entry == null) {
+            misses.incrementAndGet();
+        } else {
+            hits.incrementAndGet();
+        }
+        return entry;
+    }
+
+    /**
+     * Evicts the least recently used entries until the cache is within its bounds.
+     */
+    private void evictIfNecessary() {
+        while (cacheSize.get() > maxCacheSize || entryCount.get() > maxEntries) {
+            if (!evictOne()) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Evicts the least recently used entry.  Each segment is ordered by access, so
+     * the globally least recently used entry is the oldest of the segments' eldest
+     * entries.
+     * @return false if the cache is empty
+     */
+    protected boolean evictOne() {
+        Segment victimSegment = null;
+        String victimKey = null;
+        Entry victim = null;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                if (segment.entries.isEmpty()) {
+                    continue;
+                }
+                Map.Entry<String, Entry> eldest = segment.entries.entrySet().iterator().next();
+                if (victim == null || eldest.getValue().lastAccess < victim.lastAccess) {
+                    victimSegment = segment;
+                    victimKey = eldest.getKey();
+                    victim = eldest.getValue();
+                }
+            }
+        }
+        if (victim == null) {
+            return false;
+        }
+        synchronized (victimSegment) {
+            // Only evict it if nobody replaced it in the meantime
+            if (victimSegment.entries.get(victimKey) == victim) {
+                victimSegment.entries.remove(victimKey);
+                removed(victim);
+                evictions.incrementAndGet();
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Removes all expired entries from the cache.
+     * @param now the current time
+     */
+    protected void sweep(long now) {
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                Iterator<Entry> iterator = segment.entries.values().iterator();
+                while (iterator.hasNext()) {
+                    Entry entry = iterator.next();
+                    if (entry.isExpired(now)) {
+                        iterator.remove();
+                        removed(entry);
+                        expirations.incrementAndGet();
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Updates the cache bounds when an entry has been removed.
+     * @param entry
+     */
+    private void removed(Entry entry) {
+        cacheSize.addAndGet(-entry.size);
+        entryCount.decrementAndGet();
+        if (entry.body != null) {
+            entry.body.discard();
+        }
+    }
+
+    /**
+     * @param cacheKey
+     */
+    private Segment segmentFor(String cacheKey) {
+        int hash = cacheKey.hashCode();
+        hash ^= (hash >>> 16);
+        return segments[(hash & 0x7fffffff) % segments.length];
+    }
+
+    /**
+     * @return the number of lookups that found an entry
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * @return the number of lookups that did not find an (unexpired) entry
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * @return the number of entries evicted to keep the cache within its bounds
+     */
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    /**
+     * @return the number of entries removed because they expired
+     */
+    public long getExpirations() {
+        return expirations.get();
+    }
+
+    /**
+     * @return the number of entries in the cache
+     */
+    public long getEntryCount() {
+        return entryCount.get();
+    }
+
+    /**
+     * @return the total size (in bytes) of the binary data in the cache
+     */
+    public long getCacheSize() {
+        return cacheSize.get();
+    }
+
+    /**
+     * Creates the builder used to collect the body of a new cache entry.
+     */
+    protected ICachedBodyBuilder createBodyBuilder() {
+        final IApimanBuffer buffer = bufferFactory.createBuffer();
+        return new ICachedBodyBuilder() {
+            @Override
+            public void append(IApimanBuffer chunk) {
+                buffer.append(chunk);
+            }
+            @Override
+            public ICachedBody build() {
+                return new HeapBody(buffer);
+            }
+            @Override
+            public void discard() {
+            }
+        };
+    }
+
+    /**
+     * @return the buffer factory
+     */
+    protected IBufferFactoryComponent getBufferFactory() {
+        return bufferFactory;
+    }
+
     /**
      * @param bufferFactory the bufferFactory to set
      */
@@ -247,4 +438,132 @@ public class InMemoryCacheStoreComponent implements ICacheStoreComponent {
         this.bufferFactory = bufferFactory;
     }
 
+    /**
+     * The body of a cache entry.  A body may be read by several requests at once
+     * and may be removed from the cache while it is being read, so readers retain
+     * it while they need it and release it afterwards.
+     */
+    protected static interface ICachedBody {
+
+        /**
+         * @return the size of the body in bytes
+         */
+        public long size();
+
+        /**
+         * Sends the body to the given handler (possibly in several chunks).
+         * @param handler
+         */
+        public void transmit(IAsyncHandler<IApimanBuffer> handler);
+
+        /**
+         * Called when a reader starts using the body.
+         */
+        public void retain();
+
+        /**
+         * Called when a reader is done with the body.
+         */
+        public void release();
+
+        /**
+         * Called when the body has been removed from the cache.
+         */
+        public void discard();
+    }
+
+    /**
+     * Collects the body of a new cache entry as it is written.
+     */
+    protected static interface ICachedBodyBuilder {
+
+        /**
+         * @param chunk the next chunk of the body
+         */
+        public void append(IApimanBuffer chunk);
+
+        /**
+         * @return the finished body, or null if it should not be cached after all
+         */
+        public ICachedBody build();
+
+        /**
+         * Called if the body is abandoned before it is finished.
+         */
+        public void discard();
+    }
+
+    /**
+     * A body held in a single on-heap buffer.
+     */
+    private static final class HeapBody implements ICachedBody {
+
+        private final IApimanBuffer buffer;
+
+        /**
+         * Constructor.
+         */
+        public HeapBody(IApimanBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public long size() {
+            return buffer.length();
+        }
+
+        @Override
+        public void transmit(IAsyncHandler<IApimanBuffer> handler) {
+            handler.handle(buffer);
+        }
+
+        @Override
+        public void retain() {
+        }
+
+        @Override
+        public void release() {
+        }
+
+        @Override
+        public void discard() {
+        }
+    }
+
+    /**
+     * A segment of the cache.  All access must be synchronized on the segment.
+     */
+    private static final class Segment {
+        private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    }
+
+    /**
+     * A single cache entry.
+     */
+    private static final class Entry {
+
+        private final Object head;
+        private final ICachedBody body;
+        private final long expiresOn;
+        private final long size;
+        private long lastAccess;
+
+        /**
+         * Constructor.
+         */
+        public Entry(Object head, ICachedBody body, long expiresOn) {
+            this.head = head;
+            this.body = body;
+            this.expiresOn = expiresOn;
+            this.size = body == null ? 0 : body.size();
+        }
+
+        /**
+         * @param now
+         */
+        public boolean isExpired(long now) {
+            return now >= expiresOn;
+        }
+    }
+
 }
@@ -15,30 +15,64 @@
  */
 package io.apiman.gateway.engine.impl;
 
+import io.apiman.gateway.engine.SharedComponent;
 import io.apiman.gateway.engine.async.AsyncResultImpl;
 import io.apiman.gateway.engine.async.IAsyncResultHandler;
-import io.apiman.gateway.engine.components.IRateLimiterComponent;
+import io.apiman.gateway.engine.components.IAlgorithmRateLimiterComponent;
 import io.apiman.gateway.engine.components.rate.RateLimitResponse;
+import io.apiman.gateway.engine.rates.RateBucketAlgorithm;
 import io.apiman.gateway.engine.rates.RateBucketPeriod;
 import io.apiman.gateway.engine.rates.RateLimiterBucket;
 
-import java.util.HashMap;
+import java.util.Collections;
 import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * A simple in-memory implementation of a rate limiter.  This is non-persistent
  * and does not work in a cluster.
  *
+ * Buckets are held in a concurrent map and each bucket is locked independently,
+ * so requests only contend with other requests for the same bucket.  Each bucket
+ * remembers when its current period ends, so the period boundary is only
+ * calculated once per period rather than on every request.  Buckets that have
+ * expired (e.g. whose period has ended) are equivalent to brand new buckets, so
+ * they are periodically removed in the background (see {@link Sweeper}).
+ *
  * @author eric.wittmann@redhat.com
  */
-public class InMemoryRateLimiterComponent implements IRateLimiterComponent {
+@SharedComponent
+public class InMemoryRateLimiterComponent implements IAlgorithmRateLimiterComponent {
+
+    private static final long DEFAULT_SWEEP_INTERVAL = 60000L; // 1 minute
+    private static final Sweeper.ISweep<InMemoryRateLimiterComponent> SWEEP = new Sweeper.ISweep<InMemoryRateLimiterComponent>() {
+        @Override
+        public void sweep(InMemoryRateLimiterComponent target, long now) {
+            target.sweep(now);
+        }
+    };
 
-    private Map<String, RateLimiterBucket> buckets = new HashMap<>();
+    private final ConcurrentHashMap<String, Bucket> buckets = new ConcurrentHashMap<>();
 
     /**
      * Constructor.
      */
     public InMemoryRateLimiterComponent() {
+        this(Collections.<String, String>emptyMap());
+    }
+
+    /**
+     * Constructor.
+     * @param config the component config
+     */
+    public InMemoryRateLimiterComponent(Map<String, String> config) {
+        long sweepInterval = DEFAULT_SWEEP_INTERVAL;
+        String si = config.get("sweepInterval"); //$NON-NLS-1$
+        if (si != null) {
+            sweepInterval = new Long(si);
+        }
+        Sweeper.schedule(this, SWEEP, sweepInterval);
     }
 
     /**
@@ -46,27 +80,144 @@ public class InMemoryRateLimiterComponent implements IRateLimiterComponent {
      */
     @Override
     public void accept(String bucketId, RateBucketPeriod period, long limit, long increment, IAsyncResultHandler<RateLimitResponse> handler) {
-        RateLimiterBucket bucket = null;
-        synchronized (buckets) {
-            bucket = buckets.get(bucketId);
+        accept(bucketId, period, RateBucketAlgorithm.FixedWindow, limit, increment, handler);
+    }
+
+    /**
+     * @see io.apiman.gateway.engine.components.IAlgorithmRateLimiterComponent#accept(java.lang.String, io.apiman.gateway.engine.rates.RateBucketPeriod, io.apiman.gateway.engine.rates.RateBucketAlgorithm, long, long, io.apiman.gateway.engine.async.IAsyncResultHandler)
+     */
+    @Override
+    public void accept(String bucketId, RateBucketPeriod period, RateBucketAlgorithm algorithm, long limit,
+            long increment, IAsyncResultHandler<RateLimitResponse> handler) {
+        RateLimitResponse response;
+        long now = System.currentTimeMillis();
+        while (true) {
+            Bucket bucket = getBucket(bucketId);
+            synchronized (bucket) {
+                // Removed by the sweeper after we got it - try again with a new one.
+                if (bucket.removed) {
+                    continue;
+                }
+                if (algorithm == RateBucketAlgorithm.FixedWindow) {
+                    response = bucket.acceptFixedWindow(period, limit, increment, now);
+                } else {
+                    response = bucket.accept(algorithm, period, limit, increment);
+                }
+            }
+            break;
+        }
+        handler.handle(AsyncResultImpl.<RateLimitResponse>create(response));
+    }
+
+    /**
+     * Gets (or creates) the bucket with the given id.
+     * @param bucketId
+     */
+    private Bucket getBucket(String bucketId) {
+        Bucket bucket = buckets.get(bucketId);
+        if (bucket == null) {
+            Bucket newBucket = new Bucket();
+            bucket = buckets.putIfAbsent(bucketId, newBucket);
             if (bucket == null) {
-                bucket = new RateLimiterBucket();
-                buckets.put(bucketId, bucket);
+                bucket = newBucket;
             }
-            bucket.resetIfNecessary(period);
+        }
+        return bucket;
+    }
+
+    /**
+     * Removes all buckets that have expired.
+     * @param now the current time
+     */
+    protected void sweep(long now) {
+        for (Entry<String, Bucket> entry : buckets.entrySet()) {
+            Bucket bucket = entry.getValue();
+            synchronized (bucket) {
+                if (bucket.expiresOn <= now) {
+                    bucket.removed = true;
+                    buckets.remove(entry.getKey(), bucket);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the number of buckets currently held in memory
+     */
+    protected int getBucketCount() {
+        return buckets.size();
+    }
+
+    /**
+     * A single in-memory rate bucket.  All access must be synchronized on the
+     * bucket itself.
+     */
+    private static final class Bucket {
+
+        private long count;
+        private long periodEnd;
+        private RateBucketPeriod period;
+        private boolean removed;
+        private long expiresOn;
+        // Only used by the algorithms other than FixedWindow
+        private RateLimiterBucket state;
+
+        /**
+         * Fixed window version of accept - avoids recomputing the period boundary
+         * on every request.
+         * @param period
+         * @param limit
+         * @param increment
+         * @param now
+         */
+        public RateLimitResponse acceptFixedWindow(RateBucketPeriod period, long limit, long increment, long now) {
+            resetIfNecessary(period, now);
 
             RateLimitResponse response = new RateLimitResponse();
-            if (bucket.getCount() > limit) {
+            if (count > limit) {
                 response.setAccepted(false);
             } else {
-                response.setAccepted(bucket.getCount() < limit);
-                bucket.setCount(bucket.getCount() + increment);
-                bucket.setLast(System.currentTimeMillis());
+                response.setAccepted(count < limit);
+                count += increment;
+            }
+            response.setReset((int) ((periodEnd - now) / 1000L));
+            response.setRemaining(limit - count);
+            expiresOn = periodEnd;
+            return response;
+        }
+
+        /**
+         * Accept using any other algorithm (delegates to a {@link RateLimiterBucket}).
+         * @param algorithm
+         * @param period
+         * @param limit
+         * @param increment
+         */
+        public RateLimitResponse accept(RateBucketAlgorithm algorithm, RateBucketPeriod period, long limit, long increment) {
+            if (state == null) {
+                state = new RateLimiterBucket();
+            }
+            RateLimitResponse response = state.accept(algorithm, period, limit, increment);
+            expiresOn = state.getExpiresOn(algorithm, period, limit);
+            return response;
+        }
+
+        /**
+         * Resets the count if the end of the current period has been reached.
+         * @param period
+         * @param now
+         */
+        public void resetIfNecessary(RateBucketPeriod period, long now) {
+            if (now >= periodEnd) {
+                this.count = 0;
+                this.period = period;
+                this.periodEnd = RateLimiterBucket.getPeriodBoundary(now, period);
+            } else if (period != this.period) {
+                // The policy was re-configured with a different period - keep counting
+                // but use the new period's boundary.
+                this.period = period;
+                this.periodEnd = RateLimiterBucket.getPeriodBoundary(now, period);
             }
-            int reset = (int) (bucket.getResetMillis(period) / 1000L);
-            response.setReset(reset);
-            response.setRemaining(limit - bucket.getCount());
-            handler.handle(AsyncResultImpl.<RateLimitResponse>create(response));
         }
     }
 
@@ -16,7 +16,9 @@
 package io.apiman.gateway.engine.impl;
 
 import io.apiman.gateway.engine.IRegistry;
+import io.apiman.gateway.engine.IRequiresInitialization;
 import io.apiman.gateway.engine.async.AsyncResultImpl;
+import io.apiman.gateway.engine.async.IAsyncResult;
 import io.apiman.gateway.engine.async.IAsyncResultHandler;
 import io.apiman.gateway.engine.beans.Application;
 import io.apiman.gateway.engine.beans.Contract;
@@ -30,23 +32,62 @@ import io.apiman.gateway.engine.i18n.Messages;
 
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 /**
  * An in-memory implementation of the registry.
  *
+ * Everything is stored in a single map (see {@link #getMap()}), which subclasses
+ * may replace with some other (e.g. persistent) store.  On top of that, services
+ * and contracts are indexed by their natural keys so that the per-request
+ * lookups don't have to build any string keys.  Each service version gets a
+ * single (interned) handle, which is also referenced by the contracts against
+ * it - so checking whether a contract's service has been retired is just a
+ * matter of looking at the handle.  The indexes are built from the map on first
+ * use and kept up to date by the publish/register operations.  The engine builds
+ * them when it initializes the registry.
+ *
+ * Failed contract lookups are cheap as well: the failure for an unknown API key
+ * is remembered for a short while (and its message only formatted when it is
+ * actually used), and the failure for a retired service is built once per
+ * service version.
+ *
+ * The indexes only see the changes made through this registry, so they are not
+ * used at all when a subclass provides its own map (e.g. a cache shared by all
+ * the nodes of a cluster) - the lookups then go to that map every time, and
+ * initializing the registry builds nothing.  Such a subclass has to do its own
+ * warm up, if any.
+ *
  * @author eric.wittmann@redhat.com
  */
-public class InMemoryRegistry implements IRegistry {
+public class InMemoryRegistry implements IRegistry, IRequiresInitialization {
 
     private Map<String, Object> map = new ConcurrentHashMap<>();
     private Object mutex = new Object();
 
+    private final ServiceIndex<ServiceHandle> services = new ServiceIndex<>();
+    // api key -> contract
+    private final ConcurrentMap<String, ContractEntry> contracts = new ConcurrentHashMap<>();
+    // api key -> failure for unknown api keys
+    private final NegativeResultCache<ServiceContract> unknownContracts = new NegativeResultCache<>();
+    private volatile boolean indexed;
+
     /**
      * Constructor.
      */
     public InMemoryRegistry() {
     }
 
+    /**
+     * Builds the indexes - unless a subclass provides its own map, in which case
+     * there is nothing to build.
+     * @see io.apiman.gateway.engine.IRequiresInitialization#initialize()
+     */
+    @Override
+    public void initialize() {
+        ensureIndexed();
+    }
+
     /**
      * @see io.apiman.gateway.engine.IRegistry#publishService(io.apiman.gateway.engine.beans.Service, io.apiman.gateway.engine.async.IAsyncResultHandler)
      */
@@ -54,11 +95,16 @@ public class InMemoryRegistry implements IRegistry {
     public void publishService(Service service, IAsyncResultHandler<Void> handler) {
         Exception error = null;
         synchronized (mutex) {
-            String serviceKey = getServiceKey(service);
+            ensureIndexed();
+            String serviceKey = RegistryKeys.serviceKey(service);
             if (getMap().containsKey(serviceKey)) {
                 error = new PublishingException(Messages.i18n.format("InMemoryRegistry.ServiceAlreadyPublished")); //$NON-NLS-1$
             } else {
                 getMap().put(serviceKey, service);
+                if (usesIndexes()) {
+                    getServiceHandle(service.getOrganizationId(), service.getServiceId(), service.getVersion(),
+                            true).service = service;
+                }
             }
         }
         if (error == null) {
@@ -75,9 +121,15 @@ public class InMemoryRegistry implements IRegistry {
     public void retireService(Service service, IAsyncResultHandler<Void> handler) {
         Exception error = null;
         synchronized (mutex) {
-            String serviceKey = getServiceKey(service);
+            ensureIndexed();
+            String serviceKey = RegistryKeys.serviceKey(service);
             if (getMap().containsKey(serviceKey)) {
                 getMap().remove(serviceKey);
+                if (usesIndexes()) {
+                    // The handle stays interned - contracts against the service still refer to it.
+                    getServiceHandle(service.getOrganizationId(), service.getServiceId(), service.getVersion(),
+                            true).service = null;
+                }
             } else {
                 error = new PublishingException(Messages.i18n.format("InMemoryRegistry.ServiceNotFound")); //$NON-NLS-1$
             }
@@ -96,32 +148,40 @@ public class InMemoryRegistry implements IRegistry {
     public void registerApplication(Application application, IAsyncResultHandler<Void> handler) {
         Exception error = null;
         synchronized (mutex) {
+            ensureIndexed();
             // Validate the application first - we need to be able to resolve all the contracts.
             for (Contract contract : application.getContracts()) {
-                String contractKey = getContractKey(contract);
-                if (getMap().containsKey(contractKey)) {
+                if (getMap().containsKey(RegistryKeys.contractKey(contract))) {
                     error = new RegistrationException(Messages.i18n.format("InMemoryRegistry.ContractAlreadyPublished", //$NON-NLS-1$
                             contract.getApiKey()));
                     break;
                 }
-                String svcKey = getServiceKey(contract.getServiceOrgId(), contract.getServiceId(), contract.getServiceVersion());
-                if (!getMap().containsKey(svcKey)) {
+                if (!getMap().containsKey(RegistryKeys.serviceKey(contract.getServiceOrgId(), contract.getServiceId(),
+                        contract.getServiceVersion()))) {
                     error = new RegistrationException(Messages.i18n.format("InMemoryRegistry.ServiceNotFoundInOrg", //$NON-NLS-1$
                             contract.getServiceId(), contract.getServiceOrgId()));
                     break;
                 }
             }
-            String applicationKey = getApplicationKey(application);
-            if (getMap().containsKey(applicationKey)) {
+            String applicationKey = RegistryKeys.applicationKey(application);
+            if (error != null) {
+                // Don't register anything if a contract can't be resolved
+            } else if (getMap().containsKey(applicationKey)) {
                 error = new RegistrationException(Messages.i18n.format("InMemoryRegistry.AppAlreadyRegistered")); //$NON-NLS-1$
             } else {
                 getMap().put(applicationKey, application);
                 for (Contract contract : application.getContracts()) {
-                    String svcKey = getServiceKey(contract.getServiceOrgId(), contract.getServiceId(), contract.getServiceVersion());
-                    Service service = (Service) getMap().get(svcKey);
+                    Service service = (Service) getMap().get(RegistryKeys.serviceKey(contract.getServiceOrgId(),
+                            contract.getServiceId(), contract.getServiceVersion()));
                     ServiceContract sc = new ServiceContract(contract.getApiKey(), service, application, contract.getPlan(), contract.getPolicies());
-                    String contractKey = getContractKey(contract);
+                    String contractKey = RegistryKeys.contractKey(contract);
                     getMap().put(contractKey, sc);
+                    if (usesIndexes()) {
+                        ServiceHandle handle = getServiceHandle(contract.getServiceOrgId(), contract.getServiceId(),
+                                contract.getServiceVersion(), true);
+                        contracts.put(contract.getApiKey(), new ContractEntry(sc, handle));
+                        unknownContracts.remove(contract.getApiKey());
+                    }
                 }
             }
         }
@@ -139,14 +199,18 @@ public class InMemoryRegistry implements IRegistry {
     public void unregisterApplication(Application application, IAsyncResultHandler<Void> handler) {
         Exception error = null;
         synchronized (mutex) {
-            String applicationKey = getApplicationKey(application);
+            ensureIndexed();
+            String applicationKey = RegistryKeys.applicationKey(application);
             if (getMap().containsKey(applicationKey)) {
                 Application removed = (Application) getMap().remove(applicationKey);
                 for (Contract contract : removed.getContracts()) {
-                    String contractKey = getContractKey(contract);
+                    String contractKey = RegistryKeys.contractKey(contract);
                     if (getMap().containsKey(contractKey)) {
                         getMap().remove(contractKey);
                     }
+                    if (usesIndexes()) {
+                        contracts.remove(contract.getApiKey());
+                    }
                 }
             } else {
                 error = new RegistrationException(Messages.i18n.format("InMemoryRegistry.AppNotFound")); //$NON-NLS-1$
@@ -164,9 +228,69 @@ public class InMemoryRegistry implements IRegistry {
      */
     @Override
     public void getContract(ServiceRequest request, IAsyncResultHandler<ServiceContract> handler) {
-        String contractKey = getContractKey(request);
-        ServiceContract contract = (ServiceContract) getMap().get(contractKey);
+        if (!ensureIndexed()) {
+            getMappedContract(request, handler);
+            return;
+        }
+        ContractEntry entry = request.getApiKey() == null ? null : contracts.get(request.getApiKey());
 
+        if (entry == null) {
+            IAsyncResult<ServiceContract> failure = unknownContracts.get(request.getApiKey());
+            if (failure == null) {
+                Exception error = new UnknownContractException(request.getApiKey());
+                failure = AsyncResultImpl.create(error, ServiceContract.class);
+                unknownContracts.put(request.getApiKey(), failure);
+                // Registered in the meantime?  Registering removes the failure only after
+                // adding the contract, so checking again afterwards is enough.
+                entry = request.getApiKey() == null ? null : contracts.get(request.getApiKey());
+                if (entry != null) {
+                    unknownContracts.remove(request.getApiKey());
+                }
+            }
+            if (entry == null) {
+                handler.handle(failure);
+                return;
+            }
+        }
+        // Has the service been retired?
+        ServiceHandle handle = entry.service;
+        if (handle.service == null) {
+            if (handle.retired == null) {
+                Service service = entry.contract.getService();
+                Exception error = new InvalidContractException(Messages.i18n.format("InMemoryRegistry.ServiceWasRetired", //$NON-NLS-1$
+                        service.getServiceId(), service.getOrganizationId()));
+                handle.retired = AsyncResultImpl.create(error, ServiceContract.class);
+            }
+            handler.handle(handle.retired);
+            return;
+        }
+
+        handler.handle(AsyncResultImpl.create(entry.contract));
+    }
+
+    /**
+     * @see io.apiman.gateway.engine.IRegistry#getService(java.lang.String, java.lang.String, java.lang.String, io.apiman.gateway.engine.async.IAsyncResultHandler)
+     */
+    @Override
+    public void getService(String organizationId, String serviceId, String serviceVersion,
+            IAsyncResultHandler<Service> handler) {
+        Service service;
+        if (ensureIndexed()) {
+            ServiceHandle handle = getServiceHandle(organizationId, serviceId, serviceVersion, false);
+            service = handle == null ? null : handle.service;
+        } else {
+            service = (Service) getMap().get(RegistryKeys.serviceKey(organizationId, serviceId, serviceVersion));
+        }
+        handler.handle(AsyncResultImpl.create(service));
+    }
+
+    /**
+     * Gets the contract straight from the map (when the indexes aren't used).
+     * @param request
+     * @param handler
+     */
+    private void getMappedContract(ServiceRequest request, IAsyncResultHandler<ServiceContract> handler) {
+        ServiceContract contract = (ServiceContract) getMap().get(RegistryKeys.contractKey(request.getApiKey()));
         if (contract == null) {
             Exception error = new InvalidContractException(Messages.i18n.format("InMemoryRegistry.NoContractForAPIKey", request.getApiKey())); //$NON-NLS-1$
             handler.handle(AsyncResultImpl.create(error, ServiceContract.class));
@@ -174,82 +298,153 @@ public class InMemoryRegistry implements IRegistry {
         }
         // Has the service been retired?
         Service service = contract.getService();
-        String serviceKey = getServiceKey(service);
-        if (getMap().get(serviceKey) == null) {
+        if (getMap().get(RegistryKeys.serviceKey(service)) == null) {
             Exception error = new InvalidContractException(Messages.i18n.format("InMemoryRegistry.ServiceWasRetired", //$NON-NLS-1$
                     service.getServiceId(), service.getOrganizationId()));
             handler.handle(AsyncResultImpl.create(error, ServiceContract.class));
             return;
         }
-
         handler.handle(AsyncResultImpl.create(contract));
     }
 
     /**
-     * @see io.apiman.gateway.engine.IRegistry#getService(java.lang.String, java.lang.String, java.lang.String, io.apiman.gateway.engine.async.IAsyncResultHandler)
+     * Whether the indexes are used - only when the map is our own, so that every
+     * change to it goes through this registry.
      */
-    @Override
-    public void getService(String organizationId, String serviceId, String serviceVersion,
-            IAsyncResultHandler<Service> handler) {
-        String key = getServiceKey(organizationId, serviceId, serviceVersion);
-        Service service = (Service) getMap().get(key);
-        handler.handle(AsyncResultImpl.create(service));
+    private boolean usesIndexes() {
+        return getMap() == map;
     }
 
     /**
-     * Generates an in-memory key for an service, used to index the app for later quick
-     * retrieval.
-     * @param service an service
-     * @return a service key
+     * Builds the service and contract indexes from whatever is already in the
+     * map, the first time they are needed.
+     * @return false if the indexes aren't used at all
      */
-    private String getServiceKey(Service service) {
-        return getServiceKey(service.getOrganizationId(), service.getServiceId(), service.getVersion());
+    private boolean ensureIndexed() {
+        if (indexed) {
+            return true;
+        }
+        if (!usesIndexes()) {
+            return false;
+        }
+        synchronized (mutex) {
+            if (indexed) {
+                return true;
+            }
+            for (Object value : getMap().values()) {
+                if (value instanceof Service) {
+                    Service service = (Service) value;
+                    getServiceHandle(service.getOrganizationId(), service.getServiceId(), service.getVersion(),
+                            true).service = service;
+                }
+            }
+            for (Object value : getMap().values()) {
+                if (value instanceof ServiceContract) {
+                    ServiceContract contract = (ServiceContract) value;
+                    Service service = contract.getService();
+                    ServiceHandle handle = getServiceHandle(service.getOrganizationId(), service.getServiceId(),
+                            service.getVersion(), true);
+                    contracts.put(contract.getApikey(), new ContractEntry(contract, handle));
+                }
+            }
+            indexed = true;
+            return true;
+        }
     }
 
     /**
-     * Generates an in-memory key for an service, used to index the app for later quick
-     * retrieval.
+     * Gets the (interned) handle for the given service version.  Null keys are
+     * not supported by the index maps, so they never match anything.
      * @param orgId
      * @param serviceId
      * @param version
-     * @return a service key
+     * @param create whether to create the handle if it doesn't exist (must hold the mutex)
      */
-    private String getServiceKey(String orgId, String serviceId, String version) {
-        return "SVC::" + orgId + "|" + serviceId + "|" + version; //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+    private ServiceHandle getServiceHandle(String orgId, String serviceId, String version, boolean create) {
+        ServiceHandle handle = services.get(orgId, serviceId, version);
+        if (handle == null && create) {
+            handle = services.putIfAbsent(orgId, serviceId, version, new ServiceHandle());
+            if (handle == null) {
+                // Not indexable - but still must be tracked for the contracts against it
+                handle = new ServiceHandle();
+            }
+        }
+        return handle;
     }
 
     /**
-     * Generates an in-memory key for an application, used to index the app for later quick
-     * retrieval.
-     * @param app an application
-     * @return an application key
+     * @return the map to use when storing stuff
      */
-    private String getApplicationKey(Application app) {
-        return "APP::" + app.getOrganizationId() + "|" + app.getApplicationId() + "|" + app.getVersion(); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+    protected Map<String, Object> getMap() {
+        return map;
     }
 
     /**
-     * Generates an in-memory key for a contract.
-     * @param request
+     * The single handle of a service version.  The service is null while the
+     * service version is not published (e.g. after it has been retired).
      */
-    private String getContractKey(ServiceRequest request) {
-        return "CONTRACT::" + request.getApiKey(); //$NON-NLS-1$
+    private static final class ServiceHandle {
+        private volatile Service service;
+        // The (lazily built) failure for contracts against the retired service
+        private volatile IAsyncResult<ServiceContract> retired;
     }
 
     /**
-     * Generates an in-memory key for a service contract, used to index the app for later quick
-     * retrieval.
-     * @param contract
+     * A contract along with the handle of the service it is against.
      */
-    private String getContractKey(Contract contract) {
-        return "CONTRACT::" + contract.getApiKey(); //$NON-NLS-1$
+    private static final class ContractEntry {
+
+        private final ServiceContract contract;
+        private final ServiceHandle service;
+
+        /**
+         * Constructor.
+         */
+        public ContractEntry(ServiceContract contract, ServiceHandle service) {
+            this.contract = contract;
+            this.service = service;
+        }
     }
 
     /**
-     * @return the map to use when storing stuff
+     * The failure for an unknown API key.  Lookups of unknown keys can be frequent,
+     * so the message is only formatted when asked for, and there is no stack trace
+     * (it would always be the same lookup).
      */
-    protected Map<String, Object> getMap() {
-        return map;
+    private static class UnknownContractException extends InvalidContractException {
+
+        private static final long serialVersionUID = 4297645316284723853L;
+
+        private final String apiKey;
+        private transient String message;
+
+        /**
+         * Constructor.
+         * @param apiKey the unknown api key
+         */
+        public UnknownContractException(String apiKey) {
+            super(null);
+            this.apiKey = apiKey;
+        }
+
+        /**
+         * @see java.lang.Throwable#getMessage()
+         */
+        @Override
+        public String getMessage() {
+            if (message == null) {
+                message = Messages.i18n.format("InMemoryRegistry.NoContractForAPIKey", apiKey); //$NON-NLS-1$
+            }
+            return message;
+        }
+
+        /**
+         * @see java.lang.Throwable#fillInStackTrace()
+         */
+        @Override
+        public synchronized Throwable fillInStackTrace() {
+            return this;
+        }
     }
 
 }
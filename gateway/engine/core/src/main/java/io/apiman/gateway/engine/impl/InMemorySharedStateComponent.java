@@ -15,12 +15,12 @@
  */
 package io.apiman.gateway.engine.impl;
 
+import io.apiman.gateway.engine.SharedComponent;
 import io.apiman.gateway.engine.async.AsyncResultImpl;
 import io.apiman.gateway.engine.async.IAsyncResultHandler;
 import io.apiman.gateway.engine.components.ISharedStateComponent;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import javax.xml.namespace.QName;
 
@@ -32,9 +32,10 @@ import javax.xml.namespace.QName;
  *
  * @author eric.wittmann@redhat.com
  */
+@SharedComponent
 public class InMemorySharedStateComponent implements ISharedStateComponent {
     
-    private Map<QName, Object> sharedState = new HashMap<>();
+    private ConcurrentHashMap<QName, Object> sharedState = new ConcurrentHashMap<>();
     
     /**
      * Constructor.
@@ -49,11 +50,8 @@ public class InMemorySharedStateComponent implements ISharedStateComponent {
     @Override
     public <T> void getProperty(String namespace, String propertyName, T defaultValue,
             IAsyncResultHandler<T> handler) {
-        T value = null;
-        synchronized (sharedState) {
-            QName key = new QName(namespace, propertyName);
-            value = (T) sharedState.get(key);
-        }
+        QName key = new QName(namespace, propertyName);
+        T value = (T) sharedState.get(key);
         if (value == null) {
             value = defaultValue;
         }
@@ -66,7 +64,10 @@ public class InMemorySharedStateComponent implements ISharedStateComponent {
     @Override
     public <T> void setProperty(String namespace, String propertyName, T value, IAsyncResultHandler<Void> handler) {
         QName key = new QName(namespace, propertyName);
-        synchronized (sharedState) {
+        if (value == null) {
+            // Same as not being set
+            sharedState.remove(key);
+        } else {
             sharedState.put(key, value);
         }
         handler.handle(AsyncResultImpl.create((Void) null));
@@ -78,9 +79,7 @@ public class InMemorySharedStateComponent implements ISharedStateComponent {
     @Override
     public <T> void clearProperty(String namespace, String propertyName, IAsyncResultHandler<Void> handler) {
         QName key = new QName(namespace, propertyName);
-        synchronized (sharedState) {
-            sharedState.remove(key);
-        }
+        sharedState.remove(key);
         handler.handle(AsyncResultImpl.create((Void) null));
     }
 
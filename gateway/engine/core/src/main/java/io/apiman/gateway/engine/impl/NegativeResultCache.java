@@ -0,0 +1,212 @@
+/*
+ * Copyright 2015 JBoss Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.apiman.gateway.engine.impl;
+
+import io.apiman.gateway.engine.async.IAsyncResult;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Remembers, for a short while, that a registry lookup found nothing (e.g. an
+ * unknown API key).  The (pre-built) result of the failed lookup is cached, so
+ * that repeating the lookup is just a map lookup - no remote call, and no new
+ * exception or message.  The cache is bounded: when it is full the oldest
+ * entry is dropped.
+ *
+ * Lookups of unknown keys can be frequent (e.g. a client using a wrong API key),
+ * so the entries are split over a number of stripes by key, each with its own
+ * lock and its own share of the max size - unrelated lookups don't wait for
+ * one another.  The oldest entry is then the oldest of the stripe.
+ *
+ * Registries must remove (or clear) entries when the data they stand for may
+ * have been added - the TTL only bounds how long a change that the registry
+ * doesn't know about can go unnoticed.
+ *
+ * @author eric.wittmann@redhat.com
+ */
+public class NegativeResultCache<T> {
+
+    public static final int DEFAULT_MAX_SIZE = 10000;
+    public static final long DEFAULT_TTL = 10000L; // 10 seconds
+
+    private static final int MAX_STRIPES = 16;
+    // Smaller caches aren't worth striping
+    private static final int MIN_STRIPE_SIZE = 256;
+
+    private final long ttl;
+    private final Stripe<T>[] stripes;
+
+    /**
+     * Constructor.
+     */
+    public NegativeResultCache() {
+        this(DEFAULT_MAX_SIZE, DEFAULT_TTL);
+    }
+
+    /**
+     * Constructor.
+     * @param maxSize the max number of entries
+     * @param ttl how long (in millis) an entry is valid
+     */
+    @SuppressWarnings("unchecked")
+    public NegativeResultCache(int maxSize, long ttl) {
+        this.ttl = ttl;
+        int count = Math.min(MAX_STRIPES, Integer.highestOneBit(Math.max(1, maxSize / MIN_STRIPE_SIZE)));
+        int stripeSize = (maxSize + count - 1) / count;
+        stripes = new Stripe[count];
+        for (int i = 0; i < count; i++) {
+            stripes[i] = new Stripe<>(stripeSize);
+        }
+    }
+
+    /**
+     * @param key
+     * @return the stripe the key belongs to
+     */
+    private Stripe<T> stripe(String key) {
+        int hash = key == null ? 0 : key.hashCode();
+        hash ^= hash >>> 16;
+        return stripes[hash & (stripes.length - 1)];
+    }
+
+    /**
+     * @param key
+     * @return the cached result of the failed lookup, or null if there is none
+     */
+    public IAsyncResult<T> get(String key) {
+        return get(key, System.currentTimeMillis());
+    }
+
+    /**
+     * @param key
+     * @param now the current time
+     * @return the cached result of the failed lookup, or null if there is none
+     */
+    protected IAsyncResult<T> get(String key, long now) {
+        Stripe<T> stripe = stripe(key);
+        synchronized (stripe) {
+            Entry<T> entry = stripe.get(key);
+            if (entry == null) {
+                return null;
+            }
+            if (now >= entry.expiresOn) {
+                stripe.remove(key);
+                return null;
+            }
+            return entry.result;
+        }
+    }
+
+    /**
+     * Caches the result of a failed lookup.
+     * @param key
+     * @param result
+     */
+    public void put(String key, IAsyncResult<T> result) {
+        put(key, result, System.currentTimeMillis());
+    }
+
+    /**
+     * Caches the result of a failed lookup.
+     * @param key
+     * @param result
+     * @param now the current time
+     */
+    protected void put(String key, IAsyncResult<T> result, long now) {
+        Stripe<T> stripe = stripe(key);
+        synchronized (stripe) {
+            // Re-insert, so that the entry becomes the newest
+            stripe.remove(key);
+            stripe.put(key, new Entry<>(result, now + ttl));
+        }
+    }
+
+    /**
+     * Forgets about a failed lookup.
+     * @param key
+     */
+    public void remove(String key) {
+        Stripe<T> stripe = stripe(key);
+        synchronized (stripe) {
+            stripe.remove(key);
+        }
+    }
+
+    /**
+     * Forgets about all failed lookups.
+     */
+    public void clear() {
+        for (Stripe<T> stripe : stripes) {
+            synchronized (stripe) {
+                stripe.clear();
+            }
+        }
+    }
+
+    /**
+     * @return the number of entries (including expired ones not yet removed)
+     */
+    public int size() {
+        int size = 0;
+        for (Stripe<T> stripe : stripes) {
+            synchronized (stripe) {
+                size += stripe.size();
+            }
+        }
+        return size;
+    }
+
+    /**
+     * The entries of one stripe, oldest first.
+     */
+    private static final class Stripe<T> extends LinkedHashMap<String, Entry<T>> {
+
+        private static final long serialVersionUID = -7461278370627419339L;
+
+        private final int maxSize;
+
+        /**
+         * Constructor.
+         */
+        public Stripe(int maxSize) {
+            this.maxSize = maxSize;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Entry<T>> eldest) {
+            return size() > maxSize;
+        }
+    }
+
+    /**
+     * A cached result.
+     */
+    private static final class Entry<T> {
+
+        private final IAsyncResult<T> result;
+        private final long expiresOn;
+
+        /**
+         * Constructor.
+         */
+        public Entry(IAsyncResult<T> result, long expiresOn) {
+            this.result = result;
+            this.expiresOn = expiresOn;
+        }
+    }
+
+}
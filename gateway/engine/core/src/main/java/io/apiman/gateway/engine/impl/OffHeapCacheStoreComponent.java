@@ -0,0 +1,386 @@
+/*
+ * Copyright 2015 JBoss Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.apiman.gateway.engine.impl;
+
+import io.apiman.gateway.engine.DependsOnComponents;
+import io.apiman.gateway.engine.SharedComponent;
+import io.apiman.gateway.engine.async.IAsyncHandler;
+import io.apiman.gateway.engine.components.IBufferFactoryComponent;
+import io.apiman.gateway.engine.components.ICacheStoreComponent;
+import io.apiman.gateway.engine.io.IApimanBuffer;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An in-memory implementation of the {@link ICacheStoreComponent} interface that
+ * keeps cached response bodies outside of the java heap, so that large caches
+ * don't add to garbage collection pauses.
+ *
+ * Off-heap memory is allocated from the OS in (direct) slabs of 'slabSize'
+ * bytes, up to a total of 'maxCacheSize' bytes.  Each slab is divided into
+ * chunks of 'chunkSize' bytes and a body is stored in as many chunks as it
+ * needs.  Bodies are streamed back out one chunk at a time, through a per-thread
+ * transfer array (so the only allocation per chunk is the buffer handed to the
+ * reader).  When no chunk is free the least recently used entries are evicted.
+ * The list of slabs only ever grows, and is replaced (rather than modified)
+ * when it does, so reading a chunk doesn't need any locking.
+ *
+ * The chunks of an evicted entry are only reused once all requests reading
+ * the entry are done with it.  A reader that never finishes (e.g. because its
+ * request failed before the cached response was sent) would pin the chunks
+ * forever, so entries are forcibly freed 'readTimeout' millis after they were
+ * removed from the cache.
+ *
+ * Note that the JVM limits the total amount of direct memory, so
+ * -XX:MaxDirectMemorySize may need to be raised for large caches.
+ *
+ * @author eric.wittmann@redhat.com
+ */
+@SharedComponent
+@DependsOnComponents( { IBufferFactoryComponent.class } )
+public class OffHeapCacheStoreComponent extends InMemoryCacheStoreComponent {
+
+    private static final long DEFAULT_MAX_CACHE_SIZE = 256 * 1024 * 1024; // 256 MB
+    private static final int DEFAULT_SLAB_SIZE = 16 * 1024 * 1024; // 16 MB
+    private static final int DEFAULT_CHUNK_SIZE = 8 * 1024; // 8 KB
+    private static final long DEFAULT_READ_TIMEOUT = 300000L; // 5 minutes
+
+    private final int chunkSize;
+    private final int chunksPerSlab;
+    private final int maxSlabs;
+    private final long readTimeout;
+
+    private volatile ByteBuffer[] slabs = new ByteBuffer[0];
+    private final ThreadLocal<byte[]> transferBuffer = new ThreadLocal<>();
+    private int[] freeChunks = new int[0];
+    private int freeCount;
+    private final List<OffHeapBody> pendingBodies = new ArrayList<>();
+
+    /**
+     * Constructor.
+     */
+    public OffHeapCacheStoreComponent() {
+        this(Collections.<String, String>emptyMap());
+    }
+
+    /**
+     * Constructor.
+     * @param config
+     */
+    public OffHeapCacheStoreComponent(Map<String, String> config) {
+        super(withDefaultMaxCacheSize(config));
+        long maxCacheSize = ConfigValues.getLong(config, "maxCacheSize", DEFAULT_MAX_CACHE_SIZE); //$NON-NLS-1$
+        // At least one slab is always allowed, so it must not be bigger than the whole cache
+        int slabSize = (int) Math.min(ConfigValues.getLong(config, "slabSize", DEFAULT_SLAB_SIZE), maxCacheSize); //$NON-NLS-1$
+        chunkSize = (int) Math.max(1, Math.min(ConfigValues.getLong(config, "chunkSize", DEFAULT_CHUNK_SIZE), slabSize)); //$NON-NLS-1$
+        readTimeout = ConfigValues.getLong(config, "readTimeout", DEFAULT_READ_TIMEOUT); //$NON-NLS-1$
+        chunksPerSlab = Math.max(1, slabSize / chunkSize);
+        maxSlabs = (int) Math.max(1, maxCacheSize / ((long) chunksPerSlab * chunkSize));
+    }
+
+    /**
+     * @see io.apiman.gateway.engine.impl.InMemoryCacheStoreComponent#createBodyBuilder()
+     */
+    @Override
+    protected ICachedBodyBuilder createBodyBuilder() {
+        return new ICachedBodyBuilder() {
+            private int[] chunks = new int[4];
+            private int numChunks = 0;
+            private long length = 0;
+            private boolean failed = false;
+
+            @Override
+            public void append(IApimanBuffer chunk) {
+                if (failed) {
+                    return;
+                }
+                // Copy straight out of array backed buffers, rather than out of a copy of them
+                Object nativeBuffer = chunk.getNativeBuffer();
+                byte[] bytes = nativeBuffer instanceof byte[] ? (byte[]) nativeBuffer : chunk.getBytes();
+                int end = nativeBuffer instanceof byte[] ? chunk.length() : bytes.length;
+                int offset = 0;
+                while (offset < end) {
+                    int used = (int) (length % chunkSize);
+                    if (used == 0) {
+                        int id = allocateChunk();
+                        if (id == -1) {
+                            // Out of off-heap memory - don't cache this body
+                            discard();
+                            failed = true;
+                            return;
+                        }
+                        if (numChunks == chunks.length) {
+                            int[] newChunks = new int[chunks.length * 2];
+                            System.arraycopy(chunks, 0, newChunks, 0, numChunks);
+                            chunks = newChunks;
+                        }
+                        chunks[numChunks++] = id;
+                    }
+                    int count = Math.min(chunkSize - used, end - offset);
+                    ByteBuffer slab = chunkBuffer(chunks[numChunks - 1]);
+                    slab.position(slab.position() + used);
+                    slab.put(bytes, offset, count);
+                    offset += count;
+                    length += count;
+                }
+            }
+
+            @Override
+            public ICachedBody build() {
+                if (failed) {
+                    return null;
+                }
+                int[] bodyChunks = new int[numChunks];
+                System.arraycopy(chunks, 0, bodyChunks, 0, numChunks);
+                return new OffHeapBody(bodyChunks, length);
+            }
+
+            @Override
+            public void discard() {
+                freeChunks(chunks, numChunks);
+                numChunks = 0;
+            }
+        };
+    }
+
+    /**
+     * @see io.apiman.gateway.engine.impl.InMemoryCacheStoreComponent#sweep(long)
+     */
+    @Override
+    protected void sweep(long now) {
+        super.sweep(now);
+        List<OffHeapBody> timedOut = new ArrayList<>();
+        synchronized (pendingBodies) {
+            Iterator<OffHeapBody> iterator = pendingBodies.iterator();
+            while (iterator.hasNext()) {
+                OffHeapBody body = iterator.next();
+                if (body.isFreed()) {
+                    iterator.remove();
+                } else if (now - body.discardedOn >= readTimeout) {
+                    iterator.remove();
+                    timedOut.add(body);
+                }
+            }
+        }
+        for (OffHeapBody body : timedOut) {
+            body.free();
+        }
+    }
+
+    /**
+     * Allocates a free chunk, allocating a new slab or evicting entries if
+     * necessary.
+     * @return the chunk id or -1 if no chunk could be made available
+     */
+    protected int allocateChunk() {
+        while (true) {
+            synchronized (this) {
+                if (freeCount == 0 && slabs.length < maxSlabs) {
+                    addSlab();
+                }
+                if (freeCount > 0) {
+                    return freeChunks[--freeCount];
+                }
+            }
+            // Must not hold the allocator lock while evicting (evicting frees chunks).
+            if (!evictOne()) {
+                return -1;
+            }
+        }
+    }
+
+    /**
+     * Returns chunks to the free list.
+     * @param chunks
+     * @param numChunks
+     */
+    protected synchronized void freeChunks(int[] chunks, int numChunks) {
+        for (int i = 0; i < numChunks; i++) {
+            freeChunks[freeCount++] = chunks[i];
+        }
+    }
+
+    /**
+     * @return the number of free chunks (not counting slabs not yet allocated)
+     */
+    protected synchronized int getFreeChunkCount() {
+        return freeCount;
+    }
+
+    /**
+     * Allocates a new slab and adds all of its chunks to the free list.  Must
+     * hold the allocator lock.
+     */
+    private void addSlab() {
+        ByteBuffer[] oldSlabs = slabs;
+        int firstChunk = oldSlabs.length * chunksPerSlab;
+        ByteBuffer[] newSlabs = Arrays.copyOf(oldSlabs, oldSlabs.length + 1);
+        newSlabs[oldSlabs.length] = ByteBuffer.allocateDirect(chunksPerSlab * chunkSize);
+        // Publish the new slab before any of its chunks can be handed out
+        slabs = newSlabs;
+        int[] newFreeChunks = new int[freeChunks.length + chunksPerSlab];
+        System.arraycopy(freeChunks, 0, newFreeChunks, 0, freeCount);
+        freeChunks = newFreeChunks;
+        // Push in reverse so that chunks are handed out in order
+        for (int i = chunksPerSlab - 1; i >= 0; i--) {
+            freeChunks[freeCount++] = firstChunk + i;
+        }
+    }
+
+    /**
+     * Returns a view of the slab positioned at the start of the given chunk.  The
+     * slab itself is never modified, so concurrent views are safe.
+     * @param chunkId
+     */
+    private ByteBuffer chunkBuffer(int chunkId) {
+        ByteBuffer view = slabs[chunkId / chunksPerSlab].duplicate();
+        int start = (chunkId % chunksPerSlab) * chunkSize;
+        view.limit(start + chunkSize);
+        view.position(start);
+        return view;
+    }
+
+    /**
+     * Adds the default max cache size for off-heap caches to the config.
+     * @param config
+     */
+    private static Map<String, String> withDefaultMaxCacheSize(Map<String, String> config) {
+        if (config.containsKey("maxCacheSize")) { //$NON-NLS-1$
+            return config;
+        }
+        Map<String, String> rval = new HashMap<>(config);
+        rval.put("maxCacheSize", String.valueOf(DEFAULT_MAX_CACHE_SIZE)); //$NON-NLS-1$
+        return rval;
+    }
+
+    /**
+     * A body stored in off-heap chunks.  Reference counted: the cache holds one
+     * reference until the entry is removed, and each reader holds one while it
+     * transmits the body.  The chunks are freed when the count drops to zero.
+     */
+    private final class OffHeapBody implements ICachedBody {
+
+        private final int[] chunks;
+        private final long length;
+        private int refs = 1;
+        private boolean discarded;
+        private long discardedOn;
+
+        /**
+         * Constructor.
+         */
+        public OffHeapBody(int[] chunks, long length) {
+            this.chunks = chunks;
+            this.length = length;
+        }
+
+        @Override
+        public long size() {
+            return length;
+        }
+
+        @Override
+        public void transmit(IAsyncHandler<IApimanBuffer> handler) {
+            byte[] transfer = transferBuffer.get();
+            if (transfer == null) {
+                transfer = new byte[chunkSize];
+                transferBuffer.set(transfer);
+            }
+            long remaining = length;
+            for (int chunk : chunks) {
+                int count = (int) Math.min(chunkSize, remaining);
+                synchronized (this) {
+                    // A reader that took longer than the read timeout must not get
+                    // chunks that may already belong to another entry.
+                    if (refs == 0) {
+                        throw new IllegalStateException("The cached body was freed while it was being read."); //$NON-NLS-1$
+                    }
+                    chunkBuffer(chunk).get(transfer, 0, count);
+                }
+                // The buffer is the reader's to keep, so it gets a copy of the transfer array
+                IApimanBuffer buffer = getBufferFactory().createBuffer(count);
+                buffer.append(transfer, 0, count);
+                handler.handle(buffer);
+                remaining -= count;
+            }
+        }
+
+        @Override
+        public synchronized void retain() {
+            if (refs == 0) {
+                throw new IllegalStateException("The cached body has already been freed."); //$NON-NLS-1$
+            }
+            refs++;
+        }
+
+        @Override
+        public void release() {
+            boolean free;
+            synchronized (this) {
+                free = refs > 0 && --refs == 0;
+            }
+            if (free) {
+                freeChunks(chunks, chunks.length);
+            }
+        }
+
+        @Override
+        public void discard() {
+            synchronized (this) {
+                if (discarded) {
+                    return;
+                }
+                discarded = true;
+                discardedOn = System.currentTimeMillis();
+            }
+            release();
+            if (!isFreed()) {
+                synchronized (pendingBodies) {
+                    pendingBodies.add(this);
+                }
+            }
+        }
+
+        /**
+         * Frees the chunks even though there are still readers.
+         */
+        public void free() {
+            boolean free;
+            synchronized (this) {
+                free = refs > 0;
+                refs = 0;
+            }
+            if (free) {
+                freeChunks(chunks, chunks.length);
+            }
+        }
+
+        /**
+         * @return true if the chunks have been freed
+         */
+        public synchronized boolean isFreed() {
+            return refs == 0;
+        }
+    }
+
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright 2015 JBoss Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.apiman.gateway.engine.impl;
+
+import io.apiman.gateway.engine.IRegistry;
+import io.apiman.gateway.engine.async.IAsyncResult;
+import io.apiman.gateway.engine.async.IAsyncResultHandler;
+import io.apiman.gateway.engine.beans.Application;
+import io.apiman.gateway.engine.beans.Service;
+import io.apiman.gateway.engine.beans.ServiceContract;
+import io.apiman.gateway.engine.beans.ServiceRequest;
+import io.apiman.gateway.engine.policy.PolicyChainPlanCache;
+
+/**
+ * Wraps any {@link IRegistry} implementation so that compiled policy chain
+ * plans are discarded whenever a service or application changes.
+ *
+ * @author eric.wittmann@redhat.com
+ */
+public class PolicyChainPlanRegistryWrapper implements IRegistry {
+
+    private final IRegistry delegate;
+    private final PolicyChainPlanCache planCache;
+
+    /**
+     * Constructor.
+     * @param delegate the delegated registry
+     * @param planCache the plan cache to invalidate
+     */
+    public PolicyChainPlanRegistryWrapper(IRegistry delegate, PolicyChainPlanCache planCache) {
+        this.delegate = delegate;
+        this.planCache = planCache;
+    }
+
+    /**
+     * @see io.apiman.gateway.engine.IRegistry#publishService(io.apiman.gateway.engine.beans.Service, io.apiman.gateway.engine.async.IAsyncResultHandler)
+     */
+    @Override
+    public void publishService(final Service service, final IAsyncResultHandler<Void> handler) {
+        delegate.publishService(service, new IAsyncResultHandler<Void>() {
+            @Override
+            public void handle(IAsyncResult<Void> result) {
+                planCache.invalidate(service);
+                handler.handle(result);
+            }
+        });
+    }
+
+    /**
+     * @see io.apiman.gateway.engine.IRegistry#retireService(io.apiman.gateway.engine.beans.Service, io.apiman.gateway.engine.async.IAsyncResultHandler)
+     */
+    @Override
+    public void retireService(final Service service, final IAsyncResultHandler<Void> handler) {
+        delegate.retireService(service, new IAsyncResultHandler<Void>() {
+            @Override
+            public void handle(IAsyncResult<Void> result) {
+                planCache.invalidate(service);
+                handler.handle(result);
+            }
+        });
+    }
+
+    /**
+     * @see io.apiman.gateway.engine.IRegistry#registerApplication(io.apiman.gateway.engine.beans.Application, io.apiman.gateway.engine.async.IAsyncResultHandler)
+     */
+    @Override
+    public void registerApplication(final Application application, final IAsyncResultHandler<Void> handler) {
+        delegate.registerApplication(application, new IAsyncResultHandler<Void>() {
+            @Override
+            public void handle(IAsyncResult<Void> result) {
+                planCache.invalidate(application);
+                handler.handle(result);
+            }
+        });
+    }
+
+    /**
+     * @see io.apiman.gateway.engine.IRegistry#unregisterApplication(io.apiman.gateway.engine.beans.Application, io.apiman.gateway.engine.async.IAsyncResultHandler)
+     */
+    @Override
+    public void unregisterApplication(final Application application, final IAsyncResultHandler<Void> handler) {
+        delegate.unregisterApplication(application, new IAsyncResultHandler<Void>() {
+            @Override
+            public void handle(IAsyncResult<Void> result) {
+                planCache.invalidate(application);
+                handler.handle(result);
+            }
+        });
+    }
+
+    /**
+     * @see io.apiman.gateway.engine.IRegistry#getContract(io.apiman.gateway.engine.beans.ServiceRequest, io.apiman.gateway.engine.async.IAsyncResultHandler)
+     */
+    @Override
+    public void getContract(ServiceRequest request, IAsyncResultHandler<ServiceContract> handler) {
+        delegate.getContract(request, handler);
+    }
+
+    /**
+     * @see io.apiman.gateway.engine.IRegistry#getService(java.lang.String, java.lang.String, java.lang.String, io.apiman.gateway.engine.async.IAsyncResultHandler)
+     */
+    @Override
+    public void getService(String organizationId, String serviceId, String serviceVersion,
+            IAsyncResultHandler<Service> handler) {
+        delegate.getService(organizationId, serviceId, serviceVersion, handler);
+    }
+
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright 2014 JBoss Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.apiman.gateway.engine.impl;
+
+import io.apiman.gateway.engine.beans.Application;
+import io.apiman.gateway.engine.beans.Contract;
+import io.apiman.gateway.engine.beans.Service;
+
+/**
+ * The string keys under which registries store services, applications and
+ * contracts in a flat map (or cache).  The format is part of the persisted
+ * state of some registries, so it must not change.
+ *
+ * @author eric.wittmann@redhat.com
+ */
+@SuppressWarnings("nls")
+public final class RegistryKeys {
+
+    private RegistryKeys() {
+    }
+
+    /**
+     * @param service a service
+     * @return the service's key
+     */
+    public static String serviceKey(Service service) {
+        return serviceKey(service.getOrganizationId(), service.getServiceId(), service.getVersion());
+    }
+
+    /**
+     * @param orgId
+     * @param serviceId
+     * @param version
+     * @return the service's key
+     */
+    public static String serviceKey(String orgId, String serviceId, String version) {
+        return "SVC::" + orgId + "|" + serviceId + "|" + version;
+    }
+
+    /**
+     * @param app an application
+     * @return the application's key
+     */
+    public static String applicationKey(Application app) {
+        return applicationKey(app.getOrganizationId(), app.getApplicationId(), app.getVersion());
+    }
+
+    /**
+     * @param orgId
+     * @param applicationId
+     * @param version
+     * @return the application's key
+     */
+    public static String applicationKey(String orgId, String applicationId, String version) {
+        return "APP::" + orgId + "|" + applicationId + "|" + version;
+    }
+
+    /**
+     * @param contract a contract
+     * @return the contract's key
+     */
+    public static String contractKey(Contract contract) {
+        return contractKey(contract.getApiKey());
+    }
+
+    /**
+     * @param apiKey the contract's API key
+     * @return the contract's key
+     */
+    public static String contractKey(String apiKey) {
+        return "CONTRACT::" + apiKey;
+    }
+
+}
@@ -17,6 +17,8 @@ package io.apiman.gateway.engine.impl;
 
 import io.apiman.common.util.AesEncrypter;
 import io.apiman.gateway.engine.IRegistry;
+import io.apiman.gateway.engine.IRequiresInitialization;
+import io.apiman.gateway.engine.async.AsyncResultImpl;
 import io.apiman.gateway.engine.async.IAsyncResult;
 import io.apiman.gateway.engine.async.IAsyncResultHandler;
 import io.apiman.gateway.engine.beans.Application;
@@ -25,19 +27,35 @@ import io.apiman.gateway.engine.beans.Policy;
 import io.apiman.gateway.engine.beans.Service;
 import io.apiman.gateway.engine.beans.ServiceContract;
 import io.apiman.gateway.engine.beans.ServiceRequest;
+import io.apiman.gateway.engine.policy.PolicySnapshot;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Wraps any {@link IRegistry} implementation to provide some encryption to
  * sensitive information.
  *
+ * Policy configurations are decrypted once per registry entry and cached.  The
+ * service and contract beans handed out by the delegate are never modified -
+ * callers get copies that refer to the (shared, read-only) decrypted policies.
+ * A cached entry is only used while the encrypted configurations it was built
+ * from are unchanged, so it is safe even if the delegate is updated behind our
+ * back (e.g. by another node).
+ *
+ * The engine only initializes the registry it is given (i.e. this wrapper), so
+ * initialization is passed on to the delegate.
+ *
  * @author eric.wittmann@redhat.com
  */
-public class SecureRegistryWrapper implements IRegistry {
+public class SecureRegistryWrapper implements IRegistry, IRequiresInitialization {
 
     private final IRegistry delegate;
+    private final ServiceIndex<DecryptedPolicies> decryptedServices = new ServiceIndex<>();
+    private final ConcurrentHashMap<String, DecryptedPolicies> decryptedContracts = new ConcurrentHashMap<>();
 
     /**
      * Constructor.
@@ -47,6 +65,16 @@ public class SecureRegistryWrapper implements IRegistry {
         this.delegate = delegate;
     }
 
+    /**
+     * @see io.apiman.gateway.engine.IRequiresInitialization#initialize()
+     */
+    @Override
+    public void initialize() {
+        if (delegate instanceof IRequiresInitialization) {
+            ((IRequiresInitialization) delegate).initialize();
+        }
+    }
+
     /**
      * @see io.apiman.gateway.engine.IRegistry#publishService(io.apiman.gateway.engine.beans.Service, io.apiman.gateway.engine.async.IAsyncResultHandler)
      */
@@ -54,6 +82,7 @@ public class SecureRegistryWrapper implements IRegistry {
     public void publishService(Service service, IAsyncResultHandler<Void> handler) {
         List<Policy> policies = service.getServicePolicies();
         encryptPolicies(policies);
+        decryptedServices.remove(service.getOrganizationId(), service.getServiceId(), service.getVersion());
         delegate.publishService(service, handler);
     }
 
@@ -67,6 +96,7 @@ public class SecureRegistryWrapper implements IRegistry {
             for (Contract contract : contracts) {
                 List<Policy> policies = contract.getPolicies();
                 encryptPolicies(policies);
+                removeDecryptedContract(contract);
             }
         }
         delegate.registerApplication(application, handler);
@@ -77,6 +107,7 @@ public class SecureRegistryWrapper implements IRegistry {
      */
     @Override
     public void retireService(Service service, IAsyncResultHandler<Void> handler) {
+        decryptedServices.remove(service.getOrganizationId(), service.getServiceId(), service.getVersion());
         delegate.retireService(service, handler);
     }
 
@@ -85,6 +116,12 @@ public class SecureRegistryWrapper implements IRegistry {
      */
     @Override
     public void unregisterApplication(Application application, IAsyncResultHandler<Void> handler) {
+        Set<Contract> contracts = application.getContracts();
+        if (contracts != null) {
+            for (Contract contract : contracts) {
+                removeDecryptedContract(contract);
+            }
+        }
         delegate.unregisterApplication(application, handler);
     }
 
@@ -100,8 +137,9 @@ public class SecureRegistryWrapper implements IRegistry {
                 if (result.isSuccess()) {
                     Service service = result.getResult();
                     if (service != null) {
-                        List<Policy> policies = service.getServicePolicies();
-                        decryptPolicies(policies);
+                        List<Policy> policies = decryptServicePolicies(service);
+                        handler.handle(AsyncResultImpl.create(copy(service, policies)));
+                        return;
                     }
                 }
                 handler.handle(result);
@@ -119,8 +157,13 @@ public class SecureRegistryWrapper implements IRegistry {
             public void handle(IAsyncResult<ServiceContract> result) {
                 if (result.isSuccess()) {
                     ServiceContract contract = result.getResult();
-                    List<Policy> policies = contract.getPolicies();
-                    decryptPolicies(policies);
+                    if (contract != null) {
+                        List<Policy> policies = decryptContractPolicies(contract);
+                        handler.handle(AsyncResultImpl.create(new ServiceContract(contract.getApikey(),
+                                contract.getService(), contract.getApplication(), contract.getPlan(),
+                                policies)));
+                        return;
+                    }
                 }
                 handler.handle(result);
             }
@@ -140,14 +183,98 @@ public class SecureRegistryWrapper implements IRegistry {
     }
 
     /**
+     * Returns the decrypted versions of the service's policies.  The policies themselves
+     * are left alone - new (read-only) policy beans are returned instead, and
+     * cached until the encrypted configurations change.
+     * @param service
+     */
+    protected List<Policy> decryptServicePolicies(Service service) {
+        List<Policy> policies = service.getServicePolicies();
+        if (policies == null) {
+            return null;
+        }
+        DecryptedPolicies cached = decryptedServices.get(service.getOrganizationId(), service.getServiceId(),
+                service.getVersion());
+        if (cached == null || !cached.source.matches(policies)) {
+            cached = new DecryptedPolicies(policies);
+            decryptedServices.put(service.getOrganizationId(), service.getServiceId(), service.getVersion(), cached);
+        }
+        return cached.policies;
+    }
+
+    /**
+     * Returns the decrypted versions of the contract's policies (see
+     * {@link #decryptServicePolicies(Service)}).
+     * @param contract
+     */
+    protected List<Policy> decryptContractPolicies(ServiceContract contract) {
+        List<Policy> policies = contract.getPolicies();
+        if (policies == null) {
+            return null;
+        }
+        String apiKey = contract.getApikey();
+        DecryptedPolicies cached = apiKey == null ? null : decryptedContracts.get(apiKey);
+        if (cached == null || !cached.source.matches(policies)) {
+            cached = new DecryptedPolicies(policies);
+            if (apiKey != null) {
+                decryptedContracts.put(apiKey, cached);
+            }
+        }
+        return cached.policies;
+    }
+
+    /**
+     * Forgets the decrypted policies of the given contract.
+     * @param contract
+     */
+    private void removeDecryptedContract(Contract contract) {
+        if (contract.getApiKey() != null) {
+            decryptedContracts.remove(contract.getApiKey());
+        }
+    }
+
+    /**
+     * Creates a copy of the given service with the given policies.
+     * @param service
      * @param policies
      */
-    protected void decryptPolicies(List<Policy> policies) {
-        if (policies != null) {
-            for (Policy policy : policies) {
-                String encryptedConfig = policy.getPolicyJsonConfig();
-                policy.setPolicyJsonConfig(AesEncrypter.decrypt(encryptedConfig));
+    private static Service copy(Service service, List<Policy> policies) {
+        Service copy = new Service();
+        copy.setPublicService(service.isPublicService());
+        copy.setOrganizationId(service.getOrganizationId());
+        copy.setServiceId(service.getServiceId());
+        copy.setVersion(service.getVersion());
+        copy.setEndpoint(service.getEndpoint());
+        copy.setEndpointType(service.getEndpointType());
+        copy.setEndpointContentType(service.getEndpointContentType());
+        copy.setEndpointProperties(service.getEndpointProperties());
+        copy.setServicePolicies(policies);
+        return copy;
+    }
+
+    /**
+     * The decrypted policies of a single registry entry, along with the
+     * policies they were decrypted from.
+     */
+    private static final class DecryptedPolicies {
+
+        private final PolicySnapshot source;
+        private final List<Policy> policies;
+
+        /**
+         * Constructor.
+         * @param encrypted
+         */
+        public DecryptedPolicies(List<Policy> encrypted) {
+            source = new PolicySnapshot(encrypted);
+            List<Policy> list = new ArrayList<>(encrypted.size());
+            for (Policy policy : encrypted) {
+                Policy copy = new Policy();
+                copy.setPolicyImpl(policy.getPolicyImpl());
+                copy.setPolicyJsonConfig(AesEncrypter.decrypt(policy.getPolicyJsonConfig()));
+                list.add(copy);
             }
+            policies = Collections.unmodifiableList(list);
         }
     }
 
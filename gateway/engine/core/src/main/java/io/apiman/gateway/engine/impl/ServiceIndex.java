@@ -0,0 +1,130 @@
+/*
+ * Copyright 2014 JBoss Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.apiman.gateway.engine.impl;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * A concurrent map of values per service version, nested by organization, service
+ * and version - so that looking a value up doesn't require building a key.  Null
+ * coordinates are not supported: lookups with them find nothing, and they can't
+ * be stored.
+ *
+ * @author eric.wittmann@redhat.com
+ */
+public class ServiceIndex<V> {
+
+    // org id -> service id -> version -> value
+    private final ConcurrentMap<String, ConcurrentMap<String, ConcurrentMap<String, V>>> index = new ConcurrentHashMap<>();
+
+    /**
+     * Constructor.
+     */
+    public ServiceIndex() {
+    }
+
+    /**
+     * @param orgId
+     * @param serviceId
+     * @param version
+     * @return the value for the service version, or null
+     */
+    public V get(String orgId, String serviceId, String version) {
+        ConcurrentMap<String, V> versions = versions(orgId, serviceId, false);
+        return versions == null || version == null ? null : versions.get(version);
+    }
+
+    /**
+     * Stores the value for the service version (ignored for null coordinates).
+     * @param orgId
+     * @param serviceId
+     * @param version
+     * @param value
+     */
+    public void put(String orgId, String serviceId, String version, V value) {
+        ConcurrentMap<String, V> versions = versions(orgId, serviceId, true);
+        if (versions != null && version != null) {
+            versions.put(version, value);
+        }
+    }
+
+    /**
+     * Stores the value for the service version, unless there already is one.
+     * @param orgId
+     * @param serviceId
+     * @param version
+     * @param value
+     * @return the value now stored (null for null coordinates)
+     */
+    public V putIfAbsent(String orgId, String serviceId, String version, V value) {
+        ConcurrentMap<String, V> versions = versions(orgId, serviceId, true);
+        if (versions == null || version == null) {
+            return null;
+        }
+        V existing = versions.putIfAbsent(version, value);
+        return existing == null ? value : existing;
+    }
+
+    /**
+     * Removes the value for the service version.
+     * @param orgId
+     * @param serviceId
+     * @param version
+     */
+    public void remove(String orgId, String serviceId, String version) {
+        ConcurrentMap<String, V> versions = versions(orgId, serviceId, false);
+        if (versions != null && version != null) {
+            versions.remove(version);
+        }
+    }
+
+    /**
+     * Removes everything.
+     */
+    public void clear() {
+        index.clear();
+    }
+
+    private ConcurrentMap<String, V> versions(String orgId, String serviceId, boolean create) {
+        if (orgId == null || serviceId == null) {
+            return null;
+        }
+        ConcurrentMap<String, ConcurrentMap<String, V>> services = index.get(orgId);
+        if (services == null) {
+            if (!create) {
+                return null;
+            }
+            ConcurrentMap<String, ConcurrentMap<String, V>> existing = index.putIfAbsent(orgId,
+                    services = new ConcurrentHashMap<>());
+            if (existing != null) {
+                services = existing;
+            }
+        }
+        ConcurrentMap<String, V> versions = services.get(serviceId);
+        if (versions == null) {
+            if (!create) {
+                return null;
+            }
+            ConcurrentMap<String, V> existing = services.putIfAbsent(serviceId, versions = new ConcurrentHashMap<>());
+            if (existing != null) {
+                versions = existing;
+            }
+        }
+        return versions;
+    }
+
+}
@@ -43,15 +43,19 @@ import io.apiman.gateway.engine.io.ISignalWriteStream;
 import io.apiman.gateway.engine.metrics.RequestMetric;
 import io.apiman.gateway.engine.policy.Chain;
 import io.apiman.gateway.engine.policy.IConnectorInterceptor;
+import io.apiman.gateway.engine.policy.IDelegatingConnectorInterceptor;
 import io.apiman.gateway.engine.policy.IPolicy;
 import io.apiman.gateway.engine.policy.IPolicyContext;
 import io.apiman.gateway.engine.policy.IPolicyFactory;
+import io.apiman.gateway.engine.policy.PolicyChainPlan;
+import io.apiman.gateway.engine.policy.PolicyChainPlanCache;
 import io.apiman.gateway.engine.policy.PolicyContextKeys;
 import io.apiman.gateway.engine.policy.PolicyWithConfiguration;
 import io.apiman.gateway.engine.policy.RequestChain;
 import io.apiman.gateway.engine.policy.ResponseChain;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashSet;
 import java.util.List;
@@ -82,6 +86,7 @@ public class ServiceRequestExecutorImpl implements IServiceRequestExecutor {
     private IPolicyContext context;
     private List<Policy> policies;
     private IPolicyFactory policyFactory;
+    private PolicyChainPlanCache planCache;
     private IConnectorFactory connectorFactory;
     private boolean finished = false;
 
@@ -109,17 +114,20 @@ public class ServiceRequestExecutorImpl implements IServiceRequestExecutor {
      * @param registry the registry
      * @param context the context
      * @param policyFactory the policy factory
+     * @param planCache the cache of compiled policy chain plans
      * @param connectorFactory the connector factory
      * @param metrics the metrics instance
      */
     public ServiceRequestExecutorImpl(ServiceRequest serviceRequest,
             IAsyncResultHandler<IEngineResult> resultHandler, IRegistry registry, IPolicyContext context,
-            IPolicyFactory policyFactory, IConnectorFactory connectorFactory, IMetrics metrics) {
+            IPolicyFactory policyFactory, PolicyChainPlanCache planCache, IConnectorFactory connectorFactory,
+            IMetrics metrics) {
         this.request = serviceRequest;
         this.registry = registry;
         this.resultHandler = wrapResultHandler(resultHandler);
         this.context = context;
         this.policyFactory = policyFactory;
+        this.planCache = planCache;
         this.connectorFactory = connectorFactory;
         this.policyFailureHandler = createPolicyFailureHandler();
         this.policyErrorHandler = createPolicyErrorHandler();
@@ -213,6 +221,10 @@ public class ServiceRequestExecutorImpl implements IServiceRequestExecutor {
                         if (connectorInterceptor == null) {
                             connector = connectorFactory.createConnector(request, service,
                                     RequiredAuthType.parseType(service));
+                        } else if (connectorInterceptor instanceof IDelegatingConnectorInterceptor) {
+                            connector = ((IDelegatingConnectorInterceptor) connectorInterceptor).createConnector(
+                                    connectorFactory.createConnector(request, service,
+                                            RequiredAuthType.parseType(service)));
                         } else {
                             connector = connectorInterceptor.createConnector();
                         }
@@ -270,8 +282,7 @@ public class ServiceRequestExecutorImpl implements IServiceRequestExecutor {
                             } else {
                                 request.setService(service);
                                 policies = service.getServicePolicies();
-                                policyImpls = new ArrayList<>(policies.size());
-                                loadPolicies(policiesLoadedHandler);
+                                resolvePolicies(policiesLoadedHandler);
                             }
                         } else if (result.isError()) {
                             resultHandler.handle(AsyncResultImpl.create(result.getError(), IEngineResult.class));
@@ -294,7 +305,6 @@ public class ServiceRequestExecutorImpl implements IServiceRequestExecutor {
                         request.setContract(serviceContract);
                         request.setService(service);
                         policies = serviceContract.getPolicies();
-                        policyImpls = new ArrayList<>(policies.size());
                         if (request.getServiceOrgId() != null) {
                             try {
                                 validateRequest(request);
@@ -303,7 +313,7 @@ public class ServiceRequestExecutorImpl implements IServiceRequestExecutor {
                                 return;
                             }
                         }
-                        loadPolicies(policiesLoadedHandler);
+                        resolvePolicies(policiesLoadedHandler);
                     } else {
                         resultHandler.handle(AsyncResultImpl.create(result.getError(), IEngineResult.class));
                     }
@@ -339,6 +349,47 @@ public class ServiceRequestExecutorImpl implements IServiceRequestExecutor {
         }
     }
 
+    /**
+     * Resolves the list of policies into a list of policies with config, using the
+     * compiled plan for the service (or contract) when one is cached.  Otherwise the
+     * policies are loaded and, if possible, compiled into a new plan for subsequent
+     * requests.
+     * @param handler
+     */
+    private void resolvePolicies(final IAsyncHandler<List<PolicyWithConfiguration>> handler) {
+        final String apiKey = request.getApiKey();
+        PolicyChainPlan plan;
+        if (apiKey == null) {
+            plan = planCache.getServicePlan(service, policies);
+        } else {
+            plan = planCache.getContractPlan(apiKey, policies);
+        }
+        if (plan != null) {
+            handler.handle(plan.getPolicies());
+            return;
+        }
+
+        if (!PolicyChainPlanCache.isCacheable(policies)) {
+            loadPolicies(handler);
+            return;
+        }
+
+        final Service planService = service;
+        final List<Policy> planPolicies = policies;
+        loadPolicies(new IAsyncHandler<List<PolicyWithConfiguration>>() {
+            @Override
+            public void handle(List<PolicyWithConfiguration> result) {
+                PolicyChainPlan compiled = new PolicyChainPlan(planPolicies, result);
+                if (apiKey == null) {
+                    planCache.putServicePlan(planService, compiled);
+                } else {
+                    planCache.putContractPlan(apiKey, compiled);
+                }
+                handler.handle(compiled.getPolicies());
+            }
+        });
+    }
+
     /**
      * Get/resolve the list of policies into a list of policies with config.  This operation is
      * done asynchronously so that plugins can be downloaded if needed.  Any errors in resolving
@@ -355,7 +406,7 @@ public class ServiceRequestExecutorImpl implements IServiceRequestExecutor {
 
         // If there aren't any policies, then no need to asynchronously load them!
         if (policies.isEmpty()) {
-            handler.handle(policyImpls);
+            handler.handle(Collections.<PolicyWithConfiguration>emptyList());
             return;
         }
 
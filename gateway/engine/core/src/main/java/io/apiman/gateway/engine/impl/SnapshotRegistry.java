@@ -0,0 +1,469 @@
+/*
+ * Copyright 2015 JBoss Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.apiman.gateway.engine.impl;
+
+import io.apiman.gateway.engine.IRegistry;
+import io.apiman.gateway.engine.async.AsyncResultImpl;
+import io.apiman.gateway.engine.async.IAsyncResultHandler;
+import io.apiman.gateway.engine.beans.Application;
+import io.apiman.gateway.engine.beans.Contract;
+import io.apiman.gateway.engine.beans.Service;
+import io.apiman.gateway.engine.beans.ServiceContract;
+import io.apiman.gateway.engine.beans.ServiceRequest;
+import io.apiman.gateway.engine.beans.exceptions.InvalidContractException;
+import io.apiman.gateway.engine.beans.exceptions.PublishingException;
+import io.apiman.gateway.engine.beans.exceptions.RegistrationException;
+import io.apiman.gateway.engine.i18n.Messages;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * An in-memory registry that keeps all of its data in an immutable snapshot.
+ * Lookups simply read the current snapshot and never lock, no matter how many
+ * services and applications are being published or registered at the time.
+ *
+ * Changes are made by copying (only the changed parts of) the current snapshot
+ * and then swapping the copy in.  Publish/register operations are queued, and
+ * whichever thread gets to apply them applies all of the queued operations to
+ * a single copy - so a burst of N operations (e.g. redeploying a plan with
+ * thousands of contracts) results in far fewer than N copies and swaps.  The
+ * result handler of an operation is only called once its change is visible.
+ *
+ * @author eric.wittmann@redhat.com
+ */
+public class SnapshotRegistry implements IRegistry {
+
+    private volatile Snapshot snapshot = new Snapshot();
+    private final ConcurrentLinkedQueue<Operation> pending = new ConcurrentLinkedQueue<>();
+    private final ReentrantLock writeLock = new ReentrantLock();
+    private volatile long swapCount;
+
+    /**
+     * Constructor.
+     */
+    public SnapshotRegistry() {
+    }
+
+    /**
+     * @see io.apiman.gateway.engine.IRegistry#publishService(io.apiman.gateway.engine.beans.Service, io.apiman.gateway.engine.async.IAsyncResultHandler)
+     */
+    @Override
+    public void publishService(final Service service, IAsyncResultHandler<Void> handler) {
+        submit(new Operation(handler) {
+            @Override
+            public Exception apply(Builder builder) {
+                if (builder.getService(service.getOrganizationId(), service.getServiceId(), service.getVersion()) != null) {
+                    return new PublishingException(Messages.i18n.format("InMemoryRegistry.ServiceAlreadyPublished")); //$NON-NLS-1$
+                }
+                builder.putService(service);
+                return null;
+            }
+        });
+    }
+
+    /**
+     * @see io.apiman.gateway.engine.IRegistry#retireService(io.apiman.gateway.engine.beans.Service, io.apiman.gateway.engine.async.IAsyncResultHandler)
+     */
+    @Override
+    public void retireService(final Service service, IAsyncResultHandler<Void> handler) {
+        submit(new Operation(handler) {
+            @Override
+            public Exception apply(Builder builder) {
+                if (builder.getService(service.getOrganizationId(), service.getServiceId(), service.getVersion()) == null) {
+                    return new PublishingException(Messages.i18n.format("InMemoryRegistry.ServiceNotFound")); //$NON-NLS-1$
+                }
+                builder.removeService(service);
+                return null;
+            }
+        });
+    }
+
+    /**
+     * @see io.apiman.gateway.engine.IRegistry#registerApplication(io.apiman.gateway.engine.beans.Application, io.apiman.gateway.engine.async.IAsyncResultHandler)
+     */
+    @Override
+    public void registerApplication(final Application application, IAsyncResultHandler<Void> handler) {
+        submit(new Operation(handler) {
+            @Override
+            public Exception apply(Builder builder) {
+                // Validate the application first - we need to be able to resolve all the contracts.
+                for (Contract contract : application.getContracts()) {
+                    if (builder.getContract(contract.getApiKey()) != null) {
+                        return new RegistrationException(Messages.i18n.format("InMemoryRegistry.ContractAlreadyPublished", //$NON-NLS-1$
+                                contract.getApiKey()));
+                    }
+                    if (builder.getService(contract.getServiceOrgId(), contract.getServiceId(), contract.getServiceVersion()) == null) {
+                        return new RegistrationException(Messages.i18n.format("InMemoryRegistry.ServiceNotFoundInOrg", //$NON-NLS-1$
+                                contract.getServiceId(), contract.getServiceOrgId()));
+                    }
+                }
+                String applicationKey = getApplicationKey(application);
+                if (builder.getApplication(applicationKey) != null) {
+                    return new RegistrationException(Messages.i18n.format("InMemoryRegistry.AppAlreadyRegistered")); //$NON-NLS-1$
+                }
+                builder.putApplication(applicationKey, application);
+                for (Contract contract : application.getContracts()) {
+                    Service service = builder.getService(contract.getServiceOrgId(), contract.getServiceId(),
+                            contract.getServiceVersion());
+                    builder.putContract(new ServiceContract(contract.getApiKey(), service, application,
+                            contract.getPlan(), contract.getPolicies()));
+                }
+                return null;
+            }
+        });
+    }
+
+    /**
+     * @see io.apiman.gateway.engine.IRegistry#unregisterApplication(io.apiman.gateway.engine.beans.Application, io.apiman.gateway.engine.async.IAsyncResultHandler)
+     */
+    @Override
+    public void unregisterApplication(final Application application, IAsyncResultHandler<Void> handler) {
+        submit(new Operation(handler) {
+            @Override
+            public Exception apply(Builder builder) {
+                String applicationKey = getApplicationKey(application);
+                Application removed = builder.getApplication(applicationKey);
+                if (removed == null) {
+                    return new RegistrationException(Messages.i18n.format("InMemoryRegistry.AppNotFound")); //$NON-NLS-1$
+                }
+                builder.removeApplication(applicationKey);
+                for (Contract contract : removed.getContracts()) {
+                    builder.removeContract(contract.getApiKey());
+                }
+                return null;
+            }
+        });
+    }
+
+    /**
+     * @see io.apiman.gateway.engine.IRegistry#getContract(io.apiman.gateway.engine.beans.ServiceRequest, io.apiman.gateway.engine.async.IAsyncResultHandler)
+     */
+    @Override
+    public void getContract(ServiceRequest request, IAsyncResultHandler<ServiceContract> handler) {
+        Snapshot current = snapshot;
+        ServiceContract contract = current.contracts.get(request.getApiKey());
+
+        if (contract == null) {
+            Exception error = new InvalidContractException(Messages.i18n.format("InMemoryRegistry.NoContractForAPIKey", request.getApiKey())); //$NON-NLS-1$
+            handler.handle(AsyncResultImpl.create(error, ServiceContract.class));
+            return;
+        }
+        // Has the service been retired?
+        Service service = contract.getService();
+        if (current.getService(service.getOrganizationId(), service.getServiceId(), service.getVersion()) == null) {
+            Exception error = new InvalidContractException(Messages.i18n.format("InMemoryRegistry.ServiceWasRetired", //$NON-NLS-1$
+                    service.getServiceId(), service.getOrganizationId()));
+            handler.handle(AsyncResultImpl.create(error, ServiceContract.class));
+            return;
+        }
+
+        handler.handle(AsyncResultImpl.create(contract));
+    }
+
+    /**
+     * @see io.apiman.gateway.engine.IRegistry#getService(java.lang.String, java.lang.String, java.lang.String, io.apiman.gateway.engine.async.IAsyncResultHandler)
+     */
+    @Override
+    public void getService(String organizationId, String serviceId, String serviceVersion,
+            IAsyncResultHandler<Service> handler) {
+        Service service = snapshot.getService(organizationId, serviceId, serviceVersion);
+        handler.handle(AsyncResultImpl.create(service));
+    }
+
+    /**
+     * @return the number of snapshots swapped in so far
+     */
+    public long getSwapCount() {
+        return swapCount;
+    }
+
+    /**
+     * Queues the given operation and applies it, along with any other queued
+     * operations, unless some other thread is already applying operations - in
+     * which case that thread will pick it up.
+     * @param operation
+     */
+    private void submit(Operation operation) {
+        pending.add(operation);
+        // Re-checked after releasing the lock: an operation queued while we were
+        // applying may have found the lock taken and left it to us.
+        while (!pending.isEmpty()) {
+            if (!writeLock.tryLock()) {
+                return;
+            }
+            List<Operation> applied = new ArrayList<>();
+            try {
+                Builder builder = new Builder(snapshot);
+                Operation next;
+                while ((next = pending.poll()) != null) {
+                    try {
+                        next.error = next.apply(builder);
+                    } catch (RuntimeException e) {
+                        next.error = e;
+                    }
+                    applied.add(next);
+                }
+                if (builder.isModified()) {
+                    snapshot = builder.build();
+                    swapCount++;
+                }
+            } finally {
+                writeLock.unlock();
+            }
+            // Only now are the changes visible
+            for (Operation op : applied) {
+                op.complete();
+            }
+        }
+    }
+
+    /**
+     * Generates a key for an application.
+     * @param app an application
+     * @return an application key
+     */
+    private static String getApplicationKey(Application app) {
+        return app.getOrganizationId() + "|" + app.getApplicationId() + "|" + app.getVersion(); //$NON-NLS-1$ //$NON-NLS-2$
+    }
+
+    /**
+     * A queued change to the registry.
+     */
+    private static abstract class Operation {
+
+        private final IAsyncResultHandler<Void> handler;
+        private Exception error;
+
+        /**
+         * Constructor.
+         * @param handler
+         */
+        public Operation(IAsyncResultHandler<Void> handler) {
+            this.handler = handler;
+        }
+
+        /**
+         * Applies the change.  Must not change anything if it fails.
+         * @param builder the next snapshot
+         * @return an error or null if successful
+         */
+        public abstract Exception apply(Builder builder);
+
+        /**
+         * Reports the outcome to the handler.
+         */
+        private void complete() {
+            if (error == null) {
+                handler.handle(AsyncResultImpl.create((Void) null));
+            } else {
+                handler.handle(AsyncResultImpl.create(error, Void.class));
+            }
+        }
+    }
+
+    /**
+     * An immutable view of everything in the registry.  Services are indexed by
+     * org id, service id and version in nested maps so that lookups don't need
+     * to build a key.
+     */
+    private static class Snapshot {
+
+        protected Map<String, Map<String, Map<String, Service>>> services;
+        protected Map<String, Application> applications;
+        protected Map<String, ServiceContract> contracts;
+
+        /**
+         * Constructor.
+         */
+        public Snapshot() {
+            services = Collections.emptyMap();
+            applications = Collections.emptyMap();
+            contracts = Collections.emptyMap();
+        }
+
+        /**
+         * Constructor.
+         * @param other
+         */
+        public Snapshot(Snapshot other) {
+            services = other.services;
+            applications = other.applications;
+            contracts = other.contracts;
+        }
+
+        /**
+         * @return the given service version or null if not published
+         */
+        public Service getService(String orgId, String serviceId, String version) {
+            Map<String, Map<String, Service>> orgServices = services.get(orgId);
+            if (orgServices == null) {
+                return null;
+            }
+            Map<String, Service> versions = orgServices.get(serviceId);
+            if (versions == null) {
+                return null;
+            }
+            return versions.get(version);
+        }
+    }
+
+    /**
+     * Builds the next snapshot from the current one.  Maps are shared with the
+     * current snapshot until they are changed, at which point they are copied
+     * (once).
+     */
+    private static final class Builder extends Snapshot {
+
+        private final Set<Map<?, ?>> copies = Collections.newSetFromMap(new IdentityHashMap<Map<?, ?>, Boolean>());
+
+        /**
+         * Constructor.
+         * @param current
+         */
+        private Builder(Snapshot current) {
+            super(current);
+        }
+
+        /**
+         * @return the registered application or null
+         */
+        public Application getApplication(String applicationKey) {
+            return applications.get(applicationKey);
+        }
+
+        /**
+         * @return the contract with the given API key or null
+         */
+        public ServiceContract getContract(String apiKey) {
+            return contracts.get(apiKey);
+        }
+
+        /**
+         * Publishes a service.
+         * @param service
+         */
+        public void putService(Service service) {
+            services = mutable(services);
+            Map<String, Map<String, Service>> orgServices = mutableChild(services, service.getOrganizationId());
+            Map<String, Service> versions = mutableChild(orgServices, service.getServiceId());
+            versions.put(service.getVersion(), service);
+        }
+
+        /**
+         * Retires a service.
+         * @param service
+         */
+        public void removeService(Service service) {
+            services = mutable(services);
+            Map<String, Map<String, Service>> orgServices = mutableChild(services, service.getOrganizationId());
+            Map<String, Service> versions = mutableChild(orgServices, service.getServiceId());
+            versions.remove(service.getVersion());
+            if (versions.isEmpty()) {
+                orgServices.remove(service.getServiceId());
+            }
+            if (orgServices.isEmpty()) {
+                services.remove(service.getOrganizationId());
+            }
+        }
+
+        /**
+         * Registers an application.
+         */
+        public void putApplication(String applicationKey, Application application) {
+            applications = mutable(applications);
+            applications.put(applicationKey, application);
+        }
+
+        /**
+         * Unregisters an application.
+         */
+        public void removeApplication(String applicationKey) {
+            applications = mutable(applications);
+            applications.remove(applicationKey);
+        }
+
+        /**
+         * Adds a contract.
+         */
+        public void putContract(ServiceContract contract) {
+            contracts = mutable(contracts);
+            contracts.put(contract.getApikey(), contract);
+        }
+
+        /**
+         * Removes a contract.
+         */
+        public void removeContract(String apiKey) {
+            contracts = mutable(contracts);
+            contracts.remove(apiKey);
+        }
+
+        /**
+         * @return true if anything was changed
+         */
+        public boolean isModified() {
+            return !copies.isEmpty();
+        }
+
+        /**
+         * @return the new snapshot
+         */
+        public Snapshot build() {
+            return new Snapshot(this);
+        }
+
+        /**
+         * Returns a private copy of the given map, copying it if this is the
+         * first change to it.
+         * @param map
+         */
+        private <V> Map<String, V> mutable(Map<String, V> map) {
+            if (copies.contains(map)) {
+                return map;
+            }
+            Map<String, V> copy = new HashMap<>(map);
+            copies.add(copy);
+            return copy;
+        }
+
+        /**
+         * Returns a private copy of the child map with the given key, creating
+         * or copying it as needed.  The parent must already be a private copy.
+         * @param parent
+         * @param key
+         */
+        private <V> Map<String, V> mutableChild(Map<String, Map<String, V>> parent, String key) {
+            Map<String, V> child = parent.get(key);
+            if (child == null) {
+                child = new HashMap<>();
+                copies.add(child);
+            } else {
+                child = mutable(child);
+            }
+            parent.put(key, child);
+            return child;
+        }
+    }
+
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright 2015 JBoss Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.apiman.gateway.engine.impl;
+
+import java.lang.ref.WeakReference;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs the periodic background sweeps of the in-memory components (e.g. removing
+ * expired entries), all on a single shared daemon thread.  Components don't have
+ * a shutdown hook, so the sweeper only holds a weak reference to each of them:
+ * once a component has been discarded (and garbage collected) its sweep is
+ * cancelled.  A sweep can also be cancelled explicitly via the returned future.
+ * Components can also have a final sweep run when the JVM shuts down.
+ *
+ * @author eric.wittmann@redhat.com
+ */
+public final class Sweeper {
+
+    private static Logger logger = LoggerFactory.getLogger(Sweeper.class);
+
+    private static final ScheduledThreadPoolExecutor executor;
+    static {
+        executor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "apiman-sweeper"); //$NON-NLS-1$
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        executor.setRemoveOnCancelPolicy(true);
+    }
+
+    /**
+     * The sweep itself.  Implementations must not refer to the target (other
+     * than through the argument), so they are best kept in static fields.
+     * @param <T> the type of the component being swept
+     */
+    public static interface ISweep<T> {
+
+        /**
+         * Sweeps the target.
+         * @param target
+         * @param now the current time (in ms)
+         */
+        void sweep(T target, long now);
+
+    }
+
+    private Sweeper() {
+    }
+
+    /**
+     * Sweeps the target periodically, until it is garbage collected.
+     * @param target
+     * @param sweep
+     * @param interval the sweep interval (in ms)
+     * @return the scheduled sweep
+     */
+    public static <T> ScheduledFuture<?> schedule(T target, ISweep<T> sweep, long interval) {
+        SweepTask<T> task = new SweepTask<>(target, sweep);
+        task.future = executor.scheduleWithFixedDelay(task, interval, interval, TimeUnit.MILLISECONDS);
+        return task.future;
+    }
+
+    /**
+     * Sweeps the target once more when the JVM shuts down, unless it has been
+     * garbage collected by then.
+     * @param target
+     * @param sweep
+     */
+    public static <T> void scheduleAtShutdown(T target, ISweep<T> sweep) {
+        SweepTask<T> task = new SweepTask<>(target, sweep);
+        Runtime.getRuntime().addShutdownHook(new Thread(task, "apiman-shutdown-sweeper")); //$NON-NLS-1$
+    }
+
+    /**
+     * Runs the sweep of a (weakly referenced) target.
+     */
+    private static final class SweepTask<T> implements Runnable {
+
+        private final WeakReference<T> target;
+        private final ISweep<T> sweep;
+        private volatile ScheduledFuture<?> future;
+
+        /**
+         * Constructor.
+         */
+        public SweepTask(T target, ISweep<T> sweep) {
+            this.target = new WeakReference<>(target);
+            this.sweep = sweep;
+        }
+
+        /**
+         * @see java.lang.Runnable#run()
+         */
+        @Override
+        public void run() {
+            T t = target.get();
+            if (t == null) {
+                if (future != null) {
+                    future.cancel(false);
+                }
+                return;
+            }
+            try {
+                sweep.sweep(t, System.currentTimeMillis());
+            } catch (RuntimeException e) {
+                // A failed sweep must not cancel the future sweeps (or anyone else's).
+                logger.error("Failed to sweep " + t.getClass().getName(), e); //$NON-NLS-1$
+            }
+        }
+    }
+
+}
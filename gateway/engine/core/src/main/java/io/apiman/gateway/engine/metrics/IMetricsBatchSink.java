@@ -0,0 +1,36 @@
+/*
+ * Copyright 2015 JBoss Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.apiman.gateway.engine.metrics;
+
+import java.util.List;
+
+/**
+ * Writes batches of request metrics to a metrics store.  Plugged into a
+ * {@link MetricsPipeline} by an IMetrics implementation.
+ *
+ * @author eric.wittmann@redhat.com
+ */
+public interface IMetricsBatchSink {
+
+    /**
+     * Writes a batch of metrics.  Called on the pipeline's flusher thread, one
+     * batch at a time - so a (slow) blocking write holds up the next batch, but
+     * never a request.
+     * @param batch the metrics, in the order they were recorded
+     */
+    public void write(List<RequestMetric> batch);
+
+}
@@ -0,0 +1,269 @@
+/*
+ * Copyright 2015 JBoss Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.apiman.gateway.engine.metrics;
+
+import io.apiman.gateway.engine.impl.ConfigValues;
+import io.apiman.gateway.engine.impl.Sweeper;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Takes the recording of request metrics off the request thread.  Metrics are
+ * put on a bounded (lock-free) queue and written to a {@link IMetricsBatchSink}
+ * by a single flusher thread, in batches of up to 'batchSize' metrics.  A batch
+ * is written when it is full, or when its first metric is 'batchMaxAge' millis
+ * old - whichever comes first.
+ *
+ * When the queue is full (i.e. the sink can't keep up), the 'overflowPolicy'
+ * decides what happens:
+ * <ul>
+ *   <li>drop - the new metric is dropped (the default)</li>
+ *   <li>drop-oldest - the oldest queued metric is dropped to make room</li>
+ *   <li>block - the request thread waits until there is room</li>
+ * </ul>
+ *
+ * Each pipeline has its own flusher thread - there is one per {@link IMetricsBatchSink}
+ * (i.e. per IMetrics implementation), and the engine only has the one.  When the
+ * JVM shuts down the pipeline is stopped, so that the queued metrics are still
+ * written, waiting at most 'shutdownTimeout' millis for the sink.  Whatever the
+ * sink hasn't written by then is lost, as is everything when the JVM is killed.
+ * Batches the sink fails to write are logged and counted (see {@link #getFailedCount()}).
+ *
+ * @author eric.wittmann@redhat.com
+ */
+public class MetricsPipeline {
+
+    private static Logger logger = LoggerFactory.getLogger(MetricsPipeline.class);
+
+    private static final int DEFAULT_QUEUE_SIZE = 10000;
+    private static final int DEFAULT_BATCH_SIZE = 500;
+    private static final long DEFAULT_BATCH_MAX_AGE = 1000L;
+    private static final long DEFAULT_SHUTDOWN_TIMEOUT = 5000L;
+    private static final long BLOCK_WAIT_NANOS = TimeUnit.MICROSECONDS.toNanos(100);
+
+    private static final Sweeper.ISweep<MetricsPipeline> STOP = new Sweeper.ISweep<MetricsPipeline>() {
+        @Override
+        public void sweep(MetricsPipeline pipeline, long now) {
+            try {
+                pipeline.stop(pipeline.shutdownTimeout);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    };
+
+    /**
+     * What to do with a metric when the queue is full.
+     */
+    public static enum OverflowPolicy {
+        drop, dropOldest, block;
+
+        /**
+         * @param value the configured value
+         */
+        public static OverflowPolicy parse(String value) {
+            if ("drop-oldest".equals(value)) { //$NON-NLS-1$
+                return dropOldest;
+            }
+            return valueOf(value);
+        }
+    }
+
+    private final IMetricsBatchSink sink;
+    private final int queueSize;
+    private final int batchSize;
+    private final long batchMaxAge;
+    private final OverflowPolicy overflowPolicy;
+    private final long shutdownTimeout;
+
+    private final ConcurrentLinkedQueue<RequestMetric> queue = new ConcurrentLinkedQueue<>();
+    // The number of metrics in (or about to be put in) the queue
+    private final AtomicInteger queued = new AtomicInteger();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final Thread flusher;
+    private volatile boolean running = true;
+
+    /**
+     * Constructor.
+     * @param config the configuration of the IMetrics implementation
+     * @param sink
+     */
+    public MetricsPipeline(Map<String, String> config, IMetricsBatchSink sink) {
+        this.sink = sink;
+        this.queueSize = (int) ConfigValues.getLong(config, "queueSize", DEFAULT_QUEUE_SIZE); //$NON-NLS-1$
+        this.batchSize = (int) ConfigValues.getLong(config, "batchSize", DEFAULT_BATCH_SIZE); //$NON-NLS-1$
+        this.batchMaxAge = ConfigValues.getLong(config, "batchMaxAge", DEFAULT_BATCH_MAX_AGE); //$NON-NLS-1$
+        String policy = config.get("overflowPolicy"); //$NON-NLS-1$
+        this.overflowPolicy = policy == null ? OverflowPolicy.drop : OverflowPolicy.parse(policy);
+        this.shutdownTimeout = ConfigValues.getLong(config, "shutdownTimeout", DEFAULT_SHUTDOWN_TIMEOUT); //$NON-NLS-1$
+
+        flusher = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                flushLoop();
+            }
+        });
+        flusher.setDaemon(true);
+        flusher.setName("apiman-metrics-pipeline"); //$NON-NLS-1$
+        flusher.start();
+        Sweeper.scheduleAtShutdown(this, STOP);
+    }
+
+    /**
+     * Queues a metric to be written.  Never blocks, unless the queue is full and
+     * the overflow policy is 'block'.
+     * @param metric
+     */
+    public void record(RequestMetric metric) {
+        int count;
+        while (true) {
+            count = queued.get();
+            if (count < queueSize) {
+                if (queued.compareAndSet(count, count + 1)) {
+                    break;
+                }
+            } else if (overflowPolicy == OverflowPolicy.drop || !running) {
+                dropped.incrementAndGet();
+                return;
+            } else if (overflowPolicy == OverflowPolicy.dropOldest) {
+                if (queue.poll() != null) {
+                    queued.decrementAndGet();
+                    dropped.incrementAndGet();
+                }
+            } else {
+                // Back pressure - the flusher makes room soon enough
+                LockSupport.parkNanos(BLOCK_WAIT_NANOS);
+            }
+        }
+        queue.offer(metric);
+        // Wake up the flusher when a new batch starts and when it is full
+        count++;
+        if (count == 1 || count == batchSize) {
+            LockSupport.unpark(flusher);
+        }
+    }
+
+    /**
+     * Stops the flusher, after it has written whatever is still queued.  Metrics
+     * recorded from then on are dropped.
+     * @throws InterruptedException
+     */
+    public void stop() throws InterruptedException {
+        stop(0);
+    }
+
+    /**
+     * Stops the flusher, waiting at most the given time for it to write whatever
+     * is still queued.  Metrics recorded from then on are dropped.
+     * @param timeout max time (in millis) to wait, or 0 to wait for as long as it takes
+     * @return true if the flusher is done
+     * @throws InterruptedException
+     */
+    public boolean stop(long timeout) throws InterruptedException {
+        running = false;
+        LockSupport.unpark(flusher);
+        flusher.join(timeout);
+        return !flusher.isAlive();
+    }
+
+    /**
+     * @return the number of metrics dropped because the queue was full
+     */
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    /**
+     * @return the number of metrics in batches that the sink failed to write
+     */
+    public long getFailedCount() {
+        return failed.get();
+    }
+
+    /**
+     * @return the number of queued metrics
+     */
+    public int getQueuedCount() {
+        return queued.get();
+    }
+
+    /**
+     * Writes batches of metrics, until stopped.  Metrics stay in the queue until a
+     * batch is written, so that the queued count tells the request threads when a
+     * batch is full.
+     */
+    protected void flushLoop() {
+        // When the oldest queued metric was first seen, or 0 if there is none
+        long batchStart = 0;
+        while (true) {
+            boolean stopping = !running;
+            int count = queued.get();
+            long now = System.currentTimeMillis();
+            if (count > 0 && batchStart == 0) {
+                batchStart = now;
+            }
+            if (count >= batchSize || (count > 0 && (now - batchStart >= batchMaxAge || stopping))) {
+                List<RequestMetric> batch = new ArrayList<>(Math.min(count, batchSize));
+                RequestMetric metric;
+                while (batch.size() < batchSize && (metric = queue.poll()) != null) {
+                    queued.decrementAndGet();
+                    batch.add(metric);
+                }
+                if (!batch.isEmpty()) {
+                    write(batch);
+                }
+                // Left over metrics are timed from the same start - so written early rather than late
+                if (queued.get() == 0) {
+                    batchStart = 0;
+                }
+                continue;
+            }
+            if (stopping) {
+                return;
+            }
+            if (count == 0) {
+                LockSupport.park(this);
+            } else {
+                LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(batchMaxAge - (now - batchStart)));
+            }
+        }
+    }
+
+    /**
+     * Writes a batch to the sink.
+     * @param batch
+     */
+    private void write(List<RequestMetric> batch) {
+        try {
+            sink.write(batch);
+        } catch (Throwable t) {
+            failed.addAndGet(batch.size());
+            logger.error("Failed to write " + batch.size() + " metrics.", t); //$NON-NLS-1$ //$NON-NLS-2$
+        }
+    }
+
+}
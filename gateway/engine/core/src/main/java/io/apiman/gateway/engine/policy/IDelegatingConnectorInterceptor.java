@@ -0,0 +1,37 @@
+/*
+ * Copyright 2015 JBoss Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.apiman.gateway.engine.policy;
+
+import io.apiman.gateway.engine.IServiceConnector;
+
+/**
+ * A connector interceptor that wraps the real connector configured in the
+ * gateway rather than replacing it.  This lets a policy decide, once the
+ * back-end service has (or hasn't) responded, what is sent to the client -
+ * e.g. to fall back to a cached response when the back-end service fails.
+ *
+ * @author eric.wittmann@redhat.com
+ */
+public interface IDelegatingConnectorInterceptor extends IConnectorInterceptor {
+
+    /**
+     * Creates the connector to use instead of the given (real) connector.
+     * @param connector the connector configured in the gateway
+     * @return the connector to use
+     */
+    IServiceConnector createConnector(IServiceConnector connector);
+
+}
@@ -0,0 +1,65 @@
+/*
+ * Copyright 2015 JBoss Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.apiman.gateway.engine.policy;
+
+import io.apiman.gateway.engine.beans.Policy;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * An immutable, fully resolved policy chain for a single service or contract.
+ * The plan remembers the policy definitions it was compiled from so that it
+ * can be checked against whatever the registry currently returns - if those
+ * have changed (e.g. because the service was re-published on another node)
+ * the plan is no longer valid and must be rebuilt.
+ *
+ * @author eric.wittmann@redhat.com
+ */
+public final class PolicyChainPlan {
+
+    private final PolicySnapshot source;
+    private final List<PolicyWithConfiguration> policies;
+
+    /**
+     * Constructor.
+     * @param source the policy definitions the plan was compiled from
+     * @param policies the resolved policies (in the same order as the source)
+     */
+    public PolicyChainPlan(List<Policy> source, List<PolicyWithConfiguration> policies) {
+        this.source = new PolicySnapshot(source);
+        this.policies = Collections.unmodifiableList(new ArrayList<>(policies));
+    }
+
+    /**
+     * Returns true if this plan was compiled from exactly the given list of
+     * policy definitions.
+     * @param source the policy definitions currently in the registry
+     * @return true if the plan can be used for the given policies
+     */
+    public boolean matches(List<Policy> source) {
+        return this.source.matches(source);
+    }
+
+    /**
+     * @return the resolved (read-only) list of policies
+     */
+    public List<PolicyWithConfiguration> getPolicies() {
+        return policies;
+    }
+
+}
@@ -0,0 +1,154 @@
+/*
+ * Copyright 2015 JBoss Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.apiman.gateway.engine.policy;
+
+import io.apiman.gateway.engine.beans.Application;
+import io.apiman.gateway.engine.beans.Contract;
+import io.apiman.gateway.engine.beans.Policy;
+import io.apiman.gateway.engine.beans.Service;
+import io.apiman.gateway.engine.impl.ServiceIndex;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Caches compiled {@link PolicyChainPlan}s so that the policies for a public
+ * service (indexed by its service coordinates) or a contract (indexed by its API
+ * key) only need to be loaded and configured once.  Entries are dropped when
+ * the relevant service or application is published/retired/registered/unregistered,
+ * and a cached plan is only ever returned if it still matches the policies
+ * currently held by the registry.
+ *
+ * @author eric.wittmann@redhat.com
+ */
+public class PolicyChainPlanCache {
+
+    private final ServiceIndex<PolicyChainPlan> servicePlans = new ServiceIndex<>();
+    private final ConcurrentHashMap<String, PolicyChainPlan> contractPlans = new ConcurrentHashMap<>();
+
+    /**
+     * Constructor.
+     */
+    public PolicyChainPlanCache() {
+    }
+
+    /**
+     * Gets the cached plan for the given public service, if it exists and is
+     * still valid for the given policies.
+     * @param service the service
+     * @param policies the service's current policies
+     * @return the plan or null if none is cached
+     */
+    public PolicyChainPlan getServicePlan(Service service, List<Policy> policies) {
+        return valid(servicePlans.get(service.getOrganizationId(), service.getServiceId(), service.getVersion()),
+                policies);
+    }
+
+    /**
+     * Gets the cached plan for the given contract (API key), if it exists and is
+     * still valid for the given policies.
+     * @param apiKey the contract's API key
+     * @param policies the contract's current policies
+     * @return the plan or null if none is cached
+     */
+    public PolicyChainPlan getContractPlan(String apiKey, List<Policy> policies) {
+        return apiKey == null ? null : valid(contractPlans.get(apiKey), policies);
+    }
+
+    /**
+     * Caches the plan for the given public service.
+     * @param service the service
+     * @param plan the compiled plan
+     */
+    public void putServicePlan(Service service, PolicyChainPlan plan) {
+        servicePlans.put(service.getOrganizationId(), service.getServiceId(), service.getVersion(), plan);
+    }
+
+    /**
+     * Caches the plan for the given contract (API key).
+     * @param apiKey the contract's API key
+     * @param plan the compiled plan
+     */
+    public void putContractPlan(String apiKey, PolicyChainPlan plan) {
+        if (apiKey != null) {
+            contractPlans.put(apiKey, plan);
+        }
+    }
+
+    /**
+     * Removes any plan compiled for the given service.  Plans for contracts
+     * against the service are removed as well.
+     * @param service the service
+     */
+    public void invalidate(Service service) {
+        servicePlans.remove(service.getOrganizationId(), service.getServiceId(), service.getVersion());
+        // Contracts are indexed by API key - we can't tell which ones belong to the
+        // service, so drop them all.  This only happens on publish/retire.
+        contractPlans.clear();
+    }
+
+    /**
+     * Removes any plans compiled for the contracts of the given application.
+     * @param application the application
+     */
+    public void invalidate(Application application) {
+        if (application.getContracts() != null) {
+            for (Contract contract : application.getContracts()) {
+                if (contract.getApiKey() != null) {
+                    contractPlans.remove(contract.getApiKey());
+                }
+            }
+        }
+    }
+
+    /**
+     * Removes all cached plans.
+     */
+    public void invalidateAll() {
+        servicePlans.clear();
+        contractPlans.clear();
+    }
+
+    /**
+     * Returns the plan if it matches the policies.
+     * @param plan
+     * @param policies
+     */
+    private static PolicyChainPlan valid(PolicyChainPlan plan, List<Policy> policies) {
+        if (plan != null && plan.matches(policies)) {
+            return plan;
+        }
+        return null;
+    }
+
+    /**
+     * Returns true if the given policies may be compiled into a cacheable plan.
+     * Like the policy factory, we don't cache anything for snapshot versions of
+     * policies.
+     * @param policies the policies
+     * @return true if cacheable
+     */
+    public static boolean isCacheable(List<Policy> policies) {
+        for (Policy policy : policies) {
+            String policyImpl = policy.getPolicyImpl();
+            if (policyImpl == null || policyImpl.contains("-SNAPSHOT")) { //$NON-NLS-1$
+                return false;
+            }
+        }
+        return true;
+    }
+
+}
@@ -25,8 +25,12 @@ import io.apiman.gateway.engine.async.IAsyncResult;
 import io.apiman.gateway.engine.async.IAsyncResultHandler;
 import io.apiman.gateway.engine.beans.exceptions.PolicyNotFoundException;
 
-import java.util.HashMap;
+import java.util.Iterator;
 import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * An implementation of the {@link IPolicyFactory} interface.
@@ -35,9 +39,17 @@ import java.util.Map;
  */
 public class PolicyFactoryImpl implements IPolicyFactory {
 
+    private static final int DEFAULT_MAX_CONFIG_CACHE_SIZE = 10000;
+
     private IPluginRegistry pluginRegistry;
-    private Map<String, IPolicy> policyCache = new HashMap<>();
-    private Map<String, Object> policyConfigCache = new HashMap<>();
+    private Map<String, IPolicy> policyCache = new ConcurrentHashMap<>();
+    private ConcurrentHashMap<ConfigCacheKey, Object> policyConfigCache = new ConcurrentHashMap<>();
+    private AtomicInteger policyConfigCacheSize = new AtomicInteger();
+    private int maxConfigCacheSize = DEFAULT_MAX_CONFIG_CACHE_SIZE;
+
+    private AtomicLong configCacheHits = new AtomicLong();
+    private AtomicLong configCacheMisses = new AtomicLong();
+    private AtomicLong configCacheEvictions = new AtomicLong();
 
     /**
      * Constructor.
@@ -45,6 +57,17 @@ public class PolicyFactoryImpl implements IPolicyFactory {
     public PolicyFactoryImpl() {
     }
 
+    /**
+     * Constructor.
+     * @param config the policy factory config
+     */
+    public PolicyFactoryImpl(Map<String, String> config) {
+        String mccs = config.get("maxConfigCacheSize"); //$NON-NLS-1$
+        if (mccs != null) {
+            maxConfigCacheSize = new Integer(mccs);
+        }
+    }
+
     /**
      * @see io.apiman.gateway.engine.policy.IPolicyFactory#setPluginRegistry(io.apiman.gateway.engine.IPluginRegistry)
      */
@@ -58,21 +81,72 @@ public class PolicyFactoryImpl implements IPolicyFactory {
      */
     @Override
     public Object loadConfig(IPolicy policy, String policySpec, String configData) {
-        synchronized (policyConfigCache) {
-            String cacheKey = policySpec + "||" + configData; //$NON-NLS-1$
-            if (policyConfigCache.containsKey(cacheKey)) {
-                return policyConfigCache.get(cacheKey);
+        ConfigCacheKey cacheKey = new ConfigCacheKey(policySpec, configData);
+        Object config = policyConfigCache.get(cacheKey);
+        if (config != null) {
+            configCacheHits.incrementAndGet();
+            return config;
+        }
+        configCacheMisses.incrementAndGet();
+        config = policy.parseConfiguration(configData);
+
+        // Note: don't cache configuration objects for snapshot versions of policies.
+        if (config != null && !policySpec.contains("-SNAPSHOT")) { //$NON-NLS-1$
+            // Not synchronized - two threads may both parse the same config, but only
+            // one result is kept (and returned to subsequent callers).
+            Object existing = policyConfigCache.putIfAbsent(cacheKey, config);
+            if (existing != null) {
+                return existing;
+            }
+            if (policyConfigCacheSize.incrementAndGet() > maxConfigCacheSize) {
+                evictConfigs();
             }
-            Object config = policy.parseConfiguration(configData);
+        }
+        return config;
+    }
 
-            // Note: don't cache configuration objects for snapshot versions of policies.
-            if (!policySpec.contains("-SNAPSHOT")) { //$NON-NLS-1$
-                policyConfigCache.put(cacheKey, config);
+    /**
+     * Evicts (arbitrary) entries from the config cache until it is back within
+     * its maximum size.
+     */
+    private void evictConfigs() {
+        Iterator<ConfigCacheKey> iterator = policyConfigCache.keySet().iterator();
+        while (policyConfigCacheSize.get() > maxConfigCacheSize && iterator.hasNext()) {
+            if (policyConfigCache.remove(iterator.next()) != null) {
+                policyConfigCacheSize.decrementAndGet();
+                configCacheEvictions.incrementAndGet();
             }
-            return config;
         }
     }
 
+    /**
+     * @return the number of config cache hits
+     */
+    public long getConfigCacheHits() {
+        return configCacheHits.get();
+    }
+
+    /**
+     * @return the number of config cache misses
+     */
+    public long getConfigCacheMisses() {
+        return configCacheMisses.get();
+    }
+
+    /**
+     * @return the number of configs evicted from the cache
+     */
+    public long getConfigCacheEvictions() {
+        return configCacheEvictions.get();
+    }
+
+    /**
+     * @return the number of configs currently cached
+     */
+    public int getConfigCacheSize() {
+        return policyConfigCacheSize.get();
+    }
+
     /**
      * @see io.apiman.gateway.engine.policy.IPolicyFactory#loadPolicy(java.lang.String, io.apiman.gateway.engine.async.IAsyncResultHandler)
      */
@@ -182,4 +256,52 @@ public class PolicyFactoryImpl implements IPolicyFactory {
         });
     }
 
+    /**
+     * Key used to cache parsed policy configuration.  Holds on to the original
+     * policy spec and config strings rather than concatenating them, and only
+     * computes its hash once.
+     */
+    private static final class ConfigCacheKey {
+
+        private final String policySpec;
+        private final String configData;
+        private final int hash;
+
+        /**
+         * Constructor.
+         * @param policySpec
+         * @param configData
+         */
+        public ConfigCacheKey(String policySpec, String configData) {
+            this.policySpec = policySpec;
+            this.configData = configData;
+            int h = policySpec == null ? 0 : policySpec.hashCode();
+            this.hash = 31 * h + (configData == null ? 0 : configData.hashCode());
+        }
+
+        /**
+         * @see java.lang.Object#hashCode()
+         */
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        /**
+         * @see java.lang.Object#equals(java.lang.Object)
+         */
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof ConfigCacheKey)) {
+                return false;
+            }
+            ConfigCacheKey other = (ConfigCacheKey) obj;
+            return hash == other.hash && Objects.equals(policySpec, other.policySpec)
+                    && Objects.equals(configData, other.configData);
+        }
+    }
+
 }
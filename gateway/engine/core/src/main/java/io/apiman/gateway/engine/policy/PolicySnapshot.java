@@ -0,0 +1,91 @@
+/*
+ * Copyright 2014 JBoss Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.apiman.gateway.engine.policy;
+
+import io.apiman.gateway.engine.beans.Policy;
+
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * The policy definitions (implementation and configuration) of a list of
+ * policies, as they were when something was derived from them - so that whatever
+ * was derived can be checked against the policies the registry currently returns.
+ *
+ * @author eric.wittmann@redhat.com
+ */
+public final class PolicySnapshot {
+
+    private final String[] policyImpls;
+    private final String[] policyConfigs;
+
+    /**
+     * Constructor.
+     * @param source the policy definitions
+     */
+    public PolicySnapshot(List<Policy> source) {
+        int size = source.size();
+        policyImpls = new String[size];
+        policyConfigs = new String[size];
+        for (int idx = 0; idx < size; idx++) {
+            Policy policy = source.get(idx);
+            policyImpls[idx] = policy.getPolicyImpl();
+            policyConfigs[idx] = policy.getPolicyJsonConfig();
+        }
+    }
+
+    /**
+     * @param source the policy definitions currently in the registry
+     * @return true if the snapshot was taken of exactly the given policy definitions
+     */
+    public boolean matches(List<Policy> source) {
+        if (source == null || source.size() != policyImpls.length) {
+            return false;
+        }
+        for (int idx = 0; idx < policyImpls.length; idx++) {
+            Policy policy = source.get(idx);
+            if (!Objects.equals(policyImpls[idx], policy.getPolicyImpl())
+                    || !Objects.equals(policyConfigs[idx], policy.getPolicyJsonConfig())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @param idx
+     * @return the implementation of the idx'th policy
+     */
+    public String getPolicyImpl(int idx) {
+        return policyImpls[idx];
+    }
+
+    /**
+     * @param idx
+     * @return the configuration of the idx'th policy
+     */
+    public String getPolicyConfig(int idx) {
+        return policyConfigs[idx];
+    }
+
+    /**
+     * @return the number of policies
+     */
+    public int size() {
+        return policyImpls.length;
+    }
+
+}
@@ -0,0 +1,35 @@
+/*
+ * Copyright 2015 JBoss Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.apiman.gateway.engine.rates;
+
+/**
+ * The algorithm used to count requests in a rate bucket.
+ *
+ * <ul>
+ *   <li>FixedWindow - the count resets to zero at each (calendar) period boundary</li>
+ *   <li>TokenBucket - the count continuously drains at a rate of 'limit' per period,
+ *       which smooths out bursts at period boundaries</li>
+ *   <li>SlidingWindow - the count of the previous period is weighted by how much of it
+ *       still overlaps a window of one period ending now</li>
+ * </ul>
+ *
+ * @author eric.wittmann@redhat.com
+ */
+public enum RateBucketAlgorithm {
+
+    FixedWindow, TokenBucket, SlidingWindow;
+
+}
@@ -16,12 +16,20 @@
 package io.apiman.gateway.engine.rates;
 
 import io.apiman.gateway.engine.components.IRateLimiterComponent;
+import io.apiman.gateway.engine.components.rate.RateLimitResponse;
 
 import java.io.Serializable;
 import java.util.Calendar;
 
 /**
- * May be used by {@link IRateLimiterComponent} implementations.
+ * May be used by {@link IRateLimiterComponent} implementations.  The meaning of
+ * the 'last' timestamp depends on the {@link RateBucketAlgorithm}:
+ *
+ * <ul>
+ *   <li>FixedWindow - the time of the last counted request</li>
+ *   <li>TokenBucket - the time up until which the count has been drained</li>
+ *   <li>SlidingWindow - the start of the current window</li>
+ * </ul>
  *
  * @author eric.wittmann@redhat.com
  */
@@ -29,7 +37,10 @@ public class RateLimiterBucket implements Serializable {
 
     private static final long serialVersionUID = 7322973438395289398L;
 
+    private static final long DAY_MILLIS = 24L * 60L * 60L * 1000L;
+
     private long count = 0;
+    private long previousCount = 0;
     private long last = System.currentTimeMillis();
 
     /**
@@ -38,6 +49,144 @@ public class RateLimiterBucket implements Serializable {
     public RateLimiterBucket() {
     }
 
+    /**
+     * Adds the increment to this bucket (unless the limit has already been exceeded)
+     * using the given algorithm, and returns the resulting rate limit response.
+     * @param algorithm the algorithm
+     * @param period the period
+     * @param limit the limit
+     * @param increment the increment
+     * @return the rate limit response
+     */
+    public RateLimitResponse accept(RateBucketAlgorithm algorithm, RateBucketPeriod period, long limit,
+            long increment) {
+        long now = System.currentTimeMillis();
+        switch (algorithm) {
+        case TokenBucket:
+            return acceptTokenBucket(period, limit, increment, now);
+        case SlidingWindow:
+            return acceptSlidingWindow(period, limit, increment, now);
+        default:
+            return acceptFixedWindow(period, limit, increment, now);
+        }
+    }
+
+    /**
+     * Fixed calendar window - the count resets at each period boundary.
+     */
+    private RateLimitResponse acceptFixedWindow(RateBucketPeriod period, long limit, long increment, long now) {
+        resetIfNecessary(period);
+
+        RateLimitResponse response = new RateLimitResponse();
+        if (getCount() > limit) {
+            response.setAccepted(false);
+        } else {
+            response.setAccepted(getCount() < limit);
+            setCount(getCount() + increment);
+            setLast(now);
+        }
+        int reset = (int) (getResetMillis(period) / 1000L);
+        response.setReset(reset);
+        response.setRemaining(limit - getCount());
+        return response;
+    }
+
+    /**
+     * Token bucket - the count drains continuously at 'limit' per period.  The reset
+     * is the number of seconds until the next request would be accepted.
+     */
+    private RateLimitResponse acceptTokenBucket(RateBucketPeriod period, long limit, long increment, long now) {
+        long periodMillis = getPeriodMillis(period);
+        drain(now, limit, periodMillis);
+
+        RateLimitResponse response = new RateLimitResponse();
+        if (getCount() > limit) {
+            response.setAccepted(false);
+        } else {
+            response.setAccepted(getCount() < limit);
+            setCount(getCount() + increment);
+        }
+        long reset = 0;
+        if (getCount() >= limit && limit > 0) {
+            reset = (long) Math.ceil((getCount() - limit + 1) * (double) periodMillis / limit / 1000D);
+        }
+        response.setReset(reset);
+        response.setRemaining(limit - getCount());
+        return response;
+    }
+
+    /**
+     * Drains the count by however much has leaked out of the bucket since it was
+     * last drained.
+     */
+    private void drain(long now, long limit, long periodMillis) {
+        long elapsed = now - getLast();
+        if (elapsed <= 0 || limit <= 0) {
+            return;
+        }
+        long drained = (long) ((double) elapsed * limit / periodMillis);
+        if (drained >= getCount()) {
+            setCount(0);
+            setLast(now);
+        } else if (drained > 0) {
+            setCount(getCount() - drained);
+            // Only advance by the time it took to drain the whole units
+            setLast(getLast() + (long) ((double) drained * periodMillis / limit));
+        }
+    }
+
+    /**
+     * Sliding window counter - the previous window's count is weighted by how much
+     * of it overlaps the period ending now.  The reset is the number of seconds
+     * until the current window ends.
+     */
+    private RateLimitResponse acceptSlidingWindow(RateBucketPeriod period, long limit, long increment, long now) {
+        long periodMillis = getPeriodMillis(period);
+        long windowStart = now - (now % periodMillis);
+        if (windowStart != getLast()) {
+            setPreviousCount(windowStart - getLast() == periodMillis ? getCount() : 0);
+            setCount(0);
+            setLast(windowStart);
+        }
+
+        double previousWeight = 1D - (double) (now - windowStart) / periodMillis;
+        long estimated = (long) (getPreviousCount() * previousWeight) + getCount();
+
+        RateLimitResponse response = new RateLimitResponse();
+        if (estimated > limit) {
+            response.setAccepted(false);
+        } else {
+            response.setAccepted(estimated < limit);
+            setCount(getCount() + increment);
+            estimated += increment;
+        }
+        response.setReset((windowStart + periodMillis - now) / 1000L);
+        response.setRemaining(limit - estimated);
+        return response;
+    }
+
+    /**
+     * Returns the time after which this bucket is equivalent to a brand new
+     * bucket, so it can be safely discarded.
+     * @param algorithm the algorithm
+     * @param period the period
+     * @param limit the limit
+     * @return the expiry timestamp
+     */
+    public long getExpiresOn(RateBucketAlgorithm algorithm, RateBucketPeriod period, long limit) {
+        switch (algorithm) {
+        case TokenBucket:
+            if (limit <= 0) {
+                return Long.MAX_VALUE;
+            }
+            return getLast() + (long) Math.ceil((double) getCount() * getPeriodMillis(period) / limit);
+        case SlidingWindow:
+            return getLast() + 2 * getPeriodMillis(period);
+        default:
+            return getLastPeriodBoundary(period);
+        }
+    }
+
     /**
      * Resets the count if the period boundary has been crossed.
      * @param period the period
@@ -71,23 +220,25 @@ public class RateLimiterBucket implements Serializable {
 
     /**
      * Gets the boundary timestamp for the given rate bucket period.  In other words,
-     * returns the timestamp associated with when the rate period will reset.
-     * @param timestamp
-     * @param period
+     * returns the timestamp associated with when the rate period will reset.  Second
+     * and minute boundaries are computed directly from the epoch timestamp; longer
+     * periods depend on the local calendar (time zones, DST, month lengths).
+     * @param timestamp the timestamp
+     * @param period the period
+     * @return the timestamp at which the period containing 'timestamp' ends
      */
-    private static long getPeriodBoundary(long timestamp, RateBucketPeriod period) {
-        Calendar lastCal = Calendar.getInstance();
-        lastCal.setTimeInMillis(timestamp);
+    public static long getPeriodBoundary(long timestamp, RateBucketPeriod period) {
         switch (period) {
         case Second:
-            lastCal.set(Calendar.MILLISECOND, 0);
-            lastCal.add(Calendar.SECOND, 1);
-            return lastCal.getTimeInMillis();
+            return (timestamp / 1000L + 1L) * 1000L;
         case Minute:
-            lastCal.set(Calendar.MILLISECOND, 0);
-            lastCal.set(Calendar.SECOND, 0);
-            lastCal.add(Calendar.MINUTE, 1);
-            return lastCal.getTimeInMillis();
+            return (timestamp / 60000L + 1L) * 60000L;
+        default:
+            break;
+        }
+        Calendar lastCal = Calendar.getInstance();
+        lastCal.setTimeInMillis(timestamp);
+        switch (period) {
         case Hour:
             lastCal.set(Calendar.MILLISECOND, 0);
             lastCal.set(Calendar.SECOND, 0);
@@ -116,10 +267,37 @@ public class RateLimiterBucket implements Serializable {
             lastCal.set(Calendar.DAY_OF_YEAR, 0);
             lastCal.add(Calendar.YEAR, 1);
             return lastCal.getTimeInMillis();
+        default:
+            break;
         }
         return Long.MAX_VALUE;
     }
 
+    /**
+     * Gets the (nominal) length of the given period in millis.  Used by the algorithms
+     * that aren't tied to calendar boundaries, so months are 30 days and years are
+     * 365 days.
+     * @param period the period
+     * @return the length of the period
+     */
+    public static long getPeriodMillis(RateBucketPeriod period) {
+        switch (period) {
+        case Second:
+            return 1000L;
+        case Minute:
+            return 60L * 1000L;
+        case Hour:
+            return 60L * 60L * 1000L;
+        case Day:
+            return DAY_MILLIS;
+        case Month:
+            return 30L * DAY_MILLIS;
+        case Year:
+        default:
+            return 365L * DAY_MILLIS;
+        }
+    }
+
     /**
      * @return the count
      */
@@ -134,6 +312,20 @@ public class RateLimiterBucket implements Serializable {
         this.count = count;
     }
 
+    /**
+     * @return the count of the previous window (sliding window only)
+     */
+    public long getPreviousCount() {
+        return previousCount;
+    }
+
+    /**
+     * @param previousCount the previous count to set
+     */
+    public void setPreviousCount(long previousCount) {
+        this.previousCount = previousCount;
+    }
+
     /**
      * @return the last
      */
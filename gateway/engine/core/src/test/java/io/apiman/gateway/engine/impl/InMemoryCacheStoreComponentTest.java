@@ -0,0 +1,141 @@
+/*
+ * Copyright 2015 JBoss Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.apiman.gateway.engine.impl;
+
+import io.apiman.gateway.engine.async.IAsyncResult;
+import io.apiman.gateway.engine.async.IAsyncResultHandler;
+import io.apiman.gateway.engine.io.ByteBuffer;
+import io.apiman.gateway.engine.io.ISignalReadStream;
+import io.apiman.gateway.engine.io.ISignalWriteStream;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Unit test for {@link InMemoryCacheStoreComponent}.
+ */
+@SuppressWarnings({ "nls", "javadoc" })
+public class InMemoryCacheStoreComponentTest {
+
+    @Test
+    public void testPutGet() throws Exception {
+        InMemoryCacheStoreComponent store = store(new HashMap<String, String>());
+        store.put("key-1", "value-1", 60);
+        Assert.assertEquals("value-1", get(store, "key-1"));
+        Assert.assertNull(get(store, "key-2"));
+        Assert.assertEquals(1, store.getHits());
+        Assert.assertEquals(1, store.getMisses());
+    }
+
+    @Test
+    public void testExpiry() throws Exception {
+        InMemoryCacheStoreComponent store = store(new HashMap<String, String>());
+        store.put("key-1", "value-1", 0);
+        store.put("key-2", "value-2", 60);
+        Assert.assertNull(get(store, "key-1"));
+        Assert.assertEquals("value-2", get(store, "key-2"));
+        Assert.assertEquals(1, store.getExpirations());
+        Assert.assertEquals(1, store.getEntryCount());
+    }
+
+    @Test
+    public void testSweep() throws Exception {
+        InMemoryCacheStoreComponent store = store(new HashMap<String, String>());
+        store.put("key-1", "value-1", 1);
+        store.put("key-2", "value-2", 60);
+        store.sweep(System.currentTimeMillis() + 2000L);
+        Assert.assertEquals(1, store.getEntryCount());
+        Assert.assertEquals(1, store.getExpirations());
+    }
+
+    @Test
+    public void testLeastRecentlyUsedEviction() throws Exception {
+        Map<String, String> config = new HashMap<>();
+        config.put("maxEntries", "3");
+        InMemoryCacheStoreComponent store = store(config);
+        store.put("key-1", "value-1", 60);
+        store.put("key-2", "value-2", 60);
+        store.put("key-3", "value-3", 60);
+        // Touch key-1 so that key-2 becomes the least recently used
+        get(store, "key-1");
+        store.put("key-4", "value-4", 60);
+
+        Assert.assertEquals(3, store.getEntryCount());
+        Assert.assertEquals(1, store.getEvictions());
+        Assert.assertNull(get(store, "key-2"));
+        Assert.assertEquals("value-1", get(store, "key-1"));
+        Assert.assertEquals("value-3", get(store, "key-3"));
+        Assert.assertEquals("value-4", get(store, "key-4"));
+    }
+
+    @Test
+    public void testBinary() throws Exception {
+        Map<String, String> config = new HashMap<>();
+        config.put("maxCacheSize", "10");
+        InMemoryCacheStoreComponent store = store(config);
+
+        ISignalWriteStream stream = store.putBinary("key-1", "head-1", 60);
+        stream.write(new ByteBuffer("123456"));
+        // Not visible until the data is complete
+        Assert.assertNull(getBinary(store, "key-1"));
+        stream.end();
+        Assert.assertEquals("head-1", getBinary(store, "key-1").getHead());
+        Assert.assertEquals(6, store.getCacheSize());
+
+        // Exceeds the max cache size, so key-1 must go
+        stream = store.putBinary("key-2", "head-2", 60);
+        stream.write(new ByteBuffer("123456"));
+        stream.end();
+        Assert.assertNull(getBinary(store, "key-1"));
+        Assert.assertEquals("head-2", getBinary(store, "key-2").getHead());
+        Assert.assertEquals(6, store.getCacheSize());
+        Assert.assertEquals(1, store.getEvictions());
+    }
+
+    private static InMemoryCacheStoreComponent store(Map<String, String> config) {
+        InMemoryCacheStoreComponent store = new InMemoryCacheStoreComponent(config);
+        store.setBufferFactory(new ByteBufferFactoryComponent());
+        return store;
+    }
+
+    private static String get(InMemoryCacheStoreComponent store, String key) {
+        final String[] rval = new String[1];
+        store.get(key, String.class, new IAsyncResultHandler<String>() {
+            @Override
+            public void handle(IAsyncResult<String> result) {
+                rval[0] = result.getResult();
+            }
+        });
+        return rval[0];
+    }
+
+    private static ISignalReadStream<String> getBinary(InMemoryCacheStoreComponent store, String key) {
+        final List<ISignalReadStream<String>> rval = new ArrayList<>();
+        store.getBinary(key, String.class, new IAsyncResultHandler<ISignalReadStream<String>>() {
+            @Override
+            public void handle(IAsyncResult<ISignalReadStream<String>> result) {
+                rval.add(result.getResult());
+            }
+        });
+        return rval.get(0);
+    }
+
+}
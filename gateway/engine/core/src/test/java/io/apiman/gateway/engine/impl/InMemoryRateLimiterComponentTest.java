@@ -0,0 +1,164 @@
+/*
+ * Copyright 2015 JBoss Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.apiman.gateway.engine.impl;
+
+import io.apiman.gateway.engine.async.IAsyncResult;
+import io.apiman.gateway.engine.async.IAsyncResultHandler;
+import io.apiman.gateway.engine.components.rate.RateLimitResponse;
+import io.apiman.gateway.engine.rates.RateBucketAlgorithm;
+import io.apiman.gateway.engine.rates.RateBucketPeriod;
+import io.apiman.gateway.engine.rates.RateLimiterBucket;
+
+import java.util.Calendar;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Unit test for {@link InMemoryRateLimiterComponent}.
+ */
+@SuppressWarnings({ "nls", "javadoc" })
+public class InMemoryRateLimiterComponentTest {
+
+    @Test
+    public void testLimit() {
+        InMemoryRateLimiterComponent limiter = new InMemoryRateLimiterComponent();
+        for (int i = 0; i < 3; i++) {
+            RateLimitResponse response = accept(limiter, "bucket-1", RateBucketPeriod.Hour, 3);
+            Assert.assertTrue(response.isAccepted());
+            Assert.assertEquals(2 - i, response.getRemaining());
+        }
+        Assert.assertFalse(accept(limiter, "bucket-1", RateBucketPeriod.Hour, 3).isAccepted());
+        Assert.assertFalse(accept(limiter, "bucket-1", RateBucketPeriod.Hour, 3).isAccepted());
+        // Other buckets are unaffected
+        Assert.assertTrue(accept(limiter, "bucket-2", RateBucketPeriod.Hour, 3).isAccepted());
+    }
+
+    @Test
+    public void testSweep() {
+        InMemoryRateLimiterComponent limiter = new InMemoryRateLimiterComponent();
+        accept(limiter, "bucket-1", RateBucketPeriod.Second, 10);
+        accept(limiter, "bucket-2", RateBucketPeriod.Year, 10);
+        Assert.assertEquals(2, limiter.getBucketCount());
+
+        limiter.sweep(System.currentTimeMillis() + 1000L);
+        Assert.assertEquals(1, limiter.getBucketCount());
+
+        // A swept bucket starts over
+        RateLimitResponse response = accept(limiter, "bucket-1", RateBucketPeriod.Second, 10);
+        Assert.assertEquals(9, response.getRemaining());
+    }
+
+    @Test
+    public void testPeriodBoundary() {
+        Calendar cal = Calendar.getInstance();
+        cal.set(2015, Calendar.JUNE, 15, 10, 30, 45);
+        cal.set(Calendar.MILLISECOND, 123);
+        long timestamp = cal.getTimeInMillis();
+
+        cal.set(Calendar.MILLISECOND, 0);
+        cal.add(Calendar.SECOND, 1);
+        Assert.assertEquals(cal.getTimeInMillis(), RateLimiterBucket.getPeriodBoundary(timestamp, RateBucketPeriod.Second));
+
+        cal.set(Calendar.SECOND, 0);
+        cal.set(Calendar.MINUTE, 31);
+        Assert.assertEquals(cal.getTimeInMillis(), RateLimiterBucket.getPeriodBoundary(timestamp, RateBucketPeriod.Minute));
+
+        cal.set(Calendar.MINUTE, 0);
+        cal.set(Calendar.HOUR_OF_DAY, 11);
+        Assert.assertEquals(cal.getTimeInMillis(), RateLimiterBucket.getPeriodBoundary(timestamp, RateBucketPeriod.Hour));
+    }
+
+    @Test
+    public void testTokenBucket() {
+        InMemoryRateLimiterComponent limiter = new InMemoryRateLimiterComponent();
+        for (int i = 0; i < 3; i++) {
+            RateLimitResponse response = accept(limiter, "bucket-1", RateBucketPeriod.Hour, RateBucketAlgorithm.TokenBucket, 3);
+            Assert.assertTrue(response.isAccepted());
+            Assert.assertEquals(2 - i, response.getRemaining());
+        }
+        RateLimitResponse response = accept(limiter, "bucket-1", RateBucketPeriod.Hour, RateBucketAlgorithm.TokenBucket, 3);
+        Assert.assertFalse(response.isAccepted());
+        // One token drips back in every 20 minutes (the rejected request was counted too)
+        Assert.assertTrue(response.getReset() > 20 * 60);
+        Assert.assertTrue(response.getReset() <= 40 * 60);
+    }
+
+    @Test
+    public void testTokenBucketDrain() {
+        RateLimiterBucket bucket = new RateLimiterBucket();
+        bucket.setCount(10);
+        bucket.setLast(System.currentTimeMillis() - 500L);
+        // Half a second at 10/sec drains 5
+        RateLimitResponse response = bucket.accept(RateBucketAlgorithm.TokenBucket, RateBucketPeriod.Second, 10, 1);
+        Assert.assertTrue(response.isAccepted());
+        Assert.assertTrue(bucket.getCount() <= 6);
+        Assert.assertTrue(bucket.getCount() >= 5);
+    }
+
+    @Test
+    public void testSlidingWindow() {
+        long periodMillis = RateLimiterBucket.getPeriodMillis(RateBucketPeriod.Day);
+        long now = System.currentTimeMillis();
+        long windowStart = now - (now % periodMillis);
+
+        // A full previous window counts proportionally to its overlap with the current one
+        RateLimiterBucket bucket = new RateLimiterBucket();
+        bucket.setCount(100);
+        bucket.setLast(windowStart - periodMillis);
+        RateLimitResponse response = bucket.accept(RateBucketAlgorithm.SlidingWindow, RateBucketPeriod.Day, 100, 1);
+        double weight = 1D - (double) (now - windowStart) / periodMillis;
+        long expected = 100 - ((long) (100 * weight) + 1);
+        Assert.assertEquals(100, bucket.getPreviousCount());
+        Assert.assertEquals(1, bucket.getCount());
+        Assert.assertTrue(Math.abs(expected - response.getRemaining()) <= 1);
+
+        // Windows older than the previous one are forgotten entirely
+        bucket = new RateLimiterBucket();
+        bucket.setCount(100);
+        bucket.setLast(windowStart - 2 * periodMillis);
+        response = bucket.accept(RateBucketAlgorithm.SlidingWindow, RateBucketPeriod.Day, 100, 1);
+        Assert.assertTrue(response.isAccepted());
+        Assert.assertEquals(99, response.getRemaining());
+    }
+
+    @Test
+    public void testAlgorithmsAreIndependent() {
+        InMemoryRateLimiterComponent limiter = new InMemoryRateLimiterComponent();
+        Assert.assertEquals(2, accept(limiter, "fixed", RateBucketPeriod.Hour, RateBucketAlgorithm.FixedWindow, 3).getRemaining());
+        Assert.assertEquals(2, accept(limiter, "token", RateBucketPeriod.Hour, RateBucketAlgorithm.TokenBucket, 3).getRemaining());
+        Assert.assertEquals(2, accept(limiter, "sliding", RateBucketPeriod.Hour, RateBucketAlgorithm.SlidingWindow, 3).getRemaining());
+        Assert.assertEquals(3, limiter.getBucketCount());
+    }
+
+    private static RateLimitResponse accept(InMemoryRateLimiterComponent limiter, String bucketId,
+            RateBucketPeriod period, long limit) {
+        return accept(limiter, bucketId, period, RateBucketAlgorithm.FixedWindow, limit);
+    }
+
+    private static RateLimitResponse accept(InMemoryRateLimiterComponent limiter, String bucketId,
+            RateBucketPeriod period, RateBucketAlgorithm algorithm, long limit) {
+        final RateLimitResponse[] rval = new RateLimitResponse[1];
+        limiter.accept(bucketId, period, algorithm, limit, 1, new IAsyncResultHandler<RateLimitResponse>() {
+            @Override
+            public void handle(IAsyncResult<RateLimitResponse> result) {
+                rval[0] = result.getResult();
+            }
+        });
+        return rval[0];
+    }
+
+}
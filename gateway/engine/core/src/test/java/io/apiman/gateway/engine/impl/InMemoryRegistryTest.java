@@ -0,0 +1,142 @@
+/*
+ * Copyright 2015 JBoss Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.apiman.gateway.engine.impl;
+
+import static io.apiman.gateway.engine.impl.RegistryFixture.application;
+import static io.apiman.gateway.engine.impl.RegistryFixture.getContract;
+import static io.apiman.gateway.engine.impl.RegistryFixture.getService;
+import static io.apiman.gateway.engine.impl.RegistryFixture.publish;
+import static io.apiman.gateway.engine.impl.RegistryFixture.register;
+import static io.apiman.gateway.engine.impl.RegistryFixture.retire;
+import static io.apiman.gateway.engine.impl.RegistryFixture.service;
+import static io.apiman.gateway.engine.impl.RegistryFixture.unregister;
+
+import io.apiman.gateway.engine.async.IAsyncResult;
+import io.apiman.gateway.engine.beans.ServiceContract;
+import io.apiman.gateway.engine.beans.exceptions.InvalidContractException;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Unit test for {@link InMemoryRegistry}.
+ */
+@SuppressWarnings({ "nls", "javadoc" })
+public class InMemoryRegistryTest {
+
+    @Test
+    public void testGetService() throws Exception {
+        InMemoryRegistry registry = new InMemoryRegistry();
+        Assert.assertTrue(publish(registry, service("svc", "1.0")).isSuccess());
+        Assert.assertFalse(publish(registry, service("svc", "1.0")).isSuccess());
+        Assert.assertEquals("1.0", getService(registry, "svc", "1.0").getVersion());
+        Assert.assertNull(getService(registry, "svc", "2.0"));
+        Assert.assertNull(getService(registry, "svc", null));
+
+        Assert.assertTrue(retire(registry, service("svc", "1.0")).isSuccess());
+        Assert.assertNull(getService(registry, "svc", "1.0"));
+        Assert.assertFalse(retire(registry, service("svc", "1.0")).isSuccess());
+    }
+
+    @Test
+    public void testGetContract() throws Exception {
+        InMemoryRegistry registry = new InMemoryRegistry();
+        publish(registry, service("svc", "1.0"));
+        // Service 2.0 isn't published
+        Assert.assertFalse(register(registry, application("app-1", "key-1", "2.0")).isSuccess());
+        Assert.assertTrue(register(registry, application("app-1", "key-1", "1.0")).isSuccess());
+        Assert.assertFalse(register(registry, application("app-2", "key-1", "1.0")).isSuccess());
+
+        IAsyncResult<ServiceContract> result = getContract(registry, "key-1");
+        Assert.assertTrue(result.isSuccess());
+        Assert.assertEquals("1.0", result.getResult().getService().getVersion());
+        Assert.assertTrue(getContract(registry, "key-2").getError() instanceof InvalidContractException);
+
+        // The contract remains, but its service is gone
+        retire(registry, service("svc", "1.0"));
+        result = getContract(registry, "key-1");
+        Assert.assertFalse(result.isSuccess());
+        Assert.assertTrue(result.getError().getMessage().contains("retired"));
+
+        // Republishing the service brings the contract back
+        publish(registry, service("svc", "1.0"));
+        Assert.assertTrue(getContract(registry, "key-1").isSuccess());
+
+        Assert.assertTrue(unregister(registry, application("app-1", "key-1", "1.0")).isSuccess());
+        Assert.assertFalse(getContract(registry, "key-1").isSuccess());
+    }
+
+    @Test
+    public void testFailuresAreReused() throws Exception {
+        InMemoryRegistry registry = new InMemoryRegistry();
+        publish(registry, service("svc", "1.0"));
+        IAsyncResult<ServiceContract> result = getContract(registry, "key-1");
+        Assert.assertTrue(result.getError() instanceof InvalidContractException);
+        Assert.assertTrue(result.getError().getMessage().contains("key-1"));
+        Assert.assertSame(result, getContract(registry, "key-1"));
+
+        // Registering the key forgets the failure
+        register(registry, application("app-1", "key-1", "1.0"));
+        Assert.assertTrue(getContract(registry, "key-1").isSuccess());
+
+        retire(registry, service("svc", "1.0"));
+        result = getContract(registry, "key-1");
+        Assert.assertTrue(result.getError().getMessage().contains("retired"));
+        Assert.assertSame(result, getContract(registry, "key-1"));
+    }
+
+    @Test
+    public void testSharedMap() throws Exception {
+        // E.g. a cache shared by all the nodes of a cluster
+        final Map<String, Object> store = new ConcurrentHashMap<>();
+        InMemoryRegistry node1 = new InMemoryRegistry() {
+            @Override
+            protected Map<String, Object> getMap() {
+                return store;
+            }
+        };
+        InMemoryRegistry node2 = new InMemoryRegistry() {
+            @Override
+            protected Map<String, Object> getMap() {
+                return store;
+            }
+        };
+        node2.initialize();
+        Assert.assertFalse(getContract(node2, "key-1").isSuccess());
+
+        publish(node1, service("svc", "1.0"));
+        publish(node1, service("svc", "2.0"));
+        register(node1, application("app-1", "key-1", "1.0"));
+        register(node1, application("app-2", "key-2", "2.0"));
+        retire(node1, service("svc", "2.0"));
+
+        // The other node sees the changes right away
+        Assert.assertEquals("1.0", getService(node2, "svc", "1.0").getVersion());
+        Assert.assertNull(getService(node2, "svc", "2.0"));
+        Assert.assertTrue(getContract(node2, "key-1").isSuccess());
+        Assert.assertTrue(getContract(node2, "key-2").getError().getMessage().contains("retired"));
+
+        // And the changes it makes itself
+        Assert.assertTrue(unregister(node2, application("app-1", "key-1", "1.0")).isSuccess());
+        Assert.assertFalse(getContract(node1, "key-1").isSuccess());
+        Assert.assertTrue(publish(node2, service("svc", "2.0")).isSuccess());
+        Assert.assertTrue(getContract(node1, "key-2").isSuccess());
+    }
+
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright 2015 JBoss Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.apiman.gateway.engine.impl;
+
+import io.apiman.gateway.engine.async.AsyncResultImpl;
+import io.apiman.gateway.engine.async.IAsyncResult;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Unit test for {@link NegativeResultCache}.
+ */
+@SuppressWarnings({ "nls", "javadoc" })
+public class NegativeResultCacheTest {
+
+    @Test
+    public void testExpiry() {
+        NegativeResultCache<String> cache = new NegativeResultCache<>(10, 1000L);
+        IAsyncResult<String> failure = AsyncResultImpl.create(new Exception("Not found"), String.class);
+        cache.put("key-1", failure, 5000L);
+        Assert.assertSame(failure, cache.get("key-1", 5999L));
+        Assert.assertNull(cache.get("key-1", 6000L));
+        Assert.assertEquals(0, cache.size());
+        Assert.assertNull(cache.get("key-2", 5000L));
+    }
+
+    @Test
+    public void testBounded() {
+        NegativeResultCache<String> cache = new NegativeResultCache<>(2, 1000L);
+        IAsyncResult<String> failure = AsyncResultImpl.create(new Exception("Not found"), String.class);
+        cache.put("key-1", failure, 0L);
+        cache.put("key-2", failure, 0L);
+        // Now the newest
+        cache.put("key-1", failure, 0L);
+        cache.put("key-3", failure, 0L);
+        Assert.assertEquals(2, cache.size());
+        Assert.assertNull(cache.get("key-2", 0L));
+        Assert.assertSame(failure, cache.get("key-1", 0L));
+
+        cache.remove("key-1");
+        Assert.assertNull(cache.get("key-1", 0L));
+        cache.clear();
+        Assert.assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void testStripedBounded() {
+        NegativeResultCache<String> cache = new NegativeResultCache<>(1000, 1000L);
+        IAsyncResult<String> failure = AsyncResultImpl.create(new Exception("Not found"), String.class);
+        for (int i = 0; i < 5000; i++) {
+            cache.put("key-" + i, failure, 0L);
+        }
+        Assert.assertTrue(cache.size() <= 1000);
+        Assert.assertSame(failure, cache.get("key-4999", 0L));
+        Assert.assertNull(cache.get("key-0", 0L));
+        cache.clear();
+        Assert.assertEquals(0, cache.size());
+    }
+
+}
@@ -0,0 +1,218 @@
+/*
+ * Copyright 2015 JBoss Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.apiman.gateway.engine.impl;
+
+import io.apiman.gateway.engine.async.IAsyncHandler;
+import io.apiman.gateway.engine.async.IAsyncResult;
+import io.apiman.gateway.engine.async.IAsyncResultHandler;
+import io.apiman.gateway.engine.io.ByteBuffer;
+import io.apiman.gateway.engine.io.IApimanBuffer;
+import io.apiman.gateway.engine.io.ISignalReadStream;
+import io.apiman.gateway.engine.io.ISignalWriteStream;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Unit test for {@link OffHeapCacheStoreComponent}.  Uses tiny chunks and slabs:
+ * 2 slabs of 4 chunks of 4 bytes each.
+ */
+@SuppressWarnings({ "nls", "javadoc" })
+public class OffHeapCacheStoreComponentTest {
+
+    @Test
+    public void testPutGet() throws Exception {
+        OffHeapCacheStoreComponent store = store();
+        put(store, "key-1", "0123456789");
+
+        ISignalReadStream<String> stream = getBinary(store, "key-1");
+        Assert.assertEquals("head", stream.getHead());
+        List<String> chunks = transmit(stream);
+        // Streamed out in chunks
+        Assert.assertEquals(3, chunks.size());
+        Assert.assertEquals("0123456789", join(chunks));
+        Assert.assertNull(getBinary(store, "key-2"));
+    }
+
+    @Test
+    public void testEviction() throws Exception {
+        OffHeapCacheStoreComponent store = store();
+        put(store, "key-1", "0123456789AB");
+        put(store, "key-2", "0123456789AB");
+        // Needs 3 more chunks but only 2 are left, so key-1 must go
+        put(store, "key-3", "0123456789AB");
+        Assert.assertNull(getBinary(store, "key-1"));
+        Assert.assertEquals("0123456789AB", join(transmit(getBinary(store, "key-2"))));
+        Assert.assertEquals("0123456789AB", join(transmit(getBinary(store, "key-3"))));
+    }
+
+    @Test
+    public void testReaderPinsEvictedBody() throws Exception {
+        OffHeapCacheStoreComponent store = store();
+        put(store, "key-1", "AAAAAAAAAAAA");
+        ISignalReadStream<String> reader = getBinary(store, "key-1");
+
+        put(store, "key-2", "BBBBBBBBBBBB");
+        // key-1 is evicted first, but its chunks can't be reused while it is being
+        // read - so key-2 has to be evicted as well
+        put(store, "key-3", "CCCCCCCCC");
+        Assert.assertNull(getBinary(store, "key-1"));
+        Assert.assertNull(getBinary(store, "key-2"));
+        Assert.assertEquals(2, store.getFreeChunkCount());
+
+        Assert.assertEquals("AAAAAAAAAAAA", join(transmit(reader)));
+        Assert.assertEquals(5, store.getFreeChunkCount());
+    }
+
+    @Test
+    public void testReadTimeout() throws Exception {
+        OffHeapCacheStoreComponent store = store();
+        put(store, "key-1", "AAAAAAAAAAAA");
+        getBinary(store, "key-1"); // never transmitted or aborted
+        put(store, "key-1", "BBBB");
+        Assert.assertEquals(0, store.getFreeChunkCount());
+
+        store.sweep(System.currentTimeMillis() + 2000L);
+        Assert.assertEquals(3, store.getFreeChunkCount());
+        Assert.assertEquals("BBBB", join(transmit(getBinary(store, "key-1"))));
+    }
+
+    @Test
+    public void testSlowReaderFreed() throws Exception {
+        final OffHeapCacheStoreComponent store = store();
+        put(store, "key-1", "AAAAAAAAAAAA");
+        ISignalReadStream<String> reader = getBinary(store, "key-1");
+        put(store, "key-1", "BBBB");
+
+        final List<String> chunks = new ArrayList<>();
+        reader.bodyHandler(new IAsyncHandler<IApimanBuffer>() {
+            @Override
+            public void handle(IApimanBuffer result) {
+                chunks.add(new String(result.getBytes()));
+                if (chunks.size() == 1) {
+                    // The reader takes too long: its chunks are freed and reused
+                    store.sweep(System.currentTimeMillis() + 2000L);
+                    try {
+                        put(store, "key-2", "CCCCCCCCCCCCCCCC");
+                    } catch (Exception e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            }
+        });
+        try {
+            reader.transmit();
+            Assert.fail("Expected the read to be aborted");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        Assert.assertEquals("AAAA", join(chunks));
+        Assert.assertEquals("CCCCCCCCCCCCCCCC", join(transmit(getBinary(store, "key-2"))));
+    }
+
+    @Test
+    public void testTooLarge() throws Exception {
+        OffHeapCacheStoreComponent store = store();
+        put(store, "key-1", "0123456789012345678901234567890123456789");
+        Assert.assertNull(getBinary(store, "key-1"));
+    }
+
+    @Test
+    public void testAbort() throws Exception {
+        OffHeapCacheStoreComponent store = store();
+        ISignalWriteStream stream = store.putBinary("key-1", "head", 60);
+        stream.write(new ByteBuffer("0123456789"));
+        stream.abort();
+        Assert.assertNull(getBinary(store, "key-1"));
+        Assert.assertEquals(4, store.getFreeChunkCount());
+    }
+
+    @Test
+    public void testSlabSizeLimitedByCacheSize() throws Exception {
+        Map<String, String> config = new HashMap<>();
+        config.put("maxCacheSize", "8");
+        config.put("slabSize", "16");
+        config.put("chunkSize", "4");
+        OffHeapCacheStoreComponent store = new OffHeapCacheStoreComponent(config);
+        store.setBufferFactory(new ByteBufferFactoryComponent());
+        put(store, "key-1", "0123");
+        // A single slab of 8 bytes, rather than 16
+        Assert.assertEquals(1, store.getFreeChunkCount());
+        put(store, "key-2", "012345678");
+        Assert.assertNull(getBinary(store, "key-2"));
+    }
+
+    private static OffHeapCacheStoreComponent store() {
+        Map<String, String> config = new HashMap<>();
+        config.put("maxCacheSize", "32");
+        config.put("slabSize", "16");
+        config.put("chunkSize", "4");
+        config.put("readTimeout", "1000");
+        OffHeapCacheStoreComponent store = new OffHeapCacheStoreComponent(config);
+        store.setBufferFactory(new ByteBufferFactoryComponent());
+        return store;
+    }
+
+    private static void put(OffHeapCacheStoreComponent store, String key, String data) throws Exception {
+        ISignalWriteStream stream = store.putBinary(key, "head", 60);
+        // Write in two pieces to make sure chunks are filled across writes
+        stream.write(new ByteBuffer(data.substring(0, data.length() / 2)));
+        stream.write(new ByteBuffer(data.substring(data.length() / 2)));
+        stream.end();
+    }
+
+    private static ISignalReadStream<String> getBinary(OffHeapCacheStoreComponent store, String key) {
+        final List<ISignalReadStream<String>> rval = new ArrayList<>();
+        store.getBinary(key, String.class, new IAsyncResultHandler<ISignalReadStream<String>>() {
+            @Override
+            public void handle(IAsyncResult<ISignalReadStream<String>> result) {
+                rval.add(result.getResult());
+            }
+        });
+        return rval.get(0);
+    }
+
+    private static List<String> transmit(ISignalReadStream<String> stream) {
+        final List<String> chunks = new ArrayList<>();
+        stream.bodyHandler(new IAsyncHandler<IApimanBuffer>() {
+            @Override
+            public void handle(IApimanBuffer result) {
+                chunks.add(new String(result.getBytes()));
+            }
+        });
+        stream.endHandler(new IAsyncHandler<Void>() {
+            @Override
+            public void handle(Void result) {
+            }
+        });
+        stream.transmit();
+        return chunks;
+    }
+
+    private static String join(List<String> chunks) {
+        StringBuilder builder = new StringBuilder();
+        for (String chunk : chunks) {
+            builder.append(chunk);
+        }
+        return builder.toString();
+    }
+
+}
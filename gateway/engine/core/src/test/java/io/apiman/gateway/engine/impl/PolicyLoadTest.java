@@ -24,6 +24,7 @@ import io.apiman.gateway.engine.policy.PolicyFactoryImpl;
 import io.apiman.gateway.engine.util.PassthroughPolicy;
 
 import java.lang.reflect.Field;
+import java.util.Collections;
 import java.util.Map;
 
 import org.junit.Assert;
@@ -75,6 +76,27 @@ public class PolicyLoadTest {
         });
     }
 
+    @Test
+    public void testConfigCache() {
+        PolicyFactoryImpl factory = new PolicyFactoryImpl(Collections.singletonMap("maxConfigCacheSize", "2"));
+        PassthroughPolicy policy = new PassthroughPolicy();
+
+        Object config1 = factory.loadConfig(policy, PassthroughPolicy.QUALIFIED_NAME, "{ \"a\" : 1 }");
+        Assert.assertSame(config1, factory.loadConfig(policy, PassthroughPolicy.QUALIFIED_NAME, "{ \"a\" : 1 }"));
+        Assert.assertEquals(1, factory.getConfigCacheHits());
+        Assert.assertEquals(1, factory.getConfigCacheMisses());
+
+        factory.loadConfig(policy, PassthroughPolicy.QUALIFIED_NAME, "{ \"a\" : 2 }");
+        factory.loadConfig(policy, PassthroughPolicy.QUALIFIED_NAME, "{ \"a\" : 3 }");
+        Assert.assertEquals(2, factory.getConfigCacheSize());
+        Assert.assertEquals(1, factory.getConfigCacheEvictions());
+
+        // Snapshot policies are never cached
+        factory.loadConfig(policy, "plugin:g:a:1.0-SNAPSHOT:war/c", "{}");
+        factory.loadConfig(policy, "plugin:g:a:1.0-SNAPSHOT:war/c", "{}");
+        Assert.assertEquals(5, factory.getConfigCacheMisses());
+    }
+
     /**
      * @return the number of policies in the factory
      */
@@ -0,0 +1,136 @@
+/*
+ * Copyright 2015 JBoss Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.apiman.gateway.engine.impl;
+
+import io.apiman.gateway.engine.IRegistry;
+import io.apiman.gateway.engine.async.IAsyncResult;
+import io.apiman.gateway.engine.async.IAsyncResultHandler;
+import io.apiman.gateway.engine.beans.Application;
+import io.apiman.gateway.engine.beans.Contract;
+import io.apiman.gateway.engine.beans.Service;
+import io.apiman.gateway.engine.beans.ServiceContract;
+import io.apiman.gateway.engine.beans.ServiceRequest;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+
+/**
+ * Services, applications and synchronous registry operations shared by the
+ * registry tests.  Everything is in organization "org" and the applications
+ * have contracts with service "svc".
+ *
+ * @author eric.wittmann@redhat.com
+ */
+@SuppressWarnings({ "nls", "javadoc" })
+public final class RegistryFixture {
+
+    private static final long TIMEOUT = 10;
+
+    private RegistryFixture() {
+    }
+
+    public static Service service(String serviceId, String version) {
+        Service service = new Service();
+        service.setOrganizationId("org");
+        service.setServiceId(serviceId);
+        service.setVersion(version);
+        return service;
+    }
+
+    public static Application application(String appId, String apiKey, String serviceVersion) {
+        Contract contract = new Contract();
+        contract.setApiKey(apiKey);
+        contract.setServiceOrgId("org");
+        contract.setServiceId("svc");
+        contract.setServiceVersion(serviceVersion);
+        Set<Contract> contracts = new HashSet<>();
+        contracts.add(contract);
+        Application application = new Application();
+        application.setOrganizationId("org");
+        application.setApplicationId(appId);
+        application.setVersion("1.0");
+        application.setContracts(contracts);
+        return application;
+    }
+
+    public static IAsyncResult<Void> publish(IRegistry registry, Service service) {
+        ResultHolder<Void> holder = new ResultHolder<>();
+        registry.publishService(service, holder);
+        return holder.get();
+    }
+
+    public static IAsyncResult<Void> retire(IRegistry registry, Service service) {
+        ResultHolder<Void> holder = new ResultHolder<>();
+        registry.retireService(service, holder);
+        return holder.get();
+    }
+
+    public static IAsyncResult<Void> register(IRegistry registry, Application application) {
+        ResultHolder<Void> holder = new ResultHolder<>();
+        registry.registerApplication(application, holder);
+        return holder.get();
+    }
+
+    public static IAsyncResult<Void> unregister(IRegistry registry, Application application) {
+        ResultHolder<Void> holder = new ResultHolder<>();
+        registry.unregisterApplication(application, holder);
+        return holder.get();
+    }
+
+    public static Service getService(IRegistry registry, String serviceId, String version) {
+        ResultHolder<Service> holder = new ResultHolder<>();
+        registry.getService("org", serviceId, version, holder);
+        return holder.get().getResult();
+    }
+
+    public static IAsyncResult<ServiceContract> getContract(IRegistry registry, String apiKey) {
+        ServiceRequest request = new ServiceRequest();
+        request.setApiKey(apiKey);
+        ResultHolder<ServiceContract> holder = new ResultHolder<>();
+        registry.getContract(request, holder);
+        return holder.get();
+    }
+
+    /**
+     * Operations may complete on another thread, so wait (a while) for the result.
+     */
+    private static class ResultHolder<T> implements IAsyncResultHandler<T> {
+        private final CountDownLatch latch = new CountDownLatch(1);
+        private volatile IAsyncResult<T> result;
+
+        @Override
+        public void handle(IAsyncResult<T> result) {
+            this.result = result;
+            latch.countDown();
+        }
+
+        public IAsyncResult<T> get() {
+            try {
+                if (!latch.await(TIMEOUT, TimeUnit.SECONDS)) {
+                    Assert.fail("The registry didn't respond within " + TIMEOUT + " seconds.");
+                }
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+            return result;
+        }
+    }
+
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright 2015 JBoss Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.apiman.gateway.engine.impl;
+
+import io.apiman.common.util.AesEncrypter;
+import io.apiman.gateway.engine.IRegistry;
+import io.apiman.gateway.engine.async.IAsyncResult;
+import io.apiman.gateway.engine.async.IAsyncResultHandler;
+import io.apiman.gateway.engine.beans.Policy;
+import io.apiman.gateway.engine.beans.Service;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Unit test for {@link SecureRegistryWrapper}.
+ */
+@SuppressWarnings({ "nls", "javadoc" })
+public class SecureRegistryWrapperTest {
+
+    @Test
+    public void testDecryptOnce() throws Exception {
+        InMemoryRegistry delegate = new InMemoryRegistry();
+        SecureRegistryWrapper registry = new SecureRegistryWrapper(delegate);
+        registry.publishService(service("{\"a\":1}"), new NoOpHandler());
+
+        Service service1 = getService(registry);
+        Service service2 = getService(registry);
+        Assert.assertEquals("{\"a\":1}", service1.getServicePolicies().get(0).getPolicyJsonConfig());
+        // Decrypted once and shared from then on
+        Assert.assertSame(service1.getServicePolicies(), service2.getServicePolicies());
+
+        // The registry's own bean is left encrypted
+        Service stored = getService(delegate);
+        Assert.assertNotSame(stored, service1);
+        Assert.assertTrue(stored.getServicePolicies().get(0).getPolicyJsonConfig().startsWith("$CRYPT::"));
+    }
+
+    @Test
+    public void testRepublish() throws Exception {
+        InMemoryRegistry delegate = new InMemoryRegistry();
+        SecureRegistryWrapper registry = new SecureRegistryWrapper(delegate);
+        registry.publishService(service("{\"a\":1}"), new NoOpHandler());
+        Assert.assertEquals("{\"a\":1}", getService(registry).getServicePolicies().get(0).getPolicyJsonConfig());
+
+        registry.retireService(service("{\"a\":1}"), new NoOpHandler());
+        registry.publishService(service("{\"a\":2}"), new NoOpHandler());
+        Assert.assertEquals("{\"a\":2}", getService(registry).getServicePolicies().get(0).getPolicyJsonConfig());
+
+        // Changed behind the wrapper's back (e.g. by another node)
+        Policy policy = getService(delegate).getServicePolicies().get(0);
+        policy.setPolicyJsonConfig(AesEncrypter.encrypt("{\"a\":3}"));
+        Assert.assertEquals("{\"a\":3}", getService(registry).getServicePolicies().get(0).getPolicyJsonConfig());
+    }
+
+    private static Service service(String config) {
+        Policy policy = new Policy();
+        policy.setPolicyImpl("class:io.apiman.gateway.engine.policy.Foo");
+        policy.setPolicyJsonConfig(config);
+        List<Policy> policies = new ArrayList<>();
+        policies.add(policy);
+        Service service = new Service();
+        service.setOrganizationId("org");
+        service.setServiceId("svc");
+        service.setVersion("1.0");
+        service.setServicePolicies(policies);
+        return service;
+    }
+
+    private static Service getService(IRegistry registry) {
+        final Service[] rval = new Service[1];
+        registry.getService("org", "svc", "1.0", new IAsyncResultHandler<Service>() {
+            @Override
+            public void handle(IAsyncResult<Service> result) {
+                rval[0] = result.getResult();
+            }
+        });
+        return rval[0];
+    }
+
+    private static class NoOpHandler implements IAsyncResultHandler<Void> {
+        @Override
+        public void handle(IAsyncResult<Void> result) {
+            Assert.assertTrue(result.isSuccess());
+        }
+    }
+
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright 2015 JBoss Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.apiman.gateway.engine.impl;
+
+import static io.apiman.gateway.engine.impl.RegistryFixture.application;
+import static io.apiman.gateway.engine.impl.RegistryFixture.getContract;
+import static io.apiman.gateway.engine.impl.RegistryFixture.getService;
+import static io.apiman.gateway.engine.impl.RegistryFixture.publish;
+import static io.apiman.gateway.engine.impl.RegistryFixture.register;
+import static io.apiman.gateway.engine.impl.RegistryFixture.retire;
+import static io.apiman.gateway.engine.impl.RegistryFixture.service;
+import static io.apiman.gateway.engine.impl.RegistryFixture.unregister;
+
+import io.apiman.gateway.engine.async.IAsyncResult;
+import io.apiman.gateway.engine.beans.ServiceContract;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Unit test for {@link SnapshotRegistry}.
+ */
+@SuppressWarnings({ "nls", "javadoc" })
+public class SnapshotRegistryTest {
+
+    @Test
+    public void testPublishAndRegister() throws Exception {
+        SnapshotRegistry registry = new SnapshotRegistry();
+        Assert.assertTrue(publish(registry, service("svc", "1.0")).isSuccess());
+        Assert.assertFalse(publish(registry, service("svc", "1.0")).isSuccess());
+        Assert.assertEquals("1.0", getService(registry, "svc", "1.0").getVersion());
+        Assert.assertNull(getService(registry, "svc", "2.0"));
+
+        // Service 2.0 isn't published - nothing is registered
+        Assert.assertFalse(register(registry, application("app-1", "key-1", "2.0")).isSuccess());
+        Assert.assertTrue(register(registry, application("app-1", "key-1", "1.0")).isSuccess());
+        Assert.assertFalse(register(registry, application("app-2", "key-1", "1.0")).isSuccess());
+        Assert.assertTrue(getContract(registry, "key-1").isSuccess());
+        Assert.assertFalse(getContract(registry, "key-2").isSuccess());
+
+        // Failed operations don't swap in a new snapshot
+        Assert.assertEquals(2, registry.getSwapCount());
+    }
+
+    @Test
+    public void testRetireAndUnregister() throws Exception {
+        SnapshotRegistry registry = new SnapshotRegistry();
+        publish(registry, service("svc", "1.0"));
+        register(registry, application("app-1", "key-1", "1.0"));
+
+        Assert.assertTrue(retire(registry, service("svc", "1.0")).isSuccess());
+        Assert.assertFalse(retire(registry, service("svc", "1.0")).isSuccess());
+        Assert.assertNull(getService(registry, "svc", "1.0"));
+        IAsyncResult<ServiceContract> result = getContract(registry, "key-1");
+        Assert.assertFalse(result.isSuccess());
+        Assert.assertTrue(result.getError().getMessage().contains("retired"));
+
+        publish(registry, service("svc", "1.0"));
+        Assert.assertTrue(getContract(registry, "key-1").isSuccess());
+
+        Assert.assertTrue(unregister(registry, application("app-1", "key-1", "1.0")).isSuccess());
+        Assert.assertFalse(unregister(registry, application("app-1", "key-1", "1.0")).isSuccess());
+        Assert.assertFalse(getContract(registry, "key-1").isSuccess());
+    }
+
+    @Test
+    public void testConcurrentPublish() throws Exception {
+        final SnapshotRegistry registry = new SnapshotRegistry();
+        final int threads = 8;
+        final int perThread = 250;
+        final AtomicInteger failures = new AtomicInteger();
+        final CountDownLatch start = new CountDownLatch(1);
+        List<Thread> workers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            final int id = t;
+            Thread worker = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int i = 0; i < perThread; i++) {
+                        if (!publish(registry, service("svc-" + id, String.valueOf(i))).isSuccess()) {
+                            failures.incrementAndGet();
+                        }
+                    }
+                }
+            };
+            workers.add(worker);
+            worker.start();
+        }
+        start.countDown();
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        Assert.assertEquals(0, failures.get());
+        for (int t = 0; t < threads; t++) {
+            for (int i = 0; i < perThread; i++) {
+                Assert.assertNotNull(getService(registry, "svc-" + t, String.valueOf(i)));
+            }
+        }
+        Assert.assertTrue(registry.getSwapCount() <= threads * perThread);
+    }
+
+}
@@ -0,0 +1,213 @@
+/*
+ * Copyright 2015 JBoss Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.apiman.gateway.engine.metrics;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Unit test for {@link MetricsPipeline}.
+ */
+@SuppressWarnings({ "nls", "javadoc" })
+public class MetricsPipelineTest {
+
+    @Test
+    public void testBatchSize() throws Exception {
+        TestSink sink = new TestSink();
+        MetricsPipeline pipeline = new MetricsPipeline(config("3", "60000", null), sink);
+        for (int i = 0; i < 7; i++) {
+            pipeline.record(metric(i));
+        }
+        Assert.assertEquals("[0, 1, 2]", sink.next());
+        Assert.assertEquals("[3, 4, 5]", sink.next());
+        // The last one is only written when stopping
+        pipeline.stop();
+        Assert.assertEquals("[6]", sink.next());
+    }
+
+    @Test
+    public void testBatchMaxAge() throws Exception {
+        TestSink sink = new TestSink();
+        MetricsPipeline pipeline = new MetricsPipeline(config("100", "50", null), sink);
+        pipeline.record(metric(0));
+        pipeline.record(metric(1));
+        Assert.assertEquals("[0, 1]", sink.next());
+        pipeline.record(metric(2));
+        Assert.assertEquals("[2]", sink.next());
+        pipeline.stop();
+    }
+
+    @Test
+    public void testDrop() throws Exception {
+        TestSink sink = new TestSink();
+        sink.blocked = new CountDownLatch(1);
+        MetricsPipeline pipeline = new MetricsPipeline(config("1", "0", "drop"), sink);
+        fill(pipeline);
+        pipeline.record(metric(3));
+        Assert.assertEquals(1, pipeline.getDroppedCount());
+
+        sink.blocked.countDown();
+        Assert.assertEquals("[0]", sink.next());
+        Assert.assertEquals("[1]", sink.next());
+        Assert.assertEquals("[2]", sink.next());
+        pipeline.stop();
+    }
+
+    @Test
+    public void testDropOldest() throws Exception {
+        TestSink sink = new TestSink();
+        sink.blocked = new CountDownLatch(1);
+        MetricsPipeline pipeline = new MetricsPipeline(config("1", "0", "drop-oldest"), sink);
+        fill(pipeline);
+        pipeline.record(metric(3));
+        Assert.assertEquals(1, pipeline.getDroppedCount());
+
+        sink.blocked.countDown();
+        Assert.assertEquals("[0]", sink.next());
+        Assert.assertEquals("[2]", sink.next());
+        Assert.assertEquals("[3]", sink.next());
+        pipeline.stop();
+    }
+
+    @Test
+    public void testBlock() throws Exception {
+        TestSink sink = new TestSink();
+        sink.blocked = new CountDownLatch(1);
+        final MetricsPipeline pipeline = new MetricsPipeline(config("1", "0", "block"), sink);
+        fill(pipeline);
+        Thread producer = new Thread() {
+            @Override
+            public void run() {
+                pipeline.record(metric(3));
+            }
+        };
+        producer.start();
+        producer.join(100);
+        // Still waiting for room
+        Assert.assertTrue(producer.isAlive());
+
+        sink.blocked.countDown();
+        producer.join();
+        Assert.assertEquals("[0]", sink.next());
+        Assert.assertEquals("[1]", sink.next());
+        Assert.assertEquals("[2]", sink.next());
+        Assert.assertEquals("[3]", sink.next());
+        Assert.assertEquals(0, pipeline.getDroppedCount());
+        pipeline.stop();
+    }
+
+    @Test
+    public void testStopTimeout() throws Exception {
+        TestSink sink = new TestSink();
+        sink.blocked = new CountDownLatch(1);
+        MetricsPipeline pipeline = new MetricsPipeline(config("1", "0", "drop"), sink);
+        fill(pipeline);
+        // The sink is stuck, so the queued metrics can't be written in time
+        Assert.assertFalse(pipeline.stop(50));
+        pipeline.record(metric(3));
+        Assert.assertEquals(1, pipeline.getDroppedCount());
+
+        sink.blocked.countDown();
+        Assert.assertTrue(pipeline.stop(5000));
+        Assert.assertEquals("[0]", sink.next());
+        Assert.assertEquals("[1]", sink.next());
+        Assert.assertEquals("[2]", sink.next());
+    }
+
+    @Test
+    public void testFailedBatch() throws Exception {
+        TestSink sink = new TestSink();
+        sink.failing = true;
+        MetricsPipeline pipeline = new MetricsPipeline(config("2", "60000", null), sink);
+        pipeline.record(metric(0));
+        pipeline.record(metric(1));
+        pipeline.record(metric(2));
+        // A failed batch is counted, and the flusher carries on
+        Assert.assertTrue(pipeline.stop(5000));
+        Assert.assertEquals(3, pipeline.getFailedCount());
+    }
+
+    /**
+     * Gets the flusher stuck writing metric 0, then fills the queue (of 2) with
+     * metrics 1 and 2.
+     */
+    private static void fill(MetricsPipeline pipeline) throws InterruptedException {
+        pipeline.record(metric(0));
+        while (pipeline.getQueuedCount() > 0) {
+            Thread.sleep(1);
+        }
+        pipeline.record(metric(1));
+        pipeline.record(metric(2));
+    }
+
+    private static Map<String, String> config(String batchSize, String batchMaxAge, String overflowPolicy) {
+        Map<String, String> config = new HashMap<>();
+        config.put("queueSize", "2");
+        config.put("batchSize", batchSize);
+        config.put("batchMaxAge", batchMaxAge);
+        if (overflowPolicy != null) {
+            config.put("overflowPolicy", overflowPolicy);
+        } else {
+            config.put("queueSize", "100");
+        }
+        return config;
+    }
+
+    private static RequestMetric metric(int idx) {
+        RequestMetric metric = new RequestMetric();
+        metric.setResponseCode(idx);
+        return metric;
+    }
+
+    private static class TestSink implements IMetricsBatchSink {
+
+        private LinkedBlockingQueue<String> batches = new LinkedBlockingQueue<>();
+        private CountDownLatch blocked;
+        private boolean failing;
+
+        @Override
+        public void write(List<RequestMetric> batch) {
+            if (blocked != null) {
+                try {
+                    blocked.await();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+            if (failing) {
+                throw new RuntimeException("Failed to write the batch");
+            }
+            List<Integer> codes = new ArrayList<>();
+            for (RequestMetric metric : batch) {
+                codes.add(metric.getResponseCode());
+            }
+            batches.add(codes.toString());
+        }
+
+        public String next() throws InterruptedException {
+            return batches.poll(5, TimeUnit.SECONDS);
+        }
+    }
+
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright 2015 JBoss Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.apiman.gateway.engine.policy;
+
+import io.apiman.gateway.engine.beans.Application;
+import io.apiman.gateway.engine.beans.Contract;
+import io.apiman.gateway.engine.beans.Policy;
+import io.apiman.gateway.engine.beans.Service;
+import io.apiman.gateway.engine.util.PassthroughPolicy;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Unit test for {@link PolicyChainPlanCache}.
+ */
+@SuppressWarnings({ "nls", "javadoc" })
+public class PolicyChainPlanCacheTest {
+
+    @Test
+    public void testServicePlan() {
+        PolicyChainPlanCache cache = new PolicyChainPlanCache();
+        Service service = service();
+        List<Policy> policies = policies("{}");
+
+        Assert.assertNull(cache.getServicePlan(service, policies));
+        PolicyChainPlan plan = plan(policies);
+        cache.putServicePlan(service, plan);
+        Assert.assertSame(plan, cache.getServicePlan(service, policies));
+        // Same content, different instances (e.g. fresh from a remote registry)
+        Assert.assertSame(plan, cache.getServicePlan(service(), policies("{}")));
+        // Changed configuration must not use the stale plan
+        Assert.assertNull(cache.getServicePlan(service, policies("{ \"changed\" : true }")));
+
+        cache.invalidate(service);
+        Assert.assertNull(cache.getServicePlan(service, policies));
+    }
+
+    @Test
+    public void testContractPlan() {
+        PolicyChainPlanCache cache = new PolicyChainPlanCache();
+        List<Policy> policies = policies("{}");
+        PolicyChainPlan plan = plan(policies);
+        cache.putContractPlan("12345", plan);
+        Assert.assertSame(plan, cache.getContractPlan("12345", policies));
+        Assert.assertNull(cache.getContractPlan("54321", policies));
+
+        Contract contract = new Contract();
+        contract.setApiKey("12345");
+        Application app = new Application();
+        app.setContracts(new HashSet<Contract>());
+        app.getContracts().add(contract);
+        cache.invalidate(app);
+        Assert.assertNull(cache.getContractPlan("12345", policies));
+
+        cache.putContractPlan("12345", plan);
+        cache.invalidate(service());
+        Assert.assertNull(cache.getContractPlan("12345", policies));
+    }
+
+    @Test
+    public void testPlanIsReadOnly() {
+        PolicyChainPlan plan = plan(policies("{}"));
+        try {
+            plan.getPolicies().clear();
+            Assert.fail("Expected an UnsupportedOperationException");
+        } catch (UnsupportedOperationException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testIsCacheable() {
+        Assert.assertTrue(PolicyChainPlanCache.isCacheable(policies("{}")));
+        Policy snapshot = new Policy();
+        snapshot.setPolicyImpl("plugin:io.apiman.plugins:apiman-plugins-test-policy:1.0-SNAPSHOT:war/io.apiman.plugins.TestPolicy");
+        Assert.assertFalse(PolicyChainPlanCache.isCacheable(Collections.singletonList(snapshot)));
+    }
+
+    private static Service service() {
+        Service service = new Service();
+        service.setOrganizationId("Org1");
+        service.setServiceId("Service1");
+        service.setVersion("1.0");
+        return service;
+    }
+
+    private static List<Policy> policies(String config) {
+        Policy policy = new Policy();
+        policy.setPolicyImpl(PassthroughPolicy.QUALIFIED_NAME);
+        policy.setPolicyJsonConfig(config);
+        List<Policy> policies = new ArrayList<>();
+        policies.add(policy);
+        return policies;
+    }
+
+    private static PolicyChainPlan plan(List<Policy> policies) {
+        List<PolicyWithConfiguration> resolved = new ArrayList<>();
+        resolved.add(new PolicyWithConfiguration(new PassthroughPolicy("p"), null));
+        return new PolicyChainPlan(policies, resolved);
+    }
+
+}
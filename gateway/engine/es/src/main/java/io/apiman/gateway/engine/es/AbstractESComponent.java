@@ -27,7 +27,7 @@ import java.util.Map;
 public abstract class AbstractESComponent {
 
     private final Map<String, String> config;
-    private JestClient esClient;
+    private volatile JestClient esClient;
 
     /**
      * Constructor.
@@ -40,11 +40,19 @@ public abstract class AbstractESComponent {
     /**
      * @return the esClient
      */
-    public synchronized JestClient getClient() {
-        if (esClient == null) {
-            esClient = ESClientFactory.createClient(config, getIndexName());
+    public JestClient getClient() {
+        // Called for every request - only lock until the client exists
+        JestClient client = esClient;
+        if (client == null) {
+            synchronized (this) {
+                client = esClient;
+                if (client == null) {
+                    client = ESClientFactory.createClient(config, getIndexName());
+                    esClient = client;
+                }
+            }
         }
-        return esClient;
+        return client;
     }
 
     /**
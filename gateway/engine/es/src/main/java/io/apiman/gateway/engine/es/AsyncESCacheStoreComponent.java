@@ -16,6 +16,7 @@
 package io.apiman.gateway.engine.es;
 
 import io.apiman.gateway.engine.DependsOnComponents;
+import io.apiman.gateway.engine.SharedComponent;
 import io.apiman.gateway.engine.async.AsyncResultImpl;
 import io.apiman.gateway.engine.async.IAsyncHandler;
 import io.apiman.gateway.engine.async.IAsyncResultHandler;
@@ -41,6 +42,7 @@ import org.codehaus.jackson.map.ObjectMapper;
  *
  * @author eric.wittmann@redhat.com
  */
+@SharedComponent
 @DependsOnComponents({ IBufferFactoryComponent.class })
 public class AsyncESCacheStoreComponent extends AbstractESComponent implements ICacheStoreComponent {
 
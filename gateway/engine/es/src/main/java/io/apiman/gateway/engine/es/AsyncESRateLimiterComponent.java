@@ -15,30 +15,62 @@
  */
 package io.apiman.gateway.engine.es;
 
+import io.apiman.gateway.engine.SharedComponent;
 import io.apiman.gateway.engine.async.AsyncResultImpl;
+import io.apiman.gateway.engine.async.IAsyncResult;
 import io.apiman.gateway.engine.async.IAsyncResultHandler;
-import io.apiman.gateway.engine.components.IRateLimiterComponent;
+import io.apiman.gateway.engine.components.IAlgorithmRateLimiterComponent;
 import io.apiman.gateway.engine.components.rate.RateLimitResponse;
+import io.apiman.gateway.engine.es.RateLimiterLeases.Release;
+import io.apiman.gateway.engine.es.RateLimiterLeases.Reservation;
+import io.apiman.gateway.engine.impl.Sweeper;
+import io.apiman.gateway.engine.rates.RateBucketAlgorithm;
 import io.apiman.gateway.engine.rates.RateBucketPeriod;
 import io.apiman.gateway.engine.rates.RateLimiterBucket;
 import io.searchbox.client.JestResult;
 import io.searchbox.client.JestResultHandler;
 import io.searchbox.core.Get;
 import io.searchbox.core.Index;
-import io.searchbox.params.Parameters;
 
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 import org.elasticsearch.action.get.GetResponse;
 import org.elasticsearch.common.Base64;
-import org.elasticsearch.index.engine.VersionConflictEngineException;
 
 /**
- * An elasticsearch implementation of the rate limiter component.
+ * An elasticsearch implementation of the rate limiter component.  By default
+ * every request reads and updates the rate bucket in elasticsearch.  When a
+ * 'leaseSize' is configured, blocks of permits are instead leased from the
+ * bucket and served locally (see {@link RateLimiterLeases}), and leases that
+ * are running low are renewed in the background.  Requests that find no usable
+ * lease while another request is reserving one are continued once it completes
+ * (on the thread that completes it) instead of reserving their own.  Unused
+ * permits of expired leases are given back in the background, and those of all
+ * leases (best effort) when the JVM shuts down.
  *
  * @author eric.wittmann@redhat.com
  */
-public class AsyncESRateLimiterComponent extends AbstractESComponent implements IRateLimiterComponent {
+@SharedComponent
+public class AsyncESRateLimiterComponent extends AbstractESComponent implements IAlgorithmRateLimiterComponent {
+
+    private static final long SHUTDOWN_RELEASE_TIMEOUT = 5000L;
+    private static final Sweeper.ISweep<AsyncESRateLimiterComponent> RELEASE = new Sweeper.ISweep<AsyncESRateLimiterComponent>() {
+        @Override
+        public void sweep(AsyncESRateLimiterComponent target, long now) {
+            target.releaseLeases(false);
+        }
+    };
+    private static final Sweeper.ISweep<AsyncESRateLimiterComponent> RELEASE_ALL = new Sweeper.ISweep<AsyncESRateLimiterComponent>() {
+        @Override
+        public void sweep(AsyncESRateLimiterComponent target, long now) {
+            target.releaseLeases(true);
+        }
+    };
+
+    private final RateLimiterLeases leases;
 
     /**
      * Constructor.
@@ -46,6 +78,11 @@ public class AsyncESRateLimiterComponent extends AbstractESComponent implements
      */
     public AsyncESRateLimiterComponent(Map<String, String> config) {
         super(config);
+        leases = new RateLimiterLeases(config);
+        if (leases.isEnabled()) {
+            Sweeper.schedule(this, RELEASE, leases.getLeaseTtl());
+            Sweeper.scheduleAtShutdown(this, RELEASE_ALL);
+        }
     }
 
     /**
@@ -54,8 +91,124 @@ public class AsyncESRateLimiterComponent extends AbstractESComponent implements
     @Override
     public void accept(final String bucketId, final RateBucketPeriod period, final long limit,
             final long increment, final IAsyncResultHandler<RateLimitResponse> handler) {
-        final String id = id(bucketId);
+        accept(bucketId, period, RateBucketAlgorithm.FixedWindow, limit, increment, handler);
+    }
+
+    /**
+     * @see io.apiman.gateway.engine.components.IAlgorithmRateLimiterComponent#accept(java.lang.String, io.apiman.gateway.engine.rates.RateBucketPeriod, io.apiman.gateway.engine.rates.RateBucketAlgorithm, long, long, io.apiman.gateway.engine.async.IAsyncResultHandler)
+     */
+    @Override
+    public void accept(final String bucketId, final RateBucketPeriod period, final RateBucketAlgorithm algorithm,
+            final long limit, final long increment, final IAsyncResultHandler<RateLimitResponse> handler) {
+        if (leases.isLeasable(algorithm, increment)) {
+            RateLimitResponse rlr = leases.tryAccept(bucketId, period, limit, increment);
+            if (rlr != null) {
+                handler.handle(AsyncResultImpl.create(rlr));
+                if (leases.shouldRenew(bucketId)) {
+                    reserve(bucketId, period, limit, 0, new IAsyncResultHandler<RateLimitResponse>() {
+                        @Override
+                        public void handle(IAsyncResult<RateLimitResponse> result) {
+                            // Nothing to do - the renewed lease is used by subsequent requests.
+                        }
+                    });
+                }
+                return;
+            }
+            final Reservation pending = leases.getPending(bucketId, period, limit);
+            if (pending != null && pending.onComplete(new Runnable() {
+                @Override
+                public void run() {
+                    RateLimitResponse rejection = pending.getRejection();
+                    if (rejection != null) {
+                        handler.handle(AsyncResultImpl.create(rejection));
+                    } else {
+                        accept(bucketId, period, algorithm, limit, increment, handler);
+                    }
+                }
+            })) {
+                return;
+            }
+            if (!reserve(bucketId, period, limit, increment, handler)) {
+                // Another request got there first - join its reservation
+                accept(bucketId, period, algorithm, limit, increment, handler);
+            }
+            return;
+        }
+
+        update(id(bucketId), new IRateBucketUpdate() {
+            @Override
+            public RateLimitResponse apply(RateLimiterBucket bucket) {
+                return bucket.accept(algorithm, period, limit, increment);
+            }
+        }, handler);
+    }
+
+    /**
+     * Reserves a new lease from the rate bucket in ES, unless another reservation
+     * for the bucket is already pending.
+     * @param bucketId
+     * @param period
+     * @param limit
+     * @param increment
+     * @param handler
+     * @return false if another reservation is pending (the handler isn't called)
+     */
+    protected boolean reserve(String bucketId, RateBucketPeriod period, long limit, long increment,
+            final IAsyncResultHandler<RateLimitResponse> handler) {
+        final Reservation reservation = leases.reserve(bucketId, period, limit, increment);
+        if (reservation == null) {
+            return false;
+        }
+        update(id(bucketId), reservation, new IAsyncResultHandler<RateLimitResponse>() {
+            @Override
+            public void handle(IAsyncResult<RateLimitResponse> result) {
+                if (result.isSuccess()) {
+                    reservation.complete();
+                } else {
+                    reservation.failed();
+                }
+                handler.handle(result);
+            }
+        });
+        return true;
+    }
 
+    /**
+     * Gives the unused permits of the expired leases (or of all leases) back to
+     * the rate buckets in ES.  When releasing all leases (at shutdown), waits a
+     * little while for the updates to complete.
+     * @param all
+     */
+    protected void releaseLeases(boolean all) {
+        List<Release> releases = leases.release(System.currentTimeMillis(), all);
+        final CountDownLatch latch = new CountDownLatch(releases.size());
+        for (Release release : releases) {
+            update(id(release.getBucketId()), release, new IAsyncResultHandler<RateLimitResponse>() {
+                @Override
+                public void handle(IAsyncResult<RateLimitResponse> result) {
+                    // Permits that can't be given back are lost until the end of their period.
+                    latch.countDown();
+                }
+            });
+        }
+        if (all) {
+            try {
+                latch.await(SHUTDOWN_RELEASE_TIMEOUT, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Loads the bucket with the given id from ES, applies the update to it and
+     * then stores it again.
+     * @param id
+     * @param update
+     * @param handler
+     */
+    protected void update(final String id, final IRateBucketUpdate update,
+            final IAsyncResultHandler<RateLimitResponse> handler) {
         Get get = new Get.Builder(getIndexName(), id).type("rateBucket").build(); //$NON-NLS-1$
         getClient().executeAsync(get, new JestResultHandler<JestResult>() {
             @Override
@@ -71,20 +224,8 @@ public class AsyncESRateLimiterComponent extends AbstractESComponent implements
                     version = 0;
                     bucket = new RateLimiterBucket();
                 }
-                bucket.resetIfNecessary(period);
-
-                final RateLimitResponse rlr = new RateLimitResponse();
-                if (bucket.getCount() > limit) {
-                    rlr.setAccepted(false);
-                } else {
-                    rlr.setAccepted(bucket.getCount() < limit);
-                    bucket.setCount(bucket.getCount() + increment);
-                    bucket.setLast(System.currentTimeMillis());
-                }
-                int reset = (int) (bucket.getResetMillis(period) / 1000L);
-                rlr.setReset(reset);
-                rlr.setRemaining(limit - bucket.getCount());
-                updateBucketAndReturn(id, bucket, rlr, version, bucketId, period, limit, increment, handler);
+                final RateLimitResponse rlr = update.apply(bucket);
+                updateBucketAndReturn(id, bucket, rlr, version, update, handler);
             }
             @Override
             public void failed(Exception e) {
@@ -114,39 +255,33 @@ public class AsyncESRateLimiterComponent extends AbstractESComponent implements
      * @param bucket
      * @param rlr
      * @param version
-     * @param limit
-     * @param period
-     * @param bucketId
-     * @param increment
+     * @param update
      * @param handler
      */
     protected void updateBucketAndReturn(final String id, final RateLimiterBucket bucket,
-            final RateLimitResponse rlr, final long version, final String bucketId,
-            final RateBucketPeriod period, final long limit, final long increment,
+            final RateLimitResponse rlr, final long version, final IRateBucketUpdate update,
             final IAsyncResultHandler<RateLimitResponse> handler) {
 
-        Index index = new Index.Builder(bucket).refresh(false).index(getIndexName())
-                .setParameter(Parameters.OP_TYPE, "index") //$NON-NLS-1$
-                .setParameter(Parameters.VERSION, String.valueOf(version))
-                .type("rateBucket").id(id).build(); //$NON-NLS-1$
+        Index index = ESUtils.bucketIndex(getIndexName(), id, bucket, version);
         getClient().executeAsync(index, new JestResultHandler<JestResult>() {
             @Override
             public void completed(JestResult result) {
-                handler.handle(AsyncResultImpl.create(rlr));
-            }
-            @Override
-            public void failed(Exception e) {
-                // TODO need to fix this now that we've switched to jest!
-                if (ESUtils.rootCause(e) instanceof VersionConflictEngineException) {
+                if (result.isSucceeded()) {
+                    handler.handle(AsyncResultImpl.create(rlr));
+                } else if (ESUtils.isConflict(result)) {
                     // If we got a version conflict, then it means some other request
                     // managed to update the ES document since we retrieved it.  Therefore
                     // everything we've done is out of date, so we should do it all
                     // over again.
-                    accept(bucketId, period, limit, increment, handler);
+                    update(id, update, handler);
                 } else {
-                    handler.handle(AsyncResultImpl.<RateLimitResponse>create(e));
+                    handler.handle(AsyncResultImpl.<RateLimitResponse>create(new Exception(result.getErrorMessage())));
                 }
             }
+            @Override
+            public void failed(Exception e) {
+                handler.handle(AsyncResultImpl.<RateLimitResponse>create(e));
+            }
         });
     }
 
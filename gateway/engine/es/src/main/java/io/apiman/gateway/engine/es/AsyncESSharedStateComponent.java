@@ -15,6 +15,7 @@
  */
 package io.apiman.gateway.engine.es;
 
+import io.apiman.gateway.engine.SharedComponent;
 import io.apiman.gateway.engine.async.AsyncResultImpl;
 import io.apiman.gateway.engine.async.IAsyncResultHandler;
 import io.apiman.gateway.engine.components.ISharedStateComponent;
@@ -38,6 +39,7 @@ import org.elasticsearch.common.Base64;
  *
  * @author eric.wittmann@redhat.com
  */
+@SharedComponent
 public class AsyncESSharedStateComponent extends AbstractESComponent implements ISharedStateComponent {
 
     private static final ObjectMapper mapper = new ObjectMapper();
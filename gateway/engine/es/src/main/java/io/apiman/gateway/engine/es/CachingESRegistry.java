@@ -15,6 +15,7 @@
  */
 package io.apiman.gateway.engine.es;
 
+import io.apiman.gateway.engine.IRequiresInitialization;
 import io.apiman.gateway.engine.async.AsyncResultImpl;
 import io.apiman.gateway.engine.async.IAsyncResult;
 import io.apiman.gateway.engine.async.IAsyncResultHandler;
@@ -25,35 +26,185 @@ import io.apiman.gateway.engine.beans.ServiceContract;
 import io.apiman.gateway.engine.beans.ServiceRequest;
 import io.apiman.gateway.engine.beans.exceptions.InvalidContractException;
 import io.apiman.gateway.engine.es.i18n.Messages;
+import io.apiman.gateway.engine.impl.NegativeResultCache;
+import io.apiman.gateway.engine.impl.RegistryKeys;
+import io.searchbox.action.Action;
 import io.searchbox.client.JestResult;
 import io.searchbox.client.JestResultHandler;
 import io.searchbox.core.Get;
+import io.searchbox.core.Search;
+import io.searchbox.core.SearchScroll;
+import io.searchbox.indices.Refresh;
+import io.searchbox.params.Parameters;
+import io.searchbox.params.SearchType;
 
 import java.io.IOException;
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
 /**
  * Extends the {@link ESRegistry} to provide single-node caching.  This caching solution
  * will not work in a cluster.  If looking for cluster support, either go with the core
  * ESRegistry or find/implement a caching registry that works in a cluster (e.g. leverage
  * jgroups?).
  *
+ * Lookups never block: the cache is read without locking, and a cache miss loads the
+ * missing data from ES asynchronously.  Concurrent misses for the same service or
+ * contract share a single load.
+ *
+ * Lookups that find nothing (unknown API keys, services that don't exist) are
+ * remembered for 'cache-negative-ttl' seconds (up to 'cache-negative-max-size' of
+ * each), so that repeating them doesn't go to ES every time.  Any eviction also
+ * drops the affected negative results.
+ *
+ * If the 'cache-preload' option is enabled, every published service and registered
+ * application is bulk loaded (scrolled) into the cache when the engine initializes
+ * the registry, so that the gateway doesn't start with a cold cache.  Progress is
+ * logged (at debug level) as the batches come in, and the totals and duration when
+ * the preload is done.
+ *
  * @author eric.wittmann@redhat.com
  */
-public abstract class CachingESRegistry extends ESRegistry {
+public abstract class CachingESRegistry extends ESRegistry implements IRequiresInitialization {
+
+    private static Logger logger = LoggerFactory.getLogger(CachingESRegistry.class);
+
+    private static final int DEFAULT_PRELOAD_BATCH_SIZE = 500;
 
     private Map<String, ServiceContract> contractCache = new ConcurrentHashMap<>();
-    private Map<String, Service> serviceCache = new HashMap<>();
-    private Map<String, Application> applicationCache = new HashMap<>();
+    private Map<String, Service> serviceCache = new ConcurrentHashMap<>();
+    private Map<String, Application> applicationCache = new ConcurrentHashMap<>();
+    // Guards changes to the cache (but not reads)
     private Object mutex = new Object();
+    // Bumped whenever anything is evicted, so that loads that were started before
+    // the eviction don't put stale data back into the cache.
+    private volatile long evictions;
+    // The keys evicted while the cache is being preloaded (null when it isn't)
+    private Set<String> preloadEvictions;
+    private boolean preloadInvalidated;
+    private final PendingLoads<Service> serviceLoads = new PendingLoads<>();
+    private final PendingLoads<ServiceContract> contractLoads = new PendingLoads<>();
+    private final NegativeResultCache<Service> unknownServices;
+    private final NegativeResultCache<ServiceContract> unknownContracts;
+
+    private boolean preload;
+    private int preloadBatchSize;
 
     /**
      * Constructor.
      */
     public CachingESRegistry(Map<String, String> config) {
         super(config);
+        preload = "true".equals(config.get("cache-preload")); //$NON-NLS-1$ //$NON-NLS-2$
+        String batchSizeVal = config.get("cache-preload-batch-size"); //$NON-NLS-1$
+        if (batchSizeVal != null) {
+            preloadBatchSize = new Integer(batchSizeVal);
+        } else {
+            preloadBatchSize = DEFAULT_PRELOAD_BATCH_SIZE;
+        }
+        int negativeMaxSize = NegativeResultCache.DEFAULT_MAX_SIZE;
+        long negativeTtl = NegativeResultCache.DEFAULT_TTL;
+        String negativeMaxSizeVal = config.get("cache-negative-max-size"); //$NON-NLS-1$
+        if (negativeMaxSizeVal != null) {
+            negativeMaxSize = new Integer(negativeMaxSizeVal);
+        }
+        String negativeTtlVal = config.get("cache-negative-ttl"); //$NON-NLS-1$
+        if (negativeTtlVal != null) {
+            negativeTtl = new Long(negativeTtlVal) * 1000;
+        }
+        unknownServices = new NegativeResultCache<>(negativeMaxSize, negativeTtl);
+        unknownContracts = new NegativeResultCache<>(negativeMaxSize, negativeTtl);
+    }
+
+    /**
+     * @see io.apiman.gateway.engine.IRequiresInitialization#initialize()
+     */
+    @Override
+    public void initialize() {
+        if (preload) {
+            preloadCache();
+        }
+    }
+
+    /**
+     * Bulk loads all services and applications (and therefore all contracts) into
+     * the cache.  Whatever gets evicted in the meantime is skipped, since what was
+     * read may already be out of date - it is loaded on demand instead.  Should
+     * the whole cache be invalidated, the preload is abandoned.  A failure only
+     * means that the cache is left (partially) cold - it never prevents the
+     * gateway from starting.  Progress and the total duration are logged.
+     */
+    protected void preloadCache() {
+        long start = System.currentTimeMillis();
+        int serviceCount = 0;
+        int applicationCount = 0;
+        synchronized (mutex) {
+            preloadEvictions = new HashSet<>();
+            preloadInvalidated = false;
+        }
+        try {
+            // Make sure the scroll sees everything that has been written so far
+            getClient().execute(new Refresh.Builder().addIndex(getIndexName()).build());
+
+            Scroll scroll = new Scroll("service"); //$NON-NLS-1$
+            for (List<Map<String, Object>> batch = scroll.next(); !batch.isEmpty(); batch = scroll.next()) {
+                for (Map<String, Object> source : batch) {
+                    Service service = ESRegistryMarshalling.unmarshallService(source);
+                    String serviceKey = RegistryKeys.serviceKey(service.getOrganizationId(), service.getServiceId(), service.getVersion());
+                    synchronized (mutex) {
+                        if (preloadInvalidated) {
+                            logger.warn("Abandoned preloading the registry cache: the cache was invalidated."); //$NON-NLS-1$
+                            return;
+                        }
+                        if (!preloadEvictions.contains(serviceKey)) {
+                            serviceCache.put(serviceKey, service);
+                            unknownServices.remove(serviceKey);
+                        }
+                    }
+                }
+                serviceCount += batch.size();
+                logger.debug("Preloading the registry cache: {} services", serviceCount); //$NON-NLS-1$
+            }
+
+            scroll = new Scroll("application"); //$NON-NLS-1$
+            for (List<Map<String, Object>> batch = scroll.next(); !batch.isEmpty(); batch = scroll.next()) {
+                for (Map<String, Object> source : batch) {
+                    Application application = ESRegistryMarshalling.unmarshallApplication(source);
+                    synchronized (mutex) {
+                        if (preloadInvalidated) {
+                            logger.warn("Abandoned preloading the registry cache: the cache was invalidated."); //$NON-NLS-1$
+                            return;
+                        }
+                        if (!preloadEvictions.contains(RegistryKeys.applicationKey(application))) {
+                            cacheApplication(application, -1);
+                        }
+                    }
+                }
+                applicationCount += batch.size();
+                logger.debug("Preloading the registry cache: {} applications", applicationCount); //$NON-NLS-1$
+            }
+            logger.info("Preloaded {} services and {} applications into the registry cache in {}ms", //$NON-NLS-1$
+                    serviceCount, applicationCount, System.currentTimeMillis() - start);
+        } catch (IOException | RuntimeException e) {
+            logger.error("Failed to preload the registry cache (after " + serviceCount + " services and " //$NON-NLS-1$ //$NON-NLS-2$
+                    + applicationCount + " applications).", e); //$NON-NLS-1$
+        } finally {
+            synchronized (mutex) {
+                preloadEvictions = null;
+            }
+        }
     }
 
     /**
@@ -65,6 +216,55 @@ public abstract class CachingESRegistry extends ESRegistry {
             contractCache.clear();
             serviceCache.clear();
             applicationCache.clear();
+            unknownServices.clear();
+            unknownContracts.clear();
+            evictions++;
+            if (preloadEvictions != null) {
+                preloadInvalidated = true;
+            }
+        }
+    }
+
+    /**
+     * Evicts a single service from the cache, so that the next call to getService()
+     * for it triggers a new fetch from the ES store.
+     * @param orgId
+     * @param serviceId
+     * @param version
+     */
+    protected void evictService(String orgId, String serviceId, String version) {
+        String serviceKey = RegistryKeys.serviceKey(orgId, serviceId, version);
+        synchronized (mutex) {
+            serviceCache.remove(serviceKey);
+            unknownServices.remove(serviceKey);
+            evictions++;
+            if (preloadEvictions != null) {
+                preloadEvictions.add(serviceKey);
+            }
+        }
+    }
+
+    /**
+     * Evicts a single application, along with all of its contracts, from the cache.
+     * @param orgId
+     * @param applicationId
+     * @param version
+     */
+    protected void evictApplication(String orgId, String applicationId, String version) {
+        String applicationKey = RegistryKeys.applicationKey(orgId, applicationId, version);
+        synchronized (mutex) {
+            Application application = applicationCache.remove(applicationKey);
+            if (application != null && application.getContracts() != null) {
+                for (Contract contract : application.getContracts()) {
+                    contractCache.remove(RegistryKeys.contractKey(contract));
+                }
+            }
+            // We don't know which API keys the application has (now)
+            unknownContracts.clear();
+            evictions++;
+            if (preloadEvictions != null) {
+                preloadEvictions.add(applicationKey);
+            }
         }
     }
 
@@ -73,112 +273,198 @@ public abstract class CachingESRegistry extends ESRegistry {
      */
     @Override
     public void getContract(final ServiceRequest request, final IAsyncResultHandler<ServiceContract> handler) {
-        ServiceContract contract = null;
+        String contractKey = RegistryKeys.contractKey(request.getApiKey());
+        final ServiceContract contract = contractCache.get(contractKey);
         
-        String contractKey = getContractKey(request);
-        synchronized (mutex) {
-            contract = contractCache.get(contractKey);
+        if (contract == null) {
+            IAsyncResult<ServiceContract> failure = unknownContracts.get(contractKey);
+            if (failure != null) {
+                handler.handle(failure);
+            } else if (contractLoads.join(contractKey, handler)) {
+                loadContract(contractKey, request.getApiKey());
+            }
+        } else {
+            getService(request.getServiceOrgId(), request.getServiceId(), request.getServiceVersion(),
+                    new IAsyncResultHandler<Service>() {
+                @Override
+                public void handle(IAsyncResult<Service> result) {
+                    if (result.isError()) {
+                        handler.handle(AsyncResultImpl.create(result.getError(), ServiceContract.class));
+                    } else if (result.getResult() == null) {
+                        Exception error = new InvalidContractException(Messages.i18n.format("ESRegistry.ServiceWasRetired", //$NON-NLS-1$
+                                request.getServiceId(), request.getServiceOrgId()));
+                        handler.handle(AsyncResultImpl.create(error, ServiceContract.class));
+                    } else {
+                        contract.setService(result.getResult());
+                        handler.handle(AsyncResultImpl.create(contract));
+                    }
+                }
+            });
         }
-        
-        try {
-            if (contract == null) {
-                super.getContract(request, new IAsyncResultHandler<ServiceContract>() {
+    }
+
+    /**
+     * Asynchronously loads a contract from ES, makes sure its service still exists
+     * and then completes the pending contract load.  The contract's application
+     * is then cached, which caches the contract as well.
+     * @param contractKey
+     * @param apiKey
+     */
+    protected void loadContract(final String contractKey, final String apiKey) {
+        final long evictionCount = evictions;
+        Get get = new Get.Builder(getIndexName(), apiKey).type("serviceContract").build(); //$NON-NLS-1$
+        getClient().executeAsync(get, new JestResultHandler<JestResult>() {
+            @Override
+            public void completed(JestResult result) {
+                if (!result.isSucceeded()) {
+                    Exception error = new InvalidContractException(Messages.i18n.format("ESRegistry.NoContractForAPIKey", apiKey)); //$NON-NLS-1$
+                    IAsyncResult<ServiceContract> failure = AsyncResultImpl.create(error, ServiceContract.class);
+                    if (isNotFound(result)) {
+                        synchronized (mutex) {
+                            if (evictionCount == evictions) {
+                                unknownContracts.put(contractKey, failure);
+                            }
+                        }
+                    }
+                    contractLoads.complete(contractKey, failure);
+                    return;
+                }
+                Map<String, Object> source = result.getSourceAsObject(Map.class);
+                final ServiceContract contract = ESRegistryMarshalling.unmarshallServiceContract(source);
+                final Service service = contract.getService();
+                getService(service.getOrganizationId(), service.getServiceId(), service.getVersion(),
+                        new IAsyncResultHandler<Service>() {
                     @Override
-                    public void handle(IAsyncResult<ServiceContract> result) {
-                        if (result.isSuccess()) {
-                            loadAndCacheApp(result.getResult().getApplication());
+                    public void handle(IAsyncResult<Service> result) {
+                        if (result.isError()) {
+                            contractLoads.complete(contractKey, AsyncResultImpl.create(result.getError(), ServiceContract.class));
+                        } else if (result.getResult() == null) {
+                            Exception error = new InvalidContractException(Messages.i18n.format("ESRegistry.ServiceWasRetired", //$NON-NLS-1$
+                                    service.getServiceId(), service.getOrganizationId()));
+                            contractLoads.complete(contractKey, AsyncResultImpl.create(error, ServiceContract.class));
+                        } else {
+                            loadAndCacheApp(contract.getApplication());
+                            contractLoads.complete(contractKey, AsyncResultImpl.create(contract));
                         }
-                        handler.handle(result);
                     }
                 });
-            } else {
-                Service service = getService(request.getServiceOrgId(), request.getServiceId(), request.getServiceVersion());
-                if (service == null) {
-                    throw new InvalidContractException(Messages.i18n.format("ESRegistry.ServiceWasRetired", //$NON-NLS-1$
-                            request.getServiceId(), request.getServiceOrgId()));
-                }
-                contract.setService(service);
-                handler.handle(AsyncResultImpl.create(contract));
             }
-        } catch (Throwable e) {
-            handler.handle(AsyncResultImpl.create(e, ServiceContract.class));
-        }
+            @Override
+            public void failed(Exception e) {
+                contractLoads.complete(contractKey, AsyncResultImpl.create(e, ServiceContract.class));
+            }
+        });
     }
 
     /**
+     * Gets the service either from the cache or (asynchronously) from ES.
      * @see io.apiman.gateway.engine.es.ESRegistry#getService(java.lang.String, java.lang.String, java.lang.String, io.apiman.gateway.engine.async.IAsyncResultHandler)
      */
     @Override
     public void getService(final String organizationId, final String serviceId, final String serviceVersion,
             final IAsyncResultHandler<Service> handler) {
-        try {
-            Service service = getService(organizationId, serviceId, serviceVersion);
+        String serviceKey = RegistryKeys.serviceKey(organizationId, serviceId, serviceVersion);
+        Service service = serviceCache.get(serviceKey);
+        if (service != null) {
             handler.handle(AsyncResultImpl.create(service));
-        } catch (IOException e) {
-            handler.handle(AsyncResultImpl.create(e, Service.class));
+            return;
+        }
+        IAsyncResult<Service> failure = unknownServices.get(serviceKey);
+        if (failure != null) {
+            handler.handle(failure);
+        } else if (serviceLoads.join(serviceKey, handler)) {
+            loadService(serviceKey, getServiceId(organizationId, serviceId, serviceVersion));
         }
     }
-    
+
     /**
-     * Gets the service either from the cache or from ES.
-     * @param orgId
-     * @param serviceId
-     * @param version
+     * Asynchronously loads a service from ES, caches it and then completes the
+     * pending service load.
+     * @param serviceKey
+     * @param id
      */
-    protected Service getService(String orgId, String serviceId, String version) throws IOException {
-        String serviceKey = getServiceKey(orgId, serviceId, version);
-        Service service = null;
-        synchronized (mutex) {
-            service = serviceCache.get(serviceKey);
-        }
-        
-        if (service == null) {
-            service = super.getService(getServiceId(orgId, serviceId, version));
-            synchronized (mutex) {
-                if (service != null) {
-                    serviceCache.put(serviceKey, service);
+    protected void loadService(final String serviceKey, String id) {
+        final long evictionCount = evictions;
+        Get get = new Get.Builder(getIndexName(), id).type("service").build(); //$NON-NLS-1$
+        getClient().executeAsync(get, new JestResultHandler<JestResult>() {
+            @Override
+            public void completed(JestResult result) {
+                if (!result.isSucceeded()) {
+                    IAsyncResult<Service> failure = AsyncResultImpl.create((Service) null);
+                    if (isNotFound(result)) {
+                        synchronized (mutex) {
+                            if (evictionCount == evictions) {
+                                unknownServices.put(serviceKey, failure);
+                            }
+                        }
+                    }
+                    serviceLoads.complete(serviceKey, failure);
+                    return;
+                }
+                Map<String, Object> source = result.getSourceAsObject(Map.class);
+                Service service = ESRegistryMarshalling.unmarshallService(source);
+                synchronized (mutex) {
+                    if (evictionCount == evictions) {
+                        serviceCache.put(serviceKey, service);
+                    }
                 }
+                serviceLoads.complete(serviceKey, AsyncResultImpl.create(service));
             }
-        }
-        
-        return service;
+            @Override
+            public void failed(Exception e) {
+                serviceLoads.complete(serviceKey, AsyncResultImpl.create(e, Service.class));
+            }
+        });
     }
-    
+
     /**
-     * @see io.apiman.gateway.engine.es.ESRegistry#checkService(io.apiman.gateway.engine.beans.ServiceContract)
+     * @param result
+     * @return true if the result of a GET says that the document doesn't exist (as
+     *         opposed to the GET having failed)
      */
-    @Override
-    protected void checkService(ServiceContract contract) throws InvalidContractException, IOException {
-        Service service = getService(contract.getService().getOrganizationId(), 
-                contract.getService().getServiceId(),
-                contract.getService().getVersion());
-        if (service == null) {
-            throw new InvalidContractException(Messages.i18n.format("ESRegistry.ServiceWasRetired", //$NON-NLS-1$
-                    contract.getService().getServiceId(), contract.getService().getOrganizationId()));
-        }
+    private static boolean isNotFound(JestResult result) {
+        JsonObject json = result.getJsonObject();
+        return json != null && json.has("found") && !json.get("found").getAsBoolean(); //$NON-NLS-1$ //$NON-NLS-2$
     }
 
     /**
      * @param application
      */
     protected void cacheApplication(Application application) {
-        String applicationKey = getApplicationKey(application);
+        cacheApplication(application, -1);
+    }
+
+    /**
+     * Caches the application, unless anything was evicted since the given count
+     * of evictions was taken.
+     * @param application
+     * @param evictionCount the eviction count or -1 to cache unconditionally
+     * @return false if the application was not cached
+     */
+    private boolean cacheApplication(Application application, long evictionCount) {
+        String applicationKey = RegistryKeys.applicationKey(application);
         synchronized (mutex) {
+            if (evictionCount != -1 && evictionCount != evictions) {
+                return false;
+            }
             applicationCache.put(applicationKey, application);
             if (application.getContracts() != null) {
                 for (Contract contract : application.getContracts()) {
                     ServiceContract sc = new ServiceContract(contract.getApiKey(), null, application, contract.getPlan(), contract.getPolicies());
-                    String contractKey = getContractKey(contract);
+                    String contractKey = RegistryKeys.contractKey(contract);
                     contractCache.put(contractKey, sc);
+                    unknownContracts.remove(contractKey);
                 }
             }
         }
+        return true;
     }
 
     /**
      * @param application
      */
     protected void loadAndCacheApp(Application application) {
+        final long evictionCount = evictions;
         String id = getApplicationId(application);
         Get get = new Get.Builder(getIndexName(), id).type("application").build(); //$NON-NLS-1$
         getClient().executeAsync(get, new JestResultHandler<JestResult>() {
@@ -187,7 +473,7 @@ public abstract class CachingESRegistry extends ESRegistry {
                 if (result.isSucceeded()) {
                     Map<String, Object> source = result.getSourceAsObject(Map.class);
                     Application app = ESRegistryMarshalling.unmarshallApplication(source);
-                    cacheApplication(app);
+                    cacheApplication(app, evictionCount);
                 }
             }
             @Override
@@ -197,42 +483,55 @@ public abstract class CachingESRegistry extends ESRegistry {
     }
 
     /**
-     * Generates an in-memory key for an service, used to index the app for later quick
-     * retrieval.
-     * @param orgId
-     * @param serviceId
-     * @param version
-     * @return a service key
+     * Scrolls through all documents of a given type, a batch at a time.
      */
-    private String getServiceKey(String orgId, String serviceId, String version) {
-        return "SVC::" + orgId + "|" + serviceId + "|" + version; //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
-    }
+    @SuppressWarnings("nls")
+    private class Scroll {
 
-    /**
-     * Generates an in-memory key for an application, used to index the app for later quick
-     * retrieval.
-     * @param app an application
-     * @return an application key
-     */
-    private String getApplicationKey(Application app) {
-        return "APP::" + app.getOrganizationId() + "|" + app.getApplicationId() + "|" + app.getVersion(); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
-    }
+        private String scrollId;
 
-    /**
-     * Generates an in-memory key for a contract.
-     * @param request
-     */
-    private String getContractKey(ServiceRequest request) {
-        return "CONTRACT::" + request.getApiKey(); //$NON-NLS-1$
-    }
+        /**
+         * Constructor.
+         * @param type
+         * @throws IOException
+         */
+        public Scroll(String type) throws IOException {
+            String query = "{ \"query\": { \"match_all\": {} } }";
+            Search search = new Search.Builder(query).addIndex(getIndexName()).addType(type)
+                    .setSearchType(SearchType.SCAN).setParameter(Parameters.SCROLL, "1m")
+                    .setParameter(Parameters.SIZE, preloadBatchSize).build();
+            scrollId = execute(search).get("_scroll_id").getAsString();
+        }
 
-    /**
-     * Generates an in-memory key for a service contract, used to index the app for later quick
-     * retrieval.
-     * @param contract
-     */
-    private String getContractKey(Contract contract) {
-        return "CONTRACT::" + contract.getApiKey(); //$NON-NLS-1$
+        /**
+         * @return the source of the documents in the next batch, empty when done
+         * @throws IOException
+         */
+        public List<Map<String, Object>> next() throws IOException {
+            SearchScroll scroll = new SearchScroll.Builder(scrollId, "1m").build();
+            JsonObject json = execute(scroll);
+            scrollId = json.get("_scroll_id").getAsString();
+            JsonArray hits = json.getAsJsonObject("hits").getAsJsonArray("hits");
+            List<Map<String, Object>> batch = new ArrayList<>(hits.size());
+            Gson gson = new Gson();
+            for (JsonElement hit : hits) {
+                batch.add(gson.fromJson(hit.getAsJsonObject().get("_source"), Map.class));
+            }
+            return batch;
+        }
+
+        /**
+         * Executes the action, failing if it didn't succeed.
+         * @param action
+         * @throws IOException
+         */
+        private <T extends JestResult> JsonObject execute(Action<T> action) throws IOException {
+            JestResult result = getClient().execute(action);
+            if (!result.isSucceeded()) {
+                throw new IOException(result.getErrorMessage());
+            }
+            return result.getJsonObject();
+        }
     }
 
 }
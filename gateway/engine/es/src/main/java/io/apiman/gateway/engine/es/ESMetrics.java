@@ -13,26 +13,82 @@
  * See the License for the specific language governing permissions and
  * limitations under the License.
  */
-
 package io.apiman.gateway.engine.es;
 
 import io.apiman.gateway.engine.IComponentRegistry;
 import io.apiman.gateway.engine.IMetrics;
+import io.apiman.gateway.engine.impl.ConfigValues;
+import io.apiman.gateway.engine.metrics.IMetricsBatchSink;
+import io.apiman.gateway.engine.metrics.MetricsPipeline;
 import io.apiman.gateway.engine.metrics.RequestMetric;
+import io.searchbox.client.AbstractJestClient;
 import io.searchbox.client.JestResult;
-import io.searchbox.client.JestResultHandler;
+import io.searchbox.core.Bulk;
 import io.searchbox.core.Index;
+import io.searchbox.indices.template.PutTemplate;
 
+import java.io.IOException;
+import java.net.URL;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
 import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
 
 /**
- * An elasticsearch implementation of the {@link IMetrics} interface.
+ * An elasticsearch implementation of the {@link IMetrics} interface.  Metrics
+ * are written to ES by a {@link MetricsPipeline}, off the request thread, using
+ * the bulk API.  A batch from the pipeline is split into bulk requests of up to
+ * 'bulkMaxBytes' bytes.  Documents that ES couldn't index because it was busy
+ * or unavailable are retried up to 'maxRetries' times, waiting 'retryBackoff'
+ * millis before the first retry and twice as long before each further one.
+ * Documents that still can't be indexed are dropped.  The documents that ES
+ * rejected or that were dropped are counted, and reported once per bulk request.
+ *
+ * If 'indexPerDay' is enabled, metrics go to a daily index (e.g.
+ * apiman_metrics-2015.11.23, by the UTC day the request started), created from
+ * an index template.
  *
  * @author eric.wittmann@redhat.com
  */
-public class ESMetrics extends AbstractESComponent implements IMetrics {
+public class ESMetrics extends AbstractESComponent implements IMetrics, IMetricsBatchSink {
+
+    private static Logger logger = LoggerFactory.getLogger(ESMetrics.class);
+
+    private static final long DEFAULT_BULK_MAX_BYTES = 5 * 1024 * 1024; // 5 MB
+    private static final int DEFAULT_MAX_RETRIES = 3;
+    private static final long DEFAULT_RETRY_BACKOFF = 500L;
+
+    // Serializes metrics exactly like the jest client would
+    private static final Gson gson = new GsonBuilder().setDateFormat(AbstractJestClient.ELASTIC_SEARCH_DATE_FORMAT).create();
 
     protected IComponentRegistry componentRegistry;
+    private final MetricsPipeline pipeline;
+    private final long bulkMaxBytes;
+    private final int maxRetries;
+    private final long retryBackoff;
+    private final boolean indexPerDay;
+    private boolean templateInstalled;
+    // Only used by the flusher thread
+    private final SimpleDateFormat dayFormat;
+
+    private final AtomicLong failedCount = new AtomicLong();
+    private final AtomicLong flushCount = new AtomicLong();
+    private final AtomicLong totalFlushLatency = new AtomicLong();
+    private volatile long lastFlushLatency;
 
     /**
      * Constructor.
@@ -40,6 +96,13 @@ public class ESMetrics extends AbstractESComponent implements IMetrics {
      */
     public ESMetrics(Map<String, String> config) {
         super(config);
+        bulkMaxBytes = ConfigValues.getLong(config, "bulkMaxBytes", DEFAULT_BULK_MAX_BYTES); //$NON-NLS-1$
+        maxRetries = (int) ConfigValues.getLong(config, "maxRetries", DEFAULT_MAX_RETRIES); //$NON-NLS-1$
+        retryBackoff = ConfigValues.getLong(config, "retryBackoff", DEFAULT_RETRY_BACKOFF); //$NON-NLS-1$
+        indexPerDay = "true".equals(config.get("indexPerDay")); //$NON-NLS-1$ //$NON-NLS-2$
+        dayFormat = new SimpleDateFormat("yyyy.MM.dd"); //$NON-NLS-1$
+        dayFormat.setTimeZone(TimeZone.getTimeZone("UTC")); //$NON-NLS-1$
+        pipeline = new MetricsPipeline(config, this);
     }
 
     /**
@@ -55,27 +118,183 @@ public class ESMetrics extends AbstractESComponent implements IMetrics {
      */
     @Override
     public void record(RequestMetric metric) {
-        try {
-            Index index = new Index.Builder(metric).refresh(false)
-                    .index(getIndexName())
-                    .type("request").build(); //$NON-NLS-1$
-            getClient().executeAsync(index, new JestResultHandler<JestResult>() {
-                @Override
-                public void completed(JestResult result) {
-                    if (!result.isSucceeded()) {
-                        System.err.println("Failed to add metric to ES:"); //$NON-NLS-1$
-                        System.err.println("/t" + result.getErrorMessage()); //$NON-NLS-1$
-                    }
-                }
-                @Override
-                public void failed(Exception e) {
-                    System.out.println("Error adding metric to ES:"); //$NON-NLS-1$
-                    e.printStackTrace();
+        pipeline.record(metric);
+    }
+
+    /**
+     * @see io.apiman.gateway.engine.metrics.IMetricsBatchSink#write(java.util.List)
+     */
+    @Override
+    public void write(List<RequestMetric> batch) {
+        long start = System.currentTimeMillis();
+        if (indexPerDay && !templateInstalled) {
+            templateInstalled = installTemplate();
+        }
+        List<Index> actions = new ArrayList<>();
+        long bytes = 0;
+        for (RequestMetric metric : batch) {
+            String source = gson.toJson(metric);
+            if (!actions.isEmpty() && bytes + source.length() > bulkMaxBytes) {
+                bulk(actions);
+                actions = new ArrayList<>();
+                bytes = 0;
+            }
+            actions.add(new Index.Builder(source).index(getIndexName(metric)).type("request").build()); //$NON-NLS-1$
+            bytes += source.length();
+        }
+        if (!actions.isEmpty()) {
+            bulk(actions);
+        }
+        lastFlushLatency = System.currentTimeMillis() - start;
+        totalFlushLatency.addAndGet(lastFlushLatency);
+        flushCount.incrementAndGet();
+    }
+
+    /**
+     * Indexes the documents with a single bulk request, retrying those that
+     * failed because ES was busy or unavailable.
+     * @param actions
+     */
+    protected void bulk(List<Index> actions) {
+        BulkFailures failures = new BulkFailures();
+        List<Index> pending = actions;
+        for (int attempt = 0; ; attempt++) {
+            List<Index> retry;
+            try {
+                JestResult result = getClient().execute(new Bulk.Builder().addAction(pending).build());
+                retry = getRetriable(pending, result, failures);
+            } catch (IOException | RuntimeException e) {
+                failures.error = e.getMessage();
+                failures.cause = e;
+                retry = pending;
+            }
+            if (retry.isEmpty()) {
+                break;
+            }
+            if (attempt >= maxRetries) {
+                failures.dropped = retry.size();
+                break;
+            }
+            try {
+                Thread.sleep(retryBackoff << attempt);
+            } catch (InterruptedException e) {
+                failures.dropped = retry.size();
+                break;
+            }
+            pending = retry;
+        }
+        int failed = failures.rejected + failures.dropped;
+        if (failed == 0) {
+            return;
+        }
+        failedCount.addAndGet(failed);
+        StringBuilder message = new StringBuilder();
+        message.append("Failed to add ").append(failed).append(" of ").append(actions.size()).append(" metrics to ES:"); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+        if (failures.rejected > 0) {
+            message.append(" ").append(failures.rejected).append(" rejected (").append(failures.rejection).append(")"); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$
+        }
+        if (failures.dropped > 0) {
+            message.append(" ").append(failures.dropped).append(" dropped after retrying"); //$NON-NLS-1$ //$NON-NLS-2$
+            if (failures.error != null) {
+                message.append(" (").append(failures.error).append(")"); //$NON-NLS-1$ //$NON-NLS-2$
+            }
+        }
+        logger.error(message.toString(), failures.dropped > 0 ? failures.cause : null);
+    }
+
+    /**
+     * Figures out which documents of a bulk request should be retried.  Documents
+     * that ES rejected (e.g. because they don't match the mapping) are dropped.
+     * @param actions
+     * @param result
+     * @param failures
+     * @return the documents to retry
+     */
+    private List<Index> getRetriable(List<Index> actions, JestResult result, BulkFailures failures) {
+        JsonObject json = result.getJsonObject();
+        JsonArray items = json == null ? null : json.getAsJsonArray("items"); //$NON-NLS-1$
+        if (items == null || items.size() != actions.size()) {
+            // The whole request failed
+            failures.error = result.getErrorMessage();
+            return actions;
+        }
+        List<Index> retry = new ArrayList<>();
+        for (int i = 0; i < items.size(); i++) {
+            JsonObject item = items.get(i).getAsJsonObject().getAsJsonObject("index"); //$NON-NLS-1$
+            int status = item.get("status").getAsInt(); //$NON-NLS-1$
+            if (status == 429 || status >= 500) {
+                retry.add(actions.get(i));
+            } else if (status >= 300) {
+                if (failures.rejected++ == 0) {
+                    JsonElement error = item.get("error"); //$NON-NLS-1$
+                    failures.rejection = error == null ? String.valueOf(status) : error.toString();
                 }
-            });
-        } catch (Exception e) {
-            e.printStackTrace();
+            }
         }
+        return retry;
+    }
+
+    /**
+     * Installs the template that daily indexes are created from - which is the
+     * metrics index settings, applied to all indexes named after the metrics index.
+     * @return true if successful
+     */
+    private boolean installTemplate() {
+        try {
+            URL settings = ESMetrics.class.getResource(getIndexName() + "-settings.json"); //$NON-NLS-1$
+            JsonObject template = new JsonParser().parse(IOUtils.toString(settings)).getAsJsonObject();
+            template.addProperty("template", getIndexName() + "-*"); //$NON-NLS-1$ //$NON-NLS-2$
+            JestResult result = getClient().execute(new PutTemplate.Builder(getIndexName(), template.toString()).build());
+            if (!result.isSucceeded()) {
+                logger.error("Failed to install the metrics index template: " + result.getErrorMessage()); //$NON-NLS-1$
+            }
+            return result.isSucceeded();
+        } catch (IOException | RuntimeException e) {
+            logger.error("Failed to install the metrics index template.", e); //$NON-NLS-1$
+            return false;
+        }
+    }
+
+    /**
+     * @param metric
+     * @return the index to add the metric to
+     */
+    protected String getIndexName(RequestMetric metric) {
+        if (!indexPerDay) {
+            return getIndexName();
+        }
+        Date day = metric.getRequestStart() == null ? new Date() : metric.getRequestStart();
+        return getIndexName() + "-" + dayFormat.format(day); //$NON-NLS-1$
+    }
+
+    /**
+     * @return the number of metrics waiting to be written
+     */
+    public int getQueueDepth() {
+        return pipeline.getQueuedCount();
+    }
+
+    /**
+     * @return the number of metrics dropped - either because they couldn't be queued
+     *         or because ES didn't index them
+     */
+    public long getDroppedCount() {
+        return pipeline.getDroppedCount() + failedCount.get();
+    }
+
+    /**
+     * @return the time (in millis) it took to write the last batch
+     */
+    public long getLastFlushLatency() {
+        return lastFlushLatency;
+    }
+
+    /**
+     * @return the average time (in millis) it took to write a batch
+     */
+    public long getAverageFlushLatency() {
+        long flushes = flushCount.get();
+        return flushes == 0 ? 0 : totalFlushLatency.get() / flushes;
     }
 
     /**
@@ -86,4 +305,18 @@ public class ESMetrics extends AbstractESComponent implements IMetrics {
         return ESConstants.METRICS_INDEX_NAME;
     }
 
+    /**
+     * The documents of a single bulk request that weren't indexed, over all
+     * of its attempts.
+     */
+    private static class BulkFailures {
+        // Rejected by ES, and the first reason given
+        private int rejected;
+        private String rejection;
+        // Still not indexed after the last attempt, and the last reason
+        private int dropped;
+        private String error;
+        private Throwable cause;
+    }
+
 }
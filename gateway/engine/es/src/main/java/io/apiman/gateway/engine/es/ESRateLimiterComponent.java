@@ -15,29 +15,66 @@
  */
 package io.apiman.gateway.engine.es;
 
+import io.apiman.gateway.engine.SharedComponent;
 import io.apiman.gateway.engine.async.AsyncResultImpl;
+import io.apiman.gateway.engine.async.IAsyncResult;
 import io.apiman.gateway.engine.async.IAsyncResultHandler;
-import io.apiman.gateway.engine.components.IRateLimiterComponent;
+import io.apiman.gateway.engine.components.IAlgorithmRateLimiterComponent;
 import io.apiman.gateway.engine.components.rate.RateLimitResponse;
+import io.apiman.gateway.engine.es.RateLimiterLeases.Release;
+import io.apiman.gateway.engine.es.RateLimiterLeases.Reservation;
+import io.apiman.gateway.engine.impl.Sweeper;
+import io.apiman.gateway.engine.rates.RateBucketAlgorithm;
 import io.apiman.gateway.engine.rates.RateBucketPeriod;
 import io.apiman.gateway.engine.rates.RateLimiterBucket;
 import io.searchbox.client.JestResult;
 import io.searchbox.core.Get;
 import io.searchbox.core.Index;
-import io.searchbox.params.Parameters;
 
 import java.util.Map;
 
 import org.elasticsearch.action.get.GetResponse;
 import org.elasticsearch.common.Base64;
-import org.elasticsearch.index.engine.VersionConflictEngineException;
 
 /**
- * An elasticsearch implementation of the rate limiter component.
+ * An elasticsearch implementation of the rate limiter component.  By default
+ * every request reads and updates the rate bucket in elasticsearch.  When a
+ * 'leaseSize' is configured, blocks of permits are instead leased from the
+ * bucket and served locally (see {@link RateLimiterLeases}).  Requests that
+ * find no usable lease while another request is reserving one wait for it (on
+ * their own thread) instead of reserving their own.  If that takes longer than
+ * {@link #MAX_PENDING_WAIT} they are counted against the bucket in ES directly.
+ * Unused permits of expired leases are given back in the background, and those
+ * of all leases when the JVM shuts down.
  *
  * @author eric.wittmann@redhat.com
  */
-public class ESRateLimiterComponent extends AbstractESComponent implements IRateLimiterComponent {
+@SharedComponent
+public class ESRateLimiterComponent extends AbstractESComponent implements IAlgorithmRateLimiterComponent {
+
+    /** How long (in ms) a request waits for another request's lease reservation */
+    public static final long MAX_PENDING_WAIT = 500L;
+
+    private static final Sweeper.ISweep<ESRateLimiterComponent> RELEASE = new Sweeper.ISweep<ESRateLimiterComponent>() {
+        @Override
+        public void sweep(ESRateLimiterComponent target, long now) {
+            target.releaseLeases(false);
+        }
+    };
+    private static final Sweeper.ISweep<ESRateLimiterComponent> RELEASE_ALL = new Sweeper.ISweep<ESRateLimiterComponent>() {
+        @Override
+        public void sweep(ESRateLimiterComponent target, long now) {
+            target.releaseLeases(true);
+        }
+    };
+    private static final IAsyncResultHandler<RateLimitResponse> IGNORE = new IAsyncResultHandler<RateLimitResponse>() {
+        @Override
+        public void handle(IAsyncResult<RateLimitResponse> result) {
+            // Permits that can't be given back are lost until the end of their period.
+        }
+    };
+
+    private final RateLimiterLeases leases;
 
     /**
      * Constructor.
@@ -45,6 +82,11 @@ public class ESRateLimiterComponent extends AbstractESComponent implements IRate
      */
     public ESRateLimiterComponent(Map<String, String> config) {
         super(config);
+        leases = new RateLimiterLeases(config);
+        if (leases.isEnabled()) {
+            Sweeper.schedule(this, RELEASE, leases.getLeaseTtl());
+            Sweeper.scheduleAtShutdown(this, RELEASE_ALL);
+        }
     }
 
     /**
@@ -53,8 +95,90 @@ public class ESRateLimiterComponent extends AbstractESComponent implements IRate
     @Override
     public void accept(final String bucketId, final RateBucketPeriod period, final long limit,
             final long increment, final IAsyncResultHandler<RateLimitResponse> handler) {
-        final String id = id(bucketId);
+        accept(bucketId, period, RateBucketAlgorithm.FixedWindow, limit, increment, handler);
+    }
+
+    /**
+     * @see io.apiman.gateway.engine.components.IAlgorithmRateLimiterComponent#accept(java.lang.String, io.apiman.gateway.engine.rates.RateBucketPeriod, io.apiman.gateway.engine.rates.RateBucketAlgorithm, long, long, io.apiman.gateway.engine.async.IAsyncResultHandler)
+     */
+    @Override
+    public void accept(final String bucketId, final RateBucketPeriod period, final RateBucketAlgorithm algorithm,
+            final long limit, final long increment, final IAsyncResultHandler<RateLimitResponse> handler) {
+        if (leases.isLeasable(algorithm, increment)) {
+            long waitUntil = System.currentTimeMillis() + MAX_PENDING_WAIT;
+            while (true) {
+                RateLimitResponse rlr = leases.tryAccept(bucketId, period, limit, increment);
+                if (rlr != null) {
+                    handler.handle(AsyncResultImpl.create(rlr));
+                    return;
+                }
+                Reservation pending = leases.getPending(bucketId, period, limit);
+                if (pending == null) {
+                    final Reservation reservation = leases.reserve(bucketId, period, limit, increment);
+                    if (reservation == null) {
+                        // Another request got there first
+                        continue;
+                    }
+                    update(id(bucketId), reservation, new IAsyncResultHandler<RateLimitResponse>() {
+                        @Override
+                        public void handle(IAsyncResult<RateLimitResponse> result) {
+                            if (result.isSuccess()) {
+                                reservation.complete();
+                            } else {
+                                reservation.failed();
+                            }
+                            handler.handle(result);
+                        }
+                    });
+                    return;
+                }
+                long wait = waitUntil - System.currentTimeMillis();
+                try {
+                    if (wait <= 0 || !pending.await(wait)) {
+                        // Taking too long - count this request against the shared bucket directly
+                        break;
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    handler.handle(AsyncResultImpl.create(e, RateLimitResponse.class));
+                    return;
+                }
+                rlr = pending.getRejection();
+                if (rlr != null) {
+                    handler.handle(AsyncResultImpl.create(rlr));
+                    return;
+                }
+            }
+        }
+
+        update(id(bucketId), new IRateBucketUpdate() {
+            @Override
+            public RateLimitResponse apply(RateLimiterBucket bucket) {
+                return bucket.accept(algorithm, period, limit, increment);
+            }
+        }, handler);
+    }
 
+    /**
+     * Gives the unused permits of the expired leases (or of all leases) back to
+     * the rate buckets in ES.
+     * @param all
+     */
+    protected void releaseLeases(boolean all) {
+        for (Release release : leases.release(System.currentTimeMillis(), all)) {
+            update(id(release.getBucketId()), release, IGNORE);
+        }
+    }
+
+    /**
+     * Loads the bucket with the given id from ES, applies the update to it and
+     * then stores it again.
+     * @param id
+     * @param update
+     * @param handler
+     */
+    protected void update(final String id, final IRateBucketUpdate update,
+            final IAsyncResultHandler<RateLimitResponse> handler) {
         try {
             Get get = new Get.Builder(getIndexName(), id).type("rateBucket").build(); //$NON-NLS-1$
             JestResult result = getClient().execute(get);
@@ -69,20 +193,8 @@ public class ESRateLimiterComponent extends AbstractESComponent implements IRate
                 version = 0;
                 bucket = new RateLimiterBucket();
             }
-            bucket.resetIfNecessary(period);
-
-            final RateLimitResponse rlr = new RateLimitResponse();
-            if (bucket.getCount() > limit) {
-                rlr.setAccepted(false);
-            } else {
-                rlr.setAccepted(bucket.getCount() < limit);
-                bucket.setCount(bucket.getCount() + increment);
-                bucket.setLast(System.currentTimeMillis());
-            }
-            int reset = (int) (bucket.getResetMillis(period) / 1000L);
-            rlr.setReset(reset);
-            rlr.setRemaining(limit - bucket.getCount());
-            updateBucketAndReturn(id, bucket, rlr, version, bucketId, period, limit, increment, handler);
+            final RateLimitResponse rlr = update.apply(bucket);
+            updateBucketAndReturn(id, bucket, rlr, version, update, handler);
         } catch (Throwable e) {
             handler.handle(AsyncResultImpl.create(e, RateLimitResponse.class));
         }
@@ -109,35 +221,29 @@ public class ESRateLimiterComponent extends AbstractESComponent implements IRate
      * @param bucket
      * @param rlr
      * @param version
-     * @param limit
-     * @param period
-     * @param bucketId
-     * @param increment
+     * @param update
      * @param handler
      */
     protected void updateBucketAndReturn(final String id, final RateLimiterBucket bucket,
-            final RateLimitResponse rlr, final long version, final String bucketId,
-            final RateBucketPeriod period, final long limit, final long increment,
+            final RateLimitResponse rlr, final long version, final IRateBucketUpdate update,
             final IAsyncResultHandler<RateLimitResponse> handler) {
 
-        Index index = new Index.Builder(bucket).refresh(false).index(getIndexName())
-                .setParameter(Parameters.OP_TYPE, "index") //$NON-NLS-1$
-                .setParameter(Parameters.VERSION, String.valueOf(version))
-                .type("rateBucket").id(id).build(); //$NON-NLS-1$
+        Index index = ESUtils.bucketIndex(getIndexName(), id, bucket, version);
         try {
-            getClient().execute(index);
-            handler.handle(AsyncResultImpl.create(rlr));
-        } catch (Throwable e) {
-            // TODO need to fix this now that we've switched to jest!
-            if (ESUtils.rootCause(e) instanceof VersionConflictEngineException) {
+            JestResult result = getClient().execute(index);
+            if (result.isSucceeded()) {
+                handler.handle(AsyncResultImpl.create(rlr));
+            } else if (ESUtils.isConflict(result)) {
                 // If we got a version conflict, then it means some other request
                 // managed to update the ES document since we retrieved it.  Therefore
                 // everything we've done is out of date, so we should do it all
                 // over again.
-                accept(bucketId, period, limit, increment, handler);
+                update(id, update, handler);
             } else {
-                handler.handle(AsyncResultImpl.<RateLimitResponse>create(e));
+                handler.handle(AsyncResultImpl.<RateLimitResponse>create(new Exception(result.getErrorMessage())));
             }
+        } catch (Throwable e) {
+            handler.handle(AsyncResultImpl.<RateLimitResponse>create(e));
         }
     }
 
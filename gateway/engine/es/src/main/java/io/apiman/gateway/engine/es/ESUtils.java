@@ -15,6 +15,13 @@
  */
 package io.apiman.gateway.engine.es;
 
+import io.apiman.gateway.engine.rates.RateLimiterBucket;
+import io.searchbox.client.JestResult;
+import io.searchbox.core.Index;
+import io.searchbox.params.Parameters;
+
+import com.google.gson.JsonElement;
+
 /**
  * Util methods.
  *
@@ -35,4 +42,47 @@ public class ESUtils {
         return cause;
     }
 
+    /**
+     * Returns true if the request failed because of a conflict (http 409), e.g. a
+     * stale version or a document that already exists.  Jest doesn't throw in that
+     * case, it returns a failed result.
+     * @param result the result
+     * @return true if the result is a conflict
+     */
+    public static final boolean isConflict(JestResult result) {
+        if (result.isSucceeded()) {
+            return false;
+        }
+        if (result.getJsonObject() != null) {
+            JsonElement status = result.getJsonObject().get("status"); //$NON-NLS-1$
+            if (status != null && status.isJsonPrimitive()) {
+                return status.getAsInt() == 409;
+            }
+        }
+        String error = result.getErrorMessage();
+        return error != null && error.startsWith("409"); //$NON-NLS-1$
+    }
+
+    /**
+     * Builds the (versioned) write of a rate bucket.  A bucket that was loaded from
+     * ES (version > 0) is only stored if it hasn't been changed since, and a new
+     * bucket is only stored if no one else has created it meanwhile.  Otherwise the
+     * write fails with a conflict (see {@link #isConflict(JestResult)}).
+     * @param indexName the index name
+     * @param id the bucket id
+     * @param bucket the bucket
+     * @param version the version of the bucket that was loaded, or 0 if it is new
+     * @return the index action
+     */
+    public static final Index bucketIndex(String indexName, String id, RateLimiterBucket bucket, long version) {
+        Index.Builder builder = new Index.Builder(bucket).refresh(false).index(indexName);
+        if (version > 0) {
+            builder.setParameter(Parameters.OP_TYPE, "index") //$NON-NLS-1$
+                    .setParameter(Parameters.VERSION, String.valueOf(version));
+        } else {
+            builder.setParameter(Parameters.OP_TYPE, "create"); //$NON-NLS-1$
+        }
+        return builder.type("rateBucket").id(id).build(); //$NON-NLS-1$
+    }
+
 }
@@ -0,0 +1,37 @@
+/*
+ * Copyright 2015 JBoss Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.apiman.gateway.engine.es;
+
+import io.apiman.gateway.engine.components.rate.RateLimitResponse;
+import io.apiman.gateway.engine.rates.RateLimiterBucket;
+
+/**
+ * An update of a rate bucket stored in elasticsearch.  The update may be
+ * applied more than once, to a freshly loaded bucket each time, if storing
+ * the result conflicts with a concurrent update.
+ *
+ * @author eric.wittmann@redhat.com
+ */
+public interface IRateBucketUpdate {
+
+    /**
+     * Applies the update to the given bucket.
+     * @param bucket the bucket
+     * @return the rate limit response
+     */
+    public RateLimitResponse apply(RateLimiterBucket bucket);
+
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright 2015 JBoss Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.apiman.gateway.engine.es;
+
+import io.apiman.gateway.engine.async.IAsyncResult;
+import io.apiman.gateway.engine.async.IAsyncResultHandler;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps track of the loads (from ES) that are in progress, so that concurrent
+ * cache misses for the same key result in a single load.  The first caller to
+ * join a load for a key must perform it and then complete it - all of the
+ * callers that joined in the meantime get the same result.
+ *
+ * @author eric.wittmann@redhat.com
+ */
+public class PendingLoads<T> {
+
+    private final Map<String, List<IAsyncResultHandler<T>>> pending = new HashMap<>();
+
+    /**
+     * Constructor.
+     */
+    public PendingLoads() {
+    }
+
+    /**
+     * Joins the load for the given key.
+     * @param key
+     * @param handler called once the load completes
+     * @return true if the caller must perform the load
+     */
+    public synchronized boolean join(String key, IAsyncResultHandler<T> handler) {
+        List<IAsyncResultHandler<T>> handlers = pending.get(key);
+        if (handlers == null) {
+            handlers = new ArrayList<>();
+            handlers.add(handler);
+            pending.put(key, handlers);
+            return true;
+        }
+        handlers.add(handler);
+        return false;
+    }
+
+    /**
+     * Completes the load for the given key, passing the result to everyone
+     * waiting for it.
+     * @param key
+     * @param result
+     */
+    public void complete(String key, IAsyncResult<T> result) {
+        List<IAsyncResultHandler<T>> handlers;
+        synchronized (this) {
+            handlers = pending.remove(key);
+        }
+        if (handlers != null) {
+            for (IAsyncResultHandler<T> handler : handlers) {
+                handler.handle(result);
+            }
+        }
+    }
+
+    /**
+     * @return the number of loads in progress
+     */
+    public synchronized int size() {
+        return pending.size();
+    }
+
+}
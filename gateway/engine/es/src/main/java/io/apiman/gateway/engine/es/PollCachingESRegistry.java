@@ -16,36 +16,65 @@
 package io.apiman.gateway.engine.es;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 
 import io.apiman.gateway.engine.async.IAsyncResult;
 import io.apiman.gateway.engine.async.IAsyncResultHandler;
 import io.apiman.gateway.engine.beans.Application;
 import io.apiman.gateway.engine.beans.Service;
+import io.apiman.gateway.engine.es.beans.DataChangeBean;
 import io.apiman.gateway.engine.es.beans.DataVersionBean;
 import io.searchbox.client.JestResult;
 import io.searchbox.client.JestResultHandler;
+import io.searchbox.core.Delete;
 import io.searchbox.core.Get;
 import io.searchbox.core.Index;
+import io.searchbox.core.MultiGet;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 /**
  * Extends the {@link ESRegistry} to provide multi-node caching.  This caching solution
  * will work in a cluster, although it is a rather naive implementation.  The approach
  * taken is that whenever the ES index is modified, a "last modified" record is set in
  * elasticsearch.  The registry utilizes a thread to periodically poll the ES store to
- * check if the data has been changed.  If the data *has* been changed, then the cache
- * is invalidated.
+ * check if the data has been changed.
+ *
+ * Every update also adds an entry to a change log, keyed by the data version it
+ * produced and identifying the service or application that was changed.  When
+ * the poller finds a newer data version, it reads the change log entries since
+ * the last version it saw and only evicts the changed entities.  The whole cache
+ * is only invalidated if the change log can't be read - e.g. because an entry is
+ * missing (not yet written, or already pruned) or the ES store can't be reached.
+ *
+ * When the cache is preloaded, the data version is read first - so that the
+ * poller only has to catch up on whatever changed while the preload was running,
+ * rather than throwing away the preloaded cache.
  *
  * @author eric.wittmann@redhat.com
  */
 public class PollCachingESRegistry extends CachingESRegistry {
 
+    private static Logger logger = LoggerFactory.getLogger(PollCachingESRegistry.class);
+
     private static final int DEFAULT_POLLING_INTERVAL = 10;
+    private static final int DEFAULT_CHANGE_LOG_SIZE = 1000;
 
     private int pollIntervalSeconds;
+    private int changeLogSize;
     private boolean polling = false;
     private Object poller = new Object();
-    private String dataVersion = null;
+    // Guards the data version (and keeps the poller out while preloading)
+    private Object versionLock = new Object();
+    // The last data version seen by the poller, or -1 if unknown
+    private long dataVersion = -1;
 
     /**
      * Constructor.
@@ -58,6 +87,12 @@ public class PollCachingESRegistry extends CachingESRegistry {
         } else {
             pollIntervalSeconds = DEFAULT_POLLING_INTERVAL * 1000;
         }
+        String changeLogSizeVal = config.get("cache-change-log-size"); //$NON-NLS-1$
+        if (changeLogSizeVal != null) {
+            changeLogSize = new Integer(changeLogSizeVal);
+        } else {
+            changeLogSize = DEFAULT_CHANGE_LOG_SIZE;
+        }
         startCacheInvalidator();
     }
 
@@ -65,12 +100,12 @@ public class PollCachingESRegistry extends CachingESRegistry {
      * @see io.apiman.gateway.engine.es.CachingESRegistry#publishService(io.apiman.gateway.engine.beans.Service, io.apiman.gateway.engine.async.IAsyncResultHandler)
      */
     @Override
-    public void publishService(Service service, final IAsyncResultHandler<Void> handler) {
+    public void publishService(final Service service, final IAsyncResultHandler<Void> handler) {
         super.publishService(service, new IAsyncResultHandler<Void>() {
             @Override
             public void handle(IAsyncResult<Void> result) {
                 if (result.isSuccess()) {
-                    updateDataVersion();
+                    serviceChanged(service);
                 }
                 handler.handle(result);
             }
@@ -81,12 +116,12 @@ public class PollCachingESRegistry extends CachingESRegistry {
      * @see io.apiman.gateway.engine.es.CachingESRegistry#retireService(io.apiman.gateway.engine.beans.Service, io.apiman.gateway.engine.async.IAsyncResultHandler)
      */
     @Override
-    public void retireService(Service service, final IAsyncResultHandler<Void> handler) {
+    public void retireService(final Service service, final IAsyncResultHandler<Void> handler) {
         super.retireService(service, new IAsyncResultHandler<Void>() {
             @Override
             public void handle(IAsyncResult<Void> result) {
                 if (result.isSuccess()) {
-                    updateDataVersion();
+                    serviceChanged(service);
                 }
                 handler.handle(result);
             }
@@ -97,7 +132,7 @@ public class PollCachingESRegistry extends CachingESRegistry {
      * @see io.apiman.gateway.engine.es.CachingESRegistry#registerApplication(io.apiman.gateway.engine.beans.Application, io.apiman.gateway.engine.async.IAsyncResultHandler)
      */
     @Override
-    public void registerApplication(Application application, final IAsyncResultHandler<Void> handler) {
+    public void registerApplication(final Application application, final IAsyncResultHandler<Void> handler) {
         super.registerApplication(application, new IAsyncResultHandler<Void>() {
             /**
              * @see io.apiman.gateway.engine.async.IAsyncHandler#handle(java.lang.Object)
@@ -105,7 +140,7 @@ public class PollCachingESRegistry extends CachingESRegistry {
             @Override
             public void handle(IAsyncResult<Void> result) {
                 if (result.isSuccess()) {
-                    updateDataVersion();
+                    applicationChanged(application);
                 }
                 handler.handle(result);
             }
@@ -116,37 +151,92 @@ public class PollCachingESRegistry extends CachingESRegistry {
      * @see io.apiman.gateway.engine.es.CachingESRegistry#unregisterApplication(io.apiman.gateway.engine.beans.Application, io.apiman.gateway.engine.async.IAsyncResultHandler)
      */
     @Override
-    public void unregisterApplication(Application application, final IAsyncResultHandler<Void> handler) {
+    public void unregisterApplication(final Application application, final IAsyncResultHandler<Void> handler) {
         super.unregisterApplication(application, new IAsyncResultHandler<Void>() {
             @Override
             public void handle(IAsyncResult<Void> result) {
                 if (result.isSuccess()) {
-                    updateDataVersion();
+                    applicationChanged(application);
                 }
                 handler.handle(result);
             }
         });
     }
 
+    /**
+     * @see io.apiman.gateway.engine.es.CachingESRegistry#preloadCache()
+     */
+    @Override
+    protected void preloadCache() {
+        synchronized (versionLock) {
+            long latestDV;
+            try {
+                latestDV = getLatestDataVersion();
+            } catch (IOException e) {
+                // The first poll will then invalidate the preloaded cache
+                logger.warn("Failed to read the registry data version.", e); //$NON-NLS-1$
+                latestDV = -1;
+            }
+            super.preloadCache();
+            // Anything changed after latestDV will be in the change log
+            dataVersion = latestDV;
+        }
+    }
+
+    /**
+     * Called when a service has been published or retired.
+     * @param service
+     */
+    protected void serviceChanged(Service service) {
+        evictService(service.getOrganizationId(), service.getServiceId(), service.getVersion());
+        updateDataVersion(new DataChangeBean(DataChangeBean.TYPE_SERVICE, service.getOrganizationId(),
+                service.getServiceId(), service.getVersion()));
+    }
+
+    /**
+     * Called when an application has been registered or unregistered.
+     * @param application
+     */
+    protected void applicationChanged(Application application) {
+        evictApplication(application.getOrganizationId(), application.getApplicationId(), application.getVersion());
+        updateDataVersion(new DataChangeBean(DataChangeBean.TYPE_APPLICATION, application.getOrganizationId(),
+                application.getApplicationId(), application.getVersion()));
+    }
+
     /**
      * Stores a "dataversion" record in the ES store.  There is only a single one of these.  The
      * return value of the add will include the version number of the entity.  This version
-     * number is what we use to determine whether our cache is stale.
+     * number is what we use to determine whether our cache is stale.  The change itself is
+     * then added to the change log under that version number, and the oldest entry that no
+     * longer fits in the change log is removed.
+     * @param change
      */
-    protected void updateDataVersion() {
+    protected void updateDataVersion(final DataChangeBean change) {
         DataVersionBean dv = new DataVersionBean();
-        dv.setUpdatedOn(System.currentTimeMillis());
+        dv.setUpdatedOn(change.getUpdatedOn());
         Index index = new Index.Builder(dv).refresh(false)
                 .index(getIndexName())
                 .type("dataVersion").id("instance").build(); //$NON-NLS-1$ //$NON-NLS-2$
         getClient().executeAsync(index, new JestResultHandler<JestResult>() {
             @Override
             public void completed(JestResult result) {
-                dataVersion = null;
+                if (!result.isSucceeded()) {
+                    return;
+                }
+                long version = result.getJsonObject().get("_version").getAsLong(); //$NON-NLS-1$
+                Index logEntry = new Index.Builder(change).refresh(false)
+                        .index(getIndexName())
+                        .type("dataChange").id(String.valueOf(version)).build(); //$NON-NLS-1$
+                getClient().executeAsync(logEntry, new NoOpResultHandler());
+                if (version > changeLogSize) {
+                    Delete prune = new Delete.Builder(String.valueOf(version - changeLogSize))
+                            .index(getIndexName()).type("dataChange").build(); //$NON-NLS-1$
+                    getClient().executeAsync(prune, new NoOpResultHandler());
+                }
             }
             @Override
             public void failed(Exception e) {
-                dataVersion = null;
+                // Other nodes will not notice the change - evicting it locally is all we can do.
             }
         });
     }
@@ -165,7 +255,9 @@ public class PollCachingESRegistry extends CachingESRegistry {
                             poller.wait(pollIntervalSeconds);
                         }
                     } catch (Exception e) { e.printStackTrace(); }
-                    checkCacheVersion();
+                    synchronized (versionLock) {
+                        checkCacheVersion();
+                    }
                 }
             }
         });
@@ -185,28 +277,119 @@ public class PollCachingESRegistry extends CachingESRegistry {
 
     /**
      * Checks the ES store to see if the 'dataVersion' entry has been updated with a newer
-     * version #.  If it has, then we need to invalidate our cache.
+     * version #.  If it has, then we need to evict whatever has changed since the last
+     * version we saw - or invalidate the whole cache if we can't tell what that was.
      */
     protected void checkCacheVersion() {
-        // Be very aggressive in invalidating the cache.
-        boolean invalidate = true;
+        long latestDV;
         try {
-            Get get = new Get.Builder(getIndexName(), "instance").type("dataVersion").build(); //$NON-NLS-1$ //$NON-NLS-2$
-            JestResult result = getClient().execute(get);
-            if (result.isSucceeded()) {
-                String latestDV = result.getJsonObject().get("_version").getAsString(); //$NON-NLS-1$
-                if (latestDV != null && dataVersion != null && latestDV.equals(dataVersion)) {
-                    invalidate = false;
+            latestDV = getLatestDataVersion();
+        } catch (IOException e) {
+            logger.error("Failed to read the registry data version.", e); //$NON-NLS-1$
+            latestDV = -1;
+        }
+        if (latestDV != -1 && latestDV == dataVersion) {
+            return;
+        }
+        List<DataChangeBean> changes = null;
+        if (latestDV != -1 && dataVersion != -1 && latestDV > dataVersion
+                && latestDV - dataVersion <= changeLogSize) {
+            try {
+                changes = getChanges(dataVersion + 1, latestDV);
+            } catch (IOException e) {
+                logger.warn("Failed to read the registry change log, invalidating the cache.", e); //$NON-NLS-1$
+            }
+        }
+        if (changes == null) {
+            // Be very aggressive in invalidating the cache.
+            invalidateCache();
+        } else {
+            for (DataChangeBean change : changes) {
+                if (DataChangeBean.TYPE_SERVICE.equals(change.getEntityType())) {
+                    evictService(change.getOrganizationId(), change.getEntityId(), change.getVersion());
                 } else {
-                    dataVersion = latestDV;
+                    evictApplication(change.getOrganizationId(), change.getEntityId(), change.getVersion());
                 }
             }
-        } catch (IOException e) {
-            // TODO need to use the gateway logger to log this!
-            e.printStackTrace();
         }
-        if (invalidate) {
-            invalidateCache();
+        dataVersion = latestDV;
+    }
+
+    /**
+     * @return the current data version in the ES store, 0 if nothing has ever been
+     *         changed or -1 if the data version could not be read
+     * @throws IOException
+     */
+    protected long getLatestDataVersion() throws IOException {
+        Get get = new Get.Builder(getIndexName(), "instance").type("dataVersion").build(); //$NON-NLS-1$ //$NON-NLS-2$
+        JestResult result = getClient().execute(get);
+        JsonObject json = result.getJsonObject();
+        if (result.isSucceeded()) {
+            return json.get("_version").getAsLong(); //$NON-NLS-1$
+        }
+        if (json != null && json.has("found") && !json.get("found").getAsBoolean()) { //$NON-NLS-1$ //$NON-NLS-2$
+            return 0;
+        }
+        return -1;
+    }
+
+    /**
+     * Reads the change log entries for the given range of data versions.
+     * @param fromVersion the first version (inclusive)
+     * @param toVersion the last version (inclusive)
+     * @return the changes, in order, or null if any of them is missing
+     * @throws IOException
+     */
+    protected List<DataChangeBean> getChanges(long fromVersion, long toVersion) throws IOException {
+        List<String> ids = new ArrayList<>();
+        for (long version = fromVersion; version <= toVersion; version++) {
+            ids.add(String.valueOf(version));
+        }
+        MultiGet get = new MultiGet.Builder.ById(getIndexName(), "dataChange").addId(ids).build(); //$NON-NLS-1$
+        JestResult result = getClient().execute(get);
+        if (!result.isSucceeded()) {
+            return null;
+        }
+        JsonArray docs = result.getJsonObject().getAsJsonArray("docs"); //$NON-NLS-1$
+        if (docs == null || docs.size() != ids.size()) {
+            return null;
+        }
+        List<DataChangeBean> changes = new ArrayList<>(ids.size());
+        for (JsonElement element : docs) {
+            JsonObject doc = element.getAsJsonObject();
+            if (!doc.has("found") || !doc.get("found").getAsBoolean()) { //$NON-NLS-1$ //$NON-NLS-2$
+                return null;
+            }
+            JsonObject source = doc.getAsJsonObject("_source"); //$NON-NLS-1$
+            DataChangeBean change = new DataChangeBean();
+            change.setEntityType(getString(source, "entityType")); //$NON-NLS-1$
+            change.setOrganizationId(getString(source, "organizationId")); //$NON-NLS-1$
+            change.setEntityId(getString(source, "entityId")); //$NON-NLS-1$
+            change.setVersion(getString(source, "version")); //$NON-NLS-1$
+            changes.add(change);
+        }
+        return changes;
+    }
+
+    /**
+     * Null-safe string field access.
+     * @param json
+     * @param field
+     */
+    private static String getString(JsonObject json, String field) {
+        JsonElement element = json.get(field);
+        return element == null || element.isJsonNull() ? null : element.getAsString();
+    }
+
+    /**
+     * Ignores the result of an async ES request.
+     */
+    private static class NoOpResultHandler implements JestResultHandler<JestResult> {
+        @Override
+        public void completed(JestResult result) {
+        }
+        @Override
+        public void failed(Exception e) {
         }
     }
 
@@ -0,0 +1,511 @@
+/*
+ * Copyright 2015 JBoss Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.apiman.gateway.engine.es;
+
+import io.apiman.gateway.engine.components.rate.RateLimitResponse;
+import io.apiman.gateway.engine.rates.RateBucketAlgorithm;
+import io.apiman.gateway.engine.rates.RateBucketPeriod;
+import io.apiman.gateway.engine.rates.RateLimiterBucket;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Manages the local rate limiting leases of a distributed rate limiter.  Rather
+ * than updating the shared bucket on every request, a gateway node reserves a
+ * block of permits (a lease) from the shared bucket and then serves requests
+ * from that block locally.  The shared bucket is only updated when a lease is
+ * reserved or renewed, so the number of remote calls per request drops to
+ * roughly 1/leaseSize.
+ *
+ * Permits are only ever reserved when the shared bucket has them available, so
+ * the global limit is never exceeded.  The price is that permits reserved by
+ * one node can't be used by another node.  To bound that, a lease is only
+ * valid for 'leaseTtl' millis - after that any unused permits are returned to
+ * the shared bucket, either as part of the next reservation or by releasing
+ * them (see {@link #release(long, boolean)}).
+ *
+ * Only one reservation per bucket is in progress at a time: requests that find
+ * no usable lease while a reservation is pending wait for it (see
+ * {@link #getPending(String, RateBucketPeriod, long)}) rather than each
+ * reserving a block of their own.
+ *
+ * Only the {@link RateBucketAlgorithm#FixedWindow} algorithm supports leases.
+ *
+ * @author eric.wittmann@redhat.com
+ */
+public class RateLimiterLeases {
+
+    private static final long DEFAULT_LEASE_TTL = 5000L;
+
+    private final long leaseSize;
+    private final long leaseTtl;
+    private final ConcurrentHashMap<String, Lease> leases = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Reservation> pending = new ConcurrentHashMap<>();
+
+    /**
+     * Constructor.
+     * @param config the component config
+     */
+    public RateLimiterLeases(Map<String, String> config) {
+        String ls = config.get("leaseSize"); //$NON-NLS-1$
+        String lt = config.get("leaseTtl"); //$NON-NLS-1$
+        this.leaseSize = ls == null ? 0 : new Long(ls);
+        this.leaseTtl = lt == null ? DEFAULT_LEASE_TTL : new Long(lt);
+    }
+
+    /**
+     * @return true if leasing is enabled (a 'leaseSize' is configured)
+     */
+    public boolean isEnabled() {
+        return leaseSize > 0;
+    }
+
+    /**
+     * @return how long (in ms) a lease is valid for
+     */
+    public long getLeaseTtl() {
+        return leaseTtl;
+    }
+
+    /**
+     * Returns true if a request can be served using leases.  Leasing is disabled
+     * unless a 'leaseSize' is configured.
+     * @param algorithm
+     * @param increment
+     */
+    public boolean isLeasable(RateBucketAlgorithm algorithm, long increment) {
+        return leaseSize > 0 && algorithm == RateBucketAlgorithm.FixedWindow && increment <= leaseSize;
+    }
+
+    /**
+     * Tries to accept the request using the permits of the current lease for the
+     * given bucket.  Returns null if there is no valid lease or it doesn't have
+     * enough permits left, in which case a new lease must be reserved.
+     * @param bucketId
+     * @param period
+     * @param limit
+     * @param increment
+     */
+    public RateLimitResponse tryAccept(String bucketId, RateBucketPeriod period, long limit, long increment) {
+        Lease lease = leases.get(bucketId);
+        if (lease == null) {
+            return null;
+        }
+        long now = System.currentTimeMillis();
+        synchronized (lease) {
+            if (!lease.isValid(period, limit, now) || lease.remaining < Math.max(increment, 1)) {
+                return null;
+            }
+            lease.remaining -= increment;
+            RateLimitResponse response = new RateLimitResponse();
+            response.setAccepted(true);
+            response.setRemaining(lease.remoteRemaining + lease.remaining);
+            response.setReset((lease.periodEnd - now) / 1000L);
+            return response;
+        }
+    }
+
+    /**
+     * Returns true if the lease for the given bucket is running low and should
+     * be renewed in the background.  Only returns true once per renewal, so the
+     * caller is expected to follow up with a call to {@link #reserve(String, RateBucketPeriod, long, long)}.
+     * @param bucketId
+     */
+    public boolean shouldRenew(String bucketId) {
+        Lease lease = leases.get(bucketId);
+        if (lease == null) {
+            return false;
+        }
+        synchronized (lease) {
+            if (lease.renewing || lease.remaining * 2 > leaseSize) {
+                return false;
+            }
+            lease.renewing = true;
+            return true;
+        }
+    }
+
+    /**
+     * Creates a reservation of a new block of permits for the given bucket, which
+     * becomes the bucket's pending reservation until it completes.  Returns null
+     * if another reservation (with the same settings) is already pending for the
+     * bucket, in which case the caller should wait for that one instead (see
+     * {@link #getPending(String, RateBucketPeriod, long)}).  If the current lease
+     * for the bucket is no longer valid, its unused permits are taken from it so
+     * that the reservation can return them to the shared bucket.
+     * @param bucketId
+     * @param period
+     * @param limit
+     * @param increment
+     * @return the new reservation, or null if another one is pending
+     */
+    public Reservation reserve(String bucketId, RateBucketPeriod period, long limit, long increment) {
+        Reservation reservation = new Reservation(bucketId, period, limit, increment);
+        while (true) {
+            Reservation existing = pending.putIfAbsent(bucketId, reservation);
+            if (existing == null) {
+                break;
+            }
+            if (isUsable(existing, period, limit)) {
+                return null;
+            }
+            // Lost, or for an older configuration of the policy
+            if (pending.replace(bucketId, existing, reservation)) {
+                break;
+            }
+        }
+        Lease lease = leases.get(bucketId);
+        if (lease != null) {
+            synchronized (lease) {
+                if (!lease.isValid(period, limit, System.currentTimeMillis())) {
+                    reservation.returned = lease.remaining;
+                    reservation.returnedPeriodEnd = lease.periodEnd;
+                    lease.remaining = 0;
+                    leases.remove(bucketId, lease);
+                }
+            }
+        }
+        return reservation;
+    }
+
+    /**
+     * Gets the reservation currently in progress for the given bucket (with the
+     * same settings), if any.  Instead of reserving another block of permits, the
+     * caller should wait for it to complete and then try again.  Reservations that
+     * have been pending for longer than the lease TTL are assumed to be lost.
+     * @param bucketId
+     * @param period
+     * @param limit
+     * @return the pending reservation or null if there is none
+     */
+    public Reservation getPending(String bucketId, RateBucketPeriod period, long limit) {
+        Reservation reservation = pending.get(bucketId);
+        if (reservation == null || !isUsable(reservation, period, limit)) {
+            return null;
+        }
+        return reservation;
+    }
+
+    /**
+     * Returns true if requests with the given settings can wait for the given
+     * reservation, rather than reserving permits of their own.
+     */
+    private boolean isUsable(Reservation reservation, RateBucketPeriod period, long limit) {
+        return System.currentTimeMillis() - reservation.createdOn <= leaseTtl
+                && reservation.period == period && reservation.limit == limit;
+    }
+
+    /**
+     * Takes the unused permits out of the leases that have expired (or of all
+     * leases, e.g. when shutting down), so that they can be given back to the
+     * shared buckets right away rather than on the next reservation.  Each of
+     * the returned updates must be applied to the shared bucket of its lease.
+     * @param now
+     * @param all whether to release all leases, rather than just the expired ones
+     * @return the updates that return the permits to the shared buckets
+     */
+    public List<Release> release(long now, boolean all) {
+        List<Release> releases = new ArrayList<>();
+        for (Map.Entry<String, Lease> entry : leases.entrySet()) {
+            Lease lease = entry.getValue();
+            synchronized (lease) {
+                if (!all && now < lease.expiresOn) {
+                    continue;
+                }
+                leases.remove(entry.getKey(), lease);
+                if (lease.remaining > 0 && now < lease.periodEnd) {
+                    releases.add(new Release(entry.getKey(), lease.period, lease.remaining, lease.periodEnd));
+                }
+                lease.remaining = 0;
+            }
+        }
+        return releases;
+    }
+
+    /**
+     * Returns unused permits to a shared bucket, unless the period they were
+     * reserved in is already over.
+     */
+    private static void giveBack(RateLimiterBucket bucket, RateBucketPeriod period, long returned,
+            long returnedPeriodEnd, long now) {
+        if (returned > 0 && RateLimiterBucket.getPeriodBoundary(bucket.getLast(), period) == returnedPeriodEnd
+                && now < returnedPeriodEnd) {
+            bucket.setCount(Math.max(0, bucket.getCount() - returned));
+        }
+    }
+
+    /**
+     * @return the number of leases currently held
+     */
+    protected int getLeaseCount() {
+        return leases.size();
+    }
+
+    /**
+     * Installs (or tops up) the lease once a reservation has been stored in the
+     * shared bucket.
+     * @param reservation
+     */
+    private void install(Reservation reservation) {
+        long now = System.currentTimeMillis();
+        Lease newLease = new Lease(reservation.period, reservation.limit, reservation.periodEnd, now + leaseTtl);
+        newLease.remaining = reservation.granted - reservation.increment;
+        newLease.remoteRemaining = reservation.remoteRemaining;
+        while (true) {
+            Lease lease = leases.get(reservation.bucketId);
+            if (lease == null) {
+                if (reservation.granted == 0 || leases.putIfAbsent(reservation.bucketId, newLease) == null) {
+                    return;
+                }
+                continue;
+            }
+            synchronized (lease) {
+                if (leases.get(reservation.bucketId) != lease) {
+                    continue;
+                }
+                if (reservation.granted == 0) {
+                    lease.renewing = false;
+                } else if (lease.isValid(reservation.period, reservation.limit, now) && lease.periodEnd == reservation.periodEnd) {
+                    // Top up the existing lease
+                    lease.remaining += newLease.remaining;
+                    lease.remoteRemaining = newLease.remoteRemaining;
+                    lease.expiresOn = newLease.expiresOn;
+                    lease.renewing = false;
+                } else {
+                    // Any permits left in the stale lease belong to a period that is over
+                    // or to an older configuration of the policy, so they are dropped.
+                    leases.replace(reservation.bucketId, lease, newLease);
+                }
+                return;
+            }
+        }
+    }
+
+    /**
+     * A block of permits reserved from the shared bucket.  All access must be
+     * synchronized on the lease.
+     */
+    private static final class Lease {
+
+        private final RateBucketPeriod period;
+        private final long limit;
+        private final long periodEnd;
+        private long expiresOn;
+        private long remaining;
+        private long remoteRemaining;
+        private boolean renewing;
+
+        /**
+         * Constructor.
+         */
+        public Lease(RateBucketPeriod period, long limit, long periodEnd, long expiresOn) {
+            this.period = period;
+            this.limit = limit;
+            this.periodEnd = periodEnd;
+            this.expiresOn = expiresOn;
+        }
+
+        /**
+         * Returns true if the lease can be used for a request with the given settings.
+         */
+        public boolean isValid(RateBucketPeriod period, long limit, long now) {
+            return this.period == period && this.limit == limit && now < periodEnd && now < expiresOn;
+        }
+    }
+
+    /**
+     * A pending update of the shared bucket that reserves a block of permits.  The
+     * update may be applied more than once (e.g. when retrying after a version
+     * conflict) and must be completed once it has been successfully stored.
+     */
+    public final class Reservation implements IRateBucketUpdate {
+
+        private final String bucketId;
+        private final RateBucketPeriod period;
+        private final long limit;
+        private final long increment;
+        private long returned;
+        private long returnedPeriodEnd;
+
+        private final long createdOn = System.currentTimeMillis();
+
+        private long granted;
+        private long periodEnd;
+        private long remoteRemaining;
+        private RateLimitResponse response;
+
+        private boolean done;
+        private RateLimitResponse rejection;
+        private List<Runnable> callbacks = new ArrayList<>();
+
+        /**
+         * Constructor.
+         */
+        private Reservation(String bucketId, RateBucketPeriod period, long limit, long increment) {
+            this.bucketId = bucketId;
+            this.period = period;
+            this.limit = limit;
+            this.increment = increment;
+        }
+
+        /**
+         * Applies the reservation to the shared bucket, returning any permits
+         * that are being given back and then taking a new block of permits.  If
+         * there aren't enough permits left, no lease is taken and the request is
+         * counted directly against the bucket instead.
+         * @see io.apiman.gateway.engine.es.IRateBucketUpdate#apply(io.apiman.gateway.engine.rates.RateLimiterBucket)
+         */
+        @Override
+        public RateLimitResponse apply(RateLimiterBucket bucket) {
+            long now = System.currentTimeMillis();
+            giveBack(bucket, period, returned, returnedPeriodEnd, now);
+            bucket.resetIfNecessary(period);
+
+            long available = limit - bucket.getCount();
+            if (available < Math.max(increment, 1)) {
+                granted = 0;
+                response = bucket.accept(RateBucketAlgorithm.FixedWindow, period, limit, increment);
+                return response;
+            }
+            granted = Math.min(leaseSize, available);
+            periodEnd = RateLimiterBucket.getPeriodBoundary(now, period);
+            bucket.setCount(bucket.getCount() + granted);
+            bucket.setLast(now);
+            remoteRemaining = limit - bucket.getCount();
+
+            response = new RateLimitResponse();
+            response.setAccepted(true);
+            response.setRemaining(remoteRemaining + granted - increment);
+            response.setReset((periodEnd - now) / 1000L);
+            return response;
+        }
+
+        /**
+         * Called once the updated shared bucket has been stored.
+         */
+        public void complete() {
+            install(this);
+            finish(granted == 0 && response != null && !response.isAccepted() ? response : null);
+        }
+
+        /**
+         * Called if the updated shared bucket could not be stored.
+         */
+        public void failed() {
+            granted = 0;
+            install(this);
+            finish(null);
+        }
+
+        /**
+         * Registers a callback to run once the reservation has completed (on the
+         * thread that completes it).  Returns false if it has already completed,
+         * in which case the callback is not run.
+         * @param callback
+         */
+        public synchronized boolean onComplete(Runnable callback) {
+            if (done) {
+                return false;
+            }
+            callbacks.add(callback);
+            return true;
+        }
+
+        /**
+         * Waits (for at most the given time) for the reservation to complete.
+         * @param timeout the max time to wait (in ms)
+         * @return true if the reservation has completed
+         */
+        public synchronized boolean await(long timeout) throws InterruptedException {
+            long until = System.currentTimeMillis() + timeout;
+            long wait = timeout;
+            while (!done && wait > 0) {
+                wait(wait);
+                wait = until - System.currentTimeMillis();
+            }
+            return done;
+        }
+
+        /**
+         * Requests that were waiting for this reservation can't be accepted either
+         * when it found the shared bucket already exhausted.
+         * @return the rejection to send to any waiting requests, or null if they should try again
+         */
+        public synchronized RateLimitResponse getRejection() {
+            return rejection;
+        }
+
+        /**
+         * Marks the reservation as done and runs the callbacks waiting for it.
+         */
+        private void finish(RateLimitResponse rejection) {
+            pending.remove(bucketId, this);
+            List<Runnable> toRun;
+            synchronized (this) {
+                done = true;
+                this.rejection = rejection;
+                toRun = callbacks;
+                callbacks = null;
+                notifyAll();
+            }
+            for (Runnable callback : toRun) {
+                callback.run();
+            }
+        }
+    }
+
+    /**
+     * An update of the shared bucket that gives back the unused permits of an
+     * expired (or released) lease.
+     */
+    public static final class Release implements IRateBucketUpdate {
+
+        private final String bucketId;
+        private final RateBucketPeriod period;
+        private final long returned;
+        private final long periodEnd;
+
+        /**
+         * Constructor.
+         */
+        private Release(String bucketId, RateBucketPeriod period, long returned, long periodEnd) {
+            this.bucketId = bucketId;
+            this.period = period;
+            this.returned = returned;
+            this.periodEnd = periodEnd;
+        }
+
+        /**
+         * @return the id of the bucket to update
+         */
+        public String getBucketId() {
+            return bucketId;
+        }
+
+        /**
+         * @see io.apiman.gateway.engine.es.IRateBucketUpdate#apply(io.apiman.gateway.engine.rates.RateLimiterBucket)
+         */
+        @Override
+        public RateLimitResponse apply(RateLimiterBucket bucket) {
+            giveBack(bucket, period, returned, periodEnd, System.currentTimeMillis());
+            return null;
+        }
+    }
+
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright 2015 JBoss Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.apiman.gateway.engine.es.beans;
+
+/**
+ * A single entry in the ES registry's change log.  One of these is stored for
+ * every update to the registry (keyed by the data version that the update
+ * produced), so that caching registries can evict only the entities that have
+ * actually changed.
+ *
+ * @author eric.wittmann@redhat.com
+ */
+public class DataChangeBean {
+
+    public static final String TYPE_SERVICE = "service"; //$NON-NLS-1$
+    public static final String TYPE_APPLICATION = "application"; //$NON-NLS-1$
+
+    private long updatedOn;
+    private String entityType;
+    private String organizationId;
+    private String entityId;
+    private String version;
+
+    /**
+     * Constructor.
+     */
+    public DataChangeBean() {
+    }
+
+    /**
+     * Constructor.
+     * @param entityType
+     * @param organizationId
+     * @param entityId
+     * @param version
+     */
+    public DataChangeBean(String entityType, String organizationId, String entityId, String version) {
+        this.updatedOn = System.currentTimeMillis();
+        this.entityType = entityType;
+        this.organizationId = organizationId;
+        this.entityId = entityId;
+        this.version = version;
+    }
+
+    /**
+     * @return the updatedOn
+     */
+    public long getUpdatedOn() {
+        return updatedOn;
+    }
+
+    /**
+     * @param updatedOn the updatedOn to set
+     */
+    public void setUpdatedOn(long updatedOn) {
+        this.updatedOn = updatedOn;
+    }
+
+    /**
+     * @return the entityType
+     */
+    public String getEntityType() {
+        return entityType;
+    }
+
+    /**
+     * @param entityType the entityType to set
+     */
+    public void setEntityType(String entityType) {
+        this.entityType = entityType;
+    }
+
+    /**
+     * @return the organizationId
+     */
+    public String getOrganizationId() {
+        return organizationId;
+    }
+
+    /**
+     * @param organizationId the organizationId to set
+     */
+    public void setOrganizationId(String organizationId) {
+        this.organizationId = organizationId;
+    }
+
+    /**
+     * @return the entityId (service or application id)
+     */
+    public String getEntityId() {
+        return entityId;
+    }
+
+    /**
+     * @param entityId the entityId to set
+     */
+    public void setEntityId(String entityId) {
+        this.entityId = entityId;
+    }
+
+    /**
+     * @return the version
+     */
+    public String getVersion() {
+        return version;
+    }
+
+    /**
+     * @param version the version to set
+     */
+    public void setVersion(String version) {
+        this.version = version;
+    }
+
+}
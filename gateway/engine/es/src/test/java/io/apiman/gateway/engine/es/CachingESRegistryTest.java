@@ -0,0 +1,340 @@
+/*
+ * Copyright 2015 JBoss Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.apiman.gateway.engine.es;
+
+import io.apiman.gateway.engine.async.IAsyncResult;
+import io.apiman.gateway.engine.async.IAsyncResultHandler;
+import io.apiman.gateway.engine.beans.Application;
+import io.apiman.gateway.engine.beans.Contract;
+import io.apiman.gateway.engine.beans.Service;
+import io.apiman.gateway.engine.beans.ServiceContract;
+import io.apiman.gateway.engine.beans.ServiceRequest;
+import io.searchbox.action.Action;
+import io.searchbox.client.JestClient;
+import io.searchbox.client.JestResult;
+import io.searchbox.client.JestResultHandler;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+/**
+ * Unit test for {@link CachingESRegistry}.  ES is simulated by a client that
+ * never blocks and leaves it to the test to complete the requests.
+ */
+@SuppressWarnings({ "nls", "javadoc", "rawtypes", "unchecked" })
+public class CachingESRegistryTest {
+
+    @Test
+    public void testServiceMiss() throws Exception {
+        TestClient client = new TestClient();
+        CachingESRegistry registry = registry(client);
+        List<IAsyncResult<Service>> results = new ArrayList<>();
+        getService(registry, results);
+        getService(registry, results);
+        // A single (non-blocking) load, which both wait for
+        Assert.assertEquals(1, client.pending.size());
+        Assert.assertTrue(results.isEmpty());
+
+        client.complete(0, ESRegistryMarshalling.marshall(service()).string());
+        Assert.assertEquals(2, results.size());
+        Assert.assertEquals("1.0", results.get(0).getResult().getVersion());
+        Assert.assertSame(results.get(0).getResult(), results.get(1).getResult());
+
+        // Now cached
+        getService(registry, results);
+        Assert.assertEquals(1, client.pending.size());
+        Assert.assertEquals(3, results.size());
+    }
+
+    @Test
+    public void testEvictedWhileLoading() throws Exception {
+        TestClient client = new TestClient();
+        CachingESRegistry registry = registry(client);
+        List<IAsyncResult<Service>> results = new ArrayList<>();
+        getService(registry, results);
+        registry.evictService("org", "svc", "1.0");
+        client.complete(0, ESRegistryMarshalling.marshall(service()).string());
+        Assert.assertEquals("1.0", results.get(0).getResult().getVersion());
+
+        // What was loaded may already be stale, so it wasn't cached
+        getService(registry, results);
+        Assert.assertEquals(2, client.pending.size());
+    }
+
+    @Test
+    public void testContractMiss() throws Exception {
+        TestClient client = new TestClient();
+        CachingESRegistry registry = registry(client);
+        List<IAsyncResult<ServiceContract>> results = new ArrayList<>();
+        getContract(registry, results);
+        getContract(registry, results);
+        Assert.assertEquals(1, client.pending.size());
+
+        Application application = new Application();
+        application.setOrganizationId("org");
+        application.setApplicationId("app");
+        application.setVersion("1.0");
+        ServiceContract contract = new ServiceContract("key-1", service(), application, "Gold", null);
+        client.complete(0, ESRegistryMarshalling.marshall(contract).string());
+        // Then the service is checked
+        Assert.assertEquals(2, client.pending.size());
+        Assert.assertTrue(results.isEmpty());
+        client.complete(1, ESRegistryMarshalling.marshall(service()).string());
+
+        Assert.assertEquals(2, results.size());
+        Assert.assertTrue(results.get(0).isSuccess());
+        Assert.assertEquals("key-1", results.get(0).getResult().getApikey());
+        Assert.assertSame(results.get(0).getResult(), results.get(1).getResult());
+        // And the application is loaded into the cache in the background
+        Assert.assertEquals(3, client.pending.size());
+    }
+
+    @Test
+    public void testUnknownContract() throws Exception {
+        TestClient client = new TestClient();
+        CachingESRegistry registry = registry(client);
+        List<IAsyncResult<ServiceContract>> results = new ArrayList<>();
+        getContract(registry, results);
+        client.complete(0, null);
+        Assert.assertTrue(results.get(0).isError());
+
+        // The unknown API key is remembered
+        getContract(registry, results);
+        Assert.assertEquals(1, client.pending.size());
+        Assert.assertSame(results.get(0), results.get(1));
+
+        // Until something changes
+        registry.evictApplication("org", "app", "1.0");
+        getContract(registry, results);
+        Assert.assertEquals(2, client.pending.size());
+    }
+
+    @Test
+    public void testUnknownService() throws Exception {
+        TestClient client = new TestClient();
+        CachingESRegistry registry = registry(client);
+        List<IAsyncResult<Service>> results = new ArrayList<>();
+        getService(registry, results);
+        client.complete(0, null);
+        Assert.assertNull(results.get(0).getResult());
+
+        getService(registry, results);
+        Assert.assertEquals(1, client.pending.size());
+        Assert.assertNull(results.get(1).getResult());
+
+        registry.evictService("org", "svc", "1.0");
+        getService(registry, results);
+        Assert.assertEquals(2, client.pending.size());
+    }
+
+    @Test
+    public void testFailedLookupNotRemembered() throws Exception {
+        TestClient client = new TestClient();
+        CachingESRegistry registry = registry(client);
+        List<IAsyncResult<ServiceContract>> results = new ArrayList<>();
+        getContract(registry, results);
+        // E.g. the index doesn't exist
+        client.fail(0);
+        Assert.assertTrue(results.get(0).isError());
+
+        getContract(registry, results);
+        Assert.assertEquals(2, client.pending.size());
+    }
+
+    @Test
+    public void testPreload() throws Exception {
+        TestClient client = new TestClient();
+        CachingESRegistry registry = registry(client);
+        Application application = new Application();
+        application.setOrganizationId("org");
+        application.setApplicationId("app");
+        application.setVersion("1.0");
+        Contract contract = new Contract();
+        contract.setApiKey("key-1");
+        contract.setServiceOrgId("org");
+        contract.setServiceId("svc");
+        contract.setServiceVersion("1.0");
+        contract.setPlan("Gold");
+        application.getContracts().add(contract);
+
+        client.responses.add("{}"); // refresh
+        client.responses.add(scrollPage());
+        client.responses.add(scrollPage(ESRegistryMarshalling.marshall(service()).string()));
+        client.responses.add(scrollPage());
+        client.responses.add(scrollPage());
+        client.responses.add(scrollPage(ESRegistryMarshalling.marshall(application).string()));
+        client.responses.add(scrollPage());
+        registry.preloadCache();
+        Assert.assertTrue(client.responses.isEmpty());
+
+        // Everything is served from the cache
+        List<IAsyncResult<ServiceContract>> results = new ArrayList<>();
+        getContract(registry, results);
+        Assert.assertTrue(client.pending.isEmpty());
+        Assert.assertEquals("key-1", results.get(0).getResult().getApikey());
+        Assert.assertEquals("svc", results.get(0).getResult().getService().getServiceId());
+        Assert.assertEquals("Gold", results.get(0).getResult().getPlan());
+    }
+
+    @Test
+    public void testPreloadSkipsEvicted() throws Exception {
+        final CachingESRegistry[] registry = new CachingESRegistry[1];
+        TestClient client = new TestClient() {
+            private int calls;
+
+            @Override
+            public <T extends JestResult> T execute(Action<T> action) throws IOException {
+                if (++calls == 3) {
+                    // The service is updated while its (now old) version is being preloaded
+                    registry[0].evictService("org", "svc", "1.0");
+                }
+                return super.execute(action);
+            }
+        };
+        registry[0] = registry(client);
+        client.responses.add("{}"); // refresh
+        client.responses.add(scrollPage());
+        client.responses.add(scrollPage(ESRegistryMarshalling.marshall(service()).string()));
+        client.responses.add(scrollPage());
+        client.responses.add(scrollPage());
+        client.responses.add(scrollPage());
+        registry[0].preloadCache();
+        Assert.assertTrue(client.responses.isEmpty());
+
+        // The service is loaded on demand
+        List<IAsyncResult<Service>> results = new ArrayList<>();
+        getService(registry[0], results);
+        Assert.assertEquals(1, client.pending.size());
+    }
+
+    private static String scrollPage(String... sources) {
+        StringBuilder builder = new StringBuilder("{ \"_scroll_id\": \"scroll\", \"hits\": { \"hits\": [");
+        for (int i = 0; i < sources.length; i++) {
+            builder.append(i == 0 ? "" : ",").append("{ \"_source\": ").append(sources[i]).append("}");
+        }
+        return builder.append("] } }").toString();
+    }
+
+    private static CachingESRegistry registry(final TestClient client) {
+        return new CachingESRegistry(new HashMap<String, String>()) {
+            @Override
+            public synchronized JestClient getClient() {
+                return client;
+            }
+        };
+    }
+
+    private static Service service() {
+        Service service = new Service();
+        service.setOrganizationId("org");
+        service.setServiceId("svc");
+        service.setVersion("1.0");
+        return service;
+    }
+
+    private static void getService(CachingESRegistry registry, final List<IAsyncResult<Service>> results) {
+        registry.getService("org", "svc", "1.0", new IAsyncResultHandler<Service>() {
+            @Override
+            public void handle(IAsyncResult<Service> result) {
+                results.add(result);
+            }
+        });
+    }
+
+    private static void getContract(CachingESRegistry registry, final List<IAsyncResult<ServiceContract>> results) {
+        ServiceRequest request = new ServiceRequest();
+        request.setApiKey("key-1");
+        request.setServiceOrgId("org");
+        request.setServiceId("svc");
+        request.setServiceVersion("1.0");
+        registry.getContract(request, new IAsyncResultHandler<ServiceContract>() {
+            @Override
+            public void handle(IAsyncResult<ServiceContract> result) {
+                results.add(result);
+            }
+        });
+    }
+
+    private static class TestClient implements JestClient {
+
+        private List<JestResultHandler> pending = new ArrayList<>();
+        // Responses to blocking calls (only made when preloading)
+        private List<String> responses = new ArrayList<>();
+
+        @Override
+        public <T extends JestResult> T execute(Action<T> action) throws IOException {
+            if (responses.isEmpty()) {
+                throw new IOException("Blocking call!");
+            }
+            JestResult result = new JestResult(new Gson());
+            result.setJsonObject(new JsonParser().parse(responses.remove(0)).getAsJsonObject());
+            result.setSucceeded(true);
+            return (T) result;
+        }
+
+        @Override
+        public <T extends JestResult> void executeAsync(Action<T> action, JestResultHandler<T> handler) {
+            pending.add(handler);
+        }
+
+        /**
+         * Completes the given request with the given document source (or as not
+         * found if null).
+         */
+        public void complete(int idx, String source) {
+            JestResult result = new JestResult(new Gson());
+            result.setPathToResult("_source");
+            JsonObject json = new JsonObject();
+            json.addProperty("found", source != null);
+            if (source != null) {
+                json.add("_source", new JsonParser().parse(source));
+            }
+            result.setJsonObject(json);
+            result.setSucceeded(source != null);
+            pending.get(idx).completed(result);
+        }
+
+        /**
+         * Completes the given request as failed, without saying whether the
+         * document exists.
+         */
+        public void fail(int idx) {
+            JestResult result = new JestResult(new Gson());
+            result.setJsonObject(new JsonObject());
+            result.setSucceeded(false);
+            pending.get(idx).completed(result);
+        }
+
+        @Override
+        public void shutdownClient() {
+        }
+
+        @Override
+        public void setServers(Set<String> servers) {
+        }
+    }
+
+}
@@ -0,0 +1,168 @@
+/*
+ * Copyright 2015 JBoss Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.apiman.gateway.engine.es;
+
+import io.apiman.gateway.engine.metrics.RequestMetric;
+import io.searchbox.action.Action;
+import io.searchbox.client.JestClient;
+import io.searchbox.client.JestResult;
+import io.searchbox.client.JestResultHandler;
+import io.searchbox.core.Bulk;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParser;
+
+/**
+ * Unit test for the bulk indexing done by {@link ESMetrics}.
+ */
+@SuppressWarnings({ "nls", "javadoc" })
+public class ESMetricsTest {
+
+    @Test
+    public void testBulkSplitBySize() throws Exception {
+        TestClient client = new TestClient();
+        Map<String, String> config = new HashMap<>();
+        config.put("bulkMaxBytes", "700");
+        ESMetrics metrics = metrics(client, config);
+        client.statuses.add(Arrays.asList(201, 201));
+        client.statuses.add(Arrays.asList(201));
+        metrics.write(Arrays.asList(metric(1), metric(2), metric(3)));
+        Assert.assertEquals(2, client.bulks.size());
+        Assert.assertEquals(4, lines(client.bulks.get(0)));
+        Assert.assertEquals(2, lines(client.bulks.get(1)));
+        Assert.assertTrue(client.bulks.get(0).contains("\"_index\":\"apiman_metrics\""));
+        Assert.assertEquals(0, metrics.getDroppedCount());
+    }
+
+    @Test
+    public void testRetry() throws Exception {
+        TestClient client = new TestClient();
+        Map<String, String> config = new HashMap<>();
+        config.put("maxRetries", "1");
+        config.put("retryBackoff", "1");
+        ESMetrics metrics = metrics(client, config);
+        // Busy, rejected, indexed
+        client.statuses.add(Arrays.asList(429, 400, 201));
+        // Still busy
+        client.statuses.add(Arrays.asList(503));
+        metrics.write(Arrays.asList(metric(1), metric(2), metric(3)));
+        Assert.assertEquals(2, client.bulks.size());
+        Assert.assertEquals(2, lines(client.bulks.get(1)));
+        Assert.assertTrue(client.bulks.get(1).contains("\"responseCode\":1"));
+        Assert.assertEquals(2, metrics.getDroppedCount());
+    }
+
+    @Test
+    public void testRejectedCounted() throws Exception {
+        TestClient client = new TestClient();
+        ESMetrics metrics = metrics(client, new HashMap<String, String>());
+        List<RequestMetric> batch = new ArrayList<>();
+        List<Integer> codes = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            batch.add(metric(i));
+            codes.add(i % 2 == 0 ? 400 : 201);
+        }
+        client.statuses.add(codes);
+        metrics.write(batch);
+        // Rejected documents aren't retried
+        Assert.assertEquals(1, client.bulks.size());
+        Assert.assertEquals(50, metrics.getDroppedCount());
+    }
+
+    @Test
+    public void testIndexPerDay() throws Exception {
+        Map<String, String> config = new HashMap<>();
+        config.put("indexPerDay", "true");
+        ESMetrics metrics = metrics(new TestClient(), config);
+        RequestMetric metric = metric(1);
+        metric.setRequestStart(new Date(1448323200000L)); // 2015-11-24T00:00:00Z
+        Assert.assertEquals("apiman_metrics-2015.11.24", metrics.getIndexName(metric));
+    }
+
+    private static ESMetrics metrics(final TestClient client, Map<String, String> config) {
+        return new ESMetrics(config) {
+            @Override
+            public synchronized JestClient getClient() {
+                return client;
+            }
+        };
+    }
+
+    private static RequestMetric metric(int responseCode) {
+        RequestMetric metric = new RequestMetric();
+        metric.setRequestStart(new Date());
+        metric.setResponseCode(responseCode);
+        metric.setUrl("http://localhost:8080/apiman-gateway/org/service/1.0/some/resource/path");
+        return metric;
+    }
+
+    private static int lines(String bulk) {
+        return bulk.trim().split("\n").length;
+    }
+
+    private static class TestClient implements JestClient {
+
+        // The bulk request bodies
+        private List<String> bulks = new ArrayList<>();
+        // The statuses to respond to the bulk requests with
+        private List<List<Integer>> statuses = new ArrayList<>();
+
+        @SuppressWarnings("unchecked")
+        @Override
+        public <T extends JestResult> T execute(Action<T> action) throws IOException {
+            if (!(action instanceof Bulk)) {
+                throw new IOException("Unexpected request");
+            }
+            bulks.add(action.getData(new Gson()));
+            StringBuilder response = new StringBuilder("{ \"items\": [");
+            List<Integer> codes = statuses.remove(0);
+            for (int i = 0; i < codes.size(); i++) {
+                response.append(i == 0 ? "" : ",").append("{ \"index\": { \"status\": ").append(codes.get(i)).append("} }");
+            }
+            response.append("] }");
+            JestResult result = new JestResult(new Gson());
+            result.setJsonObject(new JsonParser().parse(response.toString()).getAsJsonObject());
+            result.setSucceeded(true);
+            return (T) result;
+        }
+
+        @Override
+        public <T extends JestResult> void executeAsync(Action<T> action, JestResultHandler<T> handler) {
+            throw new RuntimeException("Unexpected request");
+        }
+
+        @Override
+        public void shutdownClient() {
+        }
+
+        @Override
+        public void setServers(Set<String> servers) {
+        }
+    }
+
+}
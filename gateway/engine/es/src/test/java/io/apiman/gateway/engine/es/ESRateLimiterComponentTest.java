@@ -0,0 +1,176 @@
+/*
+ * Copyright 2015 JBoss Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.apiman.gateway.engine.es;
+
+import io.apiman.gateway.engine.async.IAsyncResult;
+import io.apiman.gateway.engine.async.IAsyncResultHandler;
+import io.apiman.gateway.engine.components.rate.RateLimitResponse;
+import io.apiman.gateway.engine.rates.RateBucketPeriod;
+import io.apiman.gateway.engine.rates.RateLimiterBucket;
+import io.searchbox.action.AbstractAction;
+import io.searchbox.action.Action;
+import io.searchbox.client.JestClient;
+import io.searchbox.client.JestResult;
+import io.searchbox.client.JestResultHandler;
+import io.searchbox.core.Get;
+import io.searchbox.core.Index;
+import io.searchbox.params.Parameters;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.google.gson.Gson;
+
+/**
+ * Unit test for the versioned bucket writes of {@link ESRateLimiterComponent}.
+ * The ES index is simulated by a client that keeps a single, versioned document.
+ */
+@SuppressWarnings({ "nls", "javadoc" })
+public class ESRateLimiterComponentTest {
+
+    @Test
+    public void testConflictingWriteRetried() {
+        TestClient client = new TestClient();
+        // Another gateway node leases 10 permits between our read and our write
+        RateLimiterBucket other = new RateLimiterBucket();
+        other.setCount(10);
+        client.concurrentWrite = other;
+
+        Map<String, String> config = new HashMap<>();
+        config.put("leaseSize", "10");
+        ESRateLimiterComponent limiter = limiter(client, config);
+
+        int accepted = 0;
+        for (int i = 0; i < 20; i++) {
+            if (accept(limiter, 15).isAccepted()) {
+                accepted++;
+            }
+        }
+        // Our first write was rejected, so only the 5 permits left were leased
+        Assert.assertEquals(1, client.conflicts);
+        Assert.assertEquals(5, accepted);
+        Assert.assertTrue(client.stored().getCount() >= 15);
+    }
+
+    @Test
+    public void testConflictingWriteWithoutLeases() {
+        TestClient client = new TestClient();
+        RateLimiterBucket other = new RateLimiterBucket();
+        other.setCount(14);
+        client.concurrentWrite = other;
+
+        ESRateLimiterComponent limiter = limiter(client, new HashMap<String, String>());
+        Assert.assertTrue(accept(limiter, 15).isAccepted());
+        Assert.assertFalse(accept(limiter, 15).isAccepted());
+        Assert.assertEquals(1, client.conflicts);
+    }
+
+    private static ESRateLimiterComponent limiter(final TestClient client, Map<String, String> config) {
+        return new ESRateLimiterComponent(config) {
+            @Override
+            public synchronized JestClient getClient() {
+                return client;
+            }
+        };
+    }
+
+    private static RateLimitResponse accept(ESRateLimiterComponent limiter, long limit) {
+        final Object[] holder = new Object[1];
+        limiter.accept("bucket", RateBucketPeriod.Hour, limit, 1, new IAsyncResultHandler<RateLimitResponse>() {
+            @Override
+            public void handle(IAsyncResult<RateLimitResponse> result) {
+                holder[0] = result.isSuccess() ? result.getResult() : result.getError();
+            }
+        });
+        if (holder[0] instanceof Throwable) {
+            throw new RuntimeException((Throwable) holder[0]);
+        }
+        return (RateLimitResponse) holder[0];
+    }
+
+    /**
+     * Responds like ES would, for the one document it stores.
+     */
+    private static class TestClient implements JestClient {
+
+        private final Gson gson = new Gson();
+        private String source;
+        private long version;
+        // Written (once) right before the next write of the component
+        private RateLimiterBucket concurrentWrite;
+        private int conflicts;
+
+        public RateLimiterBucket stored() {
+            return gson.fromJson(source, RateLimiterBucket.class);
+        }
+
+        @Override
+        public <T extends JestResult> T execute(Action<T> action) throws IOException {
+            if (action instanceof Get) {
+                if (source == null) {
+                    return action.createNewElasticSearchResult("{ \"found\": false }", 404, "Not Found", gson);
+                }
+                return action.createNewElasticSearchResult("{ \"found\": true, \"_version\": " + version
+                        + ", \"_source\": " + source + " }", 200, "OK", gson);
+            }
+            if (!(action instanceof Index)) {
+                throw new IOException("Unexpected request");
+            }
+            if (concurrentWrite != null) {
+                source = gson.toJson(concurrentWrite);
+                version++;
+                concurrentWrite = null;
+            }
+            String opType = param(action, Parameters.OP_TYPE);
+            String expected = param(action, Parameters.VERSION);
+            if (("create".equals(opType) && source != null)
+                    || (expected != null && Long.parseLong(expected) != version)) {
+                conflicts++;
+                return action.createNewElasticSearchResult(
+                        "{ \"error\": \"VersionConflictEngineException[...]\", \"status\": 409 }", 409,
+                        "Conflict", gson);
+            }
+            source = action.getData(gson);
+            version++;
+            return action.createNewElasticSearchResult("{ \"_version\": " + version + " }", 200, "OK", gson);
+        }
+
+        private static String param(Action<?> action, String name) {
+            Collection<Object> values = ((AbstractAction<?>) action).getParameter(name);
+            return values == null || values.isEmpty() ? null : String.valueOf(values.iterator().next());
+        }
+
+        @Override
+        public <T extends JestResult> void executeAsync(Action<T> action, JestResultHandler<T> handler) {
+            throw new RuntimeException("Unexpected request");
+        }
+
+        @Override
+        public void shutdownClient() {
+        }
+
+        @Override
+        public void setServers(Set<String> servers) {
+        }
+    }
+
+}
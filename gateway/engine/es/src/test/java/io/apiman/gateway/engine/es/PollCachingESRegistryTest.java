@@ -0,0 +1,194 @@
+/*
+ * Copyright 2015 JBoss Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.apiman.gateway.engine.es;
+
+import io.apiman.gateway.engine.es.beans.DataChangeBean;
+import io.searchbox.action.Action;
+import io.searchbox.client.JestClient;
+import io.searchbox.client.JestResult;
+import io.searchbox.client.JestResultHandler;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Unit test for the change log handling of {@link PollCachingESRegistry}.  The
+ * ES store is simulated by overriding the methods that read from it.
+ */
+@SuppressWarnings({ "nls", "javadoc" })
+public class PollCachingESRegistryTest {
+
+    @Test
+    public void testIncrementalEviction() {
+        TestRegistry registry = new TestRegistry();
+        registry.latestVersion = 3;
+        registry.checkCacheVersion();
+        // Nothing known yet
+        Assert.assertEquals("[invalidate]", registry.events.toString());
+
+        registry.events.clear();
+        registry.checkCacheVersion();
+        Assert.assertTrue(registry.events.isEmpty());
+
+        registry.latestVersion = 5;
+        registry.log.put(4L, new DataChangeBean(DataChangeBean.TYPE_SERVICE, "org", "svc", "1.0"));
+        registry.log.put(5L, new DataChangeBean(DataChangeBean.TYPE_APPLICATION, "org", "app", "2.0"));
+        registry.checkCacheVersion();
+        Assert.assertEquals("[service:org|svc|1.0, application:org|app|2.0]", registry.events.toString());
+    }
+
+    @Test
+    public void testMissingChange() {
+        TestRegistry registry = new TestRegistry();
+        registry.latestVersion = 3;
+        registry.checkCacheVersion();
+        registry.events.clear();
+
+        // Version 5 was produced but its change log entry isn't there (yet)
+        registry.latestVersion = 5;
+        registry.log.put(4L, new DataChangeBean(DataChangeBean.TYPE_SERVICE, "org", "svc", "1.0"));
+        registry.checkCacheVersion();
+        Assert.assertEquals("[invalidate]", registry.events.toString());
+    }
+
+    @Test
+    public void testTooFarBehind() {
+        TestRegistry registry = new TestRegistry();
+        registry.latestVersion = 3;
+        registry.checkCacheVersion();
+        registry.events.clear();
+
+        // More changes than the change log holds
+        registry.latestVersion = 14;
+        registry.checkCacheVersion();
+        Assert.assertEquals("[invalidate]", registry.events.toString());
+        Assert.assertEquals(0, registry.changeReads);
+    }
+
+    @Test
+    public void testStoreUnavailable() {
+        TestRegistry registry = new TestRegistry();
+        registry.latestVersion = 3;
+        registry.checkCacheVersion();
+        registry.events.clear();
+
+        registry.latestVersion = -1;
+        registry.checkCacheVersion();
+        Assert.assertEquals("[invalidate]", registry.events.toString());
+
+        // We can't know what changed while the store was unavailable
+        registry.events.clear();
+        registry.latestVersion = 3;
+        registry.checkCacheVersion();
+        Assert.assertEquals("[invalidate]", registry.events.toString());
+    }
+
+    @Test
+    public void testPreload() {
+        TestRegistry registry = new TestRegistry();
+        registry.latestVersion = 3;
+        // Fails (there is no ES store), but the version was read before loading anything
+        registry.preloadCache();
+        registry.checkCacheVersion();
+        Assert.assertTrue(registry.events.isEmpty());
+
+        registry.latestVersion = 4;
+        registry.log.put(4L, new DataChangeBean(DataChangeBean.TYPE_SERVICE, "org", "svc", "1.0"));
+        registry.checkCacheVersion();
+        Assert.assertEquals("[service:org|svc|1.0]", registry.events.toString());
+    }
+
+    private static class TestRegistry extends PollCachingESRegistry {
+
+        private long latestVersion;
+        private Map<Long, DataChangeBean> log = new HashMap<>();
+        private List<String> events = new ArrayList<>();
+        private int changeReads;
+
+        public TestRegistry() {
+            super(config());
+        }
+
+        private static Map<String, String> config() {
+            Map<String, String> config = new HashMap<>();
+            // Poll manually
+            config.put("cache-polling-interval", "3600");
+            config.put("cache-change-log-size", "10");
+            return config;
+        }
+
+        @Override
+        public synchronized JestClient getClient() {
+            return new JestClient() {
+                @Override
+                public <T extends JestResult> T execute(Action<T> clientRequest) throws IOException {
+                    throw new IOException("No ES store");
+                }
+                @Override
+                public <T extends JestResult> void executeAsync(Action<T> clientRequest, JestResultHandler<T> resultHandler) {
+                    resultHandler.failed(new IOException("No ES store"));
+                }
+                @Override
+                public void shutdownClient() {
+                }
+                @Override
+                public void setServers(Set<String> servers) {
+                }
+            };
+        }
+
+        @Override
+        protected long getLatestDataVersion() throws IOException {
+            return latestVersion;
+        }
+
+        @Override
+        protected List<DataChangeBean> getChanges(long fromVersion, long toVersion) throws IOException {
+            changeReads++;
+            List<DataChangeBean> changes = new ArrayList<>();
+            for (long version = fromVersion; version <= toVersion; version++) {
+                if (!log.containsKey(version)) {
+                    return null;
+                }
+                changes.add(log.get(version));
+            }
+            return changes;
+        }
+
+        @Override
+        protected void invalidateCache() {
+            events.add("invalidate");
+        }
+
+        @Override
+        protected void evictService(String orgId, String serviceId, String version) {
+            events.add("service:" + orgId + "|" + serviceId + "|" + version);
+        }
+
+        @Override
+        protected void evictApplication(String orgId, String applicationId, String version) {
+            events.add("application:" + orgId + "|" + applicationId + "|" + version);
+        }
+    }
+
+}
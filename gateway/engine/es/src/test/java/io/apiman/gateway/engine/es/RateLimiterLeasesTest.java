@@ -0,0 +1,247 @@
+/*
+ * Copyright 2015 JBoss Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.apiman.gateway.engine.es;
+
+import io.apiman.gateway.engine.components.rate.RateLimitResponse;
+import io.apiman.gateway.engine.es.RateLimiterLeases.Release;
+import io.apiman.gateway.engine.es.RateLimiterLeases.Reservation;
+import io.apiman.gateway.engine.rates.RateBucketAlgorithm;
+import io.apiman.gateway.engine.rates.RateBucketPeriod;
+import io.apiman.gateway.engine.rates.RateLimiterBucket;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Unit test for {@link RateLimiterLeases}.  The shared (ES) bucket is simulated
+ * with a plain {@link RateLimiterBucket}.
+ */
+@SuppressWarnings({ "nls", "javadoc" })
+public class RateLimiterLeasesTest {
+
+    @Test
+    public void testDisabledByDefault() {
+        RateLimiterLeases leases = new RateLimiterLeases(new HashMap<String, String>());
+        Assert.assertFalse(leases.isLeasable(RateBucketAlgorithm.FixedWindow, 1));
+    }
+
+    @Test
+    public void testIsLeasable() {
+        RateLimiterLeases leases = leases(10, 60000);
+        Assert.assertTrue(leases.isLeasable(RateBucketAlgorithm.FixedWindow, 1));
+        Assert.assertTrue(leases.isLeasable(RateBucketAlgorithm.FixedWindow, 0));
+        Assert.assertFalse(leases.isLeasable(RateBucketAlgorithm.FixedWindow, 11));
+        Assert.assertFalse(leases.isLeasable(RateBucketAlgorithm.TokenBucket, 1));
+    }
+
+    @Test
+    public void testLease() {
+        RateLimiterLeases leases = leases(10, 60000);
+        RateLimiterBucket shared = new RateLimiterBucket();
+        int remoteCalls = 0;
+        int accepted = 0;
+        for (int i = 0; i < 105; i++) {
+            RateLimitResponse response = leases.tryAccept("bucket", RateBucketPeriod.Hour, 100, 1);
+            if (response == null) {
+                remoteCalls++;
+                response = reserve(leases, shared, 100, 1);
+            }
+            if (response.isAccepted()) {
+                accepted++;
+                Assert.assertEquals(99 - i, response.getRemaining());
+            }
+        }
+        // The global limit holds, with one remote call per block of 10
+        Assert.assertEquals(100, accepted);
+        Assert.assertTrue(shared.getCount() >= 100);
+        Assert.assertEquals(15, remoteCalls);
+    }
+
+    @Test
+    public void testGrantLimitedByAvailable() {
+        RateLimiterLeases leases = leases(10, 60000);
+        RateLimiterBucket shared = new RateLimiterBucket();
+        // Another node already used most of the permits
+        shared.setCount(97);
+        shared.setLast(System.currentTimeMillis());
+        Assert.assertTrue(reserve(leases, shared, 100, 1).isAccepted());
+        Assert.assertEquals(100, shared.getCount());
+        Assert.assertTrue(leases.tryAccept("bucket", RateBucketPeriod.Hour, 100, 1).isAccepted());
+        Assert.assertTrue(leases.tryAccept("bucket", RateBucketPeriod.Hour, 100, 1).isAccepted());
+        Assert.assertNull(leases.tryAccept("bucket", RateBucketPeriod.Hour, 100, 1));
+        Assert.assertFalse(reserve(leases, shared, 100, 1).isAccepted());
+    }
+
+    @Test
+    public void testReturnUnusedPermits() throws Exception {
+        RateLimiterLeases leases = leases(10, 1);
+        RateLimiterBucket shared = new RateLimiterBucket();
+        reserve(leases, shared, 100, 1);
+        Assert.assertEquals(10, shared.getCount());
+        Thread.sleep(5);
+        // The lease has expired, so the 9 unused permits go back to the shared bucket
+        Assert.assertNull(leases.tryAccept("bucket", RateBucketPeriod.Hour, 100, 1));
+        reserve(leases, shared, 100, 1);
+        Assert.assertEquals(11, shared.getCount());
+    }
+
+    @Test
+    public void testConfigChange() {
+        RateLimiterLeases leases = leases(10, 60000);
+        RateLimiterBucket shared = new RateLimiterBucket();
+        reserve(leases, shared, 100, 1);
+        Assert.assertNotNull(leases.tryAccept("bucket", RateBucketPeriod.Hour, 100, 1));
+        Assert.assertNull(leases.tryAccept("bucket", RateBucketPeriod.Hour, 50, 1));
+        Assert.assertNull(leases.tryAccept("bucket", RateBucketPeriod.Day, 100, 1));
+    }
+
+    @Test
+    public void testRenew() {
+        RateLimiterLeases leases = leases(10, 60000);
+        RateLimiterBucket shared = new RateLimiterBucket();
+        reserve(leases, shared, 100, 1);
+        for (int i = 0; i < 3; i++) {
+            leases.tryAccept("bucket", RateBucketPeriod.Hour, 100, 1);
+            Assert.assertFalse(leases.shouldRenew("bucket"));
+        }
+        leases.tryAccept("bucket", RateBucketPeriod.Hour, 100, 1);
+        Assert.assertTrue(leases.shouldRenew("bucket"));
+        Assert.assertFalse(leases.shouldRenew("bucket"));
+
+        // Renewing tops up the existing lease: 5 left + 10 more
+        reserve(leases, shared, 100, 0);
+        Assert.assertEquals(20, shared.getCount());
+        Assert.assertEquals(1, leases.getLeaseCount());
+        for (int i = 0; i < 15; i++) {
+            Assert.assertNotNull(leases.tryAccept("bucket", RateBucketPeriod.Hour, 100, 1));
+        }
+        Assert.assertNull(leases.tryAccept("bucket", RateBucketPeriod.Hour, 100, 1));
+    }
+
+    @Test
+    public void testJoinPendingReservation() throws Exception {
+        RateLimiterLeases leases = leases(10, 60000);
+        RateLimiterBucket shared = new RateLimiterBucket();
+        Assert.assertNull(leases.getPending("bucket", RateBucketPeriod.Hour, 100));
+        Reservation reservation = leases.reserve("bucket", RateBucketPeriod.Hour, 100, 1);
+        Assert.assertSame(reservation, leases.getPending("bucket", RateBucketPeriod.Hour, 100));
+        Assert.assertNull(leases.getPending("bucket", RateBucketPeriod.Hour, 50));
+        // Only one reservation at a time
+        Assert.assertNull(leases.reserve("bucket", RateBucketPeriod.Hour, 100, 1));
+
+        final int[] joined = new int[1];
+        Assert.assertTrue(reservation.onComplete(new Runnable() {
+            @Override
+            public void run() {
+                joined[0]++;
+            }
+        }));
+        Assert.assertFalse(reservation.await(1));
+        reservation.apply(shared);
+        reservation.complete();
+
+        Assert.assertEquals(1, joined[0]);
+        Assert.assertTrue(reservation.await(1));
+        Assert.assertNull(reservation.getRejection());
+        Assert.assertNull(leases.getPending("bucket", RateBucketPeriod.Hour, 100));
+        Assert.assertFalse(reservation.onComplete(new Runnable() {
+            @Override
+            public void run() {
+                joined[0]++;
+            }
+        }));
+        // The joined request is served from the new lease
+        Assert.assertNotNull(leases.tryAccept("bucket", RateBucketPeriod.Hour, 100, 1));
+        Assert.assertEquals(10, shared.getCount());
+    }
+
+    @Test
+    public void testRejectionSharedWithWaiters() {
+        RateLimiterLeases leases = leases(10, 60000);
+        RateLimiterBucket shared = new RateLimiterBucket();
+        shared.setCount(100);
+        shared.setLast(System.currentTimeMillis());
+        Reservation reservation = leases.reserve("bucket", RateBucketPeriod.Hour, 100, 1);
+        Assert.assertFalse(reservation.apply(shared).isAccepted());
+        reservation.complete();
+        Assert.assertNotNull(reservation.getRejection());
+        Assert.assertFalse(reservation.getRejection().isAccepted());
+    }
+
+    @Test
+    public void testFailedReservation() {
+        RateLimiterLeases leases = leases(10, 60000);
+        Reservation reservation = leases.reserve("bucket", RateBucketPeriod.Hour, 100, 1);
+        reservation.failed();
+        // Waiters must try again themselves
+        Assert.assertNull(reservation.getRejection());
+        Assert.assertNull(leases.getPending("bucket", RateBucketPeriod.Hour, 100));
+        Assert.assertEquals(0, leases.getLeaseCount());
+    }
+
+    @Test
+    public void testReleaseExpired() throws Exception {
+        RateLimiterLeases leases = leases(10, 1);
+        RateLimiterBucket shared = new RateLimiterBucket();
+        reserve(leases, shared, 100, 1);
+        Assert.assertEquals(10, shared.getCount());
+        Assert.assertTrue(leases.release(System.currentTimeMillis() - 1000, false).isEmpty());
+        Thread.sleep(5);
+
+        List<Release> releases = leases.release(System.currentTimeMillis(), false);
+        Assert.assertEquals(1, releases.size());
+        Assert.assertEquals("bucket", releases.get(0).getBucketId());
+        Assert.assertEquals(0, leases.getLeaseCount());
+        releases.get(0).apply(shared);
+        Assert.assertEquals(1, shared.getCount());
+        // Nothing left to give back
+        Assert.assertTrue(leases.release(System.currentTimeMillis(), true).isEmpty());
+    }
+
+    @Test
+    public void testReleaseAll() {
+        RateLimiterLeases leases = leases(10, 60000);
+        RateLimiterBucket shared = new RateLimiterBucket();
+        reserve(leases, shared, 100, 1);
+        leases.tryAccept("bucket", RateBucketPeriod.Hour, 100, 1);
+        Assert.assertTrue(leases.release(System.currentTimeMillis(), false).isEmpty());
+        List<Release> releases = leases.release(System.currentTimeMillis(), true);
+        Assert.assertEquals(1, releases.size());
+        releases.get(0).apply(shared);
+        Assert.assertEquals(2, shared.getCount());
+        Assert.assertNull(leases.tryAccept("bucket", RateBucketPeriod.Hour, 100, 1));
+    }
+
+    private static RateLimiterLeases leases(long leaseSize, long leaseTtl) {
+        Map<String, String> config = new HashMap<>();
+        config.put("leaseSize", String.valueOf(leaseSize));
+        config.put("leaseTtl", String.valueOf(leaseTtl));
+        return new RateLimiterLeases(config);
+    }
+
+    private static RateLimitResponse reserve(RateLimiterLeases leases, RateLimiterBucket shared, long limit,
+            long increment) {
+        Reservation reservation = leases.reserve("bucket", RateBucketPeriod.Hour, limit, increment);
+        RateLimitResponse response = reservation.apply(shared);
+        reservation.complete();
+        return response;
+    }
+
+}
@@ -89,13 +89,44 @@ public class InfluxDb09Driver {
      */
     public void write(String lineDocument,
             final IAsyncHandler<InfluxException> failureHandler) {
+        IHttpClientRequest request = createWriteRequest(failureHandler);
+        request.write(lineDocument, StandardCharsets.UTF_8.name());
+        request.end();
+    }
+
+    /**
+     * Write to "/write" of a (possibly gzipped) body. Must be valid Influx line
+     * format, in UTF-8.
+     *
+     * @param body document to write, as bytes
+     * @param gzipped whether the body is gzipped
+     * @param failureHandler handler in case of failure
+     */
+    public void write(byte[] body, boolean gzipped,
+            final IAsyncHandler<InfluxException> failureHandler) {
+        IHttpClientRequest request = createWriteRequest(failureHandler);
+        if (gzipped) {
+            request.addHeader("Content-Encoding", "gzip"); //$NON-NLS-1$ //$NON-NLS-2$
+        }
+        request.write(body);
+        request.end();
+    }
+
+    /**
+     * Starts a request to "/write".
+     *
+     * @param failureHandler handler in case of failure
+     */
+    private IHttpClientRequest createWriteRequest(final IAsyncHandler<InfluxException> failureHandler) {
         // Make request to influx
         IHttpClientRequest request = httpClient.request(writeUrl.toString(), HttpMethod.POST,
                 new IAsyncResultHandler<IHttpClientResponse>() {
 
                     @Override
                     public void handle(IAsyncResult<IHttpClientResponse> result) {
-                        if (result.isError() || result.getResult().getResponseCode() < 200
+                        if (result.isError()) {
+                            failureHandler.handle(new InfluxException(result.getError()));
+                        } else if (result.getResult().getResponseCode() < 200
                                 || result.getResult().getResponseCode() > 299) {
                             failureHandler.handle(new InfluxException(result.getResult()));
                         }
@@ -104,8 +135,7 @@ public class InfluxDb09Driver {
         // For some reason Java's URLEncoding doesn't seem to be parseable by influx?
         //request.addHeader("Content-Type", "application/x-www-form-urlencoded");
         request.addHeader("Content-Type", "text/plain"); //$NON-NLS-1$ //$NON-NLS-2$
-        request.write(lineDocument, StandardCharsets.UTF_8.name());
-        request.end();
+        return request;
     }
 
     /**
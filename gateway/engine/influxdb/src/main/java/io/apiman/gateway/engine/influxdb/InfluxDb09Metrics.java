@@ -25,8 +25,16 @@ import io.apiman.gateway.engine.beans.exceptions.ConfigurationParseException;
 import io.apiman.gateway.engine.components.IHttpClientComponent;
 import io.apiman.gateway.engine.components.http.IHttpClientResponse;
 import io.apiman.gateway.engine.i18n.Messages;
+import io.apiman.gateway.engine.metrics.IMetricsBatchSink;
+import io.apiman.gateway.engine.metrics.MetricsPipeline;
 import io.apiman.gateway.engine.metrics.RequestMetric;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.LinkedHashMap;
@@ -34,14 +42,20 @@ import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.concurrent.CountDownLatch;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
 
 /**
- * InfluxDB 0.9.x metrics implementation
+ * InfluxDB 0.9.x metrics implementation.  Metrics are written by a
+ * {@link MetricsPipeline}, off the request thread - each batch of metrics as a
+ * single write of many points.  The line protocol is built up, encoded and
+ * (optionally, see 'gzip') compressed using buffers, a writer and a deflater
+ * that are all reused from batch to batch.
  *
  * @author Marc Savy <msavy@redhat.com>
  */
 @SuppressWarnings("nls")
-public class InfluxDb09Metrics implements IMetrics, IRequiresInitialization {
+public class InfluxDb09Metrics implements IMetrics, IMetricsBatchSink, IRequiresInitialization {
     private static final String USERNAME = "username";
     private static final String PASSWORD = "password";
     private static final String INFLUX_ENDPOINT = "endpoint";
@@ -49,6 +63,9 @@ public class InfluxDb09Metrics implements IMetrics, IRequiresInitialization {
     private static final String RETENTION_POLICY = "retentionPolicy";
     private static final String SERIES_NAME = "measurement";
     private static final String TIMEPRECISION = "ms";
+    private static final String GZIP = "gzip";
+    // Magic number, deflate, no flags, no mtime, no extra flags, unknown OS
+    private static final byte[] GZIP_HEADER = { 0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, 0 };
 
 
     private static final Map<String, String> DEFAULT_TAGS = new LinkedHashMap<>();
@@ -65,6 +82,15 @@ public class InfluxDb09Metrics implements IMetrics, IRequiresInitialization {
     private InfluxDb09Driver driver;
     private String username;
     private String password;
+    private final MetricsPipeline pipeline;
+    private final boolean gzip;
+
+    // Only used by the pipeline's flusher thread
+    private final StringBuilder lines = new StringBuilder(64 * 1024);
+    private final char[] chars = new char[8 * 1024];
+    private final ByteArrayOutputStream body = new ByteArrayOutputStream(16 * 1024);
+    private final BodyStream bodyStream = new BodyStream();
+    private final Writer writer = new OutputStreamWriter(bodyStream, StandardCharsets.UTF_8);
 
     /**
      * Constructor.
@@ -77,6 +103,8 @@ public class InfluxDb09Metrics implements IMetrics, IRequiresInitialization {
         this.seriesName = getMandatoryString(config, SERIES_NAME);
         this.username = getOptionalString(config, USERNAME, null);
         this.password = getOptionalString(config, PASSWORD, null);
+        this.gzip = "true".equals(getOptionalString(config, GZIP, null));
+        this.pipeline = new MetricsPipeline(config, this);
     }
 
     /**
@@ -107,7 +135,15 @@ public class InfluxDb09Metrics implements IMetrics, IRequiresInitialization {
      */
     @Override
     public void record(RequestMetric metric) {
-        driver.write(buildRequest(metric),
+        pipeline.record(metric);
+    }
+
+    /**
+     * @see io.apiman.gateway.engine.metrics.IMetricsBatchSink#write(java.util.List)
+     */
+    @Override
+    public void write(List<RequestMetric> batch) {
+        driver.write(encode(batch), gzip,
                 new IAsyncHandler<InfluxException>() {
                     @Override
                     public void handle(InfluxException result) {
@@ -123,12 +159,50 @@ public class InfluxDb09Metrics implements IMetrics, IRequiresInitialization {
                 });
     }
 
+    /**
+     * Builds the body of the write of a batch - the points in line format, UTF-8
+     * encoded and (if enabled) gzipped.
+     * @param batch the metrics
+     * @return the body
+     */
+    protected byte[] encode(List<RequestMetric> batch) {
+        lines.setLength(0);
+        for (RequestMetric metric : batch) {
+            buildRequest(metric, lines);
+            lines.append('\n');
+        }
+        body.reset();
+        bodyStream.start();
+        try {
+            for (int start = 0; start < lines.length(); start += chars.length) {
+                int end = Math.min(lines.length(), start + chars.length);
+                lines.getChars(start, end, chars, 0);
+                writer.write(chars, 0, end - start);
+            }
+            writer.flush();
+        } catch (IOException e) {
+            // Can't happen when writing to memory
+            throw new RuntimeException(e);
+        }
+        bodyStream.finish();
+        // The http client needs the body as an array of its own
+        return body.toByteArray();
+    }
+
     protected String buildRequest(RequestMetric metric) {
-        // TODO: calculate capacity more accurately
         StringBuilder sb = new StringBuilder(500);
+        buildRequest(metric, sb);
+        return sb.toString();
+    }
 
+    /**
+     * Appends the point for the metric (without a trailing newline) in line format.
+     * @param metric the metric
+     * @param sb the buffer to append to
+     */
+    protected void buildRequest(RequestMetric metric, StringBuilder sb) {
         // Series name, followed by comma
-        sb.append(seriesName + ",");
+        sb.append(seriesName).append(',');
 
         // Default tags, comma delimited
         for (Entry<String, String> entry : DEFAULT_TAGS.entrySet()) {
@@ -136,58 +210,57 @@ public class InfluxDb09Metrics implements IMetrics, IRequiresInitialization {
         }
 
         // Metric tags, comma delimited, space at end.
-        write("serviceOrgId", quote(metric.getServiceOrgId()), sb);
-        write("serviceId", quote(metric.getServiceId()), sb);
-        write("serviceVersion", quote(metric.getServiceVersion()), sb);
-        write("planId", quote(metric.getPlanId()), sb);
-        write("applicationOrgId", quote(metric.getApplicationOrgId()), sb);
-        write("applicationId", quote(metric.getApplicationId()), sb);
-        write("applicationVersion", quote(metric.getApplicationVersion()), sb);
-        write("contractId", quote(metric.getContractId()), sb);
-        write("user", quote(metric.getUser()), sb);
-
-        sb.deleteCharAt(sb.length()-1);
-        sb.append(' ');
+        writeQuoted("serviceOrgId", metric.getServiceOrgId(), sb);
+        writeQuoted("serviceId", metric.getServiceId(), sb);
+        writeQuoted("serviceVersion", metric.getServiceVersion(), sb);
+        writeQuoted("planId", metric.getPlanId(), sb);
+        writeQuoted("applicationOrgId", metric.getApplicationOrgId(), sb);
+        writeQuoted("applicationId", metric.getApplicationId(), sb);
+        writeQuoted("applicationVersion", metric.getApplicationVersion(), sb);
+        writeQuoted("contractId", metric.getContractId(), sb);
+        writeQuoted("user", metric.getUser(), sb);
+
+        sb.setCharAt(sb.length() - 1, ' ');
 
         // Data, comma delimited, space at end.
-        write("requestStart", dateToLong(metric.getRequestStart()), sb);
-        write("requestEnd", dateToLong(metric.getRequestEnd()), sb);
-        write("serviceStart", dateToLong(metric.getServiceStart()), sb);
-        write("serviceEnd", dateToLong(metric.getServiceEnd()), sb);
-        write("url", quote(metric.getUrl()), sb);
-        write("resource", quote(metric.getResource()), sb);
-        write("method", quote(metric.getMethod()), sb);
-        write("responseCode", Integer.toString(metric.getResponseCode()), sb);
-        write("responseMessage", quote(metric.getResponseMessage()), sb);
-        write("failureCode", Integer.toString(metric.getFailureCode()), sb);
-        write("failureReason", quote(metric.getFailureReason()), sb);
-        write("error", Boolean.toString(metric.isError()), sb);
-        write("errorMessage", quote(metric.getErrorMessage()), sb);
-
-        sb.deleteCharAt(sb.length()-1);
-        sb.append(' ');
-
-        // Timestamp in milliseconds. Newline would be needed after this point for batching.
-        sb.append(System.currentTimeMillis());
-
-        return sb.toString();
+        write("requestStart", metric.getRequestStart(), sb);
+        write("requestEnd", metric.getRequestEnd(), sb);
+        write("serviceStart", metric.getServiceStart(), sb);
+        write("serviceEnd", metric.getServiceEnd(), sb);
+        writeQuoted("url", metric.getUrl(), sb);
+        writeQuoted("resource", metric.getResource(), sb);
+        writeQuoted("method", metric.getMethod(), sb);
+        sb.append("responseCode=").append(metric.getResponseCode()).append(',');
+        writeQuoted("responseMessage", metric.getResponseMessage(), sb);
+        sb.append("failureCode=").append(metric.getFailureCode()).append(',');
+        writeQuoted("failureReason", metric.getFailureReason(), sb);
+        sb.append("error=").append(metric.isError()).append(',');
+        writeQuoted("errorMessage", metric.getErrorMessage(), sb);
+
+        sb.setCharAt(sb.length() - 1, ' ');
+
+        // Timestamp in milliseconds - of when the request ended, as the point may be
+        // written a while later.
+        Date timestamp = metric.getRequestEnd();
+        sb.append(timestamp == null ? System.currentTimeMillis() : timestamp.getTime());
     }
 
     private void write(String tagname, String tagValue, StringBuilder sb) {
         if (tagValue == null)
             return;
 
-        sb.append(tagname + "=" + tagValue + ",");
+        sb.append(tagname).append('=').append(tagValue).append(',');
     }
 
-    private String quote(String item) {
-        if (item == null)
-            return null;
-        return "\"" + item  + "\"";
+    private void writeQuoted(String tagname, String tagValue, StringBuilder sb) {
+        if (tagValue == null)
+            return;
+
+        sb.append(tagname).append("=\"").append(tagValue).append("\",");
     }
 
-    private String dateToLong(Date date) {
-        return Long.toString(date.getTime());
+    private void write(String tagname, Date date, StringBuilder sb) {
+        sb.append(tagname).append('=').append(date.getTime()).append(',');
     }
 
     private String getMandatoryString(Map<String, String> config, String keyname) {
@@ -228,4 +301,77 @@ public class InfluxDb09Metrics implements IMetrics, IRequiresInitialization {
 
         return results;
     }
+
+    /**
+     * Writes the (encoded) line protocol to the body, gzipping it if need be.
+     */
+    private final class BodyStream extends OutputStream {
+
+        private final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        private final CRC32 crc = new CRC32();
+        private final byte[] deflated = new byte[8 * 1024];
+        private final byte[] single = new byte[1];
+
+        /**
+         * Starts a new body.
+         */
+        public void start() {
+            if (gzip) {
+                body.write(GZIP_HEADER, 0, GZIP_HEADER.length);
+                deflater.reset();
+                crc.reset();
+            }
+        }
+
+        /**
+         * @see java.io.OutputStream#write(int)
+         */
+        @Override
+        public void write(int b) {
+            single[0] = (byte) b;
+            write(single, 0, 1);
+        }
+
+        /**
+         * @see java.io.OutputStream#write(byte[], int, int)
+         */
+        @Override
+        public void write(byte[] b, int off, int len) {
+            if (!gzip) {
+                body.write(b, off, len);
+                return;
+            }
+            crc.update(b, off, len);
+            deflater.setInput(b, off, len);
+            while (!deflater.needsInput()) {
+                deflate();
+            }
+        }
+
+        /**
+         * Ends the body.
+         */
+        public void finish() {
+            if (gzip) {
+                deflater.finish();
+                while (!deflater.finished()) {
+                    deflate();
+                }
+                writeIntLE((int) crc.getValue());
+                writeIntLE((int) deflater.getBytesRead());
+            }
+        }
+
+        private void deflate() {
+            int count = deflater.deflate(deflated, 0, deflated.length);
+            body.write(deflated, 0, count);
+        }
+
+        private void writeIntLE(int value) {
+            body.write(value & 0xff);
+            body.write((value >> 8) & 0xff);
+            body.write((value >> 16) & 0xff);
+            body.write((value >> 24) & 0xff);
+        }
+    }
 }
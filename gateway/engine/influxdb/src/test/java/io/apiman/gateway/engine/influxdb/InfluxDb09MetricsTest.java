@@ -0,0 +1,115 @@
+/*
+ * Copyright 2015 JBoss Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.apiman.gateway.engine.influxdb;
+
+import io.apiman.gateway.engine.metrics.RequestMetric;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Unit test for the body encoding of {@link InfluxDb09Metrics}.
+ *
+ * @author Marc Savy <msavy@redhat.com>
+ */
+@SuppressWarnings({ "nls", "javadoc" })
+public class InfluxDb09MetricsTest {
+
+    @Test
+    public void testGzipRoundTrip() throws Exception {
+        InfluxDb09Metrics metrics = metrics(true);
+        // The deflater and buffers are reused from batch to batch
+        for (int size : new int[] { 1, 500, 3, 2000 }) {
+            List<RequestMetric> batch = batch(size);
+            byte[] body = metrics.encode(batch);
+            Assert.assertEquals(lines(metrics, batch), gunzip(body));
+        }
+    }
+
+    @Test
+    public void testPlain() throws Exception {
+        InfluxDb09Metrics metrics = metrics(false);
+        for (int size : new int[] { 2, 300 }) {
+            List<RequestMetric> batch = batch(size);
+            byte[] body = metrics.encode(batch);
+            Assert.assertEquals(lines(metrics, batch), new String(body, StandardCharsets.UTF_8));
+        }
+    }
+
+    private static InfluxDb09Metrics metrics(boolean gzip) {
+        Map<String, String> config = new HashMap<>();
+        config.put("endpoint", "http://localhost:8086");
+        config.put("database", "apiman");
+        config.put("measurement", "requests");
+        config.put("gzip", String.valueOf(gzip));
+        return new InfluxDb09Metrics(config);
+    }
+
+    private static List<RequestMetric> batch(int size) {
+        List<RequestMetric> batch = new ArrayList<>();
+        for (int i = 0; i < size; i++) {
+            Date now = new Date(1448323200000L + i);
+            RequestMetric metric = new RequestMetric();
+            metric.setRequestStart(now);
+            metric.setRequestEnd(now);
+            metric.setServiceStart(now);
+            metric.setServiceEnd(now);
+            metric.setServiceOrgId("org");
+            metric.setServiceId("svc");
+            metric.setServiceVersion("1.0");
+            // Non-BMP (surrogate pair) and other multi-byte characters
+            metric.setUser("us\uD83D\uDE00r-" + i);
+            metric.setUrl("http://localhost:8080/apiman-gateway/org/svc/1.0/r\u00E9sum\u00E9/\uD834\uDD1E/" + i);
+            metric.setResponseCode(200);
+            metric.setResponseMessage("OK");
+            batch.add(metric);
+        }
+        return batch;
+    }
+
+    private static String lines(InfluxDb09Metrics metrics, List<RequestMetric> batch) {
+        StringBuilder expected = new StringBuilder();
+        for (RequestMetric metric : batch) {
+            expected.append(metrics.buildRequest(metric)).append('\n');
+        }
+        return expected.toString();
+    }
+
+    private static String gunzip(byte[] body) throws IOException {
+        ByteArrayOutputStream decoded = new ByteArrayOutputStream();
+        try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(body))) {
+            byte[] buffer = new byte[1024];
+            int count;
+            while ((count = in.read(buffer)) != -1) {
+                decoded.write(buffer, 0, count);
+            }
+        }
+        return new String(decoded.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+}
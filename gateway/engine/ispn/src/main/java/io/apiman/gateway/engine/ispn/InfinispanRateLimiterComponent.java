@@ -17,8 +17,9 @@ package io.apiman.gateway.engine.ispn;
 
 import io.apiman.gateway.engine.async.AsyncResultImpl;
 import io.apiman.gateway.engine.async.IAsyncResultHandler;
-import io.apiman.gateway.engine.components.IRateLimiterComponent;
+import io.apiman.gateway.engine.components.IAlgorithmRateLimiterComponent;
 import io.apiman.gateway.engine.components.rate.RateLimitResponse;
+import io.apiman.gateway.engine.rates.RateBucketAlgorithm;
 import io.apiman.gateway.engine.rates.RateBucketPeriod;
 import io.apiman.gateway.engine.rates.RateLimiterBucket;
 
@@ -31,7 +32,7 @@ import java.util.Map;
  *
  * @author eric.wittmann@redhat.com
  */
-public class InfinispanRateLimiterComponent extends AbstractInfinispanComponent implements IRateLimiterComponent {
+public class InfinispanRateLimiterComponent extends AbstractInfinispanComponent implements IAlgorithmRateLimiterComponent {
 
     private static final String DEFAULT_CACHE_CONTAINER = "java:jboss/infinispan/container/apiman-gateway"; //$NON-NLS-1$
     private static final String DEFAULT_CACHE = "rate-limiter"; //$NON-NLS-1$
@@ -59,6 +60,15 @@ public class InfinispanRateLimiterComponent extends AbstractInfinispanComponent
     @Override
     public void accept(final String bucketId, final RateBucketPeriod period, final long limit,
             final long increment, final IAsyncResultHandler<RateLimitResponse> handler) {
+        accept(bucketId, period, RateBucketAlgorithm.FixedWindow, limit, increment, handler);
+    }
+
+    /**
+     * @see io.apiman.gateway.engine.components.IAlgorithmRateLimiterComponent#accept(java.lang.String, io.apiman.gateway.engine.rates.RateBucketPeriod, io.apiman.gateway.engine.rates.RateBucketAlgorithm, long, long, io.apiman.gateway.engine.async.IAsyncResultHandler)
+     */
+    @Override
+    public void accept(final String bucketId, final RateBucketPeriod period, final RateBucketAlgorithm algorithm,
+            final long limit, final long increment, final IAsyncResultHandler<RateLimitResponse> handler) {
         RateLimiterBucket bucket = null;
         synchronized (mutex) {
             bucket = (RateLimiterBucket) getCache().get(bucketId);
@@ -66,19 +76,7 @@ public class InfinispanRateLimiterComponent extends AbstractInfinispanComponent
                 bucket = new RateLimiterBucket();
                 getCache().put(bucketId, bucket);
             }
-            bucket.resetIfNecessary(period);
-
-            RateLimitResponse response = new RateLimitResponse();
-            if (bucket.getCount() > limit) {
-                response.setAccepted(false);
-            } else {
-                response.setAccepted(bucket.getCount() < limit);
-                bucket.setCount(bucket.getCount() + increment);
-                bucket.setLast(System.currentTimeMillis());
-            }
-            int reset = (int) (bucket.getResetMillis(period) / 1000L);
-            response.setReset(reset);
-            response.setRemaining(limit - bucket.getCount());
+            RateLimitResponse response = bucket.accept(algorithm, period, limit, increment);
             handler.handle(AsyncResultImpl.<RateLimitResponse>create(response));
             getCache().put(bucketId, bucket);
         }
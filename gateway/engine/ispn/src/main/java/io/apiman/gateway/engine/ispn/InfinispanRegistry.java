@@ -61,6 +61,19 @@ public class InfinispanRegistry extends InMemoryRegistry {
         this.cacheName = cacheName;
     }
     
+    /**
+     * The indexes of the {@link InMemoryRegistry} aren't used for the cache, so
+     * the only thing to warm up is the cache itself - it is looked up (and so
+     * started, joining the cluster if it is clustered) now rather than on the
+     * first request.
+     * @see io.apiman.gateway.engine.impl.InMemoryRegistry#initialize()
+     */
+    @Override
+    public void initialize() {
+        getMap();
+        super.initialize();
+    }
+
     /**
      * @see io.apiman.gateway.engine.impl.InMemoryRegistry#getMap()
      */
@@ -15,6 +15,8 @@
  */
 package io.apiman.gateway.engine.policies;
 
+import io.apiman.gateway.engine.IServiceConnectionResponse;
+import io.apiman.gateway.engine.async.IAsyncHandler;
 import io.apiman.gateway.engine.async.IAsyncResult;
 import io.apiman.gateway.engine.async.IAsyncResultHandler;
 import io.apiman.gateway.engine.beans.ServiceRequest;
@@ -28,6 +30,12 @@ import io.apiman.gateway.engine.io.IReadWriteStream;
 import io.apiman.gateway.engine.io.ISignalReadStream;
 import io.apiman.gateway.engine.io.ISignalWriteStream;
 import io.apiman.gateway.engine.policies.caching.CacheConnectorInterceptor;
+import io.apiman.gateway.engine.policies.caching.CacheRequestCoalescer;
+import io.apiman.gateway.engine.policies.caching.CacheRequestCoalescer.Flight;
+import io.apiman.gateway.engine.policies.caching.FlightConnectorInterceptor;
+import io.apiman.gateway.engine.policies.caching.HttpCacheEntry;
+import io.apiman.gateway.engine.policies.caching.HttpCaching;
+import io.apiman.gateway.engine.policies.caching.StaleConnectorInterceptor;
 import io.apiman.gateway.engine.policies.config.CachingConfig;
 import io.apiman.gateway.engine.policy.IConnectorInterceptor;
 import io.apiman.gateway.engine.policy.IDataPolicy;
@@ -35,17 +43,44 @@ import io.apiman.gateway.engine.policy.IPolicyChain;
 import io.apiman.gateway.engine.policy.IPolicyContext;
 
 import java.io.IOException;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 /**
  * Policy that enables caching for back-end services responses.
  *
+ * By default every response is cached for the configured ttl.  When configured
+ * to follow HTTP semantics, the policy instead behaves like a shared HTTP cache:
+ * it honours Cache-Control, Expires and Vary, revalidates stale entries with
+ * the back-end service using their ETag/Last-Modified, and answers conditional
+ * client requests with a 304 when it can.
+ *
+ * Either way, stale responses can be served for a while after they expire:
+ * right away while the cache is refreshed in the background
+ * (stale-while-revalidate) and/or when the back-end service fails
+ * (stale-if-error).
+ *
  * @author rubenrm1@gmail.com
  */
 public class CachingPolicy extends AbstractMappedDataPolicy<CachingConfig> implements IDataPolicy {
 
+    private static Logger logger = LoggerFactory.getLogger(CachingPolicy.class);
+
     private static final String KEY_SEPARATOR = ":"; //$NON-NLS-1$
+    private static final String ENTRY_KEY_PREFIX = "entry" + KEY_SEPARATOR; //$NON-NLS-1$
+    private static final String VARY_KEY_SUFFIX = KEY_SEPARATOR + "vary"; //$NON-NLS-1$
     private static final String SHOULD_CACHE_ATTR = CachingPolicy.class.getName() + ".should-cache"; //$NON-NLS-1$
     private static final String CACHE_ID_ATTR = CachingPolicy.class.getName() + ".cache-id"; //$NON-NLS-1$
+    private static final String FLIGHT_ATTR = CachingPolicy.class.getName() + ".flight"; //$NON-NLS-1$
+    private static final String REQUEST_ATTR = CachingPolicy.class.getName() + ".request"; //$NON-NLS-1$
+    private static final String STALE_ENTRY_ATTR = CachingPolicy.class.getName() + ".stale-entry"; //$NON-NLS-1$
+    private static final String CONDITIONALS_ATTR = CachingPolicy.class.getName() + ".conditionals"; //$NON-NLS-1$
+
+    private final CacheRequestCoalescer coalescer = new CacheRequestCoalescer();
 
     /**
      * Constructor.
@@ -64,39 +99,295 @@ public class CachingPolicy extends AbstractMappedDataPolicy<CachingConfig> imple
     /**
      * If the request is cached an {@link IConnectorInterceptor} is set in order to prevent the back-end connection to be established.
      * Otherwise an empty {@link CachedResponse} will be added to the context, this will be used to cache the response once it has been
-     * received from the back-end service
+     * received from the back-end service.  Concurrent cache misses for the same entry are coalesced, so that only one of them
+     * goes to the back-end service while the others wait for the cache to be populated.
      *
      * @see io.apiman.gateway.engine.policies.AbstractMappedPolicy#doApply(io.apiman.gateway.engine.beans.ServiceRequest, io.apiman.gateway.engine.policy.IPolicyContext, java.lang.Object, io.apiman.gateway.engine.policy.IPolicyChain)
      */
     @Override
     protected void doApply(final ServiceRequest request, final IPolicyContext context, final CachingConfig config,
             final IPolicyChain<ServiceRequest> chain) {
-        if (config.getTtl() > 0) {
+        if (config.getTtl() <= 0 || (config.isHttpSemantics() && !HttpCaching.isCacheableRequest(request))) {
+            context.setAttribute(SHOULD_CACHE_ATTR, Boolean.FALSE);
+            chain.doApply(request);
+        } else if (usesEntries(config)) {
+            String cacheId = ENTRY_KEY_PREFIX + buildCacheID(request);
+            context.setAttribute(CACHE_ID_ATTR, cacheId);
+            context.setAttribute(REQUEST_ATTR, request);
+            entryLookup(request, context, config, cacheId, chain, config.getCoalesceTimeout() * 1000L);
+        } else {
             // Check to see if there is a cache entry for this request.  If so, we need to
             // short-circuit the connector factory by providing a connector interceptor
             String cacheId = buildCacheID(request);
             context.setAttribute(CACHE_ID_ATTR, cacheId);
-            ICacheStoreComponent cache = context.getComponent(ICacheStoreComponent.class);
-            cache.getBinary(cacheId, ServiceResponse.class,
-                    new IAsyncResultHandler<ISignalReadStream<ServiceResponse>>() {
-                        @Override
-                        public void handle(IAsyncResult<ISignalReadStream<ServiceResponse>> result) {
-                            if (result.isError()) {
-                                chain.throwError(result.getError());
-                            } else {
-                                ISignalReadStream<ServiceResponse> cacheEntry = result.getResult();
-                                if (cacheEntry != null) {
-                                    context.setConnectorInterceptor(new CacheConnectorInterceptor(cacheEntry));
-                                    context.setAttribute(SHOULD_CACHE_ATTR, Boolean.FALSE);
+            lookup(request, context, cacheId, chain, config.getCoalesceTimeout() * 1000L);
+        }
+    }
+
+    /**
+     * Looks up the cache entry for the request.  On a hit the cached response is
+     * used instead of connecting to the back-end service.  On a miss the request
+     * either becomes the leader for its cache entry (and goes to the back-end
+     * service) or, if another request is already doing that, waits for it and
+     * then looks again.
+     * @param request
+     * @param context
+     * @param cacheId
+     * @param chain
+     * @param coalesceTimeout max time (in millis) to wait for a concurrent miss, 0 to not wait
+     */
+    private void lookup(final ServiceRequest request, final IPolicyContext context, final String cacheId,
+            final IPolicyChain<ServiceRequest> chain, final long coalesceTimeout) {
+        ICacheStoreComponent cache = context.getComponent(ICacheStoreComponent.class);
+        cache.getBinary(cacheId, ServiceResponse.class,
+                new IAsyncResultHandler<ISignalReadStream<ServiceResponse>>() {
+                    @Override
+                    public void handle(IAsyncResult<ISignalReadStream<ServiceResponse>> result) {
+                        if (result.isError()) {
+                            chain.throwError(result.getError());
+                            return;
+                        }
+                        ISignalReadStream<ServiceResponse> cacheEntry = result.getResult();
+                        if (cacheEntry != null) {
+                            context.setConnectorInterceptor(new CacheConnectorInterceptor(cacheEntry));
+                            context.setAttribute(SHOULD_CACHE_ATTR, Boolean.FALSE);
+                            chain.doApply(request);
+                        } else {
+                            miss(request, context, cacheId, chain, coalesceTimeout, new IAsyncHandler<Void>() {
+                                @Override
+                                public void handle(Void result) {
+                                    lookup(request, context, cacheId, chain, 0);
                                 }
-                                chain.doApply(request);
-                            }
+                            });
                         }
-                    });
-        } else {
+                    }
+                });
+    }
+
+    /**
+     * Looks up the cache entry for the request, when entries record their
+     * freshness (see {@link #usesEntries(CachingConfig)}).  When following HTTP
+     * semantics the entry is found in two steps: first the Vary header of the
+     * cached responses is looked up (it tells which request headers select the
+     * variant), then the variant itself.
+     * @param request
+     * @param context
+     * @param config
+     * @param cacheId
+     * @param chain
+     * @param coalesceTimeout max time (in millis) to wait for a concurrent miss, 0 to not wait
+     */
+    private void entryLookup(final ServiceRequest request, final IPolicyContext context,
+            final CachingConfig config, final String cacheId, final IPolicyChain<ServiceRequest> chain,
+            final long coalesceTimeout) {
+        if (!config.isHttpSemantics()) {
+            getEntry(request, context, config, cacheId, cacheId, chain, coalesceTimeout);
+            return;
+        }
+        ICacheStoreComponent cache = context.getComponent(ICacheStoreComponent.class);
+        cache.get(cacheId + VARY_KEY_SUFFIX, String.class, new IAsyncResultHandler<String>() {
+            @Override
+            public void handle(IAsyncResult<String> result) {
+                if (result.isError()) {
+                    chain.throwError(result.getError());
+                    return;
+                }
+                String entryId = variantId(cacheId, result.getResult(), request);
+                getEntry(request, context, config, cacheId, entryId, chain, coalesceTimeout);
+            }
+        });
+    }
+
+    /**
+     * Gets a cache entry and either uses it or handles the miss.
+     * @param request
+     * @param context
+     * @param config
+     * @param cacheId
+     * @param entryId
+     * @param chain
+     * @param coalesceTimeout max time (in millis) to wait for a concurrent miss, 0 to not wait
+     */
+    private void getEntry(final ServiceRequest request, final IPolicyContext context, final CachingConfig config,
+            final String cacheId, String entryId, final IPolicyChain<ServiceRequest> chain,
+            final long coalesceTimeout) {
+        ICacheStoreComponent cache = context.getComponent(ICacheStoreComponent.class);
+        cache.getBinary(entryId, HttpCacheEntry.class,
+                new IAsyncResultHandler<ISignalReadStream<HttpCacheEntry>>() {
+                    @Override
+                    public void handle(IAsyncResult<ISignalReadStream<HttpCacheEntry>> result) {
+                        if (result.isError()) {
+                            chain.throwError(result.getError());
+                            return;
+                        }
+                        ISignalReadStream<HttpCacheEntry> cacheEntry = result.getResult();
+                        if (cacheEntry != null && entryHit(request, context, config, cacheId, chain, cacheEntry)) {
+                            return;
+                        }
+                        miss(request, context, cacheId, chain, coalesceTimeout, new IAsyncHandler<Void>() {
+                            @Override
+                            public void handle(Void result) {
+                                entryLookup(request, context, config, cacheId, chain, 0);
+                            }
+                        });
+                    }
+                });
+    }
+
+    /**
+     * Handles finding an entry in the cache.  A fresh entry is served (or a 304 if
+     * the client already has it).  A stale one is served right away while it is
+     * refreshed in the background, or it is revalidated with the back-end service
+     * and/or kept to be served should the back-end service fail.
+     * @param request
+     * @param context
+     * @param config
+     * @param cacheId
+     * @param chain
+     * @param cacheEntry
+     * @return false if the entry can't be used at all
+     */
+    private boolean entryHit(ServiceRequest request, IPolicyContext context, CachingConfig config,
+            String cacheId, IPolicyChain<ServiceRequest> chain, ISignalReadStream<HttpCacheEntry> cacheEntry) {
+        long now = System.currentTimeMillis();
+        boolean http = config.isHttpSemantics();
+        HttpCacheEntry entry = cacheEntry.getHead();
+        ServiceResponse cached = HttpCaching.served(entry, now);
+        if (http ? HttpCaching.isFresh(entry, request, now) : now < entry.getFreshUntil()) {
+            if (http && HttpCaching.isNotModified(request.getHeaders(), cached)) {
+                context.setConnectorInterceptor(new CacheConnectorInterceptor(cacheEntry,
+                        HttpCaching.notModified(cached), false));
+            } else {
+                context.setConnectorInterceptor(new CacheConnectorInterceptor(cacheEntry, cached, true));
+            }
+            context.setAttribute(SHOULD_CACHE_ATTR, Boolean.FALSE);
+            chain.doApply(request);
+            return true;
+        }
+
+        long staleFor = now - entry.getFreshUntil();
+        boolean allowsStale = !http || HttpCaching.allowsStale(request);
+        if (allowsStale && staleFor < staleWindow(config, cached, HttpCaching.STALE_WHILE_REVALIDATE)) {
+            // Only one request refreshes the entry, the others just get the stale response.
+            // Without coalescing the flight ends right away, so each request refreshes it.
+            Flight flight = coalescer.join(cacheId, Math.max(config.getCoalesceTimeout() * 1000L, 1L),
+                    new IAsyncHandler<Void>() {
+                @Override
+                public void handle(Void result) {
+                }
+            });
+            if (flight != null) {
+                if (http) {
+                    // The refresh must get the full response
+                    HttpCaching.removeConditionals(request);
+                }
+                context.setConnectorInterceptor(new StaleConnectorInterceptor(cacheEntry, cached,
+                        refreshHandler(context, config, flight)));
+            } else {
+                context.setConnectorInterceptor(new CacheConnectorInterceptor(cacheEntry,
+                        HttpCaching.warn(cached, HttpCaching.RESPONSE_IS_STALE), true));
+            }
             context.setAttribute(SHOULD_CACHE_ATTR, Boolean.FALSE);
             chain.doApply(request);
+            return true;
         }
+
+        boolean revalidate = http && HttpCaching.hasValidator(cached);
+        if (revalidate) {
+            // Ask the back-end service whether the stale entry is still valid.  The
+            // client's own validators are put aside and evaluated once we know.
+            context.setAttribute(CONDITIONALS_ATTR, HttpCaching.removeConditionals(request));
+            HttpCaching.addValidators(request, cached);
+            context.setAttribute(STALE_ENTRY_ATTR, cacheEntry);
+        }
+        boolean ifError = allowsStale && staleFor < staleWindow(config, cached, HttpCaching.STALE_IF_ERROR);
+        if (ifError) {
+            context.setConnectorInterceptor(new StaleConnectorInterceptor(cacheEntry, cached, !revalidate));
+        }
+        if (revalidate || ifError) {
+            chain.doApply(request);
+            return true;
+        }
+        cacheEntry.abort();
+        return false;
+    }
+
+    /**
+     * Handles a cache miss.  Unless coalescing is off, the request either becomes
+     * the leader for its cache entry (and goes to the back-end service) or, if
+     * another request is already doing that, waits for it and then retries.
+     * @param request
+     * @param context
+     * @param cacheId
+     * @param chain
+     * @param coalesceTimeout max time (in millis) to wait for a concurrent miss, 0 to not wait
+     * @param retry called once the leader is done
+     */
+    private void miss(ServiceRequest request, IPolicyContext context, String cacheId,
+            IPolicyChain<ServiceRequest> chain, long coalesceTimeout, IAsyncHandler<Void> retry) {
+        if (coalesceTimeout > 0) {
+            // If the leader failed the entry won't be there when we retry, and we'll
+            // go to the back-end service ourselves.
+            Flight flight = coalescer.join(cacheId, coalesceTimeout, retry);
+            if (flight == null) {
+                return;
+            }
+            context.setAttribute(FLIGHT_ATTR, flight);
+            // Lets the waiting requests go as soon as the back-end exchange fails
+            context.setConnectorInterceptor(new FlightConnectorInterceptor(flight));
+        }
+        chain.doApply(request);
+    }
+
+    /**
+     * Creates the handler that stores the back-end response of a background
+     * refresh (stale-while-revalidate) in the cache.
+     * @param context
+     * @param config
+     * @param flight
+     */
+    private IAsyncResultHandler<IServiceConnectionResponse> refreshHandler(final IPolicyContext context,
+            final CachingConfig config, final Flight flight) {
+        return new IAsyncResultHandler<IServiceConnectionResponse>() {
+            @Override
+            public void handle(IAsyncResult<IServiceConnectionResponse> result) {
+                if (result.isError()) {
+                    flight.release();
+                    return;
+                }
+                IServiceConnectionResponse response = result.getResult();
+                ISignalWriteStream writeStream = null;
+                try {
+                    // Don't replace the stale response with an error
+                    if (response.getHead().getCode() < 500) {
+                        ICacheStoreComponent cache = context.getComponent(ICacheStoreComponent.class);
+                        writeStream = entryPut(context, config, cache, HttpCaching.copy(response.getHead()));
+                    }
+                } catch (ComponentNotFoundException | IOException e) {
+                    logger.error("Failed to cache the refreshed response.", e); //$NON-NLS-1$
+                }
+                if (writeStream == null) {
+                    response.abort();
+                    flight.release();
+                    return;
+                }
+                final ISignalWriteStream cacheStream = writeStream;
+                response.bodyHandler(new IAsyncHandler<IApimanBuffer>() {
+                    @Override
+                    public void handle(IApimanBuffer chunk) {
+                        cacheStream.write(chunk);
+                    }
+                });
+                response.endHandler(new IAsyncHandler<Void>() {
+                    @Override
+                    public void handle(Void result) {
+                        cacheStream.end();
+                        flight.release();
+                    }
+                });
+                response.transmit();
+            }
+        };
     }
 
     /**
@@ -126,11 +417,35 @@ public class CachingPolicy extends AbstractMappedDataPolicy<CachingConfig> imple
             IPolicyContext context, CachingConfig policyConfiguration) {
         // Possible cache the response for future posterity.
         Boolean shouldCache = context.getAttribute(SHOULD_CACHE_ATTR, Boolean.TRUE);
-        if (shouldCache) {
+        final Flight flight = context.getAttribute(FLIGHT_ATTR, null);
+        if (shouldCache && response.getAttribute(StaleConnectorInterceptor.STALE_ATTR) != null) {
+            // The back-end service failed and the stale response is sent instead
+            if (flight != null) {
+                flight.release();
+            }
+            return null;
+        } else if (shouldCache) {
             try {
                 String cacheId = context.getAttribute(CACHE_ID_ATTR, null);
                 ICacheStoreComponent cache = context.getComponent(ICacheStoreComponent.class);
-                final ISignalWriteStream writeStream = cache.putBinary(cacheId, response, policyConfiguration.getTtl());
+                final ISignalWriteStream writeStream;
+                if (usesEntries(policyConfiguration)) {
+                    ISignalReadStream<HttpCacheEntry> staleEntry = context.getAttribute(STALE_ENTRY_ATTR, null);
+                    if (staleEntry != null && response.getCode() == 304) {
+                        return revalidated(response, context, policyConfiguration, cache, staleEntry);
+                    } else if (staleEntry != null) {
+                        staleEntry.abort();
+                    }
+                    writeStream = entryPut(context, policyConfiguration, cache, HttpCaching.copy(response));
+                    if (writeStream == null) {
+                        if (flight != null) {
+                            flight.release();
+                        }
+                        return null;
+                    }
+                } else {
+                    writeStream = cache.putBinary(cacheId, response, policyConfiguration.getTtl());
+                }
                 return new AbstractStream<ServiceResponse>() {
                     @Override
                     public ServiceResponse getHead() {
@@ -148,10 +463,16 @@ public class CachingPolicy extends AbstractMappedDataPolicy<CachingConfig> imple
                     public void end() {
                         writeStream.end();
                         super.end();
+                        if (flight != null) {
+                            flight.release();
+                        }
                     }
                 };
             } catch (ComponentNotFoundException | IOException e) {
-                // TODO log error
+                logger.error("Failed to cache the response.", e); //$NON-NLS-1$
+                if (flight != null) {
+                    flight.release();
+                }
                 return null;
             }
         } else {
@@ -159,10 +480,165 @@ public class CachingPolicy extends AbstractMappedDataPolicy<CachingConfig> imple
         }
     }
 
+    /**
+     * Handles the back-end service confirming (with a 304) that a stale cache
+     * entry is still valid.  The response is turned back into the cached one -
+     * or into a 304 for the client, if its own validators match - and the cached
+     * body is sent once the (empty) 304 body has been received.  The entry is
+     * stored again, so that it is fresh again.
+     *
+     * The head is rewritten here, rather than when the response policy is applied,
+     * because it hasn't been through any policy yet - this way every policy sees
+     * the revalidated response.
+     * @param response
+     * @param context
+     * @param config
+     * @param cache
+     * @param staleEntry
+     * @throws IOException
+     */
+    private IReadWriteStream<ServiceResponse> revalidated(final ServiceResponse response, IPolicyContext context,
+            CachingConfig config, ICacheStoreComponent cache, final ISignalReadStream<HttpCacheEntry> staleEntry)
+            throws IOException {
+        final Flight flight = context.getAttribute(FLIGHT_ATTR, null);
+        ServiceResponse refreshed = HttpCaching.refresh(staleEntry.getHead().getResponse(), response);
+        final ISignalWriteStream writeStream = entryPut(context, config, cache, refreshed);
+
+        Map<String, String> conditionals = context.getAttribute(CONDITIONALS_ATTR, null);
+        final boolean notModified = conditionals != null && HttpCaching.isNotModified(conditionals, refreshed);
+        ServiceResponse head = notModified ? HttpCaching.notModified(refreshed) : refreshed;
+        response.setCode(head.getCode());
+        response.setMessage(head.getMessage());
+        response.getHeaders().clear();
+        for (Entry<String, String> header : head.getHeaders().entrySet()) {
+            response.getHeaders().put(header.getKey(), header.getValue());
+        }
+
+        return new AbstractStream<ServiceResponse>() {
+            @Override
+            public ServiceResponse getHead() {
+                return response;
+            }
+            @Override
+            protected void handleHead(ServiceResponse head) {
+            }
+            @Override
+            public void write(IApimanBuffer chunk) {
+                // A 304 has no body
+            }
+            @Override
+            public void end() {
+                staleEntry.bodyHandler(new IAsyncHandler<IApimanBuffer>() {
+                    @Override
+                    public void handle(IApimanBuffer chunk) {
+                        if (writeStream != null) {
+                            writeStream.write(chunk);
+                        }
+                        if (!notModified) {
+                            handleBody(chunk);
+                        }
+                    }
+                });
+                staleEntry.endHandler(new IAsyncHandler<Void>() {
+                    @Override
+                    public void handle(Void result) {
+                        if (writeStream != null) {
+                            writeStream.end();
+                        }
+                        handleEnd();
+                        if (flight != null) {
+                            flight.release();
+                        }
+                    }
+                });
+                staleEntry.transmit();
+            }
+        };
+    }
+
+    /**
+     * Starts storing a response in the cache, along with its freshness.  The entry
+     * is kept until it goes stale or, if it can be served stale or revalidated,
+     * for as long as that is allowed.
+     * @param context
+     * @param config
+     * @param cache
+     * @param toCache the response to cache
+     * @return the stream to write the body to, or null if the response must not be cached
+     * @throws IOException
+     */
+    private ISignalWriteStream entryPut(IPolicyContext context, CachingConfig config, ICacheStoreComponent cache,
+            ServiceResponse toCache) throws IOException {
+        ServiceRequest request = context.getAttribute(REQUEST_ATTR, null);
+        boolean http = config.isHttpSemantics();
+        if (http && !HttpCaching.isCacheableResponse(request, toCache)) {
+            return null;
+        }
+        long now = System.currentTimeMillis();
+        long lifetime = http ? HttpCaching.getFreshnessLifetime(toCache, config.getTtl() * 1000L)
+                : config.getTtl() * 1000L;
+        long retainFor = http && HttpCaching.hasValidator(toCache) ? config.getTtl() * 1000L : 0;
+        retainFor = Math.max(retainFor, staleWindow(config, toCache, HttpCaching.STALE_WHILE_REVALIDATE));
+        retainFor = Math.max(retainFor, staleWindow(config, toCache, HttpCaching.STALE_IF_ERROR));
+        long ttl = (lifetime + retainFor + 999L) / 1000L;
+        if (ttl <= 0) {
+            return null;
+        }
+        String cacheId = context.getAttribute(CACHE_ID_ATTR, null);
+        String entryId = cacheId;
+        if (http) {
+            String vary = toCache.getHeaders().get(HttpCaching.VARY);
+            // Always (re)write the Vary header, it may have changed
+            cache.put(cacheId + VARY_KEY_SUFFIX, vary == null ? "" : vary, ttl); //$NON-NLS-1$
+            entryId = variantId(cacheId, vary, request);
+        }
+        return cache.putBinary(entryId, new HttpCacheEntry(toCache, now, now + lifetime), ttl);
+    }
+
+    /**
+     * Returns for how long (in millis) after going stale a cached response may be
+     * served while it is refreshed, or when the back-end service fails.
+     * @param config
+     * @param response the cached response
+     * @param directive the matching Cache-Control extension
+     */
+    private static long staleWindow(CachingConfig config, ServiceResponse response, String directive) {
+        long configured = HttpCaching.STALE_WHILE_REVALIDATE.equals(directive) ? config.getStaleWhileRevalidate()
+                : config.getStaleIfError();
+        if (config.isHttpSemantics()) {
+            return HttpCaching.getStaleWindow(response, directive, configured * 1000L);
+        }
+        return configured * 1000L;
+    }
+
+    /**
+     * Returns true if cache entries record their freshness, which is needed to
+     * follow HTTP semantics or serve stale responses.  Otherwise the cache store
+     * simply expires entries after the ttl.
+     * @param config
+     */
+    private static boolean usesEntries(CachingConfig config) {
+        return config.isHttpSemantics() || config.getStaleWhileRevalidate() > 0 || config.getStaleIfError() > 0;
+    }
+
+    /**
+     * Returns the id of the variant of a cache entry, given the Vary header of the
+     * cached responses.
+     * @param cacheId
+     * @param vary
+     * @param request
+     */
+    private static String variantId(String cacheId, String vary, ServiceRequest request) {
+        if (vary == null || vary.isEmpty()) {
+            return cacheId;
+        }
+        return cacheId + HttpCaching.getVaryKey(vary, request);
+    }
+
     /**
      * Builds a cached request id composed by the API key followed by the HTTP
-     * verb and the destination. In the case where there's no API key the ID
-     * will contain ServiceOrgId + ServiceId + Service Version
+     * verb, the destination and the (sorted) query parameters. In the case where
+     * there's no API key the ID will contain ServiceOrgId + ServiceId + Service Version
      */
     private static String buildCacheID(ServiceRequest request) {
         StringBuilder req = new StringBuilder();
@@ -174,6 +650,13 @@ public class CachingPolicy extends AbstractMappedDataPolicy<CachingConfig> imple
         }
         req.append(KEY_SEPARATOR).append(request.getType()).append(KEY_SEPARATOR)
                 .append(request.getDestination());
+        if (request.getQueryParams() != null && !request.getQueryParams().isEmpty()) {
+            char separator = '?';
+            for (Entry<String, String> param : new TreeMap<>(request.getQueryParams()).entrySet()) {
+                req.append(separator).append(param.getKey()).append('=').append(param.getValue());
+                separator = '&';
+            }
+        }
         return req.toString();
     }
 
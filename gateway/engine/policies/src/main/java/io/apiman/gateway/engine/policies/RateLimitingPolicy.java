@@ -22,14 +22,17 @@ import io.apiman.gateway.engine.beans.PolicyFailureType;
 import io.apiman.gateway.engine.beans.ServiceRequest;
 import io.apiman.gateway.engine.beans.ServiceResponse;
 import io.apiman.gateway.engine.components.IPolicyFailureFactoryComponent;
+import io.apiman.gateway.engine.components.IAlgorithmRateLimiterComponent;
 import io.apiman.gateway.engine.components.IRateLimiterComponent;
 import io.apiman.gateway.engine.components.rate.RateLimitResponse;
 import io.apiman.gateway.engine.policies.config.RateLimitingConfig;
+import io.apiman.gateway.engine.policies.config.rates.RateLimitingAlgorithm;
 import io.apiman.gateway.engine.policies.config.rates.RateLimitingGranularity;
 import io.apiman.gateway.engine.policies.config.rates.RateLimitingPeriod;
 import io.apiman.gateway.engine.policies.i18n.Messages;
 import io.apiman.gateway.engine.policy.IPolicyChain;
 import io.apiman.gateway.engine.policy.IPolicyContext;
+import io.apiman.gateway.engine.rates.RateBucketAlgorithm;
 import io.apiman.gateway.engine.rates.RateBucketPeriod;
 
 import java.util.HashMap;
@@ -86,7 +89,7 @@ public class RateLimitingPolicy extends AbstractMappedPolicy<RateLimitingConfig>
         }
 
         IRateLimiterComponent rateLimiter = context.getComponent(IRateLimiterComponent.class);
-        rateLimiter.accept(bucketId, period, config.getLimit(), 1, new IAsyncResultHandler<RateLimitResponse>() {
+        accept(rateLimiter, bucketId, period, getAlgorithm(config), config.getLimit(), 1, new IAsyncResultHandler<RateLimitResponse>() {
             @Override
             public void handle(IAsyncResult<RateLimitResponse> result) {
                 if (result.isError()) {
@@ -217,6 +220,64 @@ public class RateLimitingPolicy extends AbstractMappedPolicy<RateLimitingConfig>
         }
     }
 
+    /**
+     * Gets the appropriate bucket algorithm from the config.  Configs created
+     * before the algorithm was configurable have none, so default to FixedWindow.
+     * @param config
+     */
+    protected static RateBucketAlgorithm getAlgorithm(RateLimitingConfig config) {
+        RateLimitingAlgorithm algorithm = config.getAlgorithm();
+        if (algorithm == null) {
+            return RateBucketAlgorithm.FixedWindow;
+        }
+        switch (algorithm) {
+        case TokenBucket:
+            return RateBucketAlgorithm.TokenBucket;
+        case SlidingWindow:
+            return RateBucketAlgorithm.SlidingWindow;
+        case FixedWindow:
+        default:
+            return RateBucketAlgorithm.FixedWindow;
+        }
+    }
+
+    /**
+     * Adds a request to the given bucket, counting it with the given algorithm.  Rate
+     * limiters that don't implement {@link IAlgorithmRateLimiterComponent} (e.g. ones
+     * written before the algorithm was configurable) only support fixed windows, so
+     * they are used as such whatever the algorithm.
+     * @param rateLimiter
+     * @param bucketId
+     * @param period
+     * @param algorithm
+     * @param limit
+     * @param increment
+     * @param handler
+     */
+    protected static void accept(IRateLimiterComponent rateLimiter, String bucketId, RateBucketPeriod period,
+            RateBucketAlgorithm algorithm, long limit, long increment, IAsyncResultHandler<RateLimitResponse> handler) {
+        if (rateLimiter instanceof IAlgorithmRateLimiterComponent) {
+            ((IAlgorithmRateLimiterComponent) rateLimiter).accept(algorithmBucketId(bucketId, algorithm), period,
+                    algorithm, limit, increment, handler);
+        } else {
+            rateLimiter.accept(bucketId, period, limit, increment, handler);
+        }
+    }
+
+    /**
+     * Each algorithm keeps different state in its bucket, so switching the algorithm
+     * of an existing policy must not reuse the old bucket.  Fixed window buckets keep
+     * their original IDs so that existing counts are preserved.
+     * @param bucketId
+     * @param algorithm
+     */
+    private static String algorithmBucketId(String bucketId, RateBucketAlgorithm algorithm) {
+        if (algorithm == RateBucketAlgorithm.FixedWindow) {
+            return bucketId;
+        }
+        return bucketId + "||" + algorithm.name(); //$NON-NLS-1$
+    }
+
     /**
      * @param config
      * @param rtr
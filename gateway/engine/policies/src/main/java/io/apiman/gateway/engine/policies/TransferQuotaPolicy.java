@@ -96,7 +96,7 @@ public class TransferQuotaPolicy extends AbstractMappedDataPolicy<TransferQuotaC
         context.setAttribute(PERIOD_ATTR, period);
 
         IRateLimiterComponent rateLimiter = context.getComponent(IRateLimiterComponent.class);
-        rateLimiter.accept(bucketId, period, config.getLimit(), 0, new IAsyncResultHandler<RateLimitResponse>() {
+        RateLimitingPolicy.accept(rateLimiter, bucketId, period, RateLimitingPolicy.getAlgorithm(config), config.getLimit(), 0, new IAsyncResultHandler<RateLimitResponse>() {
             @Override
             public void handle(IAsyncResult<RateLimitResponse> result) {
                 if (result.isError()) {
@@ -167,7 +167,7 @@ public class TransferQuotaPolicy extends AbstractMappedDataPolicy<TransferQuotaC
             final long uploadedBytes = context.getAttribute(BYTES_UPLOADED_ATTR, (Long) null);
 
             IRateLimiterComponent rateLimiter = context.getComponent(IRateLimiterComponent.class);
-            rateLimiter.accept(bucketId, period, config.getLimit(), uploadedBytes, new IAsyncResultHandler<RateLimitResponse>() {
+            RateLimitingPolicy.accept(rateLimiter, bucketId, period, RateLimitingPolicy.getAlgorithm(config), config.getLimit(), uploadedBytes, new IAsyncResultHandler<RateLimitResponse>() {
                 @Override
                 public void handle(IAsyncResult<RateLimitResponse> result) {
                     if (result.isError()) {
@@ -248,7 +248,7 @@ public class TransferQuotaPolicy extends AbstractMappedDataPolicy<TransferQuotaC
             final RateBucketPeriod period = context.getAttribute(PERIOD_ATTR, (RateBucketPeriod) null);
 
             IRateLimiterComponent rateLimiter = context.getComponent(IRateLimiterComponent.class);
-            rateLimiter.accept(bucketId, period, config.getLimit(), downloadedBytes, new IAsyncResultHandler<RateLimitResponse>() {
+            RateLimitingPolicy.accept(rateLimiter, bucketId, period, RateLimitingPolicy.getAlgorithm(config), config.getLimit(), downloadedBytes, new IAsyncResultHandler<RateLimitResponse>() {
                 @Override
                 public void handle(IAsyncResult<RateLimitResponse> result) {
                     // No need to handle the response - it's too late to do anything meaningful with the result.
@@ -38,8 +38,11 @@ import io.apiman.gateway.engine.policy.IConnectorInterceptor;
 public class CacheConnectorInterceptor implements IConnectorInterceptor, IServiceConnector,
         IServiceConnection, IServiceConnectionResponse {
 
-    private ISignalReadStream<ServiceResponse> cacheEntry;
+    private ISignalReadStream<?> cacheEntry;
+    private ServiceResponse head;
+    private boolean withBody;
     private IAsyncResultHandler<IServiceConnectionResponse> handler;
+    private IAsyncHandler<Void> endHandler;
     private boolean finished = false;
     private boolean connected = false;
 
@@ -48,7 +51,19 @@ public class CacheConnectorInterceptor implements IConnectorInterceptor, IServic
      * @param cacheEntry
      */
     public CacheConnectorInterceptor(ISignalReadStream<ServiceResponse> cacheEntry) {
+        this(cacheEntry, cacheEntry.getHead(), true);
+    }
+
+    /**
+     * Constructor.
+     * @param cacheEntry the cache entry
+     * @param head the response to send in place of the cached one
+     * @param withBody false if the cached body should not be sent (e.g. for a 304)
+     */
+    public CacheConnectorInterceptor(ISignalReadStream<?> cacheEntry, ServiceResponse head, boolean withBody) {
         this.cacheEntry = cacheEntry;
+        this.head = head;
+        this.withBody = withBody;
     }
 
     /**
@@ -121,7 +136,12 @@ public class CacheConnectorInterceptor implements IConnectorInterceptor, IServic
      */
     @Override
     public void transmit() {
-        cacheEntry.transmit();
+        if (withBody) {
+            cacheEntry.transmit();
+        } else {
+            cacheEntry.abort();
+            endHandler.handle(null);
+        }
     }
 
     /**
@@ -137,14 +157,15 @@ public class CacheConnectorInterceptor implements IConnectorInterceptor, IServic
      */
     @Override
     public void endHandler(final IAsyncHandler<Void> endHandler) {
-        cacheEntry.endHandler(new IAsyncHandler<Void>() {
+        this.endHandler = new IAsyncHandler<Void>() {
             @Override
             public void handle(Void result) {
                 endHandler.handle(result);
                 connected = false;
                 finished = true;
             }
-        });
+        };
+        cacheEntry.endHandler(this.endHandler);
     }
 
     /**
@@ -152,7 +173,7 @@ public class CacheConnectorInterceptor implements IConnectorInterceptor, IServic
      */
     @Override
     public ServiceResponse getHead() {
-        return cacheEntry.getHead();
+        return head;
     }
 
 }
@@ -0,0 +1,170 @@
+/*
+ * Copyright 2015 JBoss Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.apiman.gateway.engine.policies.caching;
+
+import io.apiman.gateway.engine.async.IAsyncHandler;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Coalesces concurrent cache misses for the same cache entry, so that only one
+ * request (the leader) goes to the back-end service while the others wait for
+ * it to populate the cache.  The leader must release its flight when it is
+ * done - whether or not it succeeded.  If the leader never does (e.g. because
+ * a policy after the caching policy failed the request), the flight is
+ * released automatically after a timeout so that the waiting requests can go
+ * to the back-end themselves.
+ *
+ * The waiting requests are continued on a small, shared pool of threads -
+ * neither the leader's thread nor the timeout thread runs them.  The pool is
+ * bounded (see {@link #WAITER_THREADS}), so a large number of waiters queue up
+ * for it rather than each getting a thread of their own.
+ *
+ * @author eric.wittmann@redhat.com
+ */
+public class CacheRequestCoalescer {
+
+    /** The max number of threads continuing waiting requests */
+    static final int WAITER_THREADS = Math.max(2, Runtime.getRuntime().availableProcessors());
+
+    private static final ScheduledThreadPoolExecutor timeouts;
+    private static final ThreadPoolExecutor waiters;
+    static {
+        timeouts = new ScheduledThreadPoolExecutor(1, daemonThreads("apiman-cache-coalescer-timeout")); //$NON-NLS-1$
+        timeouts.setRemoveOnCancelPolicy(true);
+        waiters = new ThreadPoolExecutor(WAITER_THREADS, WAITER_THREADS, 60L, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), daemonThreads("apiman-cache-coalescer")); //$NON-NLS-1$
+        waiters.allowCoreThreadTimeOut(true);
+    }
+
+    private final ConcurrentHashMap<String, Flight> flights = new ConcurrentHashMap<>();
+
+    /**
+     * Constructor.
+     */
+    public CacheRequestCoalescer() {
+    }
+
+    /**
+     * Joins the flight for the given cache entry.  If there is no flight in
+     * progress, a new one is started and returned - the caller is the leader
+     * and must release it.  Otherwise null is returned and the waiter will be
+     * called once the current leader is done.
+     * @param cacheId
+     * @param timeout max time (in millis) to wait for the leader
+     * @param waiter
+     */
+    public Flight join(String cacheId, long timeout, IAsyncHandler<Void> waiter) {
+        final Flight flight = new Flight(cacheId);
+        while (true) {
+            Flight existing = flights.putIfAbsent(cacheId, flight);
+            if (existing == null) {
+                flight.timeoutTask = timeouts.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        flight.release();
+                    }
+                }, timeout, TimeUnit.MILLISECONDS);
+                return flight;
+            }
+            synchronized (existing) {
+                if (!existing.released) {
+                    existing.waiters.add(waiter);
+                    return null;
+                }
+            }
+            // Released but not yet removed - clean it up and try again.
+            flights.remove(cacheId, existing);
+        }
+    }
+
+    /**
+     * @return the number of flights in progress
+     */
+    public int getFlightCount() {
+        return flights.size();
+    }
+
+    /**
+     * Creates daemon threads with the given name.
+     * @param name
+     */
+    private static ThreadFactory daemonThreads(final String name) {
+        return new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, name);
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+
+    /**
+     * A single back-end call that other requests are waiting on.
+     */
+    public final class Flight {
+
+        private final String cacheId;
+        private final List<IAsyncHandler<Void>> waiters = new ArrayList<>();
+        private boolean released;
+        private volatile ScheduledFuture<?> timeoutTask;
+
+        /**
+         * Constructor.
+         */
+        private Flight(String cacheId) {
+            this.cacheId = cacheId;
+        }
+
+        /**
+         * Ends the flight and lets all waiting requests continue (on the pool
+         * of waiter threads).  Safe to call more than once.
+         */
+        public void release() {
+            List<IAsyncHandler<Void>> toNotify;
+            synchronized (this) {
+                if (released) {
+                    return;
+                }
+                released = true;
+                toNotify = new ArrayList<>(waiters);
+                waiters.clear();
+            }
+            flights.remove(cacheId, this);
+            if (timeoutTask != null) {
+                timeoutTask.cancel(false);
+            }
+            for (final IAsyncHandler<Void> waiter : toNotify) {
+                CacheRequestCoalescer.waiters.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        waiter.handle(null);
+                    }
+                });
+            }
+        }
+    }
+
+}
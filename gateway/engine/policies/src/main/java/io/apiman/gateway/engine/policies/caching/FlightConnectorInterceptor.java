@@ -0,0 +1,196 @@
+/*
+ * Copyright 2015 JBoss Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.apiman.gateway.engine.policies.caching;
+
+import io.apiman.gateway.engine.IServiceConnection;
+import io.apiman.gateway.engine.IServiceConnectionResponse;
+import io.apiman.gateway.engine.IServiceConnector;
+import io.apiman.gateway.engine.async.AsyncResultImpl;
+import io.apiman.gateway.engine.async.IAsyncHandler;
+import io.apiman.gateway.engine.async.IAsyncResult;
+import io.apiman.gateway.engine.async.IAsyncResultHandler;
+import io.apiman.gateway.engine.beans.ServiceRequest;
+import io.apiman.gateway.engine.beans.ServiceResponse;
+import io.apiman.gateway.engine.beans.exceptions.ConnectorException;
+import io.apiman.gateway.engine.io.IApimanBuffer;
+import io.apiman.gateway.engine.policies.caching.CacheRequestCoalescer.Flight;
+import io.apiman.gateway.engine.policy.IDelegatingConnectorInterceptor;
+
+/**
+ * A connector interceptor that connects to the back-end service as usual, on
+ * behalf of the leader of a flight (see {@link CacheRequestCoalescer}).  It
+ * releases the flight as soon as the exchange with the back-end service fails
+ * or is aborted, so that the waiting requests don't have to wait for the
+ * flight to time out.  When the back-end service responds, the flight is
+ * released by the caching policy once the response has been cached.
+ *
+ * @author eric.wittmann@redhat.com
+ */
+public class FlightConnectorInterceptor implements IDelegatingConnectorInterceptor, IServiceConnector {
+
+    private final Flight flight;
+    private IServiceConnector connector;
+
+    /**
+     * Constructor.
+     * @param flight
+     */
+    public FlightConnectorInterceptor(Flight flight) {
+        this.flight = flight;
+    }
+
+    /**
+     * @see io.apiman.gateway.engine.policy.IConnectorInterceptor#createConnector()
+     */
+    @Override
+    public IServiceConnector createConnector() {
+        // Without a real connector the back-end service can't be reached at all
+        return this;
+    }
+
+    /**
+     * @see io.apiman.gateway.engine.policy.IDelegatingConnectorInterceptor#createConnector(io.apiman.gateway.engine.IServiceConnector)
+     */
+    @Override
+    public IServiceConnector createConnector(IServiceConnector connector) {
+        this.connector = connector;
+        return this;
+    }
+
+    /**
+     * @see io.apiman.gateway.engine.IServiceConnector#connect(io.apiman.gateway.engine.beans.ServiceRequest, io.apiman.gateway.engine.async.IAsyncResultHandler)
+     */
+    @Override
+    public IServiceConnection connect(ServiceRequest request,
+            final IAsyncResultHandler<IServiceConnectionResponse> handler) throws ConnectorException {
+        if (connector == null) {
+            flight.release();
+            throw new ConnectorException("No connector to the back-end service."); //$NON-NLS-1$
+        }
+        try {
+            return new FlightConnection(connector.connect(request, new IAsyncResultHandler<IServiceConnectionResponse>() {
+                @Override
+                public void handle(IAsyncResult<IServiceConnectionResponse> result) {
+                    if (result.isError()) {
+                        flight.release();
+                        handler.handle(result);
+                    } else {
+                        handler.handle(AsyncResultImpl.<IServiceConnectionResponse>create(
+                                new FlightConnectionResponse(result.getResult())));
+                    }
+                }
+            }));
+        } catch (RuntimeException e) {
+            flight.release();
+            throw e;
+        }
+    }
+
+    /**
+     * The connection to the back-end service.
+     */
+    private final class FlightConnection implements IServiceConnection {
+
+        private final IServiceConnection connection;
+
+        /**
+         * Constructor.
+         */
+        public FlightConnection(IServiceConnection connection) {
+            this.connection = connection;
+        }
+
+        @Override
+        public void write(IApimanBuffer chunk) {
+            connection.write(chunk);
+        }
+
+        @Override
+        public void end() {
+            try {
+                connection.end();
+            } catch (RuntimeException e) {
+                // Connectors may report failures (e.g. timeouts) by throwing
+                flight.release();
+                throw e;
+            }
+        }
+
+        @Override
+        public boolean isFinished() {
+            return connection.isFinished();
+        }
+
+        @Override
+        public void abort() {
+            flight.release();
+            connection.abort();
+        }
+
+        @Override
+        public boolean isConnected() {
+            return connection.isConnected();
+        }
+    }
+
+    /**
+     * The response of the back-end service.  It is aborted (rather than ended)
+     * when e.g. a response policy fails.
+     */
+    private final class FlightConnectionResponse implements IServiceConnectionResponse {
+
+        private final IServiceConnectionResponse response;
+
+        /**
+         * Constructor.
+         */
+        public FlightConnectionResponse(IServiceConnectionResponse response) {
+            this.response = response;
+        }
+
+        @Override
+        public void abort() {
+            flight.release();
+            response.abort();
+        }
+
+        @Override
+        public void transmit() {
+            response.transmit();
+        }
+
+        @Override
+        public void bodyHandler(IAsyncHandler<IApimanBuffer> bodyHandler) {
+            response.bodyHandler(bodyHandler);
+        }
+
+        @Override
+        public void endHandler(IAsyncHandler<Void> endHandler) {
+            response.endHandler(endHandler);
+        }
+
+        @Override
+        public ServiceResponse getHead() {
+            return response.getHead();
+        }
+
+        @Override
+        public boolean isFinished() {
+            return response.isFinished();
+        }
+    }
+
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright 2015 JBoss Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.apiman.gateway.engine.policies.caching;
+
+import io.apiman.gateway.engine.beans.ServiceResponse;
+
+import java.io.Serializable;
+
+/**
+ * The head of a cache entry stored by the caching policy when it follows the
+ * HTTP caching headers or serves stale responses.  Besides the cached response
+ * it records when the response was stored and until when it is fresh.  Stale
+ * entries are kept around (when they can be revalidated or served stale) so
+ * that the back-end service can be asked whether they are still valid.
+ *
+ * @author eric.wittmann@redhat.com
+ */
+public class HttpCacheEntry implements Serializable {
+
+    private static final long serialVersionUID = 5393180316377155129L;
+
+    private ServiceResponse response;
+    private long storedOn;
+    private long freshUntil;
+
+    /**
+     * Constructor.
+     */
+    public HttpCacheEntry() {
+    }
+
+    /**
+     * Constructor.
+     * @param response
+     * @param storedOn
+     * @param freshUntil
+     */
+    public HttpCacheEntry(ServiceResponse response, long storedOn, long freshUntil) {
+        this.response = response;
+        this.storedOn = storedOn;
+        this.freshUntil = freshUntil;
+    }
+
+    /**
+     * @return the response
+     */
+    public ServiceResponse getResponse() {
+        return response;
+    }
+
+    /**
+     * @param response the response to set
+     */
+    public void setResponse(ServiceResponse response) {
+        this.response = response;
+    }
+
+    /**
+     * @return the storedOn
+     */
+    public long getStoredOn() {
+        return storedOn;
+    }
+
+    /**
+     * @param storedOn the storedOn to set
+     */
+    public void setStoredOn(long storedOn) {
+        this.storedOn = storedOn;
+    }
+
+    /**
+     * @return the freshUntil
+     */
+    public long getFreshUntil() {
+        return freshUntil;
+    }
+
+    /**
+     * @param freshUntil the freshUntil to set
+     */
+    public void setFreshUntil(long freshUntil) {
+        this.freshUntil = freshUntil;
+    }
+
+}
@@ -0,0 +1,497 @@
+/*
+ * Copyright 2015 JBoss Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.apiman.gateway.engine.policies.caching;
+
+import io.apiman.gateway.engine.beans.HeaderHashMap;
+import io.apiman.gateway.engine.beans.ServiceRequest;
+import io.apiman.gateway.engine.beans.ServiceResponse;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.TreeSet;
+
+/**
+ * The HTTP caching rules (RFC 7234 and RFC 7232) followed by the caching policy
+ * when it is configured to honour the HTTP caching headers.  The gateway acts
+ * as a shared cache.
+ *
+ * @author eric.wittmann@redhat.com
+ */
+public final class HttpCaching {
+
+    public static final String CACHE_CONTROL = "Cache-Control"; //$NON-NLS-1$
+    public static final String ETAG = "ETag"; //$NON-NLS-1$
+    public static final String LAST_MODIFIED = "Last-Modified"; //$NON-NLS-1$
+    public static final String VARY = "Vary"; //$NON-NLS-1$
+    public static final String IF_NONE_MATCH = "If-None-Match"; //$NON-NLS-1$
+    public static final String IF_MODIFIED_SINCE = "If-Modified-Since"; //$NON-NLS-1$
+    public static final String WARNING = "Warning"; //$NON-NLS-1$
+    public static final String STALE_WHILE_REVALIDATE = "stale-while-revalidate"; //$NON-NLS-1$
+    public static final String STALE_IF_ERROR = "stale-if-error"; //$NON-NLS-1$
+    public static final String RESPONSE_IS_STALE = "110 - \"Response is Stale\""; //$NON-NLS-1$
+    public static final String REVALIDATION_FAILED = "111 - \"Revalidation Failed\""; //$NON-NLS-1$
+
+    private static final String AGE = "Age"; //$NON-NLS-1$
+    private static final String AUTHORIZATION = "Authorization"; //$NON-NLS-1$
+    private static final String DATE = "Date"; //$NON-NLS-1$
+    private static final String EXPIRES = "Expires"; //$NON-NLS-1$
+    private static final String PRAGMA = "Pragma"; //$NON-NLS-1$
+    private static final String NO_CACHE = "no-cache"; //$NON-NLS-1$
+    private static final String NO_STORE = "no-store"; //$NON-NLS-1$
+    private static final String PRIVATE = "private"; //$NON-NLS-1$
+    private static final String PUBLIC = "public"; //$NON-NLS-1$
+    private static final String MAX_AGE = "max-age"; //$NON-NLS-1$
+    private static final String S_MAXAGE = "s-maxage"; //$NON-NLS-1$
+    private static final String MUST_REVALIDATE = "must-revalidate"; //$NON-NLS-1$
+    private static final String PROXY_REVALIDATE = "proxy-revalidate"; //$NON-NLS-1$
+    private static final String HTTP_DATE_FORMAT = "EEE, dd MMM yyyy HH:mm:ss zzz"; //$NON-NLS-1$
+
+    /** Status codes that are cacheable by default (RFC 7231 section 6.1) */
+    private static final Set<Integer> CACHEABLE_CODES = new HashSet<>(Arrays.asList(200, 203, 204, 300, 301,
+            404, 405, 410, 414, 501));
+    /** Headers of the stored response that are sent along with a 304 (RFC 7232 section 4.1) */
+    private static final String[] NOT_MODIFIED_HEADERS = { CACHE_CONTROL, "Content-Location", DATE, ETAG, //$NON-NLS-1$
+            EXPIRES, LAST_MODIFIED, VARY };
+    /** Headers of a 304 that must not replace those of the stored response */
+    private static final Set<String> BODY_HEADERS = new HashSet<>(Arrays.asList("content-length", //$NON-NLS-1$
+            "content-type", "content-encoding", "transfer-encoding")); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+
+    /**
+     * Constructor.
+     */
+    private HttpCaching() {
+    }
+
+    /**
+     * Parses a Cache-Control header into a map of (lower case) directive names
+     * to their values.  Directives without a value map to an empty string.
+     * @param header the header value, may be null
+     */
+    public static Map<String, String> parseCacheControl(String header) {
+        Map<String, String> directives = new HashMap<>();
+        if (header == null) {
+            return directives;
+        }
+        for (String directive : header.split(",")) { //$NON-NLS-1$
+            directive = directive.trim();
+            if (directive.isEmpty()) {
+                continue;
+            }
+            int idx = directive.indexOf('=');
+            if (idx == -1) {
+                directives.put(directive.toLowerCase(), ""); //$NON-NLS-1$
+            } else {
+                String value = directive.substring(idx + 1).trim();
+                if (value.length() > 1 && value.startsWith("\"") && value.endsWith("\"")) { //$NON-NLS-1$ //$NON-NLS-2$
+                    value = value.substring(1, value.length() - 1);
+                }
+                directives.put(directive.substring(0, idx).trim().toLowerCase(), value);
+            }
+        }
+        return directives;
+    }
+
+    /**
+     * Returns true if the response to the given request may be served from (and
+     * stored in) the cache.  Only GET and HEAD requests are cacheable.
+     * @param request
+     */
+    public static boolean isCacheableRequest(ServiceRequest request) {
+        String method = request.getType();
+        if (!"GET".equalsIgnoreCase(method) && !"HEAD".equalsIgnoreCase(method)) { //$NON-NLS-1$ //$NON-NLS-2$
+            return false;
+        }
+        return !parseCacheControl(request.getHeaders().get(CACHE_CONTROL)).containsKey(NO_STORE);
+    }
+
+    /**
+     * Returns true if the given response may be stored by a shared cache.
+     * @param request the request the response is for
+     * @param response the response
+     */
+    public static boolean isCacheableResponse(ServiceRequest request, ServiceResponse response) {
+        if (!CACHEABLE_CODES.contains(response.getCode())) {
+            return false;
+        }
+        Map<String, String> directives = parseCacheControl(response.getHeaders().get(CACHE_CONTROL));
+        if (directives.containsKey(NO_STORE) || directives.containsKey(PRIVATE)) {
+            return false;
+        }
+        String vary = response.getHeaders().get(VARY);
+        if (vary != null && vary.contains("*")) { //$NON-NLS-1$
+            return false;
+        }
+        // Responses to authorized requests are only shared when explicitly allowed (RFC 7234 section 3.2)
+        if (request.getHeaders().containsKey(AUTHORIZATION)) {
+            return directives.containsKey(PUBLIC) || directives.containsKey(S_MAXAGE)
+                    || directives.containsKey(MUST_REVALIDATE);
+        }
+        return true;
+    }
+
+    /**
+     * Returns how long (in millis) the given response is fresh for, relative to
+     * when it was received.  Explicit expiration (s-maxage, max-age or Expires)
+     * wins over the default lifetime.
+     * @param response the response
+     * @param defaultLifetime the lifetime (in millis) to use when the response has none
+     */
+    public static long getFreshnessLifetime(ServiceResponse response, long defaultLifetime) {
+        Map<String, String> directives = parseCacheControl(response.getHeaders().get(CACHE_CONTROL));
+        long lifetime;
+        if (directives.containsKey(NO_CACHE)) {
+            lifetime = 0;
+        } else if (directives.containsKey(S_MAXAGE)) {
+            lifetime = parseSeconds(directives.get(S_MAXAGE)) * 1000L;
+        } else if (directives.containsKey(MAX_AGE)) {
+            lifetime = parseSeconds(directives.get(MAX_AGE)) * 1000L;
+        } else if (response.getHeaders().containsKey(EXPIRES)) {
+            long expires = parseDate(response.getHeaders().get(EXPIRES));
+            long date = parseDate(response.getHeaders().get(DATE));
+            if (date == -1) {
+                date = System.currentTimeMillis();
+            }
+            // An invalid Expires date means "already expired"
+            lifetime = expires == -1 ? 0 : Math.max(0, expires - date);
+        } else {
+            lifetime = defaultLifetime;
+        }
+        return Math.max(0, lifetime - getAge(response) * 1000L);
+    }
+
+    /**
+     * Returns true if the cache entry can be used to answer the given request
+     * without revalidating it with the back-end service.
+     * @param entry the cache entry
+     * @param request the request
+     * @param now the current time
+     */
+    public static boolean isFresh(HttpCacheEntry entry, ServiceRequest request, long now) {
+        if (now >= entry.getFreshUntil()) {
+            return false;
+        }
+        Map<String, String> directives = parseCacheControl(request.getHeaders().get(CACHE_CONTROL));
+        if (directives.containsKey(NO_CACHE)) {
+            return false;
+        }
+        if (directives.isEmpty() && NO_CACHE.equalsIgnoreCase(request.getHeaders().get(PRAGMA))) {
+            return false;
+        }
+        if (directives.containsKey(MAX_AGE)) {
+            long maxAge = parseSeconds(directives.get(MAX_AGE));
+            return getCurrentAge(entry, now) <= maxAge;
+        }
+        return true;
+    }
+
+    /**
+     * Returns true if the client accepts a stale response to the given request.
+     * It doesn't if it asked for the response to be revalidated or limited its
+     * age.
+     * @param request
+     */
+    public static boolean allowsStale(ServiceRequest request) {
+        Map<String, String> directives = parseCacheControl(request.getHeaders().get(CACHE_CONTROL));
+        if (directives.containsKey(NO_CACHE) || directives.containsKey(MAX_AGE)) {
+            return false;
+        }
+        return !directives.isEmpty() || !NO_CACHE.equalsIgnoreCase(request.getHeaders().get(PRAGMA));
+    }
+
+    /**
+     * Returns for how long (in millis) after going stale the response may still be
+     * served, either while it is revalidated or when revalidating it fails (RFC
+     * 5861).  The response may extend the configured window with the matching
+     * Cache-Control extension, or forbid serving it stale altogether.
+     * @param response the cached response
+     * @param directive either {@link #STALE_WHILE_REVALIDATE} or {@link #STALE_IF_ERROR}
+     * @param configured the configured window (in millis)
+     */
+    public static long getStaleWindow(ServiceResponse response, String directive, long configured) {
+        Map<String, String> directives = parseCacheControl(response.getHeaders().get(CACHE_CONTROL));
+        if (directives.containsKey(MUST_REVALIDATE) || directives.containsKey(PROXY_REVALIDATE)
+                || directives.containsKey(NO_CACHE)) {
+            return 0;
+        }
+        if (directives.containsKey(directive)) {
+            return Math.max(configured, parseSeconds(directives.get(directive)) * 1000L);
+        }
+        return configured;
+    }
+
+    /**
+     * @param response
+     * @return true if the response has a validator (ETag or Last-Modified)
+     */
+    public static boolean hasValidator(ServiceResponse response) {
+        return response.getHeaders().containsKey(ETAG) || response.getHeaders().containsKey(LAST_MODIFIED);
+    }
+
+    /**
+     * Removes the client's conditional headers from the request.
+     * @param request
+     * @return the removed headers
+     */
+    public static Map<String, String> removeConditionals(ServiceRequest request) {
+        Map<String, String> conditionals = new HeaderHashMap();
+        for (String name : new String[] { IF_NONE_MATCH, IF_MODIFIED_SINCE }) {
+            String value = request.getHeaders().get(name);
+            if (value != null) {
+                conditionals.put(name, value);
+                request.getHeaders().remove(name);
+            }
+        }
+        return conditionals;
+    }
+
+    /**
+     * Makes the request conditional on the validators of the cached response, so
+     * that the back-end service can answer with a 304 if it hasn't changed.
+     * @param request
+     * @param cached
+     */
+    public static void addValidators(ServiceRequest request, ServiceResponse cached) {
+        String etag = cached.getHeaders().get(ETAG);
+        if (etag != null) {
+            request.getHeaders().put(IF_NONE_MATCH, etag);
+        }
+        String lastModified = cached.getHeaders().get(LAST_MODIFIED);
+        if (lastModified != null) {
+            request.getHeaders().put(IF_MODIFIED_SINCE, lastModified);
+        }
+    }
+
+    /**
+     * Evaluates the given conditional request headers against a response (RFC
+     * 7232 section 6).  If-None-Match takes precedence over If-Modified-Since.
+     * @param conditionals the request headers
+     * @param response the (full) response
+     * @return true if a 304 should be sent instead of the response
+     */
+    public static boolean isNotModified(Map<String, String> conditionals, ServiceResponse response) {
+        String ifNoneMatch = conditionals.get(IF_NONE_MATCH);
+        if (ifNoneMatch != null) {
+            String etag = response.getHeaders().get(ETAG);
+            if (ifNoneMatch.trim().equals("*")) { //$NON-NLS-1$
+                return true;
+            }
+            if (etag == null) {
+                return false;
+            }
+            // Weak comparison
+            etag = opaqueTag(etag);
+            for (String tag : ifNoneMatch.split(",")) { //$NON-NLS-1$
+                if (opaqueTag(tag).equals(etag)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        String ifModifiedSince = conditionals.get(IF_MODIFIED_SINCE);
+        if (ifModifiedSince != null) {
+            long since = parseDate(ifModifiedSince);
+            long lastModified = parseDate(response.getHeaders().get(LAST_MODIFIED));
+            return since != -1 && lastModified != -1 && lastModified <= since;
+        }
+        return false;
+    }
+
+    /**
+     * Returns the part of the cache key that selects the variant of a response
+     * that varies on the given request headers.
+     * @param vary the Vary header of the response
+     * @param request the request
+     */
+    public static String getVaryKey(String vary, ServiceRequest request) {
+        Set<String> names = new TreeSet<>();
+        for (String name : vary.split(",")) { //$NON-NLS-1$
+            name = name.trim().toLowerCase();
+            if (!name.isEmpty()) {
+                names.add(name);
+            }
+        }
+        StringBuilder key = new StringBuilder();
+        for (String name : names) {
+            String value = getHeader(request.getHeaders(), name);
+            key.append('|').append(name).append('=').append(value == null ? "" : value); //$NON-NLS-1$
+        }
+        return key.toString();
+    }
+
+    /**
+     * Creates the 304 response sent in place of the given (full) response.
+     * @param response
+     */
+    public static ServiceResponse notModified(ServiceResponse response) {
+        ServiceResponse rval = new ServiceResponse();
+        rval.setCode(304);
+        rval.setMessage("Not Modified"); //$NON-NLS-1$
+        for (String name : NOT_MODIFIED_HEADERS) {
+            String value = response.getHeaders().get(name);
+            if (value != null) {
+                rval.getHeaders().put(name, value);
+            }
+        }
+        return rval;
+    }
+
+    /**
+     * Creates the response that is sent when serving the given cache entry.  The
+     * entry itself may be shared, so it is copied rather than modified.
+     * @param entry
+     * @param now
+     */
+    public static ServiceResponse served(HttpCacheEntry entry, long now) {
+        ServiceResponse rval = copy(entry.getResponse());
+        setHeader(rval, AGE, String.valueOf(getCurrentAge(entry, now)));
+        return rval;
+    }
+
+    /**
+     * Marks a response as stale (RFC 7234 section 5.5).
+     * @param response
+     * @param warning either {@link #RESPONSE_IS_STALE} or {@link #REVALIDATION_FAILED}
+     */
+    public static ServiceResponse warn(ServiceResponse response, String warning) {
+        setHeader(response, WARNING, warning);
+        return response;
+    }
+
+    /**
+     * Updates a copy of the cached response with the headers of the 304 the
+     * back-end service sent when it was revalidated (RFC 7234 section 4.3.4).
+     * @param cached the cached response
+     * @param notModified the 304 response
+     */
+    public static ServiceResponse refresh(ServiceResponse cached, ServiceResponse notModified) {
+        ServiceResponse rval = copy(cached);
+        for (Entry<String, String> header : notModified.getHeaders().entrySet()) {
+            if (!BODY_HEADERS.contains(header.getKey().toLowerCase())) {
+                setHeader(rval, header.getKey(), header.getValue());
+            }
+        }
+        return rval;
+    }
+
+    /**
+     * Parses an HTTP date.
+     * @param date the date, may be null
+     * @return the date in millis or -1 if it isn't a valid date
+     */
+    public static long parseDate(String date) {
+        if (date == null) {
+            return -1;
+        }
+        SimpleDateFormat format = new SimpleDateFormat(HTTP_DATE_FORMAT, Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("GMT")); //$NON-NLS-1$
+        try {
+            return format.parse(date.trim()).getTime();
+        } catch (ParseException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * @return the age (in seconds) of the cache entry
+     */
+    private static long getCurrentAge(HttpCacheEntry entry, long now) {
+        return getAge(entry.getResponse()) + Math.max(0, now - entry.getStoredOn()) / 1000L;
+    }
+
+    /**
+     * @return the value of the response's Age header (in seconds)
+     */
+    private static long getAge(ServiceResponse response) {
+        return parseSeconds(response.getHeaders().get(AGE));
+    }
+
+    /**
+     * Parses a delta-seconds value, treating invalid values as 0.
+     */
+    private static long parseSeconds(String value) {
+        if (value == null) {
+            return 0;
+        }
+        try {
+            return Math.max(0, Long.parseLong(value.trim()));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * @return the entity tag without its weakness indicator
+     */
+    private static String opaqueTag(String tag) {
+        tag = tag.trim();
+        return tag.startsWith("W/") ? tag.substring(2) : tag; //$NON-NLS-1$
+    }
+
+    /**
+     * @return a copy of the response (without its attributes)
+     */
+    public static ServiceResponse copy(ServiceResponse response) {
+        ServiceResponse rval = new ServiceResponse();
+        rval.setCode(response.getCode());
+        rval.setMessage(response.getMessage());
+        // Not putAll() - the cached headers may not be a HeaderHashMap (e.g. when
+        // read back from a remote cache) and the copy must be case insensitive.
+        for (Entry<String, String> header : response.getHeaders().entrySet()) {
+            rval.getHeaders().put(header.getKey(), header.getValue());
+        }
+        return rval;
+    }
+
+    /**
+     * Gets a header regardless of the case of its name, even if the headers are
+     * not (or no longer) indexed case insensitively.
+     */
+    private static String getHeader(Map<String, String> headers, String name) {
+        String value = headers.get(name);
+        if (value == null) {
+            for (Entry<String, String> header : headers.entrySet()) {
+                if (header.getKey().equalsIgnoreCase(name)) {
+                    return header.getValue();
+                }
+            }
+        }
+        return value;
+    }
+
+    /**
+     * Sets a header, replacing any existing value regardless of the case of
+     * its name.
+     */
+    private static void setHeader(ServiceResponse response, String name, String value) {
+        Iterator<String> names = response.getHeaders().keySet().iterator();
+        while (names.hasNext()) {
+            if (names.next().equalsIgnoreCase(name)) {
+                names.remove();
+            }
+        }
+        response.getHeaders().put(name, value);
+    }
+
+}
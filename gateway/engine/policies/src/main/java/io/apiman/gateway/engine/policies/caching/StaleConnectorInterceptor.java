@@ -0,0 +1,304 @@
+/*
+ * Copyright 2015 JBoss Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.apiman.gateway.engine.policies.caching;
+
+import io.apiman.gateway.engine.IServiceConnection;
+import io.apiman.gateway.engine.IServiceConnectionResponse;
+import io.apiman.gateway.engine.IServiceConnector;
+import io.apiman.gateway.engine.async.AsyncResultImpl;
+import io.apiman.gateway.engine.async.IAsyncHandler;
+import io.apiman.gateway.engine.async.IAsyncResult;
+import io.apiman.gateway.engine.async.IAsyncResultHandler;
+import io.apiman.gateway.engine.beans.ServiceRequest;
+import io.apiman.gateway.engine.beans.ServiceResponse;
+import io.apiman.gateway.engine.beans.exceptions.ConnectorException;
+import io.apiman.gateway.engine.io.IApimanBuffer;
+import io.apiman.gateway.engine.io.ISignalReadStream;
+import io.apiman.gateway.engine.policy.IDelegatingConnectorInterceptor;
+
+/**
+ * A connector interceptor that still connects to the back-end service, but can
+ * answer with a stale cached response instead.  It works in one of two ways:
+ *
+ * <ul>
+ *   <li>stale-while-revalidate: the stale response is sent right away, and the
+ *   back-end response is handed to a refresh handler (to update the cache)</li>
+ *   <li>stale-if-error: the back-end response is sent, unless the back-end
+ *   service fails (5xx or a connector error) - then the stale response is sent</li>
+ * </ul>
+ *
+ * A stale response is marked with the {@link #STALE_ATTR} attribute so that it
+ * doesn't get cached again.
+ *
+ * @author eric.wittmann@redhat.com
+ */
+public class StaleConnectorInterceptor implements IDelegatingConnectorInterceptor, IServiceConnector,
+        IServiceConnection, IServiceConnectionResponse {
+
+    public static final String STALE_ATTR = StaleConnectorInterceptor.class.getName() + ".stale"; //$NON-NLS-1$
+
+    private final ISignalReadStream<?> staleEntry;
+    private final ServiceResponse staleHead;
+    private final IAsyncResultHandler<IServiceConnectionResponse> refreshHandler;
+    private final boolean ownsEntry;
+
+    private IServiceConnector connector;
+    private IServiceConnection connection;
+    private IAsyncResultHandler<IServiceConnectionResponse> handler;
+    private boolean connectFailed = false;
+    private boolean serviceResponded = false;
+    private boolean entryDone = false;
+    private boolean finished = false;
+    private boolean connected = false;
+
+    /**
+     * Creates a stale-while-revalidate interceptor.
+     * @param staleEntry the stale cache entry
+     * @param staleHead the response to send with the stale body
+     * @param refreshHandler called with the back-end response
+     */
+    public StaleConnectorInterceptor(ISignalReadStream<?> staleEntry, ServiceResponse staleHead,
+            IAsyncResultHandler<IServiceConnectionResponse> refreshHandler) {
+        this.staleEntry = staleEntry;
+        this.staleHead = staleHead;
+        this.refreshHandler = refreshHandler;
+        this.ownsEntry = true;
+    }
+
+    /**
+     * Creates a stale-if-error interceptor.
+     * @param staleEntry the stale cache entry
+     * @param staleHead the response to send with the stale body
+     * @param ownsEntry false if the entry is still needed when the back-end
+     *        service succeeds (e.g. to be revalidated) - otherwise it is aborted
+     */
+    public StaleConnectorInterceptor(ISignalReadStream<?> staleEntry, ServiceResponse staleHead,
+            boolean ownsEntry) {
+        this.staleEntry = staleEntry;
+        this.staleHead = staleHead;
+        this.refreshHandler = null;
+        this.ownsEntry = ownsEntry;
+    }
+
+    /**
+     * @see io.apiman.gateway.engine.policy.IConnectorInterceptor#createConnector()
+     */
+    @Override
+    public IServiceConnector createConnector() {
+        // Without a real connector the back-end service can't be reached at all
+        return this;
+    }
+
+    /**
+     * @see io.apiman.gateway.engine.policy.IDelegatingConnectorInterceptor#createConnector(io.apiman.gateway.engine.IServiceConnector)
+     */
+    @Override
+    public IServiceConnector createConnector(IServiceConnector connector) {
+        this.connector = connector;
+        return this;
+    }
+
+    /**
+     * @see io.apiman.gateway.engine.IServiceConnector#connect(io.apiman.gateway.engine.beans.ServiceRequest, io.apiman.gateway.engine.async.IAsyncResultHandler)
+     */
+    @Override
+    public IServiceConnection connect(ServiceRequest request,
+            IAsyncResultHandler<IServiceConnectionResponse> handler) throws ConnectorException {
+        this.handler = handler;
+        this.connected = true;
+        try {
+            if (connector == null) {
+                throw new ConnectorException("No connector to the back-end service."); //$NON-NLS-1$
+            }
+            connection = connector.connect(request, new IAsyncResultHandler<IServiceConnectionResponse>() {
+                @Override
+                public void handle(IAsyncResult<IServiceConnectionResponse> result) {
+                    handleServiceResponse(result);
+                }
+            });
+        } catch (RuntimeException e) {
+            connectionFailed(e);
+        }
+        return this;
+    }
+
+    /**
+     * Called when the connection to the back-end service fails before it responds.
+     * @param error
+     */
+    private void connectionFailed(Throwable error) {
+        connectFailed = true;
+        if (refreshHandler != null) {
+            refreshHandler.handle(AsyncResultImpl.<IServiceConnectionResponse>create(error));
+        }
+    }
+
+    /**
+     * Called when the back-end service responds (or fails to).
+     * @param result
+     */
+    protected void handleServiceResponse(IAsyncResult<IServiceConnectionResponse> result) {
+        serviceResponded = true;
+        if (refreshHandler != null) {
+            refreshHandler.handle(result);
+        } else if (result.isSuccess() && result.getResult().getHead().getCode() < 500) {
+            if (ownsEntry) {
+                discardEntry();
+            }
+            handler.handle(result);
+        } else {
+            if (result.isSuccess()) {
+                result.getResult().abort();
+            }
+            sendStale(HttpCaching.REVALIDATION_FAILED);
+        }
+    }
+
+    /**
+     * Sends the stale response to the client.
+     * @param warning
+     */
+    private void sendStale(String warning) {
+        HttpCaching.warn(staleHead, warning);
+        staleHead.setAttribute(STALE_ATTR, Boolean.TRUE);
+        handler.handle(AsyncResultImpl.<IServiceConnectionResponse>create(this));
+    }
+
+    /**
+     * Aborts reading the stale entry (once).
+     */
+    private void discardEntry() {
+        if (!entryDone) {
+            entryDone = true;
+            staleEntry.abort();
+        }
+    }
+
+    /**
+     * @see io.apiman.gateway.engine.io.IWriteStream#write(io.apiman.gateway.engine.io.IApimanBuffer)
+     */
+    @Override
+    public void write(IApimanBuffer chunk) {
+        if (!connectFailed) {
+            try {
+                connection.write(chunk);
+            } catch (RuntimeException e) {
+                connection.abort();
+                connectionFailed(e);
+            }
+        }
+    }
+
+    /**
+     * @see io.apiman.gateway.engine.io.IWriteStream#end()
+     */
+    @Override
+    public void end() {
+        if (refreshHandler != null) {
+            // The client doesn't wait for the refresh - connectors may well block
+            // in end() until the back-end service has responded.
+            sendStale(HttpCaching.RESPONSE_IS_STALE);
+        }
+        if (!connectFailed) {
+            try {
+                connection.end();
+            } catch (RuntimeException e) {
+                // Connectors may report failures (e.g. timeouts) by throwing
+                if (!serviceResponded) {
+                    connectionFailed(e);
+                } else if (refreshHandler == null) {
+                    throw e;
+                }
+            }
+        }
+        if (refreshHandler == null && connectFailed) {
+            sendStale(HttpCaching.REVALIDATION_FAILED);
+        }
+    }
+
+    /**
+     * @see io.apiman.gateway.engine.io.IStream#isFinished()
+     */
+    @Override
+    public boolean isFinished() {
+        return finished;
+    }
+
+    /**
+     * @see io.apiman.gateway.engine.io.IAbortable#abort()
+     */
+    @Override
+    public void abort() {
+        if (!finished) {
+            finished = true;
+            connected = false;
+            discardEntry();
+            // A background refresh carries on regardless
+            if (refreshHandler == null && connection != null) {
+                connection.abort();
+            }
+        }
+    }
+
+    /**
+     * @see io.apiman.gateway.engine.IServiceConnection#isConnected()
+     */
+    @Override
+    public boolean isConnected() {
+        return connected;
+    }
+
+    /**
+     * @see io.apiman.gateway.engine.io.ISignalReadStream#transmit()
+     */
+    @Override
+    public void transmit() {
+        entryDone = true;
+        staleEntry.transmit();
+    }
+
+    /**
+     * @see io.apiman.gateway.engine.io.IReadStream#bodyHandler(io.apiman.gateway.engine.async.IAsyncHandler)
+     */
+    @Override
+    public void bodyHandler(IAsyncHandler<IApimanBuffer> bodyHandler) {
+        staleEntry.bodyHandler(bodyHandler);
+    }
+
+    /**
+     * @see io.apiman.gateway.engine.io.IReadStream#endHandler(io.apiman.gateway.engine.async.IAsyncHandler)
+     */
+    @Override
+    public void endHandler(final IAsyncHandler<Void> endHandler) {
+        staleEntry.endHandler(new IAsyncHandler<Void>() {
+            @Override
+            public void handle(Void result) {
+                endHandler.handle(result);
+                connected = false;
+                finished = true;
+            }
+        });
+    }
+
+    /**
+     * @see io.apiman.gateway.engine.io.IReadStream#getHead()
+     */
+    @Override
+    public ServiceResponse getHead() {
+        return staleHead;
+    }
+
+}
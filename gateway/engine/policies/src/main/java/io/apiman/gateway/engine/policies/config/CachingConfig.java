@@ -23,6 +23,10 @@ package io.apiman.gateway.engine.policies.config;
 public class CachingConfig {
 
     private long ttl; // in seconds
+    private boolean httpSemantics;
+    private long staleWhileRevalidate; // in seconds
+    private long staleIfError; // in seconds
+    private long coalesceTimeout = 10; // in seconds
 
     /**
      * Constructor.
@@ -44,4 +48,70 @@ public class CachingConfig {
         this.ttl = ttl;
     }
 
+    /**
+     * When enabled, the policy follows the HTTP caching headers (Cache-Control,
+     * Expires, Vary, ETag and Last-Modified) and the ttl is only used when the
+     * back-end service doesn't say how long a response is fresh.
+     * @return the httpSemantics
+     */
+    public boolean isHttpSemantics() {
+        return httpSemantics;
+    }
+
+    /**
+     * @param httpSemantics the httpSemantics to set
+     */
+    public void setHttpSemantics(boolean httpSemantics) {
+        this.httpSemantics = httpSemantics;
+    }
+
+    /**
+     * For how long (in seconds) after a cached response goes stale it may still
+     * be served, while the cache is refreshed in the background.
+     * @return the staleWhileRevalidate
+     */
+    public long getStaleWhileRevalidate() {
+        return staleWhileRevalidate;
+    }
+
+    /**
+     * @param staleWhileRevalidate the staleWhileRevalidate to set
+     */
+    public void setStaleWhileRevalidate(long staleWhileRevalidate) {
+        this.staleWhileRevalidate = staleWhileRevalidate;
+    }
+
+    /**
+     * For how long (in seconds) after a cached response goes stale it may still
+     * be served when the back-end service fails (a 5xx or a connector error).
+     * @return the staleIfError
+     */
+    public long getStaleIfError() {
+        return staleIfError;
+    }
+
+    /**
+     * @param staleIfError the staleIfError to set
+     */
+    public void setStaleIfError(long staleIfError) {
+        this.staleIfError = staleIfError;
+    }
+
+    /**
+     * For how long (in seconds) concurrent cache misses for the same entry wait
+     * for the one request that goes to the back-end service, before going there
+     * themselves.  A value of 0 turns coalescing off.
+     * @return the coalesceTimeout
+     */
+    public long getCoalesceTimeout() {
+        return coalesceTimeout;
+    }
+
+    /**
+     * @param coalesceTimeout the coalesceTimeout to set
+     */
+    public void setCoalesceTimeout(long coalesceTimeout) {
+        this.coalesceTimeout = coalesceTimeout;
+    }
+
 }
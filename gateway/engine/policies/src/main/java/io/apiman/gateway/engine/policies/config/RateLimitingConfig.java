@@ -15,6 +15,7 @@
  */
 package io.apiman.gateway.engine.policies.config;
 
+import io.apiman.gateway.engine.policies.config.rates.RateLimitingAlgorithm;
 import io.apiman.gateway.engine.policies.config.rates.RateLimitingGranularity;
 import io.apiman.gateway.engine.policies.config.rates.RateLimitingPeriod;
 
@@ -28,6 +29,7 @@ public class RateLimitingConfig {
     private long limit;
     private RateLimitingGranularity granularity;
     private RateLimitingPeriod period;
+    private RateLimitingAlgorithm algorithm;
     private String userHeader;
     private String headerRemaining;
     private String headerLimit;
@@ -67,6 +69,20 @@ public class RateLimitingConfig {
         this.period = period;
     }
 
+    /**
+     * @return the algorithm
+     */
+    public RateLimitingAlgorithm getAlgorithm() {
+        return algorithm;
+    }
+
+    /**
+     * @param algorithm the algorithm to set
+     */
+    public void setAlgorithm(RateLimitingAlgorithm algorithm) {
+        this.algorithm = algorithm;
+    }
+
     /**
      * @return the userHeader
      */
@@ -42,6 +42,7 @@ public class CachingPolicyConfigTest {
         Assert.assertEquals(CachingConfig.class, parsed.getClass());
         CachingConfig parsedConfig = (CachingConfig) parsed;
         Assert.assertEquals(0, parsedConfig.getTtl());
+        Assert.assertFalse(parsedConfig.isHttpSemantics());
 
         // Sample real config
         config = "{\n" +
@@ -51,6 +52,13 @@ public class CachingPolicyConfigTest {
         parsed = policy.parseConfiguration(config);
         parsedConfig = (CachingConfig) parsed;
         Assert.assertEquals(12345L, parsedConfig.getTtl());
+
+        config = "{\n" +
+                "  \"ttl\" : 60,\n" +
+                "  \"httpSemantics\" : true\n" +
+                "}";
+        parsedConfig = (CachingConfig) policy.parseConfiguration(config);
+        Assert.assertTrue(parsedConfig.isHttpSemantics());
     }
 
 }
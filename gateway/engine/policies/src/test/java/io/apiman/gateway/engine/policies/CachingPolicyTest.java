@@ -15,9 +15,14 @@
  */
 package io.apiman.gateway.engine.policies;
 
+import io.apiman.gateway.engine.beans.ServiceRequest;
+import io.apiman.gateway.engine.beans.ServiceResponse;
 import io.apiman.test.common.mock.EchoResponse;
 import io.apiman.test.policies.ApimanPolicyTest;
+import io.apiman.test.policies.BackEndService;
 import io.apiman.test.policies.Configuration;
+import io.apiman.test.policies.IPolicyTestBackEndService;
+import io.apiman.test.policies.PolicyTestBackEndServiceResponse;
 import io.apiman.test.policies.PolicyTestRequest;
 import io.apiman.test.policies.PolicyTestRequestType;
 import io.apiman.test.policies.PolicyTestResponse;
@@ -81,4 +86,216 @@ public class CachingPolicyTest extends ApimanPolicyTest {
         Assert.assertNotNull(counterValue5);
         Assert.assertEquals(counterValue4, counterValue5);
     }
+
+    @Test
+    @Configuration("{" +
+            "  \"ttl\" : 60," +
+            "  \"httpSemantics\" : true" +
+            "}")
+    @BackEndService(HttpCachingTestBackEndService.class)
+    public void testHttpMaxAge() throws Throwable {
+        PolicyTestRequest request = PolicyTestRequest.build(PolicyTestRequestType.GET, "/some/max-age-resource");
+        request.header("X-Cache-Control", "max-age=1");
+
+        PolicyTestResponse response = send(request);
+        String body = response.body();
+        Assert.assertNull(response.header("Age"));
+
+        // Served from the cache
+        response = send(request);
+        Assert.assertEquals(body, response.body());
+        Assert.assertEquals("0", response.header("Age"));
+
+        // Stale - revalidated with the back-end service, which says it is unchanged
+        Thread.sleep(1100);
+        long notModified = HttpCachingTestBackEndService.notModified;
+        response = send(request);
+        Assert.assertEquals(200, response.code());
+        Assert.assertEquals(body, response.body());
+        Assert.assertEquals(notModified + 1, HttpCachingTestBackEndService.notModified);
+
+        // And fresh again
+        response = send(request);
+        Assert.assertEquals(body, response.body());
+        Assert.assertEquals(notModified + 1, HttpCachingTestBackEndService.notModified);
+    }
+
+    @Test
+    @Configuration("{" +
+            "  \"ttl\" : 60," +
+            "  \"httpSemantics\" : true" +
+            "}")
+    @BackEndService(HttpCachingTestBackEndService.class)
+    public void testHttpNoStore() throws Throwable {
+        PolicyTestRequest request = PolicyTestRequest.build(PolicyTestRequestType.GET, "/some/no-store-resource");
+        request.header("X-Cache-Control", "no-store");
+
+        String body = send(request).body();
+        Assert.assertNotEquals(body, send(request).body());
+
+        // Not cached by default, but the client can't have it cached either
+        request = PolicyTestRequest.build(PolicyTestRequestType.GET, "/some/other-resource");
+        request.header("Cache-Control", "no-store");
+        body = send(request).body();
+        Assert.assertNotEquals(body, send(request).body());
+    }
+
+    @Test
+    @Configuration("{" +
+            "  \"ttl\" : 60," +
+            "  \"httpSemantics\" : true" +
+            "}")
+    @BackEndService(HttpCachingTestBackEndService.class)
+    public void testHttpConditionalRequest() throws Throwable {
+        PolicyTestRequest request = PolicyTestRequest.build(PolicyTestRequestType.GET, "/some/conditional-resource");
+        String body = send(request).body();
+
+        long served = HttpCachingTestBackEndService.served;
+        request.header("If-None-Match", HttpCachingTestBackEndService.ETAG);
+        PolicyTestResponse response = send(request);
+        Assert.assertEquals(304, response.code());
+        Assert.assertEquals(HttpCachingTestBackEndService.ETAG, response.header("ETag"));
+        Assert.assertEquals("", response.body());
+
+        request.header("If-None-Match", "\"other\"");
+        response = send(request);
+        Assert.assertEquals(200, response.code());
+        Assert.assertEquals(body, response.body());
+        // All answered by the gateway
+        Assert.assertEquals(served, HttpCachingTestBackEndService.served);
+    }
+
+    @Test
+    @Configuration("{" +
+            "  \"ttl\" : 60," +
+            "  \"httpSemantics\" : true" +
+            "}")
+    @BackEndService(HttpCachingTestBackEndService.class)
+    public void testHttpVary() throws Throwable {
+        PolicyTestRequest request = PolicyTestRequest.build(PolicyTestRequestType.GET, "/some/vary-resource");
+        request.header("X-Vary", "Accept-Language");
+
+        request.header("Accept-Language", "en");
+        String english = send(request).body();
+        request.header("Accept-Language", "fr");
+        String french = send(request).body();
+        Assert.assertNotEquals(english, french);
+
+        Assert.assertEquals(french, send(request).body());
+        request.header("Accept-Language", "en");
+        Assert.assertEquals(english, send(request).body());
+    }
+
+    @Test
+    @Configuration("{" +
+            "  \"ttl\" : 60," +
+            "  \"httpSemantics\" : true" +
+            "}")
+    @BackEndService(HttpCachingTestBackEndService.class)
+    public void testHttpPostNotCached() throws Throwable {
+        PolicyTestRequest request = PolicyTestRequest.build(PolicyTestRequestType.POST, "/some/post-resource");
+        request.body("data");
+        String body = send(request).body();
+        Assert.assertNotEquals(body, send(request).body());
+    }
+
+    @Test
+    @Configuration("{" +
+            "  \"ttl\" : 1," +
+            "  \"staleWhileRevalidate\" : 60" +
+            "}")
+    @BackEndService(HttpCachingTestBackEndService.class)
+    public void testStaleWhileRevalidate() throws Throwable {
+        PolicyTestRequest request = PolicyTestRequest.build(PolicyTestRequestType.GET, "/some/swr-resource");
+        String body = send(request).body();
+
+        // Stale - served right away, while the entry is refreshed
+        Thread.sleep(1100);
+        PolicyTestResponse response = send(request);
+        Assert.assertEquals(body, response.body());
+        Assert.assertEquals("110 - \"Response is Stale\"", response.header("Warning"));
+
+        response = send(request);
+        Assert.assertNotEquals(body, response.body());
+        Assert.assertNull(response.header("Warning"));
+    }
+
+    @Test
+    @Configuration("{" +
+            "  \"ttl\" : 1," +
+            "  \"staleIfError\" : 60" +
+            "}")
+    @BackEndService(HttpCachingTestBackEndService.class)
+    public void testStaleIfError() throws Throwable {
+        PolicyTestRequest request = PolicyTestRequest.build(PolicyTestRequestType.GET, "/some/sie-resource");
+        String body = send(request).body();
+        Thread.sleep(1100);
+
+        // The back-end service fails - the stale response is served instead
+        request.header("X-Fail", "503");
+        PolicyTestResponse response = send(request);
+        Assert.assertEquals(200, response.code());
+        Assert.assertEquals(body, response.body());
+        Assert.assertEquals("111 - \"Revalidation Failed\"", response.header("Warning"));
+
+        request.header("X-Fail", "throw");
+        response = send(request);
+        Assert.assertEquals(body, response.body());
+
+        // It recovers
+        request = PolicyTestRequest.build(PolicyTestRequestType.GET, "/some/sie-resource");
+        response = send(request);
+        Assert.assertNotEquals(body, response.body());
+        Assert.assertNull(response.header("Warning"));
+    }
+
+    /**
+     * A back-end service that supports conditional requests.  The caching headers
+     * of its responses are controlled by the X-Cache-Control and X-Vary request
+     * headers, and it fails when asked to with the X-Fail header.
+     */
+    public static final class HttpCachingTestBackEndService implements IPolicyTestBackEndService {
+
+        public static final String ETAG = "\"v1\"";
+
+        public static long served = 0;
+        public static long notModified = 0;
+
+        /**
+         * @see io.apiman.test.policies.IPolicyTestBackEndService#invoke(io.apiman.gateway.engine.beans.ServiceRequest, byte[])
+         */
+        @Override
+        public PolicyTestBackEndServiceResponse invoke(ServiceRequest request, byte[] requestBody) {
+            String fail = request.getHeaders().get("X-Fail");
+            if ("throw".equals(fail)) {
+                throw new RuntimeException("Connection refused");
+            }
+            ServiceResponse serviceResponse = new ServiceResponse();
+            if (fail != null) {
+                serviceResponse.setCode(Integer.parseInt(fail));
+                serviceResponse.setMessage("Failed");
+                return new PolicyTestBackEndServiceResponse(serviceResponse, "failed");
+            }
+            serviceResponse.getHeaders().put("ETag", ETAG);
+            if (request.getHeaders().containsKey("X-Cache-Control")) {
+                serviceResponse.getHeaders().put("Cache-Control", request.getHeaders().get("X-Cache-Control"));
+            }
+            if (request.getHeaders().containsKey("X-Vary")) {
+                serviceResponse.getHeaders().put("Vary", request.getHeaders().get("X-Vary"));
+            }
+            if (ETAG.equals(request.getHeaders().get("If-None-Match"))) {
+                notModified++;
+                serviceResponse.setCode(304);
+                serviceResponse.setMessage("Not Modified");
+                return new PolicyTestBackEndServiceResponse(serviceResponse, null);
+            }
+            served++;
+            serviceResponse.setCode(200);
+            serviceResponse.setMessage("OK");
+            serviceResponse.getHeaders().put("Content-Type", "text/plain");
+            return new PolicyTestBackEndServiceResponse(serviceResponse, "response-" + served);
+        }
+
+    }
+
 }
@@ -0,0 +1,117 @@
+/*
+ * Copyright 2015 JBoss Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.apiman.gateway.engine.policies.caching;
+
+import io.apiman.gateway.engine.async.IAsyncHandler;
+import io.apiman.gateway.engine.policies.caching.CacheRequestCoalescer.Flight;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Unit test for {@link CacheRequestCoalescer}.
+ */
+@SuppressWarnings({ "nls", "javadoc" })
+public class CacheRequestCoalescerTest {
+
+    @Test
+    public void testCoalesce() throws Exception {
+        CacheRequestCoalescer coalescer = new CacheRequestCoalescer();
+        final Thread leaderThread = Thread.currentThread();
+        final AtomicInteger released = new AtomicInteger();
+        final AtomicInteger onLeaderThread = new AtomicInteger();
+        final CountDownLatch latch = new CountDownLatch(2);
+        IAsyncHandler<Void> waiter = new IAsyncHandler<Void>() {
+            @Override
+            public void handle(Void result) {
+                if (Thread.currentThread() == leaderThread) {
+                    onLeaderThread.incrementAndGet();
+                }
+                released.incrementAndGet();
+                latch.countDown();
+            }
+        };
+
+        Flight leader = coalescer.join("key-1", 60000, waiter);
+        Assert.assertNotNull(leader);
+        Assert.assertNull(coalescer.join("key-1", 60000, waiter));
+        Assert.assertNull(coalescer.join("key-1", 60000, waiter));
+        // Other entries are independent
+        Flight other = coalescer.join("key-2", 60000, waiter);
+        Assert.assertNotNull(other);
+        Assert.assertEquals(2, coalescer.getFlightCount());
+
+        leader.release();
+        Assert.assertTrue(latch.await(5, TimeUnit.SECONDS));
+        Assert.assertEquals(2, released.get());
+        // The waiters are continued on other threads
+        Assert.assertEquals(0, onLeaderThread.get());
+        // Releasing twice is harmless
+        leader.release();
+        Thread.sleep(50);
+        Assert.assertEquals(2, released.get());
+
+        // The next miss leads a new flight
+        Assert.assertNotNull(coalescer.join("key-1", 60000, waiter));
+    }
+
+    @Test
+    public void testManyWaitersShareThePool() throws Exception {
+        CacheRequestCoalescer coalescer = new CacheRequestCoalescer();
+        final int count = 500;
+        final Set<Thread> threads = Collections.newSetFromMap(new ConcurrentHashMap<Thread, Boolean>());
+        final CountDownLatch latch = new CountDownLatch(count);
+        IAsyncHandler<Void> waiter = new IAsyncHandler<Void>() {
+            @Override
+            public void handle(Void result) {
+                threads.add(Thread.currentThread());
+                latch.countDown();
+            }
+        };
+        Flight leader = coalescer.join("key-1", 60000, null);
+        for (int i = 0; i < count; i++) {
+            Assert.assertNull(coalescer.join("key-1", 60000, waiter));
+        }
+        leader.release();
+        Assert.assertTrue(latch.await(5, TimeUnit.SECONDS));
+        // Not a thread per waiter
+        Assert.assertTrue(threads.size() <= CacheRequestCoalescer.WAITER_THREADS);
+    }
+
+    @Test
+    public void testTimeout() throws Exception {
+        CacheRequestCoalescer coalescer = new CacheRequestCoalescer();
+        final CountDownLatch latch = new CountDownLatch(1);
+        Assert.assertNotNull(coalescer.join("key-1", 50, null));
+        Assert.assertNull(coalescer.join("key-1", 50, new IAsyncHandler<Void>() {
+            @Override
+            public void handle(Void result) {
+                latch.countDown();
+            }
+        }));
+        // The leader never releases, so the waiter is released by the timeout
+        Assert.assertTrue(latch.await(5, TimeUnit.SECONDS));
+        Assert.assertEquals(0, coalescer.getFlightCount());
+    }
+
+}
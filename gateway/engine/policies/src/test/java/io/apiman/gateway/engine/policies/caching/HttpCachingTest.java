@@ -0,0 +1,170 @@
+/*
+ * Copyright 2015 JBoss Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.apiman.gateway.engine.policies.caching;
+
+import io.apiman.gateway.engine.beans.HeaderHashMap;
+import io.apiman.gateway.engine.beans.ServiceRequest;
+import io.apiman.gateway.engine.beans.ServiceResponse;
+
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Unit test for {@link HttpCaching}.
+ */
+@SuppressWarnings({ "nls", "javadoc" })
+public class HttpCachingTest {
+
+    @Test
+    public void testParseCacheControl() {
+        Map<String, String> directives = HttpCaching.parseCacheControl("Public, max-age=60, s-maxage=\"120\"");
+        Assert.assertEquals("", directives.get("public"));
+        Assert.assertEquals("60", directives.get("max-age"));
+        Assert.assertEquals("120", directives.get("s-maxage"));
+        Assert.assertTrue(HttpCaching.parseCacheControl(null).isEmpty());
+    }
+
+    @Test
+    public void testFreshnessLifetime() {
+        Assert.assertEquals(5000L, HttpCaching.getFreshnessLifetime(response(), 5000L));
+        Assert.assertEquals(60000L, HttpCaching.getFreshnessLifetime(response("Cache-Control", "max-age=60"), 5000L));
+        Assert.assertEquals(120000L, HttpCaching.getFreshnessLifetime(
+                response("Cache-Control", "max-age=60, s-maxage=120"), 5000L));
+        Assert.assertEquals(0L, HttpCaching.getFreshnessLifetime(
+                response("Cache-Control", "no-cache, max-age=60"), 5000L));
+        Assert.assertEquals(50000L, HttpCaching.getFreshnessLifetime(
+                response("Cache-Control", "max-age=60", "Age", "10"), 5000L));
+        Assert.assertEquals(3600000L, HttpCaching.getFreshnessLifetime(response(
+                "Date", "Sun, 06 Nov 1994 08:49:37 GMT", "Expires", "Sun, 06 Nov 1994 09:49:37 GMT"), 5000L));
+        Assert.assertEquals(0L, HttpCaching.getFreshnessLifetime(response("Expires", "0"), 5000L));
+    }
+
+    @Test
+    public void testCacheable() {
+        ServiceRequest request = request("GET");
+        Assert.assertTrue(HttpCaching.isCacheableRequest(request));
+        Assert.assertFalse(HttpCaching.isCacheableRequest(request("POST")));
+        Assert.assertFalse(HttpCaching.isCacheableRequest(request("GET", "Cache-Control", "no-store")));
+
+        Assert.assertTrue(HttpCaching.isCacheableResponse(request, response()));
+        Assert.assertFalse(HttpCaching.isCacheableResponse(request, response("Cache-Control", "private")));
+        Assert.assertFalse(HttpCaching.isCacheableResponse(request, response("Vary", "*")));
+        ServiceResponse error = response();
+        error.setCode(500);
+        Assert.assertFalse(HttpCaching.isCacheableResponse(request, error));
+
+        request = request("GET", "Authorization", "Basic dXNlcjpwYXNz");
+        Assert.assertFalse(HttpCaching.isCacheableResponse(request, response("Cache-Control", "max-age=60")));
+        Assert.assertTrue(HttpCaching.isCacheableResponse(request, response("Cache-Control", "public, max-age=60")));
+    }
+
+    @Test
+    public void testFresh() {
+        long now = System.currentTimeMillis();
+        HttpCacheEntry entry = new HttpCacheEntry(response(), now - 30000L, now + 30000L);
+        Assert.assertTrue(HttpCaching.isFresh(entry, request("GET"), now));
+        Assert.assertFalse(HttpCaching.isFresh(entry, request("GET"), now + 30000L));
+        Assert.assertFalse(HttpCaching.isFresh(entry, request("GET", "Cache-Control", "no-cache"), now));
+        Assert.assertFalse(HttpCaching.isFresh(entry, request("GET", "Pragma", "no-cache"), now));
+        Assert.assertFalse(HttpCaching.isFresh(entry, request("GET", "Cache-Control", "max-age=10"), now));
+        Assert.assertTrue(HttpCaching.isFresh(entry, request("GET", "Cache-Control", "max-age=40"), now));
+    }
+
+    @Test
+    public void testStale() {
+        Assert.assertTrue(HttpCaching.allowsStale(request("GET")));
+        Assert.assertFalse(HttpCaching.allowsStale(request("GET", "Cache-Control", "no-cache")));
+        Assert.assertFalse(HttpCaching.allowsStale(request("GET", "Cache-Control", "max-age=0")));
+
+        String swr = HttpCaching.STALE_WHILE_REVALIDATE;
+        Assert.assertEquals(5000L, HttpCaching.getStaleWindow(response(), swr, 5000L));
+        Assert.assertEquals(30000L, HttpCaching.getStaleWindow(
+                response("Cache-Control", "max-age=1, stale-while-revalidate=30"), swr, 5000L));
+        Assert.assertEquals(5000L, HttpCaching.getStaleWindow(
+                response("Cache-Control", "max-age=1, stale-if-error=30"), swr, 5000L));
+        Assert.assertEquals(0L, HttpCaching.getStaleWindow(
+                response("Cache-Control", "max-age=1, must-revalidate"), swr, 5000L));
+    }
+
+    @Test
+    public void testNotModified() {
+        ServiceResponse response = response("ETag", "W/\"abc\"", "Last-Modified", "Sun, 06 Nov 1994 08:49:37 GMT");
+        Assert.assertTrue(HttpCaching.isNotModified(headers("If-None-Match", "\"xyz\", \"abc\""), response));
+        Assert.assertTrue(HttpCaching.isNotModified(headers("If-None-Match", "*"), response));
+        Assert.assertFalse(HttpCaching.isNotModified(headers("If-None-Match", "\"xyz\""), response));
+        // If-None-Match wins
+        Assert.assertFalse(HttpCaching.isNotModified(headers("If-None-Match", "\"xyz\"",
+                "If-Modified-Since", "Sun, 06 Nov 1994 08:49:37 GMT"), response));
+        Assert.assertTrue(HttpCaching.isNotModified(
+                headers("If-Modified-Since", "Sun, 06 Nov 1994 08:49:37 GMT"), response));
+        Assert.assertFalse(HttpCaching.isNotModified(
+                headers("If-Modified-Since", "Sun, 06 Nov 1994 08:49:36 GMT"), response));
+        Assert.assertFalse(HttpCaching.isNotModified(headers(), response));
+
+        ServiceResponse notModified = HttpCaching.notModified(response);
+        Assert.assertEquals(304, notModified.getCode());
+        Assert.assertEquals("W/\"abc\"", notModified.getHeaders().get("ETag"));
+    }
+
+    @Test
+    public void testRevalidate() {
+        ServiceRequest request = request("GET", "If-None-Match", "\"client\"");
+        ServiceResponse cached = response("ETag", "\"abc\"", "Content-Length", "10", "Cache-Control", "max-age=1");
+        Map<String, String> conditionals = HttpCaching.removeConditionals(request);
+        Assert.assertEquals("\"client\"", conditionals.get("If-None-Match"));
+        HttpCaching.addValidators(request, cached);
+        Assert.assertEquals("\"abc\"", request.getHeaders().get("If-None-Match"));
+
+        ServiceResponse refreshed = HttpCaching.refresh(cached,
+                response("cache-control", "max-age=60", "Content-Length", "0"));
+        Assert.assertEquals(200, refreshed.getCode());
+        Assert.assertEquals("max-age=60", refreshed.getHeaders().get("Cache-Control"));
+        Assert.assertEquals("10", refreshed.getHeaders().get("Content-Length"));
+    }
+
+    @Test
+    public void testVaryKey() {
+        ServiceRequest request = request("GET", "Accept-Language", "en", "Accept", "text/plain");
+        Assert.assertEquals("|accept=text/plain|accept-language=en",
+                HttpCaching.getVaryKey("Accept-Language, Accept", request));
+        Assert.assertEquals("|x-missing=", HttpCaching.getVaryKey("X-Missing", request));
+    }
+
+    private static ServiceRequest request(String method, String... headers) {
+        ServiceRequest request = new ServiceRequest();
+        request.setType(method);
+        request.setHeaders(headers(headers));
+        return request;
+    }
+
+    private static ServiceResponse response(String... headers) {
+        ServiceResponse response = new ServiceResponse();
+        response.setCode(200);
+        response.setHeaders(headers(headers));
+        return response;
+    }
+
+    private static Map<String, String> headers(String... headers) {
+        Map<String, String> rval = new HeaderHashMap();
+        for (int i = 0; i < headers.length; i += 2) {
+            rval.put(headers[i], headers[i + 1]);
+        }
+        return rval;
+    }
+
+}
@@ -0,0 +1,295 @@
+/*
+ * Copyright 2015 JBoss Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.apiman.gateway.platforms.servlet;
+
+import io.apiman.gateway.engine.IEngineResult;
+import io.apiman.gateway.engine.async.IAsyncHandler;
+import io.apiman.gateway.engine.io.ByteBuffer;
+import io.apiman.gateway.engine.io.IApimanBuffer;
+import io.apiman.gateway.engine.io.ISignalWriteStream;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.ReadListener;
+import javax.servlet.ServletInputStream;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * An asynchronous (Servlet 3.1) gateway request.  The request body is read with a
+ * {@link ReadListener} as it arrives, and the response body is written with a
+ * {@link WriteListener} whenever the client can take it - so no container thread
+ * waits on the client while the request body is read.
+ *
+ * The service connector is blocking though: once the whole request body has been
+ * read, the round trip to the back-end service is run on a container thread (via
+ * {@link AsyncContext#start(Runnable)}, outside of the read listener) and holds it
+ * until the whole response body has been handed to the response writer.  The
+ * response writer only queues up to {@link #MAX_PENDING} bytes that the client
+ * can't take yet, and then blocks that thread until the client catches up.
+ *
+ * @author eric.wittmann@redhat.com
+ */
+public class AsyncServletExchange {
+
+    private static final int BUFFER_SIZE = 8192;
+    /** The max number of response body bytes queued for a slow client */
+    public static final int MAX_PENDING = 64 * 1024;
+
+    private final HttpServletRequest request;
+    private final AsyncContext asyncContext;
+    private final AtomicBoolean completed = new AtomicBoolean();
+
+    /**
+     * Constructor.  Puts the request into asynchronous mode.
+     * @param request
+     */
+    public AsyncServletExchange(HttpServletRequest request) {
+        this.request = request;
+        this.asyncContext = request.startAsync();
+        // The service connector has its own connect/read timeouts
+        this.asyncContext.setTimeout(0);
+    }
+
+    /**
+     * Streams the request body to the service connector, as it arrives.
+     * @param connectorStream
+     * @throws IOException
+     */
+    public void readBody(ISignalWriteStream connectorStream) throws IOException {
+        ServletInputStream input = request.getInputStream();
+        input.setReadListener(new RequestBodyReader(input, connectorStream));
+    }
+
+    /**
+     * Streams the body of the service response to the client.  The response head
+     * must have been written already.
+     * @param engineResult
+     * @throws IOException
+     */
+    public void writeBody(IEngineResult engineResult) throws IOException {
+        ServletOutputStream output = asyncContext.getResponse().getOutputStream();
+        final ResponseBodyWriter writer = new ResponseBodyWriter(output, engineResult);
+        output.setWriteListener(writer);
+        engineResult.bodyHandler(new IAsyncHandler<IApimanBuffer>() {
+            @Override
+            public void handle(IApimanBuffer chunk) {
+                try {
+                    writer.write(chunk);
+                } catch (IOException e) {
+                    // This will get caught by the service connector, which will abort the
+                    // connection to the back-end service.
+                    throw new RuntimeException(e);
+                }
+            }
+        });
+        engineResult.endHandler(new IAsyncHandler<Void>() {
+            @Override
+            public void handle(Void result) {
+                writer.end();
+            }
+        });
+    }
+
+    /**
+     * Completes the request (only the first call counts).
+     */
+    public void complete() {
+        if (completed.compareAndSet(false, true)) {
+            asyncContext.complete();
+        }
+    }
+
+    /**
+     * @return true if the request was completed (e.g. because the client went away)
+     */
+    public boolean isCompleted() {
+        return completed.get();
+    }
+
+    /**
+     * Reads the request body, whenever there is some to read without blocking.
+     */
+    private class RequestBodyReader implements ReadListener {
+
+        private final ServletInputStream input;
+        private final ISignalWriteStream connectorStream;
+        private final ByteBuffer buffer = new ByteBuffer(BUFFER_SIZE);
+
+        /**
+         * Constructor.
+         * @param input
+         * @param connectorStream
+         */
+        public RequestBodyReader(ServletInputStream input, ISignalWriteStream connectorStream) {
+            this.input = input;
+            this.connectorStream = connectorStream;
+        }
+
+        /**
+         * @see javax.servlet.ReadListener#onDataAvailable()
+         */
+        @Override
+        public void onDataAvailable() throws IOException {
+            while (input.isReady()) {
+                if (buffer.readFrom(input) == -1) {
+                    return;
+                }
+                connectorStream.write(buffer);
+            }
+        }
+
+        /**
+         * @see javax.servlet.ReadListener#onAllDataRead()
+         */
+        @Override
+        public void onAllDataRead() throws IOException {
+            // Ending the stream runs the (blocking) round trip to the back-end service,
+            // which must not hold up the delivery of the listener callbacks
+            asyncContext.start(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        connectorStream.end();
+                    } catch (RuntimeException e) {
+                        onError(e);
+                    }
+                }
+            });
+        }
+
+        /**
+         * @see javax.servlet.ReadListener#onError(java.lang.Throwable)
+         */
+        @Override
+        public void onError(Throwable t) {
+            connectorStream.abort();
+            complete();
+        }
+    }
+
+    /**
+     * Writes the response body, queueing whatever the client can't take yet (up to
+     * {@link #MAX_PENDING} bytes).
+     */
+    private class ResponseBodyWriter implements WriteListener {
+
+        private final ServletOutputStream output;
+        private final IEngineResult engineResult;
+        private final Deque<byte[]> pending = new ArrayDeque<>();
+        private int pendingBytes;
+        private boolean ended;
+        private boolean failed;
+
+        /**
+         * Constructor.
+         * @param output
+         * @param engineResult
+         */
+        public ResponseBodyWriter(ServletOutputStream output, IEngineResult engineResult) {
+            this.output = output;
+            this.engineResult = engineResult;
+        }
+
+        /**
+         * Writes a chunk of the body, or queues it if the client isn't ready.  Blocks
+         * while too much of the body is queued.
+         * @param chunk
+         * @throws IOException
+         */
+        public synchronized void write(IApimanBuffer chunk) throws IOException {
+            if (failed) {
+                throw new IOException("Failed to write the response to the client."); //$NON-NLS-1$
+            }
+            if (pending.isEmpty() && output.isReady()) {
+                if (chunk instanceof ByteBuffer) {
+                    byte [] buffer = (byte []) chunk.getNativeBuffer();
+                    output.write(buffer, 0, chunk.length());
+                } else {
+                    output.write(chunk.getBytes());
+                }
+            } else {
+                // The connector re-uses its buffer, so a queued chunk must be a copy
+                byte [] bytes = chunk.getBytes();
+                pending.add(bytes);
+                pendingBytes += bytes.length;
+                // Waits for onWritePossible() (or onError()) to make room
+                while (pendingBytes > MAX_PENDING && !failed) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        throw new InterruptedIOException();
+                    }
+                }
+                if (failed) {
+                    throw new IOException("Failed to write the response to the client."); //$NON-NLS-1$
+                }
+            }
+        }
+
+        /**
+         * Called when the whole body has been written (or queued).
+         */
+        public synchronized void end() {
+            ended = true;
+            if (pending.isEmpty() && output.isReady()) {
+                complete();
+            }
+        }
+
+        /**
+         * @see javax.servlet.WriteListener#onWritePossible()
+         */
+        @Override
+        public synchronized void onWritePossible() throws IOException {
+            while (!pending.isEmpty()) {
+                if (!output.isReady()) {
+                    return;
+                }
+                byte [] bytes = pending.poll();
+                pendingBytes -= bytes.length;
+                notifyAll();
+                output.write(bytes);
+            }
+            if (ended && output.isReady()) {
+                complete();
+            }
+        }
+
+        /**
+         * @see javax.servlet.WriteListener#onError(java.lang.Throwable)
+         */
+        @Override
+        public void onError(Throwable t) {
+            synchronized (this) {
+                failed = true;
+                pending.clear();
+                pendingBytes = 0;
+                notifyAll();
+            }
+            // Lets the back-end connection close down
+            engineResult.abort();
+            complete();
+        }
+    }
+
+}
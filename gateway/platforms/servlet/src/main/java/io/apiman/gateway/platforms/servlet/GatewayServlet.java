@@ -43,6 +43,7 @@ import java.util.Map;
 import java.util.Map.Entry;
 import java.util.concurrent.CountDownLatch;
 
+import javax.servlet.ServletContext;
 import javax.servlet.ServletException;
 import javax.servlet.ServletOutputStream;
 import javax.servlet.http.HttpServlet;
@@ -62,6 +63,15 @@ import org.codehaus.jackson.map.ObjectMapper;
  * {@link ServiceResponse} into an HTTP Servlet Response that is suitable for returning
  * to the caller.
  *
+ * On a Servlet 3.1 container, and when the servlet is mapped with async support,
+ * requests are handled asynchronously (see {@link AsyncServletExchange}) - the
+ * container thread is given back as soon as the request has been handed to the
+ * engine, and the request and response bodies are streamed with non-blocking I/O.
+ * The connector to the back-end service is still blocking though, so the round
+ * trip to the back-end service runs on (and holds) a container thread, from when
+ * the request body has been read until the response body has been queued.
+ * Setting the 'async' init-param to false turns this off.
+ *
  * @author eric.wittmann@redhat.com
  */
 public abstract class GatewayServlet extends HttpServlet {
@@ -77,12 +87,30 @@ public abstract class GatewayServlet extends HttpServlet {
         }
     }
 
+    private boolean async;
+
     /**
      * Constructor.
      */
     public GatewayServlet() {
     }
 
+    /**
+     * @see javax.servlet.GenericServlet#init()
+     */
+    @Override
+    public void init() throws ServletException {
+        ServletContext context = getServletContext();
+        boolean servlet31 = context.getMajorVersion() > 3
+                || (context.getMajorVersion() == 3 && context.getMinorVersion() >= 1);
+        // Note that async mode only frees the container thread while the request body
+        // is being read and the response body written.  The back-end round trip (the
+        // connector is blocking) still runs on a container thread, started when all of
+        // the request body has been read, and holds it until the response body has
+        // been handed over (see AsyncServletExchange).
+        async = servlet31 && !"false".equals(getInitParameter("async")); //$NON-NLS-1$
+    }
+
     /**
      * @see javax.servlet.http.HttpServlet#doGet(javax.servlet.http.HttpServletRequest, javax.servlet.http.HttpServletResponse)
      */
@@ -154,6 +182,29 @@ public abstract class GatewayServlet extends HttpServlet {
      * @param action
      */
     protected void doAction(final HttpServletRequest req, final HttpServletResponse resp, String action) {
+        if (async && req.isAsyncSupported()) {
+            doAsyncAction(req, resp, action);
+            return;
+        }
+
+        // This thread is blocked on the exchange until it's done, so the exchange
+        // can use the thread-local service request, response, etc.
+        GatewayThreadContext.setBlocking(true);
+        try {
+            doBlockingAction(req, resp, action);
+        } finally {
+            GatewayThreadContext.setBlocking(false);
+        }
+    }
+
+    /**
+     * Handles the request synchronously - the calling thread is blocked until the
+     * response has been written.
+     * @param req
+     * @param resp
+     * @param action
+     */
+    protected void doBlockingAction(final HttpServletRequest req, final HttpServletResponse resp, String action) {
         // Read the request.
         ServiceRequest srequest = null;
         try {
@@ -248,6 +299,77 @@ public abstract class GatewayServlet extends HttpServlet {
         try { latch.await(); } catch (InterruptedException e) { }
     }
 
+    /**
+     * Handles the request asynchronously - the request and response bodies are
+     * streamed with non-blocking I/O, and nothing waits for the engine.
+     * @param req
+     * @param resp
+     * @param action
+     */
+    protected void doAsyncAction(final HttpServletRequest req, final HttpServletResponse resp, String action) {
+        // Read the request.  This thread moves on to other requests while this one is
+        // still in flight, so the thread-local service request can't be used.
+        ServiceRequest srequest = null;
+        try {
+            srequest = readRequest(req, new ServiceRequest());
+            srequest.setType(action);
+        } catch (Exception e) {
+            writeError(null, resp, e);
+            return;
+        }
+
+        final AsyncServletExchange exchange = new AsyncServletExchange(req);
+        final ServiceRequest finalRequest = srequest;
+
+        // Now execute the request via the apiman engine
+        IServiceRequestExecutor executor = getEngine().executor(srequest, new IAsyncResultHandler<IEngineResult>() {
+            @Override
+            public void handle(IAsyncResult<IEngineResult> asyncResult) {
+                if (exchange.isCompleted()) {
+                    // The client went away
+                    if (asyncResult.isSuccess() && asyncResult.getResult().isResponse()) {
+                        asyncResult.getResult().abort();
+                    }
+                    return;
+                }
+                if (asyncResult.isSuccess()) {
+                    IEngineResult engineResult = asyncResult.getResult();
+                    if (engineResult.isResponse()) {
+                        try {
+                            writeResponse(resp, engineResult.getServiceResponse());
+                            exchange.writeBody(engineResult);
+                        } catch (IOException e) {
+                            // this would mean we couldn't get the output stream from the response, so we
+                            // need to abort the engine result (which will let the back-end connection
+                            // close down).
+                            engineResult.abort();
+                            exchange.complete();
+                            throw new RuntimeException(e);
+                        }
+                    } else {
+                        writeFailure(finalRequest, resp, engineResult.getPolicyFailure());
+                        exchange.complete();
+                    }
+                } else {
+                    writeError(finalRequest, resp, asyncResult.getError());
+                    exchange.complete();
+                }
+            }
+        });
+        executor.streamHandler(new IAsyncHandler<ISignalWriteStream>() {
+            @Override
+            public void handle(ISignalWriteStream connectorStream) {
+                try {
+                    exchange.readBody(connectorStream);
+                } catch (IOException e) {
+                    connectorStream.abort();
+                    throw new RuntimeException(e);
+                }
+            }
+        });
+        executor.execute();
+    }
+
     /**
      * Gets the engine - subclasses must implement this.
      * @return gets the engine
@@ -262,6 +384,18 @@ public abstract class GatewayServlet extends HttpServlet {
      * @throws IOException
      */
     protected ServiceRequest readRequest(HttpServletRequest request) throws Exception {
+        return readRequest(request, GatewayThreadContext.getServiceRequest());
+    }
+
+    /**
+     * Reads a {@link ServiceRequest} from information found in the inbound
+     * portion of the http request.
+     * @param request the http server request
+     * @param srequest the (empty) service request to fill in
+     * @return the service request
+     * @throws IOException
+     */
+    protected ServiceRequest readRequest(HttpServletRequest request, ServiceRequest srequest) throws Exception {
         ServiceRequestPathInfo pathInfo = parseServiceRequestPath(request);
         if (pathInfo.orgId == null) {
             throw new Exception(Messages.i18n.format("GatewayServlet.InvalidServiceEndpoint")); //$NON-NLS-1$
@@ -270,7 +404,6 @@ public abstract class GatewayServlet extends HttpServlet {
 
         String apiKey = getApiKey(request, queryParams);
 
-        ServiceRequest srequest = GatewayThreadContext.getServiceRequest();
         srequest.setApiKey(apiKey);
         srequest.setServiceOrgId(pathInfo.orgId);
         srequest.setServiceId(pathInfo.serviceId);
@@ -21,7 +21,12 @@ import io.apiman.gateway.engine.beans.ServiceRequest;
 import io.apiman.gateway.engine.beans.ServiceResponse;
 
 /**
- * Thread context for the WAR implementation of the gateway.
+ * Thread context for the WAR implementation of the gateway.  The service request,
+ * service response and policy failure of an exchange are re-used by the thread
+ * that handles the exchange, as long as that thread is blocked on it from start
+ * to end (see {@link #setBlocking(boolean)}).  Any other thread - e.g. one
+ * handling asynchronous exchanges, which moves on to other exchanges while one
+ * is still in flight - gets new instances.
  *
  * @author eric.wittmann@redhat.com
  */
@@ -29,11 +34,35 @@ public class GatewayThreadContext {
     private static final ThreadLocal<ServiceRequest> serviceRequest = new ThreadLocal<>();
     private static final ThreadLocal<ServiceResponse> serviceResponse = new ThreadLocal<>();
     private static final ThreadLocal<PolicyFailure> policyFailure = new ThreadLocal<>();
+    private static final ThreadLocal<Boolean> blocking = new ThreadLocal<>();
 
     /**
-     * @return the thread-local service request
+     * Sets whether the current thread is blocked on a single exchange, from
+     * reading its request to writing its response.
+     * @param isBlocking
+     */
+    public static final void setBlocking(boolean isBlocking) {
+        if (isBlocking) {
+            blocking.set(Boolean.TRUE);
+        } else {
+            blocking.remove();
+        }
+    }
+
+    /**
+     * @return true if the thread-local instances may be used
+     */
+    private static boolean isBlocking() {
+        return blocking.get() != null;
+    }
+
+    /**
+     * @return the (thread-local) service request
      */
     public static final ServiceRequest getServiceRequest() {
+        if (!isBlocking()) {
+            return new ServiceRequest();
+        }
         ServiceRequest request = serviceRequest.get();
         if (request == null) {
             request = new ServiceRequest();
@@ -51,9 +80,12 @@ public class GatewayThreadContext {
     }
 
     /**
-     * @return the thread-local service response
+     * @return the (thread-local) service response
      */
     public static final ServiceResponse getServiceResponse() {
+        if (!isBlocking()) {
+            return new ServiceResponse();
+        }
         ServiceResponse response = serviceResponse.get();
         if (response == null) {
             response = new ServiceResponse();
@@ -67,9 +99,12 @@ public class GatewayThreadContext {
     }
 
     /**
-     * @return the thread-local policy failure
+     * @return the (thread-local) policy failure
      */
     public static final PolicyFailure getPolicyFailure() {
+        if (!isBlocking()) {
+            return new PolicyFailure();
+        }
         PolicyFailure failure = policyFailure.get();
         if (failure == null) {
             failure = new PolicyFailure();
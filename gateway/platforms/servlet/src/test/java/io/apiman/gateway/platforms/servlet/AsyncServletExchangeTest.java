@@ -0,0 +1,153 @@
+/*
+ * Copyright 2015 JBoss Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.apiman.gateway.platforms.servlet;
+
+import io.apiman.gateway.engine.beans.ServiceResponse;
+import io.apiman.gateway.engine.impl.EngineResultImpl;
+import io.apiman.gateway.engine.io.ByteBuffer;
+import io.apiman.gateway.engine.io.IApimanBuffer;
+import io.apiman.gateway.engine.io.ISignalWriteStream;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.Random;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.commons.io.IOUtils;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.servlet.ServletContextHandler;
+import org.eclipse.jetty.servlet.ServletHolder;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Unit test.
+ *
+ * @author eric.wittmann@redhat.com
+ */
+@SuppressWarnings("nls")
+public class AsyncServletExchangeTest {
+
+    private static final int PORT = 8010;
+
+    private Server server;
+
+    @Before
+    public void setupJetty() throws Exception {
+        ServletContextHandler sch = new ServletContextHandler(ServletContextHandler.SESSIONS);
+        sch.setContextPath("/");
+        ServletHolder holder = new ServletHolder(new AsyncEchoServlet());
+        holder.setAsyncSupported(true);
+        sch.addServlet(holder, "/*");
+
+        server = new Server(PORT);
+        server.setStopAtShutdown(true);
+        server.setHandler(sch);
+        server.start();
+    }
+
+    @After
+    public void destroyJetty() throws Exception {
+        server.stop();
+        server.destroy();
+    }
+
+    /**
+     * Echoes a body that is far bigger than the container's buffers, so that both
+     * reading and writing have to wait for the other side.
+     */
+    @Test
+    public void testEcho() throws Exception {
+        byte[] body = new byte[4 * 1024 * 1024];
+        new Random(7).nextBytes(body);
+
+        HttpURLConnection connection = (HttpURLConnection) new URL("http://localhost:" + PORT + "/echo").openConnection();
+        connection.setRequestMethod("POST");
+        connection.setDoOutput(true);
+        connection.setChunkedStreamingMode(8192);
+        OutputStream os = connection.getOutputStream();
+        os.write(body);
+        os.close();
+
+        Assert.assertEquals(200, connection.getResponseCode());
+        InputStream is = connection.getInputStream();
+        byte[] echoed = IOUtils.toByteArray(is);
+        is.close();
+        Assert.assertEquals(body.length, echoed.length);
+        Assert.assertTrue(Arrays.equals(body, echoed));
+    }
+
+    /**
+     * An async servlet that writes back whatever it was sent - once it has all of it.
+     */
+    private static class AsyncEchoServlet extends HttpServlet {
+
+        private static final long serialVersionUID = -1546123453208743453L;
+
+        @Override
+        protected void doPost(HttpServletRequest req, final HttpServletResponse resp)
+                throws ServletException, IOException {
+            final AsyncServletExchange exchange = new AsyncServletExchange(req);
+            final ByteArrayOutputStream received = new ByteArrayOutputStream();
+            exchange.readBody(new ISignalWriteStream() {
+                @Override
+                public void write(IApimanBuffer chunk) {
+                    received.write((byte[]) chunk.getNativeBuffer(), 0, chunk.length());
+                }
+
+                @Override
+                public void end() {
+                    resp.setStatus(200);
+                    EngineResultImpl result = new EngineResultImpl(new ServiceResponse());
+                    try {
+                        exchange.writeBody(result);
+                    } catch (IOException e) {
+                        throw new RuntimeException(e);
+                    }
+                    byte[] bytes = received.toByteArray();
+                    // Re-uses the buffer, like the service connector does
+                    byte[] buffer = new byte[2048];
+                    for (int offset = 0; offset < bytes.length; offset += buffer.length) {
+                        System.arraycopy(bytes, offset, buffer, 0, buffer.length);
+                        result.write(new ByteBuffer(buffer, buffer.length));
+                    }
+                    result.end();
+                }
+
+                @Override
+                public boolean isFinished() {
+                    return false;
+                }
+
+                @Override
+                public void abort() {
+                }
+            });
+        }
+    }
+
+}
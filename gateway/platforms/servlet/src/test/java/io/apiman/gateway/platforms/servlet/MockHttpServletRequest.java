@@ -37,6 +37,7 @@ import javax.servlet.http.Cookie;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import javax.servlet.http.HttpSession;
+import javax.servlet.http.HttpUpgradeHandler;
 import javax.servlet.http.Part;
 
 /**
@@ -653,4 +654,31 @@ public class MockHttpServletRequest implements HttpServletRequest {
         return null;
     }
 
+    /**
+     * @see javax.servlet.ServletRequest#getContentLengthLong()
+     */
+    @Override
+    public long getContentLengthLong() {
+
+        return 0;
+    }
+
+    /**
+     * @see javax.servlet.http.HttpServletRequest#changeSessionId()
+     */
+    @Override
+    public String changeSessionId() {
+
+        return null;
+    }
+
+    /**
+     * @see javax.servlet.http.HttpServletRequest#upgrade(java.lang.Class)
+     */
+    @Override
+    public <T extends HttpUpgradeHandler> T upgrade(Class<T> handlerClass) throws IOException, ServletException {
+
+        return null;
+    }
+
 }
@@ -43,6 +43,7 @@ public class VertxEngineConfig implements IEngineConfig {
     public static final String GATEWAY_ENDPOINT_POLICY_INGESTION = "io.apiman.gateway.platforms.vertx2.policy";
     public static final String GATEWAY_ENDPOINT_REQUEST = ".request";
     public static final String GATEWAY_ENDPOINT_RESPONSE = ".response";
+    public static final String GATEWAY_ENDPOINT_BODY = ".body";
 
     private static final String VERTICLES = "verticles";
     private static final String VERTICLE_PORT = "port";
@@ -51,6 +52,7 @@ public class VertxEngineConfig implements IEngineConfig {
     private static final String GATEWAY_HOSTNAME = "hostname";
     private static final String GATEWAY_ENDPOINT = "endpoint";
     private static final String GATEWAY_PREFER_SECURE = "preferSecure";
+    private static final String GATEWAY_COLOCATED = "colocated";
 
     private static final String API_AUTH = "auth";
     private static final String API_PASSWORD = "password";
@@ -172,6 +174,14 @@ public class VertxEngineConfig implements IEngineConfig {
         return config.getString(GATEWAY_ENDPOINT);
     }
 
+    /**
+     * @return true if the HTTP(S) verticles execute requests with their own engine,
+     * rather than passing them over the event bus to a policy verticle (default false)
+     */
+    public boolean isColocated() {
+        return config.getBoolean(GATEWAY_COLOCATED, false);
+    }
+
     public Boolean preferSecure() {
         return config.getBoolean(GATEWAY_PREFER_SECURE);
     }
@@ -68,17 +68,6 @@ public class IngestorToPolicyServiceVertxEBProxy implements IngestorToPolicyServ
     });
   }
 
-  public void write(String chunk) {
-    if (closed) {
-      throw new IllegalStateException("Proxy is closed");
-    }
-    JsonObject _json = new JsonObject();
-    _json.put("chunk", chunk);
-    DeliveryOptions _deliveryOptions = new DeliveryOptions();
-    _deliveryOptions.addHeader("action", "write");
-    _vertx.eventBus().send(_address, _json, _deliveryOptions);
-  }
-
   public void end(Handler<AsyncResult<Void>> resultHandler) {
     if (closed) {
       resultHandler.handle(Future.failedFuture(new IllegalStateException("Proxy is closed")));
@@ -121,10 +121,6 @@ public class IngestorToPolicyServiceVertxProxyHandler extends ProxyHandler {
         service.head(json.getJsonObject("serviceRequest") == null ? null : new io.apiman.gateway.platforms.vertx3.io.VertxServiceRequest(json.getJsonObject("serviceRequest")), createHandler(msg));
         break;
       }
-      case "write": {
-        service.write((java.lang.String)json.getValue("chunk"));
-        break;
-      }
       case "end": {
         service.end(createHandler(msg));
         close();
@@ -122,10 +122,6 @@ public class PolicyToIngestorServiceVertxProxyHandler extends ProxyHandler {
         service.head(json.getJsonObject("serviceResponse") == null ? null : new io.apiman.gateway.platforms.vertx3.io.VertxServiceResponse(json.getJsonObject("serviceResponse")), createHandler(msg));
         break;
       }
-      case "write": {
-        service.write((java.lang.String)json.getValue("chunk"));
-        break;
-      }
       case "end": {
         service.end(createHandler(msg));
         close();
@@ -32,7 +32,9 @@ import java.util.Map;
 import java.util.Set;
 
 /**
- * Create Vert.x connectors to the enable apiman to connect to a backend service.
+ * Create Vert.x connectors to the enable apiman to connect to a backend service.  The
+ * connectors share pooled, keep-alive connections to each back-end endpoint (see
+ * {@link HttpClientPool} for the config).
  *
  * @author Marc Savy {@literal <msavy@redhat.com>}
  */
@@ -45,8 +47,7 @@ public class ConnectorFactory implements IConnectorFactory {
         SUPPRESSED_HEADERS.add("X-API-Key"); //$NON-NLS-1$
     }
 
-    private Vertx vertx;
-    private TLSOptions tlsOptions;
+    private HttpClientPool clientPool;
 
     /**
      * Constructor
@@ -54,8 +55,7 @@ public class ConnectorFactory implements IConnectorFactory {
      * @param config the config
      */
     public ConnectorFactory(Vertx vertx, Map<String, String> config) {
-        this.vertx = vertx;
-        this.tlsOptions = new TLSOptions(config);
+        this.clientPool = new HttpClientPool(vertx, new TLSOptions(config), config);
     }
 
     @Override
@@ -67,7 +67,7 @@ public class ConnectorFactory implements IConnectorFactory {
                     IAsyncResultHandler<IServiceConnectionResponse> resultHandler)
                     throws ConnectorException {
                 // In the future we can switch to different back-end implementations here!
-                return new HttpConnector(vertx, service, request, authType, tlsOptions, resultHandler);
+                return new HttpConnector(clientPool, service, request, authType, resultHandler);
             }
         };
     }
@@ -0,0 +1,137 @@
+/*
+ * Copyright 2015 JBoss Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.apiman.gateway.platforms.vertx3.connector;
+
+import io.apiman.common.config.options.TLSOptions;
+import io.apiman.gateway.platforms.vertx3.http.HttpClientOptionsFactory;
+import io.vertx.core.Vertx;
+import io.vertx.core.http.HttpClient;
+import io.vertx.core.http.HttpClientOptions;
+
+import java.net.URL;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The {@link HttpClient}s used by a verticle's connectors: one per back-end
+ * endpoint (scheme, host and port - with the connector factory's TLS options).
+ * Each client keeps a pool of connections to its endpoint alive between requests,
+ * so that requests don't pay for TCP setup and TLS handshakes.
+ *
+ * Configured with the connector factory's config:
+ * <ul>
+ *   <li>http.maxPoolSize - max connections per endpoint (default 50)</li>
+ *   <li>http.keepAlive - whether connections are re-used (default true)</li>
+ *   <li>http.idleTimeout - seconds after which an idle connection is closed (default 60, 0 for never)</li>
+ *   <li>http.pipelining - whether requests are pipelined on a connection (default false)</li>
+ * </ul>
+ *
+ * @author Marc Savy {@literal <msavy@redhat.com>}
+ */
+@SuppressWarnings("nls")
+class HttpClientPool {
+
+    public static final String MAX_POOL_SIZE = "http.maxPoolSize";
+    public static final String KEEP_ALIVE = "http.keepAlive";
+    public static final String IDLE_TIMEOUT = "http.idleTimeout";
+    public static final String PIPELINING = "http.pipelining";
+
+    private static final int DEFAULT_MAX_POOL_SIZE = 50;
+    private static final int DEFAULT_IDLE_TIMEOUT = 60;
+
+    private final Vertx vertx;
+    private final TLSOptions tlsOptions;
+    private final int maxPoolSize;
+    private final boolean keepAlive;
+    private final int idleTimeout;
+    private final boolean pipelining;
+
+    private final ConcurrentHashMap<String, HttpClient> clients = new ConcurrentHashMap<>();
+
+    /**
+     * Constructor.
+     * @param vertx a vertx instance
+     * @param tlsOptions the tls options
+     * @param config the connector factory's config
+     */
+    public HttpClientPool(Vertx vertx, TLSOptions tlsOptions, Map<String, String> config) {
+        this.vertx = vertx;
+        this.tlsOptions = tlsOptions;
+        this.maxPoolSize = getInt(config, MAX_POOL_SIZE, DEFAULT_MAX_POOL_SIZE);
+        this.keepAlive = getBoolean(config, KEEP_ALIVE, true);
+        this.idleTimeout = getInt(config, IDLE_TIMEOUT, DEFAULT_IDLE_TIMEOUT);
+        this.pipelining = getBoolean(config, PIPELINING, false);
+    }
+
+    /**
+     * @param serviceEndpoint the back-end endpoint
+     * @return the client for the endpoint, created when first needed
+     */
+    public HttpClient getClient(URL serviceEndpoint) {
+        String key = serviceEndpoint.getProtocol() + "://" + serviceEndpoint.getHost() + ":" + serviceEndpoint.getPort();
+        HttpClient client = clients.get(key);
+        if (client == null) {
+            client = vertx.createHttpClient(createOptions(serviceEndpoint));
+            HttpClient existing = clients.putIfAbsent(key, client);
+            if (existing != null) {
+                client.close();
+                client = existing;
+            }
+        }
+        return client;
+    }
+
+    /**
+     * @return the number of clients (endpoints)
+     */
+    public int size() {
+        return clients.size();
+    }
+
+    /**
+     * Closes all clients (and their connections).
+     */
+    public void close() {
+        for (HttpClient client : clients.values()) {
+            client.close();
+        }
+        clients.clear();
+    }
+
+    /**
+     * @param serviceEndpoint
+     * @return the options for a new client
+     */
+    protected HttpClientOptions createOptions(URL serviceEndpoint) {
+        // Copied - the parsed TLS options are shared
+        HttpClientOptions options = new HttpClientOptions(HttpClientOptionsFactory.parseOptions(tlsOptions, serviceEndpoint));
+        options.setMaxPoolSize(maxPoolSize)
+            .setKeepAlive(keepAlive)
+            .setPipelining(pipelining)
+            .setIdleTimeout(idleTimeout);
+        return options;
+    }
+
+    private static int getInt(Map<String, String> config, String key, int defaultValue) {
+        String value = config.get(key);
+        return value == null ? defaultValue : Integer.parseInt(value.trim());
+    }
+
+    private static boolean getBoolean(Map<String, String> config, String key, boolean defaultValue) {
+        String value = config.get(key);
+        return value == null ? defaultValue : Boolean.parseBoolean(value.trim());
+    }
+}
@@ -25,7 +25,6 @@ import java.util.Map.Entry;
 import java.util.Set;
 
 import io.apiman.common.config.options.BasicAuthOptions;
-import io.apiman.common.config.options.TLSOptions;
 import io.apiman.common.util.Basic;
 import io.apiman.gateway.engine.IServiceConnection;
 import io.apiman.gateway.engine.IServiceConnectionResponse;
@@ -40,16 +39,13 @@ import io.apiman.gateway.engine.beans.exceptions.ConnectorException;
 import io.apiman.gateway.engine.io.IApimanBuffer;
 import io.apiman.gateway.engine.io.ISignalReadStream;
 import io.apiman.gateway.engine.io.ISignalWriteStream;
-import io.apiman.gateway.platforms.vertx3.http.HttpClientOptionsFactory;
 import io.apiman.gateway.platforms.vertx3.http.HttpServiceFactory;
 import io.apiman.gateway.platforms.vertx3.i18n.Messages;
 import io.apiman.gateway.platforms.vertx3.io.VertxApimanBuffer;
 import io.vertx.core.Handler;
 import io.vertx.core.MultiMap;
-import io.vertx.core.Vertx;
 import io.vertx.core.buffer.Buffer;
 import io.vertx.core.http.HttpClient;
-import io.vertx.core.http.HttpClientOptions;
 import io.vertx.core.http.HttpClientRequest;
 import io.vertx.core.http.HttpClientResponse;
 import io.vertx.core.http.HttpMethod;
@@ -108,15 +104,14 @@ class HttpConnector implements IServiceConnectionResponse, IServiceConnection {
      * Construct an {@link HttpConnector} instance. The {@link #resultHandler} must remain exclusive to a
      * given instance.
      *
-     * @param vertx a vertx
+     * @param clientPool the pool of (per endpoint) http clients
      * @param service a service
      * @param request a request with fields filled
      * @param authType the required auth type
-     * @param tlsOptions the tls options
      * @param resultHandler a handler, called when reading is permitted
      */
-    public HttpConnector(Vertx vertx, Service service, ServiceRequest request, RequiredAuthType authType,
-            TLSOptions tlsOptions, IAsyncResultHandler<IServiceConnectionResponse> resultHandler) {
+    public HttpConnector(HttpClientPool clientPool, Service service, ServiceRequest request, RequiredAuthType authType,
+            IAsyncResultHandler<IServiceConnectionResponse> resultHandler) {
        this.service = service;
        this.serviceRequest = request;
        this.authType = authType;
@@ -131,8 +126,7 @@ class HttpConnector implements IServiceConnectionResponse, IServiceConnection {
        servicePath = serviceEndpoint.getPath().isEmpty() || serviceEndpoint.getPath().equals("/") ? "" : serviceEndpoint.getPath();
        destination = serviceRequest.getDestination() == null ? "/" : serviceRequest.getDestination();
 
-       HttpClientOptions clientOptions = HttpClientOptionsFactory.parseOptions(tlsOptions, serviceEndpoint);
-       this.client = vertx.createHttpClient(clientOptions);
+       this.client = clientPool.getClient(serviceEndpoint);
        verifyConnection();
        doConnection();
     }
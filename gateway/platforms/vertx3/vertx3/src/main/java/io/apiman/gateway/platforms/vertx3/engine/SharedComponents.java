@@ -0,0 +1,73 @@
+/*
+ * Copyright 2015 JBoss Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.apiman.gateway.platforms.vertx3.engine;
+
+import io.apiman.gateway.engine.IComponent;
+import io.apiman.gateway.engine.SharedComponent;
+import io.vertx.core.Vertx;
+import io.vertx.core.shareddata.LocalMap;
+import io.vertx.core.shareddata.Shareable;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Supplier;
+
+/**
+ * The {@link SharedComponent}s of a {@link Vertx} instance: created by the first of
+ * its verticles' engines to need them, then used by all of them.  Engines only ask
+ * for a component once (their registry keeps it), so the lock is never contended
+ * while requests are handled.
+ *
+ * @author Marc Savy {@literal <msavy@redhat.com>}
+ */
+class SharedComponents implements Shareable {
+
+    private static final String KEY = "apiman.shared-components"; //$NON-NLS-1$
+
+    private final Map<Class<? extends IComponent>, IComponent> components = new HashMap<>();
+
+    /**
+     * @param vertx a vertx instance
+     * @return the vertx instance's shared components
+     */
+    public static SharedComponents get(Vertx vertx) {
+        LocalMap<String, SharedComponents> map = vertx.sharedData().getLocalMap(KEY);
+        SharedComponents shared = map.get(KEY);
+        if (shared == null) {
+            SharedComponents existing = map.putIfAbsent(KEY, shared = new SharedComponents());
+            if (existing != null) {
+                shared = existing;
+            }
+        }
+        return shared;
+    }
+
+    /**
+     * @param componentType the component type
+     * @param factory creates the component, if it doesn't exist yet
+     * @return the shared component
+     */
+    @SuppressWarnings("unchecked")
+    public synchronized <T extends IComponent> T getOrCreate(Class<T> componentType, Supplier<T> factory) {
+        T component = (T) components.get(componentType);
+        if (component == null) {
+            component = factory.get();
+            components.put(componentType, component);
+        }
+        return component;
+    }
+
+}
@@ -18,7 +18,10 @@ package io.apiman.gateway.platforms.vertx3.engine;
 import java.lang.reflect.Constructor;
 import java.util.Map;
 
+import io.apiman.gateway.engine.IComponent;
 import io.apiman.gateway.engine.IPluginRegistry;
+import io.apiman.gateway.engine.SharedComponent;
+import io.apiman.gateway.engine.beans.exceptions.ComponentNotFoundException;
 import io.apiman.gateway.engine.impl.ConfigDrivenComponentRegistry;
 import io.apiman.gateway.platforms.vertx3.common.config.VertxEngineConfig;
 import io.vertx.core.Vertx;
@@ -27,6 +30,9 @@ import io.vertx.core.Vertx;
  * Extends {@link ConfigDrivenComponentRegistry} to allow components to be constructed with a {@link Vertx}
  * instance; else the standard mechanisms are fallen back on.
  *
+ * Each verticle has its own engine, and so its own instance of each component - except for
+ * {@link SharedComponent}s, which all of the verticles of a {@link Vertx} instance share.
+ *
  * @see ConfigDrivenComponentRegistry
  *
  * @author Marc Savy {@literal <msavy@redhat.com>}
@@ -34,14 +40,39 @@ import io.vertx.core.Vertx;
 public class VertxConfigDrivenComponentRegistry extends ConfigDrivenComponentRegistry {
 
     private VertxEngineConfig engineConfig;
+    private IPluginRegistry pluginRegistry;
     private Vertx vertx;
 
     public VertxConfigDrivenComponentRegistry(IPluginRegistry pluginRegistry, Vertx vertx, VertxEngineConfig engineConfig) {
         super(engineConfig, pluginRegistry);
         this.engineConfig = engineConfig;
+        this.pluginRegistry = pluginRegistry;
         this.vertx = vertx;
     }
 
+    /**
+     * Creates the component, unless it is a {@link SharedComponent} that another verticle's
+     * engine has already created.
+     *
+     * @see io.apiman.gateway.engine.impl.ConfigDrivenComponentRegistry#createAndRegisterComponent(java.lang.Class)
+     */
+    @Override
+    public <T extends IComponent> T createAndRegisterComponent(Class<T> componentType) throws ComponentNotFoundException {
+        Class<T> componentClass;
+        try {
+            componentClass = engineConfig.getComponentClass(componentType, pluginRegistry);
+        } catch (Exception e) {
+            throw new ComponentNotFoundException(componentType.getName());
+        }
+        if (!componentClass.isAnnotationPresent(SharedComponent.class)) {
+            return super.createAndRegisterComponent(componentType);
+        }
+        T component = SharedComponents.get(vertx).getOrCreate(componentType,
+                () -> super.createAndRegisterComponent(componentType));
+        addComponentMapping(componentType, component);
+        return component;
+    }
+
     /**
      * Creates components, but allows a {@link #vertx} instance to be passed in.
      *
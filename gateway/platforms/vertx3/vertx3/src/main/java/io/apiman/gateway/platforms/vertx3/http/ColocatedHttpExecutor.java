@@ -0,0 +1,138 @@
+/*
+ * Copyright 2015 JBoss Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.apiman.gateway.platforms.vertx3.http;
+
+import io.apiman.gateway.engine.IEngine;
+import io.apiman.gateway.engine.IEngineResult;
+import io.apiman.gateway.engine.IServiceRequestExecutor;
+import io.apiman.gateway.engine.async.IAsyncHandler;
+import io.apiman.gateway.engine.async.IAsyncResult;
+import io.apiman.gateway.engine.io.IApimanBuffer;
+import io.apiman.gateway.engine.io.ISignalWriteStream;
+import io.apiman.gateway.platforms.vertx3.io.VertxApimanBuffer;
+import io.apiman.gateway.platforms.vertx3.io.VertxPolicyFailure;
+import io.apiman.gateway.platforms.vertx3.io.VertxServiceRequest;
+import io.apiman.gateway.platforms.vertx3.io.VertxServiceResponse;
+import io.vertx.core.Handler;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.http.HttpServerRequest;
+import io.vertx.core.http.HttpServerResponse;
+import io.vertx.core.logging.Logger;
+
+/**
+ * Execute request and response with the HTTP verticle's own engine, on its event loop:
+ * no event bus hops, and nothing to register per request.
+ *
+ * @author Marc Savy {@literal <msavy@redhat.com>}
+ */
+@SuppressWarnings("nls")
+public class ColocatedHttpExecutor implements Handler<HttpServerRequest> {
+
+    private HttpServerRequest request;
+    private HttpServerResponse response;
+    private IEngine engine;
+    private Logger log;
+    private boolean transportSecure;
+
+    public ColocatedHttpExecutor(IEngine engine,
+            Logger log,
+            boolean transportSecure) {
+        this.engine = engine;
+        this.log = log;
+        this.transportSecure = transportSecure;
+    }
+
+    @Override
+    public void handle(HttpServerRequest request) {
+        this.request = request;
+        this.response = request.response();
+        request.exceptionHandler(this::setError);
+        response.exceptionHandler(this::setError);
+
+        execute();
+    }
+
+    private void execute() {
+        // Use chunked mode to avoid needing to know full payload size in advance
+        response.setChunked(true);
+
+        // Pause the request until the engine is ready for the body
+        request.pause();
+
+        VertxServiceRequest serviceRequest;
+        try {
+            serviceRequest = HttpServiceFactory.buildRequest(request, transportSecure);
+        } catch (IllegalArgumentException e) {
+            setError(e);
+            return;
+        }
+
+        IServiceRequestExecutor requestExecutor = engine.executor(serviceRequest, this::handleResult);
+
+        requestExecutor.streamHandler((IAsyncHandler<ISignalWriteStream>) writeStream -> {
+            request.handler((Handler<Buffer>) buffer -> {
+                writeStream.write(new VertxApimanBuffer(buffer));
+            });
+
+            request.endHandler((Handler<Void>) end -> {
+                writeStream.end();
+            });
+
+            request.resume();
+        });
+
+        requestExecutor.execute();
+    }
+
+    private void handleResult(IAsyncResult<IEngineResult> result) {
+        if (result.isSuccess()) {
+            IEngineResult engineResult = result.getResult();
+
+            if (engineResult.isResponse()) {
+                HttpServiceFactory.buildResponse(response, new VertxServiceResponse(engineResult.getHead()));
+
+                engineResult.bodyHandler((IAsyncHandler<IApimanBuffer>) chunk -> {
+                    response.write(chunk.getNativeBuffer() instanceof Buffer ? (Buffer) chunk.getNativeBuffer()
+                            : Buffer.buffer(chunk.getBytes()));
+                });
+
+                engineResult.endHandler((IAsyncHandler<Void>) v -> {
+                    if (!response.ended()) {
+                        log.debug("Response has been written");
+                        response.end();
+                    }
+                });
+            } else {
+                log.debug("There was a policy failure");
+                HttpServiceFactory.buildPolicyFailureResponse(response, new VertxPolicyFailure(engineResult.getPolicyFailure()));
+                // Discard any body the client is still sending
+                request.resume();
+            }
+        } else {
+            setError(result.getError());
+        }
+    }
+
+    private void setError(Throwable error) {
+        if (response.ended()) {
+            log.debug("Error after the response was written: " + error.getMessage());
+            return;
+        }
+        HttpServiceFactory.buildErrorResponse(response, error);
+        log.debug("Finished setting error");
+        request.resume();
+    }
+}
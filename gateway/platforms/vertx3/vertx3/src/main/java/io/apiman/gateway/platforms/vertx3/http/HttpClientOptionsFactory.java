@@ -25,9 +25,9 @@ import java.net.URL;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import javax.net.ssl.SSLContext;
 
@@ -38,10 +38,14 @@ import javax.net.ssl.SSLContext;
  */
 public class HttpClientOptionsFactory {
     private static final String[] EMPTY = new String[]{};
-    private static Map<TLSOptions, HttpClientOptions> configCache = new HashMap<>();
+    private static Map<TLSOptions, HttpClientOptions> configCache = new ConcurrentHashMap<>();
     private static Logger log = LoggerFactory.getLogger(HttpClientOptionsFactory.class);
 
     public static HttpClientOptions parseOptions(TLSOptions tlsOptions, URL serviceEndpoint) {
+        // Only the (costly) https options are cached - they don't depend on the endpoint
+        if (serviceEndpoint.getProtocol().equals("http")) { //$NON-NLS-1$
+            return doParse(tlsOptions, serviceEndpoint);
+        }
         if (configCache.containsKey(tlsOptions))
             return configCache.get(tlsOptions);
 
@@ -15,9 +15,8 @@
  */
 package io.apiman.gateway.platforms.vertx3.http;
 
-import io.apiman.common.util.MediaType;
-import io.apiman.gateway.engine.beans.EngineErrorResponse;
 import io.apiman.gateway.platforms.vertx3.common.config.VertxEngineConfig;
+import io.apiman.gateway.platforms.vertx3.io.BufferPassThroughCodec;
 import io.apiman.gateway.platforms.vertx3.io.VertxApimanBuffer;
 import io.apiman.gateway.platforms.vertx3.io.VertxPolicyFailure;
 import io.apiman.gateway.platforms.vertx3.io.VertxServiceRequest;
@@ -26,19 +25,15 @@ import io.apiman.gateway.platforms.vertx3.services.IngestorToPolicyService;
 import io.apiman.gateway.platforms.vertx3.services.InitializeIngestorService;
 import io.apiman.gateway.platforms.vertx3.services.PolicyToIngestorService;
 import io.apiman.gateway.platforms.vertx3.services.impl.PolicyToIngestorServiceImpl;
-import io.netty.handler.codec.http.HttpResponseStatus;
 import io.vertx.core.AsyncResult;
 import io.vertx.core.Handler;
 import io.vertx.core.Vertx;
 import io.vertx.core.buffer.Buffer;
-import io.vertx.core.http.HttpHeaders;
 import io.vertx.core.http.HttpServerRequest;
 import io.vertx.core.http.HttpServerResponse;
-import io.vertx.core.json.Json;
 import io.vertx.core.logging.Logger;
 import io.vertx.serviceproxy.ProxyHelper;
 
-import java.util.Map.Entry;
 import java.util.UUID;
 
 /**
@@ -55,6 +50,7 @@ public class HttpExecutor implements Handler<HttpServerRequest> {
     private String httpSessionUuid;
     private Logger log;
     private boolean transportSecure;
+    private PolicyToIngestorServiceImpl receive;
 
     public HttpExecutor(Vertx vertx,
             Logger log,
@@ -104,8 +100,9 @@ public class HttpExecutor implements Handler<HttpServerRequest> {
                 if (ready.succeeded()) {
                     // Signalled that we can send the body.
                     if (ready.result()) {
-                        request.handler((Handler<Buffer>) buffer -> { // TODO fixme when pluggable marshallers available...
-                            send.write(buffer.toString("UTF-8"));
+                        String bodyAddress = httpSessionUuid + VertxEngineConfig.GATEWAY_ENDPOINT_BODY;
+                        request.handler((Handler<Buffer>) buffer -> {
+                            vertx.eventBus().send(bodyAddress, buffer, BufferPassThroughCodec.DELIVERY_OPTIONS);
                         });
 
                         request.endHandler((Handler<Void>) end -> {
@@ -135,10 +132,10 @@ public class HttpExecutor implements Handler<HttpServerRequest> {
     }
 
     private void setupResponse() {
-        PolicyToIngestorServiceImpl receive = new PolicyToIngestorServiceImpl();
+        String address = httpSessionUuid + VertxEngineConfig.GATEWAY_ENDPOINT_RESPONSE;
+        receive = new PolicyToIngestorServiceImpl(vertx, address);
 
-        ProxyHelper.registerService(PolicyToIngestorService.class, vertx, receive,
-                httpSessionUuid + VertxEngineConfig.GATEWAY_ENDPOINT_RESPONSE);
+        ProxyHelper.registerService(PolicyToIngestorService.class, vertx, receive, address);
 
         receive.headHandler((Handler<VertxServiceResponse>) apimanResponse -> {
             HttpServiceFactory.buildResponse(response, apimanResponse);
@@ -163,54 +160,16 @@ public class HttpExecutor implements Handler<HttpServerRequest> {
     }
 
     private void setError(Throwable error) {
-        response.setStatusCode(HttpResponseStatus.INTERNAL_SERVER_ERROR.code());
-        response.setStatusMessage(HttpResponseStatus.INTERNAL_SERVER_ERROR.reasonPhrase());
-        response.headers().add("X-Gateway-Error", String.valueOf(error.getMessage())); //$NON-NLS-1$
-        response.headers().add(HttpHeaders.CONTENT_TYPE,  MediaType.APPLICATION_JSON);
-
-        EngineErrorResponse errorResponse = new EngineErrorResponse();
-        errorResponse.setResponseCode(HttpResponseStatus.INTERNAL_SERVER_ERROR.code());
-        errorResponse.setMessage(error.getMessage());
-        errorResponse.setTrace(error);
-
-        response.write(Json.encode(errorResponse));
+        // The response is done with, whatever the policy verticle still sends
+        if (receive != null) {
+            receive.close();
+        }
+        HttpServiceFactory.buildErrorResponse(response, error);
         log.debug("Finished setting error");
-
-        if (!response.ended())
-            response.end();
     }
 
     private void setPolicyFailure(VertxPolicyFailure failure) {
-        response.headers().add("X-Policy-Failure-Type", String.valueOf(failure.getType())); //$NON-NLS-1$
-        response.headers().add("X-Policy-Failure-Message", failure.getMessage()); //$NON-NLS-1$
-        response.headers().add("X-Policy-Failure-Code", String.valueOf(failure.getFailureCode())); //$NON-NLS-1$
-        response.headers().add(HttpHeaders.CONTENT_TYPE,  MediaType.APPLICATION_JSON);
-
-        int code = HttpResponseStatus.INTERNAL_SERVER_ERROR.code();
-
-        switch (failure.getType()) {
-        case Authentication:
-            code = HttpResponseStatus.UNAUTHORIZED.code();
-            break;
-        case Authorization:
-            code = HttpResponseStatus.FORBIDDEN.code();
-            break;
-        case NotFound:
-            code = HttpResponseStatus.NOT_FOUND.code();
-            break;
-        case Other:
-            code = failure.getResponseCode();
-            break;
-        }
-
-        response.setStatusCode(code);
-        response.setStatusMessage(failure.getMessage());
-
-        for (Entry<String, String> entry : failure.getHeaders().entrySet()) {
-            response.headers().add(entry.getKey(), entry.getValue());
-        }
-
+        HttpServiceFactory.buildPolicyFailureResponse(response, failure);
         log.debug("Finished writing policy failure");
-        response.end(failure.getRaw());
     }
 }
@@ -17,16 +17,23 @@ package io.apiman.gateway.platforms.vertx3.http;
 
 import io.apiman.common.util.ApimanPathUtils;
 import io.apiman.common.util.ApimanPathUtils.ServiceRequestPathInfo;
+import io.apiman.common.util.MediaType;
+import io.apiman.gateway.engine.beans.EngineErrorResponse;
+import io.apiman.gateway.platforms.vertx3.io.VertxPolicyFailure;
 import io.apiman.gateway.platforms.vertx3.io.VertxServiceRequest;
 import io.apiman.gateway.platforms.vertx3.io.VertxServiceResponse;
+import io.netty.handler.codec.http.HttpResponseStatus;
 import io.vertx.core.MultiMap;
 import io.vertx.core.http.HttpClientResponse;
+import io.vertx.core.http.HttpHeaders;
 import io.vertx.core.http.HttpServerRequest;
 import io.vertx.core.http.HttpServerResponse;
+import io.vertx.core.json.Json;
 
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.Map;
+import java.util.Map.Entry;
 import java.util.Set;
 
 /**
@@ -70,6 +77,66 @@ public class HttpServiceFactory {
         return apimanRequest;
     }
 
+    /**
+     * Writes an error response (and ends it).
+     * @param response the response
+     * @param error the error
+     */
+    public static void buildErrorResponse(HttpServerResponse response, Throwable error) {
+        response.setStatusCode(HttpResponseStatus.INTERNAL_SERVER_ERROR.code());
+        response.setStatusMessage(HttpResponseStatus.INTERNAL_SERVER_ERROR.reasonPhrase());
+        response.headers().add("X-Gateway-Error", String.valueOf(error.getMessage())); //$NON-NLS-1$
+        response.headers().add(HttpHeaders.CONTENT_TYPE,  MediaType.APPLICATION_JSON);
+
+        EngineErrorResponse errorResponse = new EngineErrorResponse();
+        errorResponse.setResponseCode(HttpResponseStatus.INTERNAL_SERVER_ERROR.code());
+        errorResponse.setMessage(error.getMessage());
+        errorResponse.setTrace(error);
+
+        response.write(Json.encode(errorResponse));
+
+        if (!response.ended())
+            response.end();
+    }
+
+    /**
+     * Writes a policy failure response (and ends it).
+     * @param response the response
+     * @param failure the policy failure
+     */
+    public static void buildPolicyFailureResponse(HttpServerResponse response, VertxPolicyFailure failure) {
+        response.headers().add("X-Policy-Failure-Type", String.valueOf(failure.getType())); //$NON-NLS-1$
+        response.headers().add("X-Policy-Failure-Message", failure.getMessage()); //$NON-NLS-1$
+        response.headers().add("X-Policy-Failure-Code", String.valueOf(failure.getFailureCode())); //$NON-NLS-1$
+        response.headers().add(HttpHeaders.CONTENT_TYPE,  MediaType.APPLICATION_JSON);
+
+        int code = HttpResponseStatus.INTERNAL_SERVER_ERROR.code();
+
+        switch (failure.getType()) {
+        case Authentication:
+            code = HttpResponseStatus.UNAUTHORIZED.code();
+            break;
+        case Authorization:
+            code = HttpResponseStatus.FORBIDDEN.code();
+            break;
+        case NotFound:
+            code = HttpResponseStatus.NOT_FOUND.code();
+            break;
+        case Other:
+            code = failure.getResponseCode();
+            break;
+        }
+
+        response.setStatusCode(code);
+        response.setStatusMessage(failure.getMessage());
+
+        for (Entry<String, String> entry : failure.getHeaders().entrySet()) {
+            response.headers().add(entry.getKey(), entry.getValue());
+        }
+
+        response.end(failure.getRaw());
+    }
+
     private static void mungePath(HttpServerRequest request, VertxServiceRequest apimanRequest) {
         ServiceRequestPathInfo parsedPath = ApimanPathUtils.parseServiceRequestPath(
                 request.getHeader(ApimanPathUtils.X_API_VERSION_HEADER),
@@ -0,0 +1,109 @@
+/*
+ * Copyright 2015 JBoss Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.apiman.gateway.platforms.vertx3.io;
+
+import io.apiman.gateway.platforms.vertx3.common.config.VertxEngineConfig;
+import io.vertx.core.Handler;
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.eventbus.MessageConsumer;
+
+/**
+ * Receives the body chunks sent (with the {@link BufferPassThroughCodec}) to a
+ * service address + {@link VertxEngineConfig#GATEWAY_ENDPOINT_BODY}.  The
+ * consumer must be closed once the body is done with - whether it ended or the
+ * exchange failed.  Should that never happen (e.g. because the other side went
+ * away), the consumer closes itself once nothing arrived for a while, like the
+ * service proxy handlers do.
+ *
+ * @author Marc Savy {@literal <msavy@redhat.com>}
+ */
+public class BodyConsumer {
+
+    /**
+     * The inactivity timeout (in seconds) - the same as the proxy handlers'.
+     */
+    public static final long DEFAULT_TIMEOUT = 5 * 60;
+
+    private final Vertx vertx;
+    private final MessageConsumer<Buffer> consumer;
+    private final long timerId;
+    private final long timeoutSeconds;
+    private volatile long lastAccessed;
+    private boolean closed;
+
+    /**
+     * Constructor.
+     * @param vertx a vertx instance
+     * @param address the address of the service
+     * @param handler the chunk handler
+     */
+    public BodyConsumer(Vertx vertx, String address, Handler<Buffer> handler) {
+        this(vertx, address, handler, DEFAULT_TIMEOUT);
+    }
+
+    /**
+     * Constructor.
+     * @param vertx a vertx instance
+     * @param address the address of the service
+     * @param handler the chunk handler
+     * @param timeoutSeconds the inactivity timeout
+     */
+    public BodyConsumer(Vertx vertx, String address, Handler<Buffer> handler, long timeoutSeconds) {
+        this.vertx = vertx;
+        this.timeoutSeconds = timeoutSeconds;
+        accessed();
+        consumer = vertx.eventBus().consumer(address + VertxEngineConfig.GATEWAY_ENDPOINT_BODY, message -> {
+            accessed();
+            handler.handle(message.body());
+        });
+        long period = Math.min(timeoutSeconds * 1000 / 2, 10000);
+        timerId = vertx.setPeriodic(Math.max(period, 1), this::checkTimedOut);
+    }
+
+    /**
+     * Marks the exchange as active (e.g. when its head or end arrives).
+     */
+    public void accessed() {
+        lastAccessed = System.nanoTime();
+    }
+
+    private void checkTimedOut(long id) {
+        if (System.nanoTime() - lastAccessed > timeoutSeconds * 1000000000) {
+            close();
+        }
+    }
+
+    /**
+     * Unregisters the consumer.  Closing it again does nothing.
+     */
+    public synchronized void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        vertx.cancelTimer(timerId);
+        consumer.unregister();
+    }
+
+    /**
+     * @return true if the consumer has been closed
+     */
+    public synchronized boolean isClosed() {
+        return closed;
+    }
+
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright 2015 JBoss Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.apiman.gateway.platforms.vertx3.io;
+
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.eventbus.DeliveryOptions;
+import io.vertx.core.eventbus.MessageCodec;
+
+/**
+ * Event bus codec for body chunks.  Bytes are sent as they are (no conversion to
+ * and from strings, so binary bodies are safe) and, when the receiver is in the
+ * same JVM, the {@link Buffer} itself is handed over without a copy - the sender
+ * must not touch a chunk once it has been sent.
+ *
+ * @author Marc Savy {@literal <msavy@redhat.com>}
+ */
+public class BufferPassThroughCodec implements MessageCodec<Buffer, Buffer> {
+
+    public static final String NAME = "apiman-buffer-passthrough"; //$NON-NLS-1$
+
+    /**
+     * Options to send body chunks with.
+     */
+    public static final DeliveryOptions DELIVERY_OPTIONS = new DeliveryOptions().setCodecName(NAME);
+
+    /**
+     * Registers the codec with the event bus, unless that has already happened (the
+     * verticles of a vertx instance share its event bus).
+     * @param vertx a vertx instance
+     */
+    public static void register(Vertx vertx) {
+        try {
+            vertx.eventBus().registerCodec(new BufferPassThroughCodec());
+        } catch (IllegalStateException e) {
+            // Already registered
+        }
+    }
+
+    /**
+     * @see io.vertx.core.eventbus.MessageCodec#encodeToWire(io.vertx.core.buffer.Buffer, java.lang.Object)
+     */
+    @Override
+    public void encodeToWire(Buffer buffer, Buffer chunk) {
+        buffer.appendInt(chunk.length());
+        buffer.appendBuffer(chunk);
+    }
+
+    /**
+     * @see io.vertx.core.eventbus.MessageCodec#decodeFromWire(int, io.vertx.core.buffer.Buffer)
+     */
+    @Override
+    public Buffer decodeFromWire(int pos, Buffer buffer) {
+        int length = buffer.getInt(pos);
+        pos += 4;
+        return buffer.getBuffer(pos, pos + length);
+    }
+
+    /**
+     * @see io.vertx.core.eventbus.MessageCodec#transform(java.lang.Object)
+     */
+    @Override
+    public Buffer transform(Buffer chunk) {
+        return chunk;
+    }
+
+    /**
+     * @see io.vertx.core.eventbus.MessageCodec#name()
+     */
+    @Override
+    public String name() {
+        return NAME;
+    }
+
+    /**
+     * @see io.vertx.core.eventbus.MessageCodec#systemCodecID()
+     */
+    @Override
+    public byte systemCodecID() {
+        return -1;
+    }
+
+}
@@ -28,14 +28,21 @@ import io.vertx.serviceproxy.ProxyHelper;
 /**
  * From gateway to a policy verticle
  *
+ * Body chunks don't go through the service proxy, which can only carry JSON. They
+ * are sent as buffers to the service's address + ".body", from the same context as
+ * end (so they arrive before it).
+ *
+ * @see io.apiman.gateway.platforms.vertx3.common.config.VertxEngineConfig#GATEWAY_ENDPOINT_BODY
+ * @see io.apiman.gateway.platforms.vertx3.io.BufferPassThroughCodec
+ *
  * @author Marc Savy {@literal <msavy@redhat.com>}
  */
 @ProxyGen
 @VertxGen
 public interface IngestorToPolicyService {
 
-    static IngestorToPolicyService create(Vertx vertx) {
-      return new IngestorToPolicyImpl(vertx);
+    static IngestorToPolicyService create(Vertx vertx, String address) {
+      return new IngestorToPolicyImpl(vertx, address);
     }
 
     static IngestorToPolicyService createProxy(Vertx vertx, String address) {
@@ -51,14 +58,6 @@ public interface IngestorToPolicyService {
     void head(VertxServiceRequest serviceRequest,
             Handler<AsyncResult<Boolean>> readyHandler);
 
-    /**
-     * Write a body chunks
-     *
-     * @param chunk the body chunk
-     */
-    // TODO change this when https://github.com/vert-x3/vertx-service-proxy/issues/17
-    void write(String chunk);
-
     /**
      * Finished transmitting body chunks
      * @param resultHandler the result handler
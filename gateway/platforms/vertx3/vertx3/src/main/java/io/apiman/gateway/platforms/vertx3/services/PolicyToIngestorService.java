@@ -31,14 +31,17 @@ import io.vertx.serviceproxy.ProxyHelper;
  *
  * HTTP <=> PolicyVerticle
  *
+ * As with the ingestor to policy service, body chunks are sent as buffers to the
+ * service's address + ".body".
+ *
  * @author Marc Savy {@literal <msavy@redhat.com>}
  */
 @ProxyGen
 @VertxGen
 public interface PolicyToIngestorService {
 
-    static PolicyToIngestorService create(Vertx vertx) {
-      return new PolicyToIngestorServiceImpl();
+    static PolicyToIngestorService create(Vertx vertx, String address) {
+      return new PolicyToIngestorServiceImpl(vertx, address);
     }
 
     static PolicyToIngestorService createProxy(Vertx vertx, String address) {
@@ -53,14 +56,6 @@ public interface PolicyToIngestorService {
      */
     void head(VertxServiceResponse serviceResponse, Handler<AsyncResult<Void>> readyHandler);
 
-    /**
-     * Write a body chunks
-     *
-     * @param chunk the body chunk
-     */
-    // TODO change this when https://github.com/vert-x3/vertx-service-proxy/issues/17
-    void write(String chunk);
-
     /**
      * Finished all actions.
      * @param resultHandler the result handler
@@ -15,6 +15,8 @@
  */
 package io.apiman.gateway.platforms.vertx3.services.impl;
 
+import io.apiman.gateway.platforms.vertx3.common.config.VertxEngineConfig;
+import io.apiman.gateway.platforms.vertx3.io.BodyConsumer;
 import io.apiman.gateway.platforms.vertx3.io.VertxApimanBuffer;
 import io.apiman.gateway.platforms.vertx3.io.VertxServiceRequest;
 import io.apiman.gateway.platforms.vertx3.services.IngestorToPolicyService;
@@ -22,6 +24,7 @@ import io.vertx.core.AsyncResult;
 import io.vertx.core.Future;
 import io.vertx.core.Handler;
 import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
 import io.vertx.core.logging.Logger;
 import io.vertx.core.logging.LoggerFactory;
 
@@ -42,29 +45,37 @@ public class IngestorToPolicyImpl implements IngestorToPolicyService {
     private Handler<AsyncResult<Void>> resultHandler;
     private Logger log = LoggerFactory.getLogger(IngestorToPolicyImpl.class);
     private String uuid = UUID.randomUUID().toString();
+    private BodyConsumer bodyConsumer;
 
-    public IngestorToPolicyImpl(Vertx vertx) {
+    /**
+     * Constructor.
+     * @param vertx a vertx instance
+     * @param address the address of the service (body chunks arrive on address + {@link VertxEngineConfig#GATEWAY_ENDPOINT_BODY})
+     */
+    public IngestorToPolicyImpl(Vertx vertx, String address) {
         log.debug("Creating IngestorToPolicyImpl " + uuid);
+        bodyConsumer = new BodyConsumer(vertx, address, this::write);
     }
 
     @Override
     public void head(VertxServiceRequest serviceRequest,
             Handler<AsyncResult<Boolean>> readyHandler) {
         log.debug(String.format("%s received ServiceRequest %s", uuid, serviceRequest));
+        bodyConsumer.accessed();
         this.readyHandler = readyHandler;
         headHandler.handle(serviceRequest);
     }
 
-    @Override
-    public void write(String chunk) {
+    private void write(Buffer chunk) {
         log.debug(String.format("%s received chunk of size %s", uuid, chunk.length()));
         if (bodyHandler != null)
-            bodyHandler.handle(new VertxApimanBuffer(chunk)); //TODO this should be fixed when custom marshallers allowed
+            bodyHandler.handle(new VertxApimanBuffer(chunk));
     }
 
     @Override
     public void end(Handler<AsyncResult<Void>> resultHandler) {
         log.debug(uuid + " ended");
+        bodyConsumer.close();
         this.resultHandler = resultHandler;
         if (endHandler != null)
             endHandler.handle((Void) null);
@@ -89,11 +100,14 @@ public class IngestorToPolicyImpl implements IngestorToPolicyService {
 
     public void failHead() {
         log.debug(String.format("%s indicated #failHead", uuid));
+        // No body is sent after a failed head
+        bodyConsumer.close();
         readyHandler.handle(Future.succeededFuture(false));
     }
 
     public void fail(Throwable error) {
         log.debug(String.format("%s indicated #fail", uuid));
+        bodyConsumer.close();
         resultHandler.handle(Future.failedFuture(error));
     }
 
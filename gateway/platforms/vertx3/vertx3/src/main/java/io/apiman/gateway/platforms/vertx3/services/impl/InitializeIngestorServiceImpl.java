@@ -52,14 +52,15 @@ public class InitializeIngestorServiceImpl implements InitializeIngestorService
     public void createIngestor(String uuid, Handler<AsyncResult<IngestorToPolicyService>> resultHandler) {
         log.debug("Creating ingestor who will listen on " + uuid);
 
-        IngestorToPolicyImpl service = new IngestorToPolicyImpl(vertx);
+        IngestorToPolicyImpl service = new IngestorToPolicyImpl(vertx, uuid);
 
         ProxyHelper.registerService(IngestorToPolicyService.class,
                 vertx, service, uuid);
 
-        PolicyToIngestorService replyProxy = PolicyToIngestorService.createProxy(vertx, uuid + VertxEngineConfig.GATEWAY_ENDPOINT_RESPONSE);
+        String replyAddress = uuid + VertxEngineConfig.GATEWAY_ENDPOINT_RESPONSE;
+        PolicyToIngestorService replyProxy = PolicyToIngestorService.createProxy(vertx, replyAddress);
 
-        PolicyExecutor executor = new PolicyExecutor(engine, service, replyProxy, log);
+        PolicyExecutor executor = new PolicyExecutor(vertx, engine, service, replyProxy, replyAddress, log);
         executor.execute();
 
         // Open up a IngestorToPolicy service
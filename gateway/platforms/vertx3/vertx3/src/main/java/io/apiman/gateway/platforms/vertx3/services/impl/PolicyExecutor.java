@@ -22,6 +22,8 @@ import io.apiman.gateway.engine.async.IAsyncHandler;
 import io.apiman.gateway.engine.async.IAsyncResultHandler;
 import io.apiman.gateway.engine.io.IApimanBuffer;
 import io.apiman.gateway.engine.io.ISignalWriteStream;
+import io.apiman.gateway.platforms.vertx3.common.config.VertxEngineConfig;
+import io.apiman.gateway.platforms.vertx3.io.BufferPassThroughCodec;
 import io.apiman.gateway.platforms.vertx3.io.VertxApimanBuffer;
 import io.apiman.gateway.platforms.vertx3.io.VertxPolicyFailure;
 import io.apiman.gateway.platforms.vertx3.io.VertxServiceRequest;
@@ -29,6 +31,7 @@ import io.apiman.gateway.platforms.vertx3.io.VertxServiceResponse;
 import io.apiman.gateway.platforms.vertx3.services.PolicyToIngestorService;
 import io.vertx.core.AsyncResult;
 import io.vertx.core.Handler;
+import io.vertx.core.Vertx;
 import io.vertx.core.buffer.Buffer;
 import io.vertx.core.logging.Logger;
 
@@ -41,14 +44,18 @@ import io.vertx.core.logging.Logger;
 public class PolicyExecutor {
     private IngestorToPolicyImpl requestService;
     private PolicyToIngestorService replyProxy;
+    private String replyBodyAddress;
     private Logger log;
     private IEngine engine;
+    private Vertx vertx;
 
-    public PolicyExecutor(IEngine engine, IngestorToPolicyImpl requestService,
-            PolicyToIngestorService replyProxy, Logger log) {
+    public PolicyExecutor(Vertx vertx, IEngine engine, IngestorToPolicyImpl requestService,
+            PolicyToIngestorService replyProxy, String replyAddress, Logger log) {
+        this.vertx = vertx;
         this.engine = engine;
         this.requestService = requestService;
         this.replyProxy = replyProxy;
+        this.replyBodyAddress = replyAddress + VertxEngineConfig.GATEWAY_ENDPOINT_BODY;
         this.log = log;
     }
 
@@ -116,7 +123,9 @@ public class PolicyExecutor {
         });
 
         engineResult.bodyHandler((IAsyncHandler<IApimanBuffer>) chunk -> {
-            replyProxy.write(((Buffer) chunk.getNativeBuffer()).toString("UTF-8")); // TODO change when marshaller available
+            Buffer buffer = chunk.getNativeBuffer() instanceof Buffer ? (Buffer) chunk.getNativeBuffer()
+                    : Buffer.buffer(chunk.getBytes());
+            vertx.eventBus().send(replyBodyAddress, buffer, BufferPassThroughCodec.DELIVERY_OPTIONS);
         });
 
         engineResult.endHandler((IAsyncHandler<Void>) v -> {
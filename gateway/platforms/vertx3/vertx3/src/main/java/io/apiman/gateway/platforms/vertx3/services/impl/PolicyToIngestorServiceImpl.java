@@ -15,6 +15,8 @@
  */
 package io.apiman.gateway.platforms.vertx3.services.impl;
 
+import io.apiman.gateway.platforms.vertx3.common.config.VertxEngineConfig;
+import io.apiman.gateway.platforms.vertx3.io.BodyConsumer;
 import io.apiman.gateway.platforms.vertx3.io.VertxApimanBuffer;
 import io.apiman.gateway.platforms.vertx3.io.VertxPolicyFailure;
 import io.apiman.gateway.platforms.vertx3.io.VertxServiceResponse;
@@ -22,6 +24,8 @@ import io.apiman.gateway.platforms.vertx3.services.PolicyToIngestorService;
 import io.vertx.core.AsyncResult;
 import io.vertx.core.Future;
 import io.vertx.core.Handler;
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
 import io.vertx.core.logging.Logger;
 import io.vertx.core.logging.LoggerFactory;
 
@@ -41,37 +45,54 @@ public class PolicyToIngestorServiceImpl implements PolicyToIngestorService {
     private Handler<Void> endHandler;
     private Handler<VertxPolicyFailure> policyFailureHandler;
     private Logger log = LoggerFactory.getLogger(PolicyToIngestorServiceImpl.class);
+    private BodyConsumer bodyConsumer;
 
-    public PolicyToIngestorServiceImpl() {
+    /**
+     * Constructor.
+     * @param vertx a vertx instance
+     * @param address the address of the service (body chunks arrive on address + {@link VertxEngineConfig#GATEWAY_ENDPOINT_BODY})
+     */
+    public PolicyToIngestorServiceImpl(Vertx vertx, String address) {
         log.debug("Creating PolicyToIngestorServiceImpl " + uuid);
+        bodyConsumer = new BodyConsumer(vertx, address, this::write);
     }
 
     @Override
     public void head(VertxServiceResponse serviceResponse, Handler<AsyncResult<Void>> readyHandler) {
         log.debug(String.format("%s received ServiceResponse %s", uuid, serviceResponse));
+        bodyConsumer.accessed();
         headHandler.handle(serviceResponse);
         // Fire the ready handler immediately
         readyHandler.handle(Future.succeededFuture((Void) null));
     }
 
-    @Override
-    public void write(String chunk) {
+    private void write(Buffer chunk) {
         log.debug(String.format("%s received chunk of size %d", uuid, chunk.length()));
-        bodyHandler.handle(new VertxApimanBuffer(chunk, "UTF-8")); // TODO fix when upstream ready
+        bodyHandler.handle(new VertxApimanBuffer(chunk));
     }
 
     @Override
     public void end(Handler<AsyncResult<Void>> resultHandler) {
         log.debug(uuid + " ended");
+        bodyConsumer.close();
         endHandler.handle((Void) null);
         resultHandler.handle(Future.succeededFuture());
     }
 
     @Override
     public void policyFailure(VertxPolicyFailure policyFailure) {
+        // No body is sent after a policy failure
+        bodyConsumer.close();
         policyFailureHandler.handle(policyFailure);
     }
 
+    /**
+     * Stops receiving the body, e.g. because the exchange has failed.
+     */
+    public void close() {
+        bodyConsumer.close();
+    }
+
     public void policyFailureHandler(Handler<VertxPolicyFailure> policyFailureHandler) {
         this.policyFailureHandler = policyFailureHandler;
     }
@@ -21,6 +21,7 @@ import io.apiman.common.util.SimpleStringUtils;
 import io.apiman.gateway.platforms.vertx3.common.config.VertxEngineConfig;
 import io.apiman.gateway.platforms.vertx3.common.verticles.VerticleType;
 import io.apiman.gateway.platforms.vertx3.i18n.Messages;
+import io.apiman.gateway.platforms.vertx3.io.BufferPassThroughCodec;
 import io.vertx.core.AbstractVerticle;
 import io.vertx.core.logging.Logger;
 import io.vertx.core.logging.LoggerFactory;
@@ -39,6 +40,7 @@ public abstract class ApimanVerticleBase extends AbstractVerticle {
     @Override
     public void start() {
         apimanConfig = getEngineConfig();
+        BufferPassThroughCodec.register(vertx);
 
         log.info(Messages.getString("ApimanVerticleBase.starting_verticle") + this.getClass().getName() + "\n" +
                 Messages.getString("ApimanVerticleBase.type") + verticleType() + "\n" +
@@ -32,6 +32,9 @@ public abstract class ApimanVerticleWithEngine extends ApimanVerticleBase {
     public void start() {
         super.start();
 
+        if (!requiresEngine())
+            return;
+
         engine = new VertxConfigDrivenEngineFactory(vertx, getEngineConfig()).createEngine();
         engine.getRegistry(); // this should help avoid slow first-time loads.
         //apiListener = new ApiListener(eb, uuid);
@@ -41,4 +44,11 @@ public abstract class ApimanVerticleWithEngine extends ApimanVerticleBase {
     protected IEngine engine() {
         return engine;
     }
+
+    /**
+     * @return true if the engine should be created (default true); if not, {@link #engine()} is null
+     */
+    protected boolean requiresEngine() {
+        return true;
+    }
 }
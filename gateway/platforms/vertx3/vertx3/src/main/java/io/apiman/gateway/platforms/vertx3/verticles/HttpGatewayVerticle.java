@@ -16,6 +16,7 @@
 package io.apiman.gateway.platforms.vertx3.verticles;
 
 import io.apiman.gateway.platforms.vertx3.common.verticles.VerticleType;
+import io.apiman.gateway.platforms.vertx3.http.ColocatedHttpExecutor;
 import io.apiman.gateway.platforms.vertx3.http.HttpExecutor;
 import io.vertx.core.http.HttpServerOptions;
 import io.vertx.core.http.HttpServerRequest;
@@ -25,7 +26,7 @@ import io.vertx.core.http.HttpServerRequest;
  *
  * @author Marc Savy {@literal <msavy@redhat.com>}
  */
-public class HttpGatewayVerticle extends ApimanVerticleBase {
+public class HttpGatewayVerticle extends ApimanVerticleWithEngine {
     public static final VerticleType VERTICLE_TYPE = VerticleType.HTTP;
 
     @Override
@@ -41,7 +42,16 @@ public class HttpGatewayVerticle extends ApimanVerticleBase {
     }
 
     public void requestHandler(HttpServerRequest req) {
-        new HttpExecutor(vertx, log, false).handle(req);
+        if (apimanConfig.isColocated()) {
+            new ColocatedHttpExecutor(engine, log, false).handle(req);
+        } else {
+            new HttpExecutor(vertx, log, false).handle(req);
+        }
+    }
+
+    @Override
+    protected boolean requiresEngine() {
+        return apimanConfig.isColocated();
     }
 
     @Override
@@ -16,6 +16,7 @@
 package io.apiman.gateway.platforms.vertx3.verticles;
 
 import io.apiman.gateway.platforms.vertx3.common.verticles.VerticleType;
+import io.apiman.gateway.platforms.vertx3.http.ColocatedHttpExecutor;
 import io.apiman.gateway.platforms.vertx3.http.HttpExecutor;
 import io.vertx.core.http.HttpServerOptions;
 import io.vertx.core.http.HttpServerRequest;
@@ -26,7 +27,7 @@ import io.vertx.core.net.JksOptions;
  *
  * @author Marc Savy {@literal <msavy@redhat.com>}
  */
-public class HttpsGatewayVerticle extends ApimanVerticleBase {
+public class HttpsGatewayVerticle extends ApimanVerticleWithEngine {
     public static final VerticleType VERTICLE_TYPE = VerticleType.HTTPS;
 
     @Override
@@ -53,7 +54,16 @@ public class HttpsGatewayVerticle extends ApimanVerticleBase {
     }
 
     public void requestHandler(HttpServerRequest req) {
-        new HttpExecutor(vertx, log, true).handle(req);
+        if (apimanConfig.isColocated()) {
+            new ColocatedHttpExecutor(engine, log, true).handle(req);
+        } else {
+            new HttpExecutor(vertx, log, true).handle(req);
+        }
+    }
+
+    @Override
+    protected boolean requiresEngine() {
+        return apimanConfig.isColocated();
     }
 
     @Override
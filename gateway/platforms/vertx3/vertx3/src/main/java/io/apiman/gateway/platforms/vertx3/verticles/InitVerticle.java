@@ -53,7 +53,9 @@ public class InitVerticle extends ApimanVerticleBase {
 
         @SuppressWarnings("serial")
         List<ApimanDeployment> deployList = new ArrayList<ApimanDeployment>() {{
-            add(buildDeploymentOptions(base, PolicyVerticle.class.getCanonicalName(), PolicyVerticle.VERTICLE_TYPE));
+            // Co-located HTTP(S) verticles execute the policies themselves
+            if (!apimanConfig.isColocated())
+                add(buildDeploymentOptions(base, PolicyVerticle.class.getCanonicalName(), PolicyVerticle.VERTICLE_TYPE));
             add(buildDeploymentOptions(base, ApiVerticle.class.getCanonicalName(), ApiVerticle.VERTICLE_TYPE));
             add(buildDeploymentOptions(base, HttpGatewayVerticle.class.getCanonicalName(), HttpGatewayVerticle.VERTICLE_TYPE));
             add(buildDeploymentOptions(base, HttpsGatewayVerticle.class.getCanonicalName(), HttpsGatewayVerticle.VERTICLE_TYPE));
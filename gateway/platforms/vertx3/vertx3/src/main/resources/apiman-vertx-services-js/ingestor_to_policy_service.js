@@ -26,6 +26,10 @@ var VertxServiceRequest = io.apiman.gateway.platforms.vertx3.io.VertxServiceRequ
 /**
  From gateway to a policy verticle
 
+ Body chunks don't go through the service proxy, which can only carry JSON. They
+ are sent as buffers to the service's address + ".body", from the same context as
+ end (so they arrive before it).
+
  @class
 */
 var IngestorToPolicyService = function(j_val) {
@@ -53,19 +57,6 @@ var IngestorToPolicyService = function(j_val) {
     } else throw new TypeError('function invoked with invalid arguments');
   };
 
-  /**
-   Write a body chunks
-
-   @public
-   @param chunk {string} the body chunk 
-   */
-  this.write = function(chunk) {
-    var __args = arguments;
-    if (__args.length === 1 && typeof __args[0] === 'string') {
-      j_ingestorToPolicyService["write(java.lang.String)"](chunk);
-    } else throw new TypeError('function invoked with invalid arguments');
-  };
-
   /**
    Finished transmitting body chunks
 
@@ -95,12 +86,13 @@ var IngestorToPolicyService = function(j_val) {
 
  @memberof module:apiman-vertx-services-js/ingestor_to_policy_service
  @param vertx {Vertx} 
+ @param address {string} 
  @return {IngestorToPolicyService}
  */
-IngestorToPolicyService.create = function(vertx) {
+IngestorToPolicyService.create = function(vertx, address) {
   var __args = arguments;
-  if (__args.length === 1 && typeof __args[0] === 'object' && __args[0]._jdel) {
-    return utils.convReturnVertxGen(JIngestorToPolicyService["create(io.vertx.core.Vertx)"](vertx._jdel), IngestorToPolicyService);
+  if (__args.length === 2 && typeof __args[0] === 'object' && __args[0]._jdel && typeof __args[1] === 'string') {
+    return utils.convReturnVertxGen(JIngestorToPolicyService["create(io.vertx.core.Vertx,java.lang.String)"](vertx._jdel, address), IngestorToPolicyService);
   } else throw new TypeError('function invoked with invalid arguments');
 };
 
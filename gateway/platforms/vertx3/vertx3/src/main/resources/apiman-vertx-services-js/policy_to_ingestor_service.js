@@ -29,6 +29,9 @@ var VertxPolicyFailure = io.apiman.gateway.platforms.vertx3.io.VertxPolicyFailur
 
  HTTP <=> PolicyVerticle
 
+ As with the ingestor to policy service, body chunks are sent as buffers to the
+ service's address + ".body".
+
  @class
 */
 var PolicyToIngestorService = function(j_val) {
@@ -56,19 +59,6 @@ var PolicyToIngestorService = function(j_val) {
     } else throw new TypeError('function invoked with invalid arguments');
   };
 
-  /**
-   Write a body chunks
-
-   @public
-   @param chunk {string} the body chunk 
-   */
-  this.write = function(chunk) {
-    var __args = arguments;
-    if (__args.length === 1 && typeof __args[0] === 'string') {
-      j_policyToIngestorService["write(java.lang.String)"](chunk);
-    } else throw new TypeError('function invoked with invalid arguments');
-  };
-
   /**
    Finished all actions.
 
@@ -111,12 +101,13 @@ var PolicyToIngestorService = function(j_val) {
 
  @memberof module:apiman-vertx-services-js/policy_to_ingestor_service
  @param vertx {Vertx} 
+ @param address {string} 
  @return {PolicyToIngestorService}
  */
-PolicyToIngestorService.create = function(vertx) {
+PolicyToIngestorService.create = function(vertx, address) {
   var __args = arguments;
-  if (__args.length === 1 && typeof __args[0] === 'object' && __args[0]._jdel) {
-    return utils.convReturnVertxGen(JPolicyToIngestorService["create(io.vertx.core.Vertx)"](vertx._jdel), PolicyToIngestorService);
+  if (__args.length === 2 && typeof __args[0] === 'object' && __args[0]._jdel && typeof __args[1] === 'string') {
+    return utils.convReturnVertxGen(JPolicyToIngestorService["create(io.vertx.core.Vertx,java.lang.String)"](vertx._jdel, address), PolicyToIngestorService);
   } else throw new TypeError('function invoked with invalid arguments');
 };
 
@@ -0,0 +1,94 @@
+/*
+ * Copyright 2015 JBoss Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.apiman.gateway.platforms.vertx3.connector;
+
+import io.apiman.common.config.options.TLSOptions;
+import io.vertx.core.Vertx;
+import io.vertx.core.http.HttpClient;
+import io.vertx.core.http.HttpClientOptions;
+
+import java.net.URL;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * @author Marc Savy {@literal <msavy@redhat.com>}
+ */
+@SuppressWarnings("nls")
+public class HttpClientPoolTest {
+
+    private Vertx vertx;
+
+    @Before
+    public void setup() {
+        vertx = Vertx.vertx();
+    }
+
+    @After
+    public void teardown() {
+        vertx.close();
+    }
+
+    @Test
+    public void testOneClientPerEndpoint() throws Exception {
+        HttpClientPool pool = new HttpClientPool(vertx, new TLSOptions(new HashMap<String, String>()),
+                new HashMap<String, String>());
+
+        HttpClient client = pool.getClient(new URL("http://localhost:8080/services/one"));
+        Assert.assertSame(client, pool.getClient(new URL("http://localhost:8080/services/two?q=1")));
+        Assert.assertNotSame(client, pool.getClient(new URL("http://localhost:8081/services/one")));
+        Assert.assertNotSame(client, pool.getClient(new URL("http://example.org:8080/services/one")));
+        Assert.assertNotSame(client, pool.getClient(new URL("https://localhost:8080/services/one")));
+        Assert.assertEquals(4, pool.size());
+
+        pool.close();
+        Assert.assertEquals(0, pool.size());
+    }
+
+    @Test
+    public void testOptions() throws Exception {
+        Map<String, String> config = new HashMap<>();
+        config.put(HttpClientPool.MAX_POOL_SIZE, "7");
+        config.put(HttpClientPool.KEEP_ALIVE, "false");
+        config.put(HttpClientPool.IDLE_TIMEOUT, "30");
+        config.put(HttpClientPool.PIPELINING, "true");
+        HttpClientPool pool = new HttpClientPool(vertx, new TLSOptions(config), config);
+
+        HttpClientOptions options = pool.createOptions(new URL("https://localhost:8443/"));
+        Assert.assertTrue(options.isSsl());
+        Assert.assertEquals(7, options.getMaxPoolSize());
+        Assert.assertFalse(options.isKeepAlive());
+        Assert.assertEquals(30, options.getIdleTimeout());
+        Assert.assertTrue(options.isPipelining());
+
+        // http endpoints don't get the (cached) https options
+        Assert.assertFalse(pool.createOptions(new URL("http://localhost:8080/")).isSsl());
+
+        // Defaults
+        options = new HttpClientPool(vertx, new TLSOptions(new HashMap<String, String>()),
+                new HashMap<String, String>()).createOptions(new URL("http://localhost:8080/"));
+        Assert.assertEquals(50, options.getMaxPoolSize());
+        Assert.assertTrue(options.isKeepAlive());
+        Assert.assertEquals(60, options.getIdleTimeout());
+        Assert.assertFalse(options.isPipelining());
+    }
+
+}
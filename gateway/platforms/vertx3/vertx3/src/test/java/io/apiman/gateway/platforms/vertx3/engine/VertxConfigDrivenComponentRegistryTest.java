@@ -0,0 +1,84 @@
+/*
+ * Copyright 2015 JBoss Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.apiman.gateway.platforms.vertx3.engine;
+
+import io.apiman.gateway.engine.components.IPolicyFailureFactoryComponent;
+import io.apiman.gateway.engine.components.IRateLimiterComponent;
+import io.apiman.gateway.engine.impl.InMemoryRateLimiterComponent;
+import io.apiman.gateway.platforms.vertx3.common.config.VertxEngineConfig;
+import io.apiman.gateway.platforms.vertx3.components.PolicyFailureFactoryComponent;
+import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonObject;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * @author Marc Savy {@literal <msavy@redhat.com>}
+ */
+@SuppressWarnings("nls")
+public class VertxConfigDrivenComponentRegistryTest {
+
+    private Vertx vertx;
+    private VertxEngineConfig config;
+
+    @Before
+    public void setup() {
+        vertx = Vertx.vertx();
+        config = new VertxEngineConfig(new JsonObject()
+                .put("components", new JsonObject()
+                        .put("IRateLimiterComponent", component(InMemoryRateLimiterComponent.class))
+                        .put("IPolicyFailureFactoryComponent", component(PolicyFailureFactoryComponent.class))));
+    }
+
+    @After
+    public void teardown() {
+        vertx.close();
+    }
+
+    /**
+     * Engines (one per verticle) share shared components, and have their own of the rest.
+     */
+    @Test
+    public void testSharedAndLocalComponents() {
+        VertxConfigDrivenComponentRegistry one = new VertxConfigDrivenComponentRegistry(null, vertx, config);
+        VertxConfigDrivenComponentRegistry two = new VertxConfigDrivenComponentRegistry(null, vertx, config);
+
+        IRateLimiterComponent rateLimiter = one.getComponent(IRateLimiterComponent.class);
+        Assert.assertSame(rateLimiter, one.getComponent(IRateLimiterComponent.class));
+        Assert.assertSame(rateLimiter, two.getComponent(IRateLimiterComponent.class));
+
+        IPolicyFailureFactoryComponent failureFactory = one.getComponent(IPolicyFailureFactoryComponent.class);
+        Assert.assertSame(failureFactory, one.getComponent(IPolicyFailureFactoryComponent.class));
+        Assert.assertNotSame(failureFactory, two.getComponent(IPolicyFailureFactoryComponent.class));
+
+        // Another vertx instance has its own shared components
+        Vertx other = Vertx.vertx();
+        try {
+            Assert.assertNotSame(rateLimiter, new VertxConfigDrivenComponentRegistry(null, other, config)
+                    .getComponent(IRateLimiterComponent.class));
+        } finally {
+            other.close();
+        }
+    }
+
+    private static JsonObject component(Class<?> componentClass) {
+        return new JsonObject().put("class", componentClass.getName()).put("config", new JsonObject());
+    }
+
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright 2015 JBoss Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.apiman.gateway.platforms.vertx3.io;
+
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * @author Marc Savy {@literal <msavy@redhat.com>}
+ */
+@SuppressWarnings("nls")
+public class BodyConsumerTest {
+
+    @Test
+    public void testReceivesChunks() throws Exception {
+        Vertx vertx = Vertx.vertx();
+        try {
+            BufferPassThroughCodec.register(vertx);
+            CompletableFuture<Buffer> received = new CompletableFuture<>();
+            BodyConsumer consumer = new BodyConsumer(vertx, "test", received::complete);
+
+            Buffer sent = Buffer.buffer(new byte[] { 1, 2, 3 });
+            vertx.eventBus().send("test.body", sent, BufferPassThroughCodec.DELIVERY_OPTIONS);
+            Assert.assertSame(sent, received.get(10, TimeUnit.SECONDS));
+
+            consumer.close();
+            // Closing again is harmless
+            consumer.close();
+            Assert.assertTrue(consumer.isClosed());
+        } finally {
+            vertx.close();
+        }
+    }
+
+    /**
+     * A consumer that is never closed (e.g. because the other side went away)
+     * must not stay registered forever.
+     */
+    @Test
+    public void testClosedWhenInactive() throws Exception {
+        Vertx vertx = Vertx.vertx();
+        try {
+            BodyConsumer consumer = new BodyConsumer(vertx, "test", chunk -> {}, 1);
+            long until = System.currentTimeMillis() + 10000;
+            while (!consumer.isClosed() && System.currentTimeMillis() < until) {
+                Thread.sleep(50);
+            }
+            Assert.assertTrue(consumer.isClosed());
+        } finally {
+            vertx.close();
+        }
+    }
+
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright 2015 JBoss Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.apiman.gateway.platforms.vertx3.io;
+
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * @author Marc Savy {@literal <msavy@redhat.com>}
+ */
+@SuppressWarnings("nls")
+public class BufferPassThroughCodecTest {
+
+    /**
+     * Bytes that aren't valid UTF-8 must survive the wire unchanged.
+     */
+    @Test
+    public void testWireRoundTrip() {
+        byte[] bytes = new byte[] { (byte) 0xff, (byte) 0xfe, 0, (byte) 0xc3, 0x28, 42 };
+        BufferPassThroughCodec codec = new BufferPassThroughCodec();
+
+        Buffer wire = Buffer.buffer().appendString("header");
+        codec.encodeToWire(wire, Buffer.buffer(bytes));
+        wire.appendString("trailer");
+
+        Buffer decoded = codec.decodeFromWire("header".length(), wire);
+        Assert.assertTrue(Arrays.equals(bytes, decoded.getBytes()));
+    }
+
+    @Test
+    public void testLocalDeliveryIsNotCopied() throws Exception {
+        Vertx vertx = Vertx.vertx();
+        try {
+            BufferPassThroughCodec.register(vertx);
+            // Registering twice is harmless
+            BufferPassThroughCodec.register(vertx);
+
+            CompletableFuture<Buffer> received = new CompletableFuture<>();
+            vertx.eventBus().<Buffer>consumer("test.body", message -> received.complete(message.body()));
+
+            Buffer sent = Buffer.buffer(new byte[] { 1, 2, 3 });
+            vertx.eventBus().send("test.body", sent, BufferPassThroughCodec.DELIVERY_OPTIONS);
+            Assert.assertSame(sent, received.get(10, TimeUnit.SECONDS));
+        } finally {
+            vertx.close();
+        }
+    }
+
+}
@@ -313,6 +313,7 @@ public class GatewayMicroService {
         addSecurityHandler(gatewayServer);
         gatewayServer.setContextPath("/gateway");
         ServletHolder servlet = new ServletHolder(new WarGatewayServlet());
+        servlet.setAsyncSupported(true);
         gatewayServer.addServlet(servlet, "/*");
 
         handlers.addHandler(gatewayServer);
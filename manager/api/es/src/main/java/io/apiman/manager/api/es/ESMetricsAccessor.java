@@ -65,7 +65,8 @@ import org.joda.time.format.ISODateTimeFormat;
 @ApplicationScoped @Alternative
 public class ESMetricsAccessor implements IMetricsAccessor {
 
-    private static final String INDEX_NAME = "apiman_metrics"; //$NON-NLS-1$
+    // Also matches the daily indexes the gateway can be configured to use
+    private static final String INDEX_NAME = "apiman_metrics*"; //$NON-NLS-1$
 
     @Inject @ApimanLogger(ESMetricsAccessor.class)
     IApimanLogger log;
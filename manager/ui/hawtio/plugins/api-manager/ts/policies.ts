@@ -678,6 +678,18 @@ module Apiman {
                         valid = true;
                     }
                 }
+                if (config.staleWhileRevalidate) {
+                    config.staleWhileRevalidate = Number(config.staleWhileRevalidate);
+                    valid = valid && config.staleWhileRevalidate >= 0;
+                }
+                if (config.staleIfError) {
+                    config.staleIfError = Number(config.staleIfError);
+                    valid = valid && config.staleIfError >= 0;
+                }
+                if (config.coalesceTimeout) {
+                    config.coalesceTimeout = Number(config.coalesceTimeout);
+                    valid = valid && config.coalesceTimeout >= 0;
+                }
 
                 $scope.setValid(valid);
             };